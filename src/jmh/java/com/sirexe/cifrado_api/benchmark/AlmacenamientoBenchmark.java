@@ -0,0 +1,83 @@
+package com.sirexe.cifradoapi.benchmark;
+
+import com.sirexe.cifradoapi.config.CifradoProperties;
+import com.sirexe.cifradoapi.model.FileToken;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.Resource;
+import org.springframework.util.unit.DataSize;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latencia del almacenamiento (percentiles con SampleTime): alta de un archivo ya
+ * cifrado, lectura completa en memoria con getFile y descarga en streaming,
+ * con un archivo por token o anexando a segmentos, y con o sin la cache directa
+ * (con 64MB, getFile y openDownload se sirven desde memoria hasta 4MB).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class AlmacenamientoBenchmark {
+
+	@Param({"1KB", "64KB", "1MB", "10MB"})
+	public String tamano;
+
+	@Param({"ARCHIVOS", "SEGMENTOS"})
+	public CifradoProperties.Almacenamiento.Soporte soporte;
+
+	@Param({"0MB", "64MB"})
+	public String cache;
+
+	private Entorno entorno;
+	private byte[] contenido;
+	private String token;
+
+	@Setup
+	public void preparar() throws Exception {
+		entorno = new Entorno(false, soporte, DataSize.parse(cache));
+		contenido = CargaSis.generar(tamano);
+		token = entorno.fileStorageService.storeFile(contenido, "SIS.cif").getToken();
+	}
+
+	@TearDown
+	public void cerrar() throws Exception {
+		entorno.close();
+	}
+
+	/** Incluye el borrado del token para que el disco no crezca durante la medición. */
+	@Benchmark
+	public FileToken storeFile() throws Exception {
+		FileToken fileToken = entorno.fileStorageService.storeFile(contenido, "SIS.cif");
+		entorno.fileStorageService.deleteFile(fileToken.getToken());
+		return fileToken;
+	}
+
+	@Benchmark
+	public byte[] getFile() throws Exception {
+		return entorno.fileStorageService.getFile(token);
+	}
+
+	@Benchmark
+	public long openDownload() throws Exception {
+		Resource recurso = entorno.fileStorageService.openDownload(token, false);
+		try (InputStream entrada = recurso.getInputStream()) {
+			return entrada.transferTo(OutputStream.nullOutputStream());
+		}
+	}
+}
@@ -0,0 +1,61 @@
+package com.sirexe.cifradoapi.benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Locale;
+
+/**
+ * Cargas con forma de extracto SIS: el encabezado y la fila de ejemplo de
+ * SIS.txt, repetida con CLUES, CURP y fecha de consulta distintos por fila para
+ * que el contenido no sea periódico.
+ */
+final class CargaSis {
+
+	private static final int CLUES = 0;
+	private static final int CURP_PACIENTE = 8;
+	private static final int FECHA_CONSULTA = 23;
+
+	private CargaSis() {
+	}
+
+	/** Convierte "1KB", "64KB", "1MB", "100MB" en bytes. */
+	static int tamano(String texto) {
+		String valor = texto.trim().toUpperCase(Locale.ROOT);
+		if (valor.endsWith("MB")) {
+			return Integer.parseInt(valor.substring(0, valor.length() - 2)) << 20;
+		}
+		if (valor.endsWith("KB")) {
+			return Integer.parseInt(valor.substring(0, valor.length() - 2)) << 10;
+		}
+		return Integer.parseInt(valor);
+	}
+
+	static byte[] generar(String tamano) throws IOException {
+		return generar(tamano(tamano), 0);
+	}
+
+	/** Genera exactamente {@code bytes} bytes; {@code semilla} distingue cargas del mismo tamaño. */
+	static byte[] generar(int bytes, int semilla) throws IOException {
+		String[] lineas = new String(Files.readAllBytes(Paths.get("SIS.txt")), StandardCharsets.UTF_8)
+			.replace("\uFEFF", "").split("\r?\n");
+		String[] ejemplo = lineas[1].split("\\|", -1);
+
+		ByteArrayOutputStream salida = new ByteArrayOutputStream(bytes + 4096);
+		salida.write((lineas[0] + "\n").getBytes(StandardCharsets.UTF_8));
+		for (int fila = 0; salida.size() < bytes; fila++) {
+			int n = semilla * 1_000_003 + fila;
+			ejemplo[CLUES] = String.format("JCSSA%06d", Math.floorMod(n, 1_000_000));
+			ejemplo[CURP_PACIENTE] = String.format("PEGA%02d%04dMJCXTL%02d",
+				Math.floorMod(n, 100), Math.floorMod(n * 7, 10_000), Math.floorMod(n * 13, 100));
+			ejemplo[FECHA_CONSULTA] = String.format("%02d/09/2025", 1 + Math.floorMod(n, 28));
+			salida.write((String.join("|", ejemplo) + "\n").getBytes(StandardCharsets.UTF_8));
+		}
+
+		byte[] carga = new byte[bytes];
+		System.arraycopy(salida.toByteArray(), 0, carga, 0, bytes);
+		return carga;
+	}
+}
@@ -0,0 +1,128 @@
+package com.sirexe.cifradoapi.benchmark;
+
+import com.sirexe.cifradoapi.crypto.Compresion;
+import com.sirexe.cifradoapi.crypto.MotorCifrado;
+import com.sirexe.cifradoapi.crypto.Suite;
+import com.sirexe.cifradoapi.model.FileToken;
+import com.sirexe.cifradoapi.model.OpcionesCifrado;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.PublicKey;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Rendimiento del cifrado: el motor solo (memoria a memoria) y el camino completo
+ * de /cifrar (subida en disco → cifrado → archivo final), con y sin un acierto de
+ * la deduplicación, con cada {@link Suite}. La columna {@code megabytes} da el
+ * rendimiento en MB/s; como el motor cifra un archivo en un solo hilo, en
+ * {@code motor} es también el rendimiento por núcleo.
+ *
+ * {@code motorTroceado} es el formato troceado con trozos de 1MB cifrados en el
+ * pool fork-join común; comparado con {@code motor} muestra cuánto escala con
+ * los núcleos disponibles ({@code -Djava.util.concurrent.ForkJoinPool.common.parallelism}).
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class CifradoBenchmark {
+
+	@Param({"1KB", "64KB", "1MB", "10MB", "100MB"})
+	public String tamano;
+
+	@Param({"TDES", "AES_GCM"})
+	public Suite suite;
+
+	private final MotorCifrado motor = new MotorCifrado();
+	private final OpcionesCifrado opciones = new OpcionesCifrado();
+	private byte[] carga;
+	private MockMultipartFile archivo;
+	private PublicKey clavePublica;
+	private Entorno sinDeduplicar;
+	private Entorno conDeduplicar;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Volumen {
+		public double megabytes;
+
+		@Setup(Level.Iteration)
+		public void reiniciar() {
+			megabytes = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void preparar() throws Exception {
+		carga = CargaSis.generar(tamano);
+		opciones.setSuite(suite);
+		archivo = new MockMultipartFile("archivo", "SIS.txt", "text/plain", carga);
+		sinDeduplicar = new Entorno(false);
+		conDeduplicar = new Entorno(true);
+		clavePublica = sinDeduplicar.keystoreService.getMaterial().getClavePublica();
+		// El primer cifrado deja el archivo que reutilizan los siguientes
+		conDeduplicar.cifradoService.cifrarYAlmacenar(archivo, "SIS.cif", opciones);
+	}
+
+	@TearDown(Level.Trial)
+	public void cerrar() throws Exception {
+		sinDeduplicar.close();
+		conDeduplicar.close();
+	}
+
+	@Benchmark
+	public long motor(Volumen volumen) throws Exception {
+		long procesados = motor.cifrar(new ByteArrayInputStream(carga), OutputStream.nullOutputStream(), clavePublica,
+			Compresion.NINGUNA, suite);
+		volumen.megabytes += procesados / 1048576.0;
+		return procesados;
+	}
+
+	@Benchmark
+	public long motorTroceado(Volumen volumen) throws Exception {
+		ForkJoinPool pool = ForkJoinPool.commonPool();
+		try (InputStream cifrando = motor.cifrandoTroceado(new ByteArrayInputStream(carga), clavePublica,
+				Compresion.NINGUNA, suite, 1 << 20, pool, 2 * pool.getParallelism())) {
+			cifrando.transferTo(OutputStream.nullOutputStream());
+		}
+		volumen.megabytes += carga.length / 1048576.0;
+		return carga.length;
+	}
+
+	/** Incluye el borrado del token para que el disco no crezca durante la medición. */
+	@Benchmark
+	public FileToken cifrarYAlmacenar(Volumen volumen) throws Exception {
+		FileToken fileToken = sinDeduplicar.cifradoService.cifrarYAlmacenar(archivo, "SIS.cif", opciones);
+		sinDeduplicar.fileStorageService.deleteFile(fileToken.getToken());
+		volumen.megabytes += carga.length / 1048576.0;
+		return fileToken;
+	}
+
+	@Benchmark
+	public FileToken cifrarYAlmacenarDuplicado(Volumen volumen) throws Exception {
+		FileToken fileToken = conDeduplicar.cifradoService.cifrarYAlmacenar(archivo, "SIS.cif", opciones);
+		conDeduplicar.fileStorageService.deleteFile(fileToken.getToken());
+		volumen.megabytes += carga.length / 1048576.0;
+		return fileToken;
+	}
+}
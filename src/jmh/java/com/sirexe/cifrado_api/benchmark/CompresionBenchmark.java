@@ -0,0 +1,118 @@
+package com.sirexe.cifradoapi.benchmark;
+
+import com.sirexe.cifradoapi.crypto.Compresion;
+import com.sirexe.cifradoapi.crypto.MotorCifrado;
+import com.sirexe.cifradoapi.model.FileToken;
+import com.sirexe.cifradoapi.model.OpcionesCifrado;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.Resource;
+import org.springframework.mock.web.MockMultipartFile;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.PrivateKey;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Efecto neto de comprimir antes de cifrar: CPU de /cifrar, bytes en disco (y por
+ * tanto a transferir) y coste de la descarga más el descifrado del lado del cliente.
+ * {@code megabytes} es texto plano procesado; {@code almacenados} son los MB que
+ * quedan en disco por cada MB de texto, es decir, la proporción de compresión.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class CompresionBenchmark {
+
+	@Param({"64KB", "1MB", "10MB", "100MB"})
+	public String tamano;
+
+	@Param({"NINGUNA", "DEFLATE"})
+	public Compresion compresion;
+
+	private final MotorCifrado motor = new MotorCifrado();
+	private final OpcionesCifrado opciones = new OpcionesCifrado();
+	private MockMultipartFile archivo;
+	private Entorno entorno;
+	private PrivateKey clavePrivada;
+	private String token;
+
+	@State(Scope.Thread)
+	@AuxCounters(AuxCounters.Type.OPERATIONS)
+	public static class Volumen {
+		public double megabytes;
+		public double almacenados;
+
+		@Setup(Level.Iteration)
+		public void reiniciar() {
+			megabytes = 0;
+			almacenados = 0;
+		}
+	}
+
+	@Setup(Level.Trial)
+	public void preparar() throws Exception {
+		archivo = new MockMultipartFile("archivo", "SIS.txt", "text/plain", CargaSis.generar(tamano));
+		opciones.setCompresion(compresion);
+		entorno = new Entorno(false);
+		// El keystore del proyecto no trae la clave privada: para descifrar se usa un par propio
+		KeyPairGenerator generador = KeyPairGenerator.getInstance("RSA");
+		generador.initialize(2048);
+		KeyPair claves = generador.generateKeyPair();
+		clavePrivada = claves.getPrivate();
+		token = entorno.fileStorageService.storeOutput(salida -> {
+			try (InputStream entrada = archivo.getInputStream()) {
+				motor.cifrar(entrada, salida, claves.getPublic(), compresion);
+			} catch (GeneralSecurityException e) {
+				throw new IOException(e);
+			}
+		}, "SIS.cif", opciones).getToken();
+	}
+
+	@TearDown(Level.Trial)
+	public void cerrar() throws Exception {
+		entorno.close();
+	}
+
+	/** Incluye el borrado del token para que el disco no crezca durante la medición. */
+	@Benchmark
+	public FileToken cifrarYAlmacenar(Volumen volumen) throws Exception {
+		FileToken fileToken = entorno.cifradoService.cifrarYAlmacenar(archivo, "SIS.cif", opciones);
+		entorno.fileStorageService.deleteFile(fileToken.getToken());
+		volumen.megabytes += archivo.getSize() / 1048576.0;
+		volumen.almacenados += fileToken.getFileSize() / 1048576.0;
+		return fileToken;
+	}
+
+	/** Lo que paga quien descarga: leer el archivo almacenado y descifrarlo (y descomprimirlo). */
+	@Benchmark
+	public long descargarYDescifrar(Volumen volumen) throws Exception {
+		Resource recurso = entorno.fileStorageService.openDownload(token, false);
+		try (InputStream entrada = recurso.getInputStream()) {
+			long escritos = motor.descifrar(entrada, OutputStream.nullOutputStream(), clavePrivada);
+			volumen.megabytes += escritos / 1048576.0;
+			volumen.almacenados += recurso.contentLength() / 1048576.0;
+			return escritos;
+		}
+	}
+}
@@ -0,0 +1,68 @@
+package com.sirexe.cifradoapi.benchmark;
+
+import com.sirexe.cifradoapi.config.CifradoProperties;
+import com.sirexe.cifradoapi.config.EjecutoresConfig;
+import com.sirexe.cifradoapi.service.CifradoService;
+import com.sirexe.cifradoapi.service.FileStorageService;
+import com.sirexe.cifradoapi.service.KeystoreService;
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.slf4j.LoggerFactory;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.FileSystemUtils;
+import org.springframework.util.unit.DataSize;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * Los servicios armados a mano como los armaría Spring, sobre un directorio
+ * temporal propio: sin contexto de aplicación ni servidor HTTP que medir.
+ */
+final class Entorno implements AutoCloseable {
+
+	final CifradoProperties propiedades = new CifradoProperties();
+	final KeystoreService keystoreService;
+	final FileStorageService fileStorageService;
+	final CifradoService cifradoService;
+
+	private final Path directorio;
+	private final ThreadPoolTaskExecutor cifrado;
+	private final ThreadPoolTaskExecutor trabajos;
+
+	Entorno(boolean deduplicar) throws Exception {
+		this(deduplicar, CifradoProperties.Almacenamiento.Soporte.ARCHIVOS, DataSize.ofMegabytes(64));
+	}
+
+	Entorno(boolean deduplicar, CifradoProperties.Almacenamiento.Soporte soporte, DataSize cache) throws Exception {
+		// Sin logback.xml el nivel por defecto es DEBUG, y los servicios registran cada operación
+		((Logger) LoggerFactory.getLogger(Logger.ROOT_LOGGER_NAME)).setLevel(Level.WARN);
+		directorio = Files.createTempDirectory("jmh_");
+		propiedades.setMotor(CifradoProperties.Motor.INTERNO);
+		propiedades.getAlmacenamiento().setDirectorio(directorio.toString());
+		propiedades.getAlmacenamiento().setDeduplicar(deduplicar);
+		propiedades.getAlmacenamiento().setSoporte(soporte);
+		propiedades.getCache().setCapacidad(cache);
+
+		keystoreService = new KeystoreService(propiedades);
+		keystoreService.inicializar();
+		cifrado = new EjecutoresConfig().cifradoExecutor(propiedades);
+		cifrado.initialize();
+		trabajos = new EjecutoresConfig().trabajosExecutor(propiedades);
+		trabajos.initialize();
+		MeterRegistry registro = new SimpleMeterRegistry();
+		fileStorageService = new FileStorageService(propiedades, registro);
+		cifradoService = new CifradoService(propiedades, keystoreService, cifrado, trabajos, fileStorageService, registro);
+	}
+
+	@Override
+	public void close() throws IOException {
+		cifrado.shutdown();
+		trabajos.shutdown();
+		fileStorageService.close();
+		FileSystemUtils.deleteRecursively(directorio);
+	}
+}
@@ -0,0 +1,77 @@
+package com.sirexe.cifradoapi.benchmark;
+
+import com.sirexe.cifradoapi.model.FileToken;
+import com.sirexe.cifradoapi.model.OpcionesCifrado;
+import com.sirexe.cifradoapi.model.ResultadoLote;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * /cifrar/batch frente al bucle que hace hoy el proceso nocturno: un
+ * cifrarYAlmacenar por archivo, uno tras otro. Sin HTTP, así que la ventaja del
+ * lote aquí es solo el paralelismo, no los viajes de red que ahorra.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 5)
+@Fork(value = 1, jvmArgsAppend = {"-Xms1g", "-Xmx1g"})
+public class LoteBenchmark {
+
+	@Param({"16", "128"})
+	public int archivos;
+
+	@Param({"64KB", "1MB"})
+	public String tamano;
+
+	private final OpcionesCifrado opciones = new OpcionesCifrado();
+	private Entorno entorno;
+	private MultipartFile[] lote;
+
+	@Setup
+	public void preparar() throws Exception {
+		entorno = new Entorno(false);
+		lote = new MultipartFile[archivos];
+		for (int i = 0; i < archivos; i++) {
+			lote[i] = new MockMultipartFile("archivos", "SIS_" + i + ".txt", "text/plain",
+				CargaSis.generar(CargaSis.tamano(tamano), i));
+		}
+	}
+
+	@TearDown
+	public void cerrar() throws Exception {
+		entorno.close();
+	}
+
+	@Benchmark
+	public ResultadoLote lote() throws Exception {
+		ResultadoLote resultado = entorno.cifradoService.cifrarLote(lote, opciones);
+		entorno.fileStorageService.deleteFile(resultado.getFileToken().getToken());
+		return resultado;
+	}
+
+	@Benchmark
+	public int secuencial() throws Exception {
+		for (MultipartFile archivo : lote) {
+			FileToken fileToken = entorno.cifradoService.cifrarYAlmacenar(archivo,
+				archivo.getOriginalFilename().replace(".txt", ".cif"), opciones);
+			entorno.fileStorageService.deleteFile(fileToken.getToken());
+		}
+		return lote.length;
+	}
+}
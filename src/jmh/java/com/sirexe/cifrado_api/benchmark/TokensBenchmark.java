@@ -0,0 +1,100 @@
+package com.sirexe.cifradoapi.benchmark;
+
+import com.sirexe.cifradoapi.model.FileToken;
+import com.sirexe.cifradoapi.model.OpcionesCifrado;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.time.Duration;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Búsqueda de tokens con varios hilos a la vez sobre el mismo índice. Los tokens
+ * comparten un único archivo (deduplicación) para poder crear muchos sin llenar el disco.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class TokensBenchmark {
+
+	private static final String CONTENIDO = "INTERNO:jmh:tokens";
+
+	@Param({"1000", "100000"})
+	public int tokens;
+
+	private Entorno entorno;
+	private String[] vivos;
+
+	@Setup
+	public void preparar() throws Exception {
+		entorno = new Entorno(true);
+		entorno.fileStorageService.storeStream(new ByteArrayInputStream(CargaSis.generar("1KB")), "SIS.cif",
+			new OpcionesCifrado(Duration.ofHours(1), 0), CONTENIDO);
+		vivos = new String[tokens];
+		for (int i = 0; i < tokens; i++) {
+			vivos[i] = alta().getToken();
+		}
+	}
+
+	@TearDown
+	public void cerrar() throws Exception {
+		entorno.close();
+	}
+
+	@Benchmark
+	@Threads(8)
+	public FileToken getFileToken() {
+		return entorno.fileStorageService.getFileToken(cualquiera());
+	}
+
+	/** Reclamo atómico de una descarga (sin límite, así que no escribe en el registro). */
+	@Benchmark
+	@Threads(8)
+	public Resource openDownload() {
+		return entorno.fileStorageService.openDownload(cualquiera(), false);
+	}
+
+	@Benchmark
+	@Group("mixto")
+	@GroupThreads(7)
+	public FileToken mixtoLectura() {
+		return entorno.fileStorageService.getFileToken(cualquiera());
+	}
+
+	/** Alta y baja con escritura en el registro, compitiendo con las lecturas del grupo. */
+	@Benchmark
+	@Group("mixto")
+	@GroupThreads(1)
+	public FileToken mixtoAltaBaja() throws Exception {
+		FileToken fileToken = alta();
+		entorno.fileStorageService.deleteFile(fileToken.getToken());
+		return fileToken;
+	}
+
+	private FileToken alta() throws Exception {
+		return entorno.fileStorageService.storeDuplicate(CONTENIDO, "SIS.cif", new OpcionesCifrado(Duration.ofHours(1), 0));
+	}
+
+	private String cualquiera() {
+		return vivos[ThreadLocalRandom.current().nextInt(vivos.length)];
+	}
+}
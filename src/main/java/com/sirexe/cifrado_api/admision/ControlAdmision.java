@@ -0,0 +1,247 @@
+package com.sirexe.cifradoapi.admision;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.LongSupplier;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Límite de peticiones de cifrado simultáneas con una cola de espera acotada.
+ * Lo que no cabe en la cola, o espera más de {@code esperaMaxima}, se rechaza
+ * de inmediato en lugar de acumular subidas en el heap y en los hilos de Tomcat.
+ *
+ * Con {@code adaptativo} el límite sigue la latencia medida (AIMD): mientras la
+ * latencia por MB se mantiene cerca de la mejor observada y el límite se usa
+ * entero, sube de uno en uno; cuando pasa del doble, baja un 10%. Como mucho
+ * hay un ajuste cada {@code limite} muestras, para que cada uno se vea reflejado
+ * en las muestras antes del siguiente.
+ *
+ * Las muestras son las que informa el servicio como {@link MedidorLatencia}, una
+ * por archivo cifrado: un lote aporta una por archivo y no una por petición. Una
+ * petición que no llega a cifrar, como un 400, no aporta ninguna. La mejor
+ * latencia es el mínimo de la última {@code ventanaMinimo}; una ventana en la que
+ * todo estuvo saturado no la reemplaza, porque entonces la latencia ya no dice
+ * cuánto tarda sin carga.
+ */
+public class ControlAdmision implements MedidorLatencia {
+
+    public enum Rechazo { COLA_LLENA, ESPERA_AGOTADA }
+
+    private static final double BYTES_POR_MB = 1024 * 1024;
+    private static final double TOLERANCIA = 2.0;
+    private static final double REDUCCION = 0.9;
+    private static final double PESO_MEDIA = 0.1;
+    private static final long VENTANA_MINIMO_POR_DEFECTO = TimeUnit.SECONDS.toNanos(30);
+
+    private final ReentrantLock cerrojo = new ReentrantLock();
+    private final Condition libre = cerrojo.newCondition();
+
+    private final int limiteMinimo;
+    private final int limiteMaximo;
+    private final int cola;
+    private final long esperaMaximaNanos;
+    private final long ventanaMinimoNanos;
+    private final boolean adaptativo;
+    private final LongSupplier reloj;
+
+    private int limite;
+    private int enCurso;
+    private int esperando;
+    private int desdeAjuste;
+    private double minimoPorMb = Double.MAX_VALUE;
+    private double minimoVentana = Double.MAX_VALUE;
+    private boolean ventanaConHolgura;
+    private long inicioVentana;
+    private double mediaNanos;
+
+    private final AtomicLong colaLlena = new AtomicLong();
+    private final AtomicLong esperaAgotada = new AtomicLong();
+
+    public ControlAdmision(int limite, int limiteMinimo, int limiteMaximo, int cola,
+                           long esperaMaxima, TimeUnit unidad, boolean adaptativo) {
+        this(limite, limiteMinimo, limiteMaximo, cola, unidad.toNanos(esperaMaxima), VENTANA_MINIMO_POR_DEFECTO,
+            TimeUnit.NANOSECONDS, adaptativo);
+    }
+
+    public ControlAdmision(int limite, int limiteMinimo, int limiteMaximo, int cola,
+                           long esperaMaxima, long ventanaMinimo, TimeUnit unidad, boolean adaptativo) {
+        this(limite, limiteMinimo, limiteMaximo, cola, esperaMaxima, ventanaMinimo, unidad, adaptativo, System::nanoTime);
+    }
+
+    /** Con {@code reloj} las pruebas controlan cuándo termina cada ventana del mínimo. */
+    ControlAdmision(int limite, int limiteMinimo, int limiteMaximo, int cola, long esperaMaxima,
+                    long ventanaMinimo, TimeUnit unidad, boolean adaptativo, LongSupplier reloj) {
+        this.limiteMinimo = Math.max(1, limiteMinimo);
+        this.limiteMaximo = Math.max(this.limiteMinimo, limiteMaximo);
+        this.limite = Math.min(this.limiteMaximo, Math.max(this.limiteMinimo, limite));
+        this.cola = cola;
+        this.esperaMaximaNanos = unidad.toNanos(esperaMaxima);
+        this.ventanaMinimoNanos = unidad.toNanos(ventanaMinimo);
+        this.adaptativo = adaptativo;
+        this.reloj = reloj;
+        this.inicioVentana = reloj.getAsLong();
+    }
+
+    @Override
+    public void registrar(long nanos, long bytes) {
+        cerrojo.lock();
+        try {
+            // El cifrado medido sigue en curso: cuenta para saber si el límite se usa entero
+            boolean saturado = enCurso >= limite || esperando > 0;
+            mediaNanos = mediaNanos == 0 ? nanos : mediaNanos + PESO_MEDIA * (nanos - mediaNanos);
+            if (adaptativo) {
+                ajustar(nanos / Math.max(1.0, bytes / BYTES_POR_MB), saturado);
+                if (enCurso < limite) {
+                    libre.signalAll();
+                }
+            }
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    /**
+     * Espera un lugar como mucho {@code esperaMaxima}. El permiso devuelto debe
+     * liberarse siempre, termine bien o mal la petición.
+     */
+    public Permiso adquirir() throws InterruptedException, RechazoException {
+        cerrojo.lock();
+        try {
+            if (enCurso < limite) {
+                enCurso++;
+                return new Permiso();
+            }
+            if (esperando >= cola) {
+                colaLlena.incrementAndGet();
+                throw new RechazoException(Rechazo.COLA_LLENA, reintentarEn());
+            }
+            esperando++;
+            try {
+                long restante = esperaMaximaNanos;
+                while (enCurso >= limite) {
+                    if (restante <= 0) {
+                        esperaAgotada.incrementAndGet();
+                        throw new RechazoException(Rechazo.ESPERA_AGOTADA, reintentarEn());
+                    }
+                    restante = libre.awaitNanos(restante);
+                }
+            } finally {
+                esperando--;
+            }
+            enCurso++;
+            return new Permiso();
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    public int getLimite() {
+        cerrojo.lock();
+        try {
+            return limite;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    public int getEnCurso() {
+        cerrojo.lock();
+        try {
+            return enCurso;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    public int getEsperando() {
+        cerrojo.lock();
+        try {
+            return esperando;
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    public long getRechazos(Rechazo motivo) {
+        return motivo == Rechazo.COLA_LLENA ? colaLlena.get() : esperaAgotada.get();
+    }
+
+    /** Segundos hasta que, al ritmo actual, se habrá vaciado la cola; entre 1 y 60. */
+    private long reintentarEn() {
+        double segundos = mediaNanos / 1e9 * (esperando + 1) / limite;
+        return Math.max(1, Math.min(60, (long) Math.ceil(segundos)));
+    }
+
+    private void terminar() {
+        cerrojo.lock();
+        try {
+            enCurso--;
+            if (enCurso < limite) {
+                libre.signalAll();
+            }
+        } finally {
+            cerrojo.unlock();
+        }
+    }
+
+    private void ajustar(double porMb, boolean saturado) {
+        // La latencia se normaliza por MB para comparar subidas de tamaños distintos
+        minimoPorMb = Math.min(minimoPorMb, porMb);
+        minimoVentana = Math.min(minimoVentana, porMb);
+        ventanaConHolgura |= !saturado;
+        long ahora = reloj.getAsLong();
+        if (ahora - inicioVentana >= ventanaMinimoNanos) {
+            // Con holgura la ventana refleja el hardware y la carga actuales, aunque sea más lenta
+            if (ventanaConHolgura) {
+                minimoPorMb = minimoVentana;
+            }
+            minimoVentana = Double.MAX_VALUE;
+            ventanaConHolgura = false;
+            inicioVentana = ahora;
+        }
+        if (++desdeAjuste < limite) {
+            return;
+        }
+        if (porMb > minimoPorMb * TOLERANCIA) {
+            limite = Math.max(limiteMinimo, Math.min(limite - 1, (int) (limite * REDUCCION)));
+            desdeAjuste = 0;
+        } else if (saturado && limite < limiteMaximo) {
+            limite++;
+            desdeAjuste = 0;
+        }
+    }
+
+    /** Un lugar ocupado; {@link #liberar} es idempotente. */
+    public final class Permiso {
+        private boolean liberado;
+
+        private Permiso() {
+        }
+
+        public void liberar() {
+            if (liberado) {
+                return;
+            }
+            liberado = true;
+            terminar();
+        }
+    }
+
+    public static class RechazoException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        private final Rechazo motivo;
+        private final long reintentarEnSegundos;
+
+        RechazoException(Rechazo motivo, long reintentarEnSegundos) {
+            super("Petición rechazada: " + motivo, null, false, false);
+            this.motivo = motivo;
+            this.reintentarEnSegundos = reintentarEnSegundos;
+        }
+
+        public Rechazo getMotivo() { return motivo; }
+
+        public long getReintentarEnSegundos() { return reintentarEnSegundos; }
+    }
+}
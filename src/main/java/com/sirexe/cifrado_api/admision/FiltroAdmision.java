@@ -0,0 +1,71 @@
+package com.sirexe.cifradoapi.admision;
+
+import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.time.Instant;
+
+/**
+ * Aplica {@link ControlAdmision} a las subidas antes de que Spring lea el
+ * multipart: una petición rechazada no llega a ocupar disco ni heap. Solo se
+ * registra para las rutas de cifrado, así que descargas y consultas nunca esperan.
+ *
+ * Cola llena responde 429 y espera agotada 503, ambos con {@code Retry-After}.
+ * La latencia que ajusta el límite no se mide aquí sino en el servicio, por
+ * archivo cifrado: ver {@link MedidorLatencia}.
+ */
+public class FiltroAdmision extends OncePerRequestFilter {
+
+    private final ControlAdmision control;
+
+    public FiltroAdmision(ControlAdmision control) {
+        this.control = control;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        return !"POST".equals(request.getMethod());
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response,
+                                    FilterChain chain) throws ServletException, IOException {
+        ControlAdmision.Permiso permiso;
+        try {
+            permiso = control.adquirir();
+        } catch (ControlAdmision.RechazoException e) {
+            HttpStatus codigo = e.getMotivo() == ControlAdmision.Rechazo.COLA_LLENA
+                ? HttpStatus.TOO_MANY_REQUESTS : HttpStatus.SERVICE_UNAVAILABLE;
+            rechazar(response, codigo, e.getReintentarEnSegundos());
+            return;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            rechazar(response, HttpStatus.SERVICE_UNAVAILABLE, 1);
+            return;
+        }
+        try {
+            chain.doFilter(request, response);
+        } finally {
+            permiso.liberar();
+        }
+    }
+
+    private static void rechazar(HttpServletResponse response, HttpStatus codigo, long segundos) throws IOException {
+        response.setStatus(codigo.value());
+        response.setHeader(HttpHeaders.RETRY_AFTER, Long.toString(segundos));
+        // Sin leer el cuerpo: el cliente no debería seguir enviando la subida
+        response.setHeader(HttpHeaders.CONNECTION, "close");
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setCharacterEncoding(StandardCharsets.UTF_8.name());
+        response.getWriter().write("{\"error\":\"Servicio saturado, intente de nuevo en " + segundos
+            + " segundos\",\"timestamp\":\"" + Instant.now() + "\"}");
+    }
+}
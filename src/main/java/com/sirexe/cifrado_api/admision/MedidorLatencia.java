@@ -0,0 +1,19 @@
+package com.sirexe.cifradoapi.admision;
+
+/**
+ * Recibe la duración de cada cifrado para la admisión adaptativa. El servicio la
+ * informa por archivo: desde que entra al pool de cifrado hasta que termina, sin
+ * la subida ni la respuesta, que dependen de la red del cliente.
+ */
+@FunctionalInterface
+public interface MedidorLatencia {
+
+    /** Sin admisión adaptativa: las muestras se descartan. */
+    MedidorLatencia NINGUNO = (nanos, bytes) -> { };
+
+    /**
+     * @param nanos duración del cifrado, con la espera por un trabajador
+     * @param bytes texto plano cifrado, para normalizar la latencia; 0 si no se conoce
+     */
+    void registrar(long nanos, long bytes);
+}
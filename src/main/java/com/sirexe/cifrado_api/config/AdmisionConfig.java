@@ -0,0 +1,55 @@
+package com.sirexe.cifradoapi.config;
+
+import com.sirexe.cifradoapi.admision.ControlAdmision;
+import com.sirexe.cifradoapi.admision.FiltroAdmision;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.web.servlet.FilterRegistrationBean;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import java.util.concurrent.TimeUnit;
+
+@Configuration
+@ConditionalOnProperty(prefix = "cifrado.admision", name = "activa", matchIfMissing = true)
+public class AdmisionConfig {
+
+    @Bean
+    public ControlAdmision controlAdmision(CifradoProperties propiedades, MeterRegistry meterRegistry) {
+        CifradoProperties.Admision config = propiedades.getAdmision();
+        int hilos = propiedades.getTrabajadores().hilosEfectivos();
+        ControlAdmision control = new ControlAdmision(
+            config.getLimite() > 0 ? config.getLimite() : 2 * hilos,
+            config.getLimiteMinimo(),
+            config.getLimiteMaximo() > 0 ? config.getLimiteMaximo() : 8 * hilos,
+            config.getCola(), config.getEsperaMaxima().toNanos(), config.getVentanaMinimo().toNanos(),
+            TimeUnit.NANOSECONDS, config.isAdaptativo());
+
+        Gauge.builder("cifrado.admision.limite", control, ControlAdmision::getLimite)
+            .description("Peticiones de cifrado simultáneas admitidas").register(meterRegistry);
+        Gauge.builder("cifrado.admision.en_curso", control, ControlAdmision::getEnCurso)
+            .description("Peticiones de cifrado admitidas en curso").register(meterRegistry);
+        Gauge.builder("cifrado.admision.esperando", control, ControlAdmision::getEsperando)
+            .description("Peticiones de cifrado en la cola de admisión").register(meterRegistry);
+        for (ControlAdmision.Rechazo motivo : ControlAdmision.Rechazo.values()) {
+            FunctionCounter.builder("cifrado.admision.rechazos", control, c -> c.getRechazos(motivo))
+                .description("Peticiones de cifrado rechazadas por saturación")
+                .tag("motivo", motivo.name().toLowerCase())
+                .register(meterRegistry);
+        }
+        return control;
+    }
+
+    /**
+     * Solo las subidas que cifran o descifran; el resto de la API no pasa por la
+     * admisión. /verify es un GET sin subida: lo acota el pool de trabajadores.
+     */
+    @Bean
+    public FilterRegistrationBean<FiltroAdmision> filtroAdmision(ControlAdmision control) {
+        FilterRegistrationBean<FiltroAdmision> registro = new FilterRegistrationBean<>(new FiltroAdmision(control));
+        registro.addUrlPatterns("/api/cifrado/cifrar", "/api/cifrado/cifrar/batch", "/api/cifrado/descifrar");
+        return registro;
+    }
+}
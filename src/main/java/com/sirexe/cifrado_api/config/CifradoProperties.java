@@ -0,0 +1,295 @@
+package com.sirexe.cifradoapi.config;
+
+import com.sirexe.cifradoapi.crypto.Suite;
+import org.springframework.boot.context.properties.ConfigurationProperties;
+import org.springframework.util.unit.DataSize;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+@ConfigurationProperties(prefix = "cifrado")
+public class CifradoProperties {
+
+    public enum Motor {
+        // Cifrado en proceso con javax.crypto; necesario para compresión, AES-GCM y los formatos nuevos
+        INTERNO,
+        // Librería externa cifrado.Cifrar (libs/cifrado.jar, por defecto)
+        EXTERNO
+    }
+
+    // INTERNO es opcional mientras no se compruebe byte a byte contra la salida de cifrado.Cifrar
+    private Motor motor = Motor.EXTERNO;
+
+    // Suite de cifrado cuando la petición no indica una; TDES (3DES-CBC) es la única del motor EXTERNO
+    private Suite suite = Suite.TDES;
+
+    // Tamaño máximo de un AES-GCM clásico: al descifrarlo se retiene entero en memoria
+    private DataSize aesGcmClasicoMaximo = DataSize.ofMegabytes(32);
+    // AES-GCM clásicos que se descifran a la vez; cada uno ocupa unas tres veces su tamaño
+    private int aesGcmClasicoSimultaneos = 2;
+
+    private final Keystore keystore = new Keystore();
+
+    private final Trabajadores trabajadores = new Trabajadores();
+
+    private final Trabajos trabajos = new Trabajos();
+
+    private final Almacenamiento almacenamiento = new Almacenamiento();
+
+    private final Tokens tokens = new Tokens();
+
+    private final Cache cache = new Cache();
+
+    private final Admision admision = new Admision();
+
+    private final Troceado troceado = new Troceado();
+
+    private final Registros registros = new Registros();
+
+    private final Descifrado descifrado = new Descifrado();
+
+    public Motor getMotor() { return motor; }
+    public void setMotor(Motor motor) { this.motor = motor; }
+
+    public Suite getSuite() { return suite; }
+    public void setSuite(Suite suite) { this.suite = suite; }
+
+    public DataSize getAesGcmClasicoMaximo() { return aesGcmClasicoMaximo; }
+    public void setAesGcmClasicoMaximo(DataSize aesGcmClasicoMaximo) { this.aesGcmClasicoMaximo = aesGcmClasicoMaximo; }
+
+    public int getAesGcmClasicoSimultaneos() { return aesGcmClasicoSimultaneos; }
+    public void setAesGcmClasicoSimultaneos(int aesGcmClasicoSimultaneos) {
+        this.aesGcmClasicoSimultaneos = aesGcmClasicoSimultaneos;
+    }
+
+    public Keystore getKeystore() { return keystore; }
+
+    public Trabajadores getTrabajadores() { return trabajadores; }
+
+    public Trabajos getTrabajos() { return trabajos; }
+
+    public Almacenamiento getAlmacenamiento() { return almacenamiento; }
+
+    public Tokens getTokens() { return tokens; }
+
+    public Cache getCache() { return cache; }
+
+    public Admision getAdmision() { return admision; }
+
+    public Troceado getTroceado() { return troceado; }
+
+    public Registros getRegistros() { return registros; }
+
+    public Descifrado getDescifrado() { return descifrado; }
+
+    public static class Keystore {
+        // Recurso del classpath con el almacén de claves
+        private String recurso = "keystore/transferencia.jks";
+        // Ruta en disco del keystore; si se define tiene prioridad sobre el recurso y se recarga al cambiar
+        private String ruta;
+        // Alias del certificado con la clave pública del destinatario
+        private String alias = "dgis";
+        // Contraseña del keystore; sin ella solo se carga el certificado público
+        private String password;
+        // Frecuencia máxima con la que se revisa si el archivo cambió
+        private Duration intervaloRecarga = Duration.ofSeconds(30);
+
+        public String getRecurso() { return recurso; }
+        public void setRecurso(String recurso) { this.recurso = recurso; }
+
+        public String getRuta() { return ruta; }
+        public void setRuta(String ruta) { this.ruta = ruta; }
+
+        public String getAlias() { return alias; }
+        public void setAlias(String alias) { this.alias = alias; }
+
+        public String getPassword() { return password; }
+        public void setPassword(String password) { this.password = password; }
+
+        public Duration getIntervaloRecarga() { return intervaloRecarga; }
+        public void setIntervaloRecarga(Duration intervaloRecarga) { this.intervaloRecarga = intervaloRecarga; }
+    }
+
+    public static class Trabajadores {
+        // Hilos de cifrado; 0 = uno por núcleo disponible
+        private int hilos = 0;
+        // Peticiones que pueden esperar turno antes de rechazar
+        private int cola = 100;
+
+        public int getHilos() { return hilos; }
+        public void setHilos(int hilos) { this.hilos = hilos; }
+
+        public int getCola() { return cola; }
+        public void setCola(int cola) { this.cola = cola; }
+
+        public int hilosEfectivos() {
+            return hilos > 0 ? hilos : Runtime.getRuntime().availableProcessors();
+        }
+    }
+
+    public static class Trabajos {
+        // Cifrados en segundo plano (/cifrar?async=true) que corren a la vez
+        private int hilos = 2;
+        // Trabajos aceptados en espera; con la cola llena /cifrar responde 503
+        private int cola = 50;
+
+        public int getHilos() { return hilos; }
+        public void setHilos(int hilos) { this.hilos = hilos; }
+
+        public int getCola() { return cola; }
+        public void setCola(int cola) { this.cola = cola; }
+    }
+
+    public static class Almacenamiento {
+        // Directorio de archivos cifrados y del registro de tokens
+        private String directorio = System.getProperty("java.io.tmpdir") + "/cifrado_uploads/";
+        // Forzar a disco cada alta/baja del registro de tokens (más lento, sobrevive a cortes de energía)
+        private boolean fsync = false;
+        // Reutilizar el archivo cifrado cuando llega un texto idéntico con las mismas claves
+        private boolean deduplicar = true;
+        // Hilos dedicados a borrar archivos vencidos
+        private int hilosBorrado = 1;
+        // Máximo de tokens vencidos que se procesan juntos
+        private int loteBorrado = 256;
+        // ARCHIVOS: un archivo por token; SEGMENTOS: anexados a archivos de segmento grandes
+        private Soporte soporte = Soporte.ARCHIVOS;
+        // Al alcanzar este tamaño un segmento se cierra y se abre otro
+        private DataSize tamanoSegmento = DataSize.ofMegabytes(256);
+        // Subdirectorio propio cuando varias réplicas comparten el directorio; vacío = una sola instancia
+        private String replica = "";
+
+        public enum Soporte { ARCHIVOS, SEGMENTOS }
+
+        public String getDirectorio() { return directorio; }
+        public void setDirectorio(String directorio) { this.directorio = directorio; }
+
+        public boolean isFsync() { return fsync; }
+        public void setFsync(boolean fsync) { this.fsync = fsync; }
+
+        public boolean isDeduplicar() { return deduplicar; }
+        public void setDeduplicar(boolean deduplicar) { this.deduplicar = deduplicar; }
+
+        public int getHilosBorrado() { return hilosBorrado; }
+        public void setHilosBorrado(int hilosBorrado) { this.hilosBorrado = hilosBorrado; }
+
+        public int getLoteBorrado() { return loteBorrado; }
+        public void setLoteBorrado(int loteBorrado) { this.loteBorrado = loteBorrado; }
+
+        public Soporte getSoporte() { return soporte; }
+        public void setSoporte(Soporte soporte) { this.soporte = soporte; }
+
+        public DataSize getTamanoSegmento() { return tamanoSegmento; }
+        public void setTamanoSegmento(DataSize tamanoSegmento) { this.tamanoSegmento = tamanoSegmento; }
+
+        public String getReplica() { return replica; }
+        public void setReplica(String replica) { this.replica = replica; }
+    }
+
+    public static class Tokens {
+        // Vigencia cuando la petición no indica ttl
+        private Duration ttlPorDefecto = Duration.ofHours(24);
+        // Vigencia máxima que puede pedir un cliente
+        private Duration ttlMaximo = Duration.ofHours(24);
+        // Descargas permitidas cuando la petición no indica maxDescargas; 0 = sin límite
+        private int descargasPorDefecto = 0;
+        // Tokens autocontenidos firmados con HMAC; cualquier réplica con el mismo keystore los valida
+        private boolean firmados = false;
+
+        public Duration getTtlPorDefecto() { return ttlPorDefecto; }
+        public void setTtlPorDefecto(Duration ttlPorDefecto) { this.ttlPorDefecto = ttlPorDefecto; }
+
+        public Duration getTtlMaximo() { return ttlMaximo; }
+        public void setTtlMaximo(Duration ttlMaximo) { this.ttlMaximo = ttlMaximo; }
+
+        public int getDescargasPorDefecto() { return descargasPorDefecto; }
+        public void setDescargasPorDefecto(int descargasPorDefecto) { this.descargasPorDefecto = descargasPorDefecto; }
+
+        public boolean isFirmados() { return firmados; }
+        public void setFirmados(boolean firmados) { this.firmados = firmados; }
+    }
+
+    public static class Cache {
+        // Memoria directa (fuera del heap) para los archivos cifrados recientes; 0 = sin cache
+        private DataSize capacidad = DataSize.ofMegabytes(64);
+        // Los archivos más grandes que esto no se guardan en cache
+        private DataSize entradaMaxima = DataSize.ofMegabytes(4);
+
+        public DataSize getCapacidad() { return capacidad; }
+        public void setCapacidad(DataSize capacidad) { this.capacidad = capacidad; }
+
+        public DataSize getEntradaMaxima() { return entradaMaxima; }
+        public void setEntradaMaxima(DataSize entradaMaxima) { this.entradaMaxima = entradaMaxima; }
+    }
+
+    public static class Admision {
+        // Limitar /cifrar y /cifrar/batch antes de leer la subida
+        private boolean activa = true;
+        // Peticiones simultáneas al arrancar; 0 = dos por hilo de cifrado
+        private int limite = 0;
+        private int limiteMinimo = 1;
+        // 0 = ocho por hilo de cifrado
+        private int limiteMaximo = 0;
+        // Peticiones que pueden esperar lugar; las demás reciben 429
+        private int cola = 50;
+        // Tiempo máximo en la cola antes de responder 503
+        private Duration esperaMaxima = Duration.ofSeconds(5);
+        // Ajustar el límite según la latencia medida
+        private boolean adaptativo = true;
+        // Horizonte de la mejor latencia: se renueva con el mínimo de cada ventana que tuvo holgura
+        private Duration ventanaMinimo = Duration.ofSeconds(30);
+
+        public boolean isActiva() { return activa; }
+        public void setActiva(boolean activa) { this.activa = activa; }
+
+        public int getLimite() { return limite; }
+        public void setLimite(int limite) { this.limite = limite; }
+
+        public int getLimiteMinimo() { return limiteMinimo; }
+        public void setLimiteMinimo(int limiteMinimo) { this.limiteMinimo = limiteMinimo; }
+
+        public int getLimiteMaximo() { return limiteMaximo; }
+        public void setLimiteMaximo(int limiteMaximo) { this.limiteMaximo = limiteMaximo; }
+
+        public int getCola() { return cola; }
+        public void setCola(int cola) { this.cola = cola; }
+
+        public Duration getEsperaMaxima() { return esperaMaxima; }
+        public void setEsperaMaxima(Duration esperaMaxima) { this.esperaMaxima = esperaMaxima; }
+
+        public boolean isAdaptativo() { return adaptativo; }
+        public void setAdaptativo(boolean adaptativo) { this.adaptativo = adaptativo; }
+
+        public Duration getVentanaMinimo() { return ventanaMinimo; }
+        public void setVentanaMinimo(Duration ventanaMinimo) { this.ventanaMinimo = ventanaMinimo; }
+    }
+
+    public static class Troceado {
+        // Texto plano por trozo en el formato troceado; cada trozo lleva IV y HMAC propios
+        private DataSize tamanoTrozo = DataSize.ofMegabytes(1);
+        // Trozos de un mismo archivo cifrándose a la vez; 0 = dos por hilo del pool
+        private int ventana = 0;
+
+        public DataSize getTamanoTrozo() { return tamanoTrozo; }
+        public void setTamanoTrozo(DataSize tamanoTrozo) { this.tamanoTrozo = tamanoTrozo; }
+
+        public int getVentana() { return ventana; }
+        public void setVentana(int ventana) { this.ventana = ventana; }
+    }
+
+    public static class Registros {
+        // Columnas que se cifran en el formato por registros; vacía = cada fila completa
+        private List<String> columnasSensibles = new ArrayList<>();
+
+        public List<String> getColumnasSensibles() { return columnasSensibles; }
+        public void setColumnasSensibles(List<String> columnasSensibles) { this.columnasSensibles = columnasSensibles; }
+    }
+
+    public static class Descifrado {
+        // Publicar /descifrar y /verify/{token}; exige cifrado.keystore.password o el arranque falla
+        private boolean activo = false;
+
+        public boolean isActivo() { return activo; }
+        public void setActivo(boolean activo) { this.activo = activo; }
+    }
+}
@@ -0,0 +1,46 @@
+package com.sirexe.cifradoapi.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+@Configuration
+public class EjecutoresConfig {
+
+    /**
+     * Pool de cifrado: un hilo por núcleo para que los cifrados corran en paralelo
+     * sin sobresuscribir la CPU, con una cola acotada para absorber ráfagas.
+     * Spring lo apaga esperando a las tareas en curso al cerrar el contexto.
+     */
+    @Bean
+    public ThreadPoolTaskExecutor cifradoExecutor(CifradoProperties propiedades) {
+        CifradoProperties.Trabajadores config = propiedades.getTrabajadores();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(config.hilosEfectivos());
+        executor.setMaxPoolSize(config.hilosEfectivos());
+        executor.setQueueCapacity(config.getCola());
+        executor.setThreadNamePrefix("cifrado-");
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(30);
+        return executor;
+    }
+    
+    /**
+     * Pool de trabajos en segundo plano, separado del de cifrado para que los
+     * archivos grandes en modo asíncrono no dejen sin turno a las peticiones
+     * síncronas. Con Java 11 son hilos de plataforma; en un JDK con hilos
+     * virtuales este es el único punto que habría que cambiar.
+     */
+    @Bean
+    public ThreadPoolTaskExecutor trabajosExecutor(CifradoProperties propiedades) {
+        CifradoProperties.Trabajos config = propiedades.getTrabajos();
+        ThreadPoolTaskExecutor executor = new ThreadPoolTaskExecutor();
+        executor.setCorePoolSize(config.getHilos());
+        executor.setMaxPoolSize(config.getHilos());
+        executor.setQueueCapacity(config.getCola());
+        executor.setThreadNamePrefix("trabajo-");
+        executor.setWaitForTasksToCompleteOnShutdown(true);
+        executor.setAwaitTerminationSeconds(30);
+        return executor;
+    }
+}
@@ -1,41 +1,100 @@
 package com.sirexe.cifradoapi.controller;
 
+import com.sirexe.cifradoapi.config.CifradoProperties;
+import com.sirexe.cifradoapi.crypto.Compresion;
+import com.sirexe.cifradoapi.crypto.Formato;
+import com.sirexe.cifradoapi.crypto.MotorCifrado;
+import com.sirexe.cifradoapi.crypto.Suite;
 import com.sirexe.cifradoapi.service.CifradoService;
 import com.sirexe.cifradoapi.service.FileStorageService;
+import com.sirexe.cifradoapi.service.TokenService;
+import com.sirexe.cifradoapi.model.EstadoArchivoLote;
 import com.sirexe.cifradoapi.model.FileToken;
+import com.sirexe.cifradoapi.model.OpcionesCifrado;
+import com.sirexe.cifradoapi.model.ResultadoLote;
+import com.sirexe.cifradoapi.model.ResultadoVerificacion;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.CompositeHealth;
+import org.springframework.boot.actuate.health.HealthComponent;
+import org.springframework.boot.actuate.health.HealthEndpoint;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.boot.convert.DurationStyle;
+import org.springframework.core.io.Resource;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.http.HttpHeaders;
+import org.springframework.http.HttpMethod;
+import org.springframework.http.HttpRange;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
+import org.springframework.web.context.request.WebRequest;
 import org.springframework.web.multipart.MultipartFile;
 
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.time.Duration;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.ZipException;
 
 @RestController
 @RequestMapping("/api/cifrado")
 @CrossOrigin(origins = "*") // Para permitir llamadas desde frontend
 public class CifradoController {
     
+    private static final Logger log = LoggerFactory.getLogger(CifradoController.class);
+    
     @Autowired
     private CifradoService cifradoService;
     
     @Autowired
-    private FileStorageService fileStorageService;
+    private TokenService tokenService;
+    
+    @Autowired
+    private CifradoProperties propiedades;
     
+    @Autowired
+    private HealthEndpoint healthEndpoint;
+    
+    /**
+     * Estado real del servicio (keystore, directorio de subidas, espacio en disco).
+     * Responde 503 si algún componente no está UP, para que el balanceador deje
+     * de enviar tráfico a esta instancia.
+     */
     @GetMapping("/health")
-    public ResponseEntity<Map<String, String>> health() {
-        Map<String, String> response = new HashMap<>();
-        response.put("status", "OK");
+    public ResponseEntity<Map<String, Object>> health() {
+        HealthComponent salud = healthEndpoint.health();
+        Map<String, Object> response = new HashMap<>();
+        response.put("status", Status.UP.equals(salud.getStatus()) ? "OK" : salud.getStatus().getCode());
         response.put("service", "Cifrado API");
-        return ResponseEntity.ok(response);
+        if (salud instanceof CompositeHealth) {
+            Map<String, String> componentes = new HashMap<>();
+            ((CompositeHealth) salud).getComponents()
+                .forEach((nombre, componente) -> componentes.put(nombre, componente.getStatus().getCode()));
+            response.put("components", componentes);
+        }
+        HttpStatus codigo = Status.UP.equals(salud.getStatus()) ? HttpStatus.OK : HttpStatus.SERVICE_UNAVAILABLE;
+        return ResponseEntity.status(codigo).body(response);
     }
     
     @PostMapping("/cifrar")
     public ResponseEntity<?> cifrarArchivo(@RequestParam("archivo") MultipartFile archivo, 
+                                          @RequestParam(value = "ttl", required = false) String ttl,
+                                          @RequestParam(value = "maxDescargas", required = false) Integer maxDescargas,
+                                          @RequestParam(value = "async", defaultValue = "false") boolean async,
+                                          @RequestParam(value = "compresion", required = false) String compresion,
+                                          @RequestParam(value = "suite", required = false) String suite,
+                                          @RequestParam(value = "formato", required = false) String formato,
                                           HttpServletRequest request) {
         try {
             // Validaciones básicas
@@ -50,58 +109,225 @@ public class CifradoController {
                     .body(crearRespuestaError("Solo se permiten archivos .txt"));
             }
             
-            // Procesar cifrado
-            byte[] archivoCifrado = cifradoService.cifrarArchivo(archivo);
+            OpcionesCifrado opciones;
+            try {
+                opciones = leerOpciones(ttl, maxDescargas, compresion, suite, formato);
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().body(crearRespuestaError(e.getMessage()));
+            }
+            
+            if (opciones.getFormato() == Formato.CLASICO && opciones.getSuite().isAutenticada()
+                    && opciones.getCompresion() == Compresion.NINGUNA
+                    && archivo.getSize() > propiedades.getAesGcmClasicoMaximo().toBytes()) {
+                // Sin compresión el tamaño ya se conoce: no hace falta cifrar para rechazarlo
+                return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                    .body(crearRespuestaError("AES-GCM en formato clásico admite hasta "
+                        + propiedades.getAesGcmClasicoMaximo().toBytes() + " bytes; use formato=troceado"));
+            }
             
-            // Almacenar archivo cifrado y obtener token
-            FileToken fileToken = fileStorageService.storeFile(archivoCifrado, nombreOriginal.replace(".txt", ".cif"));
+            String baseUrl = getBaseUrl(request);
+            String nombreCifrado = CifradoService.nombreCifrado(nombreOriginal);
+            
+            if (async) {
+                // El cifrado sigue en segundo plano; el cliente consulta /info hasta DONE
+                FileToken trabajo = cifradoService.cifrarEnSegundoPlano(archivo, nombreCifrado, opciones);
+                String token = tokenService.emitir(trabajo);
+                Map<String, Object> response = new HashMap<>();
+                response.put("success", true);
+                response.put("message", "Cifrado en curso");
+                response.put("token", token);
+                response.put("status", trabajo.getStatus().name());
+                response.put("statusUrl", baseUrl + "/api/cifrado/info/" + token);
+                response.put("downloadUrl", baseUrl + "/api/cifrado/download/" + token);
+                response.put("originalFileName", nombreOriginal);
+                response.put("encryptedFileName", trabajo.getOriginalName());
+                response.put("totalBytes", trabajo.getTotalBytes());
+                response.put("expiresAt", trabajo.getExpiresAt().toString());
+                response.put("validFor", describirDuracion(opciones.getTtl()));
+                response.put("maxDownloads", trabajo.getMaxDownloads());
+                response.put("compression", trabajo.getCompression().name());
+                response.put("format", trabajo.getFormat().name());
+                response.put("suite", trabajo.getSuite().name());
+                return ResponseEntity.status(HttpStatus.ACCEPTED)
+                    .header(HttpHeaders.LOCATION, baseUrl + "/api/cifrado/info/" + token)
+                    .body(response);
+            }
+            
+            // Cifrar y almacenar en streaming, obteniendo el token
+            FileToken fileToken = cifradoService.cifrarYAlmacenar(archivo, nombreCifrado, opciones);
             
             // Construir URL de descarga
-            String baseUrl = getBaseUrl(request);
-            String downloadUrl = baseUrl + "/api/cifrado/download/" + fileToken.getToken();
+            String token = tokenService.emitir(fileToken);
+            String downloadUrl = baseUrl + "/api/cifrado/download/" + token;
             
             // Crear respuesta con información del archivo
             Map<String, Object> response = new HashMap<>();
             response.put("success", true);
             response.put("message", "Archivo cifrado exitosamente");
             response.put("downloadUrl", downloadUrl);
-            response.put("token", fileToken.getToken());
+            response.put("token", token);
             response.put("originalFileName", nombreOriginal);
             response.put("encryptedFileName", fileToken.getOriginalName());
             response.put("expiresAt", fileToken.getExpiresAt().toString());
-            response.put("validFor", "24 horas");
+            response.put("validFor", describirDuracion(opciones.getTtl()));
+            response.put("maxDownloads", fileToken.getMaxDownloads());
+            response.put("compression", fileToken.getCompression().name());
+            response.put("format", fileToken.getFormat().name());
+            response.put("suite", fileToken.getSuite().name());
             
             return ResponseEntity.ok(response);
                 
+        } catch (MotorCifrado.GcmClasicoExcedidoException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                .body(crearRespuestaError(e.getMessage()));
+        } catch (TaskRejectedException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .body(crearRespuestaError("Servicio saturado, intente de nuevo en unos segundos"));
         } catch (Exception e) {
-            e.printStackTrace();
+            log.error("Error cifrando {}", archivo.getOriginalFilename(), e);
             return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
                 .body(crearRespuestaError("Error durante el cifrado: " + e.getMessage()));
         }
     }
     
+    /**
+     * Cifra varios .txt (o un .zip que los contenga) y devuelve un único token
+     * para descargar un ZIP con todos los .cif, junto con el estado de cada archivo.
+     */
+    @PostMapping("/cifrar/batch")
+    public ResponseEntity<?> cifrarLote(@RequestParam("archivos") MultipartFile[] archivos,
+                                        @RequestParam(value = "ttl", required = false) String ttl,
+                                        @RequestParam(value = "maxDescargas", required = false) Integer maxDescargas,
+                                        @RequestParam(value = "compresion", required = false) String compresion,
+                                        @RequestParam(value = "suite", required = false) String suite,
+                                        HttpServletRequest request) {
+        try {
+            if (archivos.length == 0) {
+                return ResponseEntity.badRequest()
+                    .body(crearRespuestaError("No se recibieron archivos"));
+            }
+            
+            OpcionesCifrado opciones;
+            try {
+                // El lote siempre escribe el formato clásico
+                opciones = leerOpciones(ttl, maxDescargas, compresion, suite, null);
+            } catch (IllegalArgumentException e) {
+                return ResponseEntity.badRequest().body(crearRespuestaError(e.getMessage()));
+            }
+            
+            ResultadoLote resultado = cifradoService.cifrarLote(archivos, opciones);
+            
+            List<Map<String, Object>> detalle = new ArrayList<>();
+            for (EstadoArchivoLote estado : resultado.getArchivos()) {
+                Map<String, Object> archivo = new HashMap<>();
+                archivo.put("originalFileName", estado.getNombre());
+                archivo.put("status", estado.getEstado());
+                if (estado.isOk()) {
+                    archivo.put("encryptedFileName", estado.getNombreCifrado());
+                    archivo.put("originalSize", estado.getBytesOriginal());
+                    archivo.put("encryptedSize", estado.getBytesCifrado());
+                } else {
+                    archivo.put("error", estado.getError());
+                }
+                detalle.add(archivo);
+            }
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("total", detalle.size());
+            response.put("encrypted", resultado.getCifrados());
+            response.put("failed", detalle.size() - resultado.getCifrados());
+            response.put("files", detalle);
+            
+            FileToken fileToken = resultado.getFileToken();
+            if (fileToken == null) {
+                response.put("success", false);
+                response.put("error", "No se pudo cifrar ningún archivo del lote");
+                return ResponseEntity.badRequest().body(response);
+            }
+            
+            response.put("success", true);
+            response.put("message", "Lote cifrado exitosamente");
+            String token = tokenService.emitir(fileToken);
+            response.put("downloadUrl", getBaseUrl(request) + "/api/cifrado/download/" + token);
+            response.put("token", token);
+            response.put("encryptedFileName", fileToken.getOriginalName());
+            response.put("expiresAt", fileToken.getExpiresAt().toString());
+            response.put("validFor", describirDuracion(opciones.getTtl()));
+            response.put("maxDownloads", fileToken.getMaxDownloads());
+            response.put("compression", fileToken.getCompression().name());
+            response.put("format", fileToken.getFormat().name());
+            response.put("suite", fileToken.getSuite().name());
+            
+            return ResponseEntity.ok(response);
+            
+        } catch (TaskRejectedException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .body(crearRespuestaError("Servicio saturado, intente de nuevo en unos segundos"));
+        } catch (Exception e) {
+            log.error("Error cifrando lote de {} archivos", archivos.length, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body(crearRespuestaError("Error durante el cifrado del lote: " + e.getMessage()));
+        }
+    }
+    
     @GetMapping("/download/{token}")
-    public ResponseEntity<?> downloadFile(@PathVariable String token) {
+    public ResponseEntity<?> downloadFile(@PathVariable String token, HttpMethod metodo, WebRequest webRequest) {
         try {
-            // Obtener información del archivo
-            FileToken fileToken = fileStorageService.getFileToken(token);
+            // Obtener información del archivo; un token firmado falso o vencido no llega al almacenamiento
+            FileToken fileToken = tokenService.resolver(token);
             
             if (fileToken == null) {
                 return ResponseEntity.status(HttpStatus.NOT_FOUND)
                     .body(crearRespuestaError("Token no válido o archivo expirado"));
             }
             
-            // Obtener contenido del archivo
-            byte[] fileContent = fileStorageService.getFile(token);
+            if (tokenService.esCompartido(fileToken) && fileToken.getMaxDownloads() > 0) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(crearRespuestaError("Token con descargas limitadas: solo lo sirve la réplica que lo emitió"));
+            }
+            
+            if (!fileToken.isReady()) {
+                return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body(crearRespuestaError(fileToken.getStatus() == FileToken.Status.FAILED
+                        ? "El cifrado falló: " + fileToken.getError()
+                        : "El archivo aún se está cifrando (" + fileToken.getStatus() + ")"));
+            }
+            
+            // Una revalidación con el ETag vigente no consume descargas
+            if (webRequest.checkNotModified("\"" + fileToken.getToken() + "\"")) {
+                return null;
+            }
+            
+            // Obtener el archivo como recurso, consumiendo una descarga si envía su principio:
+            // se envía en streaming, sin pasar por el heap
+            List<HttpRange> rangos = leerRangos(webRequest);
+            Resource fileContent;
+            try {
+                fileContent = consumeDescarga(metodo, rangos, fileToken)
+                    ? tokenService.abrirDescarga(fileToken, rangos.size() > 1)
+                    : tokenService.abrirContenido(fileToken);
+            } catch (FileStorageService.VariosRangosException e) {
+                return ResponseEntity.status(HttpStatus.REQUESTED_RANGE_NOT_SATISFIABLE)
+                    .header(HttpHeaders.CONTENT_RANGE, "bytes */" + fileToken.getFileSize())
+                    .body(crearRespuestaError(e.getMessage()));
+            }
+            if (fileContent == null) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(crearRespuestaError("Token no válido, expirado o sin descargas disponibles"));
+            }
             
             // Configurar headers para descarga
             HttpHeaders headers = new HttpHeaders();
             headers.add(HttpHeaders.CONTENT_DISPOSITION, 
                 "attachment; filename=\"" + fileToken.getOriginalName() + "\"");
             headers.add(HttpHeaders.CONTENT_TYPE, MediaType.APPLICATION_OCTET_STREAM_VALUE);
+            headers.add(HttpHeaders.ACCEPT_RANGES, "bytes");
             
+            // El contenido de un token no cambia: el token sirve como ETag.
+            // Spring responde 304 ante If-None-Match y 206 ante Range (Content-Length incluido).
             return ResponseEntity.ok()
                 .headers(headers)
+                .eTag(fileToken.getToken())
                 .body(fileContent);
                 
         } catch (Exception e) {
@@ -113,7 +339,7 @@ public class CifradoController {
     @GetMapping("/info/{token}")
     public ResponseEntity<?> getFileInfo(@PathVariable String token) {
         try {
-            FileToken fileToken = fileStorageService.getFileToken(token);
+            FileToken fileToken = tokenService.resolver(token);
             
             if (fileToken == null) {
                 return ResponseEntity.status(HttpStatus.NOT_FOUND)
@@ -121,11 +347,29 @@ public class CifradoController {
             }
             
             Map<String, Object> response = new HashMap<>();
-            response.put("token", fileToken.getToken());
+            response.put("token", token);
             response.put("originalFileName", fileToken.getOriginalName());
             response.put("createdAt", fileToken.getCreatedAt().toString());
             response.put("expiresAt", fileToken.getExpiresAt().toString());
             response.put("expired", fileToken.isExpired());
+            response.put("maxDownloads", fileToken.getMaxDownloads());
+            response.put("downloadCount", fileToken.getDownloadCount());
+            response.put("remainingDownloads", fileToken.getRemainingDownloads());
+            response.put("status", fileToken.getStatus().name());
+            response.put("compression", fileToken.getCompression().name());
+            response.put("format", fileToken.getFormat().name());
+            response.put("suite", fileToken.getSuite().name());
+            if (fileToken.isReady()) {
+                response.put("encryptedSize", fileToken.getFileSize());
+            }
+            if (fileToken.getTotalBytes() > 0) {
+                // Solo los trabajos en segundo plano informan progreso
+                response.put("processedBytes", fileToken.getProcessedBytes());
+                response.put("totalBytes", fileToken.getTotalBytes());
+            }
+            if (fileToken.getError() != null) {
+                response.put("error", fileToken.getError());
+            }
             
             return ResponseEntity.ok(response);
             
@@ -135,6 +379,219 @@ public class CifradoController {
         }
     }
     
+    /**
+     * Descifra un .cif subido y devuelve el texto plano en streaming, con las claves
+     * del keystore del servicio: el cliente no necesita la clave privada.
+     *
+     * Si el archivo no se puede descifrar antes de escribir nada responde 422. Si
+     * falla después (un trozo alterado a mitad del archivo) ya salió texto
+     * verificado: la respuesta se corta en lugar de terminar bien, para que el
+     * cliente no la tome por completa.
+     *
+     * Solo existe con {@code cifrado.descifrado.activo=true}.
+     */
+    @PostMapping("/descifrar")
+    public ResponseEntity<?> descifrarArchivo(@RequestParam("archivo") MultipartFile archivo,
+                                              HttpServletResponse response) throws IOException {
+        if (!propiedades.getDescifrado().isActivo()) {
+            return descifradoDesactivado();
+        }
+        if (archivo.isEmpty()) {
+            return ResponseEntity.badRequest()
+                .body(crearRespuestaError("El archivo está vacío"));
+        }
+        
+        String nombre = archivo.getOriginalFilename() != null ? archivo.getOriginalFilename() : "archivo.cif";
+        nombre = nombre.endsWith(".cif") ? nombre.substring(0, nombre.length() - 4) + ".txt" : nombre + ".txt";
+        try (InputStream entrada = archivo.getInputStream()) {
+            response.setContentType(MediaType.APPLICATION_OCTET_STREAM_VALUE);
+            response.setHeader(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"" + nombre + "\"");
+            cifradoService.descifrar(entrada, response.getOutputStream());
+            return null;
+        } catch (GeneralSecurityException | EOFException | ZipException e) {
+            if (response.isCommitted()) {
+                log.warn("Descifrado de {} interrumpido a mitad de la respuesta: {}", nombre, e.getMessage());
+                throw new IOException("Descifrado interrumpido: " + e.getMessage(), e);
+            }
+            response.reset();
+            return ResponseEntity.status(HttpStatus.UNPROCESSABLE_ENTITY)
+                .body(crearRespuestaError("El archivo no se pudo descifrar: " + e.getMessage()));
+        } catch (MotorCifrado.GcmClasicoExcedidoException e) {
+            if (response.isCommitted()) {
+                throw e;
+            }
+            response.reset();
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                .body(crearRespuestaError(e.getMessage()));
+        } catch (IllegalStateException e) {
+            if (response.isCommitted()) {
+                throw new IOException("Descifrado interrumpido: " + e.getMessage(), e);
+            }
+            // El keystore recargado ya no trae la clave privada
+            response.reset();
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .body(crearRespuestaError(e.getMessage()));
+        } catch (Exception e) {
+            if (response.isCommitted()) {
+                throw new IOException("Descifrado interrumpido: " + e.getMessage(), e);
+            }
+            log.error("Error descifrando {}", nombre, e);
+            response.reset();
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body(crearRespuestaError("Error durante el descifrado: " + e.getMessage()));
+        }
+    }
+    
+    /**
+     * Descifra en el servidor el archivo de un token y responde solo si es íntegro
+     * y la huella SHA-256 del texto plano; el cifrado no sale del servidor y no se
+     * consume ninguna descarga.
+     *
+     * Solo existe con {@code cifrado.descifrado.activo=true}.
+     */
+    @GetMapping("/verify/{token}")
+    public ResponseEntity<?> verificarArchivo(@PathVariable String token) {
+        if (!propiedades.getDescifrado().isActivo()) {
+            return descifradoDesactivado();
+        }
+        try {
+            FileToken fileToken = tokenService.resolver(token);
+            
+            if (fileToken == null) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(crearRespuestaError("Token no válido o archivo expirado"));
+            }
+            
+            if (!fileToken.isReady()) {
+                return ResponseEntity.status(HttpStatus.CONFLICT)
+                    .body(crearRespuestaError(fileToken.getStatus() == FileToken.Status.FAILED
+                        ? "El cifrado falló: " + fileToken.getError()
+                        : "El archivo aún se está cifrando (" + fileToken.getStatus() + ")"));
+            }
+            
+            Resource contenido = tokenService.abrirContenido(fileToken);
+            if (contenido == null) {
+                return ResponseEntity.status(HttpStatus.NOT_FOUND)
+                    .body(crearRespuestaError("Token no válido o archivo expirado"));
+            }
+            
+            ResultadoVerificacion resultado = cifradoService.verificar(contenido);
+            
+            Map<String, Object> response = new HashMap<>();
+            response.put("token", token);
+            response.put("valid", resultado.isValido());
+            response.put("compression", fileToken.getCompression().name());
+            response.put("format", fileToken.getFormat().name());
+            response.put("suite", fileToken.getSuite().name());
+            if (resultado.isValido()) {
+                response.put("plaintextSize", resultado.getBytesPlano());
+                response.put("sha256", resultado.getSha256());
+            } else {
+                response.put("error", resultado.getError());
+            }
+            
+            return ResponseEntity.ok(response);
+            
+        } catch (MotorCifrado.GcmClasicoExcedidoException e) {
+            return ResponseEntity.status(HttpStatus.PAYLOAD_TOO_LARGE)
+                .body(crearRespuestaError(e.getMessage()));
+        } catch (IllegalStateException e) {
+            // El keystore recargado ya no trae la clave privada
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .body(crearRespuestaError(e.getMessage()));
+        } catch (TaskRejectedException e) {
+            return ResponseEntity.status(HttpStatus.SERVICE_UNAVAILABLE)
+                .body(crearRespuestaError("Servicio saturado, intente de nuevo en unos segundos"));
+        } catch (Exception e) {
+            log.error("Error verificando {}", token, e);
+            return ResponseEntity.status(HttpStatus.INTERNAL_SERVER_ERROR)
+                .body(crearRespuestaError("Error durante la verificación: " + e.getMessage()));
+        }
+    }
+    
+    /**
+     * Una descarga cuenta si envía el principio del archivo: un GET sin Range o con
+     * algún rango que empieza en 0. Un HEAD no envía contenido y un rango posterior
+     * reanuda una descarga ya contada.
+     */
+    private boolean consumeDescarga(HttpMethod metodo, List<HttpRange> rangos, FileToken fileToken) {
+        if (metodo == HttpMethod.HEAD || rangos == null) {
+            return false;
+        }
+        return rangos.isEmpty() || rangos.stream().anyMatch(r -> r.getRangeStart(fileToken.getFileSize()) == 0);
+    }
+    
+    /** Rangos pedidos; vacío sin Range y {@code null} si no es válido (Spring responde 416 sin contar). */
+    private List<HttpRange> leerRangos(WebRequest webRequest) {
+        String rango = webRequest.getHeader(HttpHeaders.RANGE);
+        if (rango == null) {
+            return List.of();
+        }
+        try {
+            return HttpRange.parseRanges(rango);
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+    }
+    
+    /** Los endpoints de descifrado no existen mientras están desactivados. */
+    private ResponseEntity<?> descifradoDesactivado() {
+        return ResponseEntity.status(HttpStatus.NOT_FOUND)
+            .body(crearRespuestaError("El descifrado en el servidor está desactivado (cifrado.descifrado.activo)"));
+    }
+    
+    private OpcionesCifrado leerOpciones(String ttl, Integer maxDescargas, String compresion, String suite,
+                                         String formato) {
+        CifradoProperties.Tokens config = propiedades.getTokens();
+        
+        Duration vigencia = config.getTtlPorDefecto();
+        if (ttl != null && !ttl.isBlank()) {
+            try {
+                // Acepta "10m", "2h", "PT30M" o segundos sin unidad
+                vigencia = DurationStyle.detectAndParse(ttl.trim(), ChronoUnit.SECONDS);
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("ttl no válido: " + ttl);
+            }
+        }
+        if (vigencia.isNegative() || vigencia.isZero() || vigencia.compareTo(config.getTtlMaximo()) > 0) {
+            throw new IllegalArgumentException("ttl debe estar entre 1 segundo y " + describirDuracion(config.getTtlMaximo()));
+        }
+        
+        int descargas = maxDescargas != null ? maxDescargas : config.getDescargasPorDefecto();
+        if (descargas < 0) {
+            throw new IllegalArgumentException("maxDescargas no puede ser negativo");
+        }
+        if (descargas > 0 && tokenService.isFirmados()) {
+            // Se rechaza antes de cifrar: emitir el token fallaría con el archivo ya guardado
+            throw new IllegalArgumentException(TokenService.ERROR_DESCARGAS_LIMITADAS);
+        }
+        
+        OpcionesCifrado opciones = new OpcionesCifrado(vigencia, descargas);
+        opciones.setCompresion(Compresion.desde(compresion));
+        opciones.setSuite(Suite.desde(suite, propiedades.getSuite()));
+        opciones.setFormato(Formato.desde(formato));
+        if (opciones.getFormato() == Formato.REGISTROS && opciones.getCompresion() != Compresion.NINGUNA) {
+            // Cada fila se cifra sola: comprimir filas de unos cientos de bytes no ahorra nada
+            throw new IllegalArgumentException("El formato registros no admite compresión");
+        }
+        // Se rechaza antes de aceptar la subida, también en segundo plano y en lotes
+        CifradoService.validarMotor(propiedades.getMotor(), opciones);
+        return opciones;
+    }
+    
+    private String describirDuracion(Duration duracion) {
+        long segundos = duracion.getSeconds();
+        if (segundos % 3600 == 0) {
+            long horas = segundos / 3600;
+            return horas + (horas == 1 ? " hora" : " horas");
+        }
+        if (segundos % 60 == 0) {
+            long minutos = segundos / 60;
+            return minutos + (minutos == 1 ? " minuto" : " minutos");
+        }
+        return segundos + (segundos == 1 ? " segundo" : " segundos");
+    }
+    
     private String getBaseUrl(HttpServletRequest request) {
         return request.getScheme() + "://" + request.getServerName() + 
                (request.getServerPort() != 80 && request.getServerPort() != 443 
@@ -0,0 +1,693 @@
+package com.sirexe.cifradoapi.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Formato por registros (versión 3) para los archivos SIS delimitados por {@code |}:
+ * una línea de encabezado con los nombres de columna y una línea por paciente.
+ * Cada fila se cifra por separado, completa o solo en sus columnas sensibles, así
+ * que las filas se reparten en lotes por el pool y un consumidor puede descifrar
+ * un registro sin procesar el resto del archivo.
+ * <pre>
+ * ["SCIF"][versión 3][opciones][int longitud][claves envueltas con RSA/PKCS#1]
+ * [int longitud][línea de encabezado, en claro][short columnas][short columna]...
+ * por fila: [int longitud][registro]
+ *   filas completas (0 columnas): [IV][cifrado][HMAC-SHA256 32, solo TDES]
+ *   columnas sensibles: la línea en claro con cada columna sensible sustituida
+ *                       por base64url([IV][cifrado][HMAC-SHA256 32, solo TDES])
+ * fin:    [int -1]
+ * índice: [long filas][por fila: long posición][HMAC-SHA256 32]
+ * pie:    [long posición del índice]["RIDX"]
+ * </pre>
+ * Las claves son las de {@link CifradoTroceado}. Cada fila lleva su número como
+ * dato asociado (AES_GCM) o dentro de su HMAC (TDES), y cada columna además su
+ * índice, así que mover una fila o un campo de sitio se detecta. El HMAC del
+ * índice cubre también el encabezado y la lista de columnas. El fin de línea queda
+ * dentro del registro: descifrar todo reproduce el archivo byte a byte.
+ *
+ * Con columnas sensibles el resto de la fila queda en claro y sin autenticar:
+ * es el precio de poder leer y filtrar los datos no sensibles sin la clave.
+ */
+public final class CifradoRegistros {
+
+    public static final int VERSION = 3;
+    /** "RIDX" en ASCII: cierra el archivo tras la posición del índice. */
+    public static final int MAGIA_INDICE = 0x52494458;
+
+    private static final int TAMANO_MAC = 32;
+    private static final int PIE = 12;
+    private static final int FIN_REGISTROS = -1;
+    private static final byte SEPARADOR = '|';
+    private static final byte[] BOM = {(byte) 0xEF, (byte) 0xBB, (byte) 0xBF};
+    // Una línea más larga no es un registro SIS: se corta antes de agotar la memoria
+    private static final int LINEA_MAXIMA = 1 << 20;
+    // Filas por tarea: repartir tiene un costo fijo que se amortiza entre cientos de filas cortas
+    private static final int FILAS_POR_LOTE = 512;
+    private static final int BYTES_POR_LOTE = 256 * 1024;
+
+    private static final Base64.Encoder BASE64 = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DE_BASE64 = Base64.getUrlDecoder();
+
+    private final SecureRandom random;
+
+    CifradoRegistros(SecureRandom random) {
+        this.random = random;
+    }
+
+    /**
+     * Flujo que entrega el archivo cifrado por registros a medida que se lee de él.
+     * Lee el encabezado en el hilo que llama; las filas se cifran en {@code pool} en
+     * lotes, con como mucho {@code ventana} lotes adelantados, y se emiten en orden.
+     *
+     * @param sensibles columnas a cifrar; las que no estén en el encabezado se ignoran
+     *                  y, si no queda ninguna, se cifran las filas completas
+     */
+    InputStream cifrando(InputStream entrada, PublicKey clavePublica, Suite suite, Collection<String> sensibles,
+                         ExecutorService pool, int ventana) throws GeneralSecurityException, IOException {
+        Lineas lineas = new Lineas(entrada);
+        byte[] encabezado = lineas.siguiente();
+        if (encabezado == null) {
+            encabezado = new byte[0];
+        }
+        byte[] descripcion = descripcion(encabezado, columnasSensibles(encabezado, sensibles));
+        CifradoTroceado.Claves claves = CifradoTroceado.Claves.nuevas(suite, clavePublica, random);
+
+        ByteArrayOutputStream inicio = new ByteArrayOutputStream(512 + descripcion.length);
+        DataOutputStream datos = new DataOutputStream(inicio);
+        datos.writeInt(MotorCifrado.MAGIA);
+        datos.writeByte(VERSION);
+        datos.writeByte(suite.banderas(Compresion.NINGUNA));
+        datos.writeInt(claves.getEnvueltas().length);
+        datos.write(claves.getEnvueltas());
+        datos.write(descripcion);
+        return new EntradaRegistros(lineas, claves, Descripcion.de(descripcion), pool, Math.max(1, ventana),
+            inicio.toByteArray());
+    }
+
+    /**
+     * Descifra en orden el resto de un archivo por registros cuyo comienzo
+     * ({@code "SCIF"}, versión y opciones) ya se leyó de {@code datos}.
+     */
+    long descifrar(DataInputStream datos, Suite suite, OutputStream salida, PrivateKey clavePrivada)
+            throws GeneralSecurityException, IOException {
+        CifradoTroceado.Claves claves = CifradoTroceado.leerClaves(datos, clavePrivada, suite);
+        Descripcion descripcion = Descripcion.leer(datos);
+        salida.write(descripcion.encabezado);
+        long total = descripcion.encabezado.length;
+
+        Sellador sellador = new Sellador(claves, descripcion.columnas);
+        List<Integer> longitudes = new ArrayList<>();
+        long fila = 0;
+        while (true) {
+            int longitud = datos.readInt();
+            if (longitud == FIN_REGISTROS) {
+                break;
+            }
+            byte[] plano = sellador.abrir(fila++, leerRegistro(datos, longitud));
+            salida.write(plano);
+            total += plano.length;
+            longitudes.add(longitud);
+        }
+        // El índice no hace falta para leer en orden, pero debe coincidir con lo leído
+        long[] posiciones = leerIndice(datos, claves, descripcion, fila);
+        if (posiciones.length != fila) {
+            throw new GeneralSecurityException("El índice no coincide con las filas del archivo");
+        }
+        for (int i = 1; i < posiciones.length; i++) {
+            if (posiciones[i] - posiciones[i - 1] != 4 + longitudes.get(i - 1)) {
+                throw new GeneralSecurityException("El índice no coincide con las filas del archivo");
+            }
+        }
+        salida.flush();
+        return total;
+    }
+
+    /**
+     * Descifra solo la fila {@code fila} (0 es la primera después del encabezado),
+     * leyendo el índice del final y únicamente el registro de esa fila.
+     *
+     * @return bytes escritos, fin de línea incluido
+     * @throws IllegalArgumentException si el archivo no tiene esa fila
+     */
+    long descifrarRegistro(SeekableByteChannel canal, long fila, OutputStream salida, PrivateKey clavePrivada)
+            throws GeneralSecurityException, IOException {
+        DataInputStream encabezado = new DataInputStream(new BufferedInputStream(
+            Channels.newInputStream(canal.position(0)), MotorCifrado.TAMANO_BUFFER));
+        if (encabezado.readInt() != MotorCifrado.MAGIA || encabezado.readUnsignedByte() != VERSION) {
+            throw new GeneralSecurityException("El archivo no tiene formato por registros");
+        }
+        Suite suite = Suite.deBanderas(encabezado.readUnsignedByte());
+        CifradoTroceado.Claves claves = CifradoTroceado.leerClaves(encabezado, clavePrivada, suite);
+        Descripcion descripcion = Descripcion.leer(encabezado);
+
+        ByteBuffer pie = ByteBuffer.allocate(PIE);
+        CifradoTroceado.leerCompleto(canal, pie, canal.size() - PIE);
+        long posicionIndice = pie.getLong(0);
+        if (pie.getInt(8) != MAGIA_INDICE || posicionIndice < 4 || posicionIndice > canal.size() - PIE) {
+            throw new GeneralSecurityException("Pie de archivo por registros no válido");
+        }
+        long[] posiciones = leerIndice(new DataInputStream(new BufferedInputStream(
+            Channels.newInputStream(canal.position(posicionIndice)), MotorCifrado.TAMANO_BUFFER)), claves, descripcion,
+            (canal.size() - posicionIndice) / 8);
+        if (fila < 0 || fila >= posiciones.length) {
+            throw new IllegalArgumentException("La fila " + fila + " no existe; el archivo tiene " + posiciones.length);
+        }
+
+        int i = (int) fila;
+        // Después de la última fila viene la marca de fin, justo antes del índice
+        long siguiente = i + 1 < posiciones.length ? posiciones[i + 1] : posicionIndice - 4;
+        long tamano = siguiente - posiciones[i];
+        if (tamano < 4 || tamano > LINEA_MAXIMA * 2L) {
+            throw new GeneralSecurityException("Índice de archivo por registros no válido");
+        }
+        ByteBuffer registro = ByteBuffer.allocate((int) tamano);
+        CifradoTroceado.leerCompleto(canal, registro, posiciones[i]);
+        if (registro.getInt(0) != tamano - 4) {
+            throw new GeneralSecurityException("El registro " + fila + " no coincide con el índice");
+        }
+        byte[] plano = new Sellador(claves, descripcion.columnas)
+            .abrir(fila, Arrays.copyOfRange(registro.array(), 4, registro.capacity()));
+        salida.write(plano);
+        salida.flush();
+        return plano.length;
+    }
+
+    private static byte[] leerRegistro(DataInputStream datos, int longitud) throws IOException, GeneralSecurityException {
+        if (longitud < 0 || longitud > LINEA_MAXIMA * 2) {
+            throw new GeneralSecurityException("Registro con longitud no válida: " + longitud);
+        }
+        byte[] registro = new byte[longitud];
+        datos.readFully(registro);
+        return registro;
+    }
+
+    /** @param maximoFilas cota conocida antes de reservar memoria para un índice que aún no se verificó */
+    private static long[] leerIndice(DataInputStream datos, CifradoTroceado.Claves claves, Descripcion descripcion,
+                                     long maximoFilas) throws IOException, GeneralSecurityException {
+        long filas = datos.readLong();
+        if (filas < 0 || filas > maximoFilas || filas > Integer.MAX_VALUE - 8) {
+            throw new GeneralSecurityException("Índice de archivo por registros no válido");
+        }
+        Mac mac = claves.mac();
+        mac.update(descripcion.bytes);
+        mac.update(ByteBuffer.allocate(8).putLong(filas).array());
+        long[] posiciones = new long[(int) filas];
+        byte[] entrada = new byte[8];
+        for (int i = 0; i < posiciones.length; i++) {
+            datos.readFully(entrada);
+            mac.update(entrada);
+            posiciones[i] = ByteBuffer.wrap(entrada).getLong();
+        }
+        byte[] recibido = new byte[TAMANO_MAC];
+        datos.readFully(recibido);
+        if (!MessageDigest.isEqual(mac.doFinal(), recibido)) {
+            throw new GeneralSecurityException("El índice del archivo por registros fue alterado");
+        }
+        return posiciones;
+    }
+
+    /** {@code [int longitud][encabezado][short columnas][short columna]...} */
+    private static byte[] descripcion(byte[] encabezado, int[] columnas) {
+        ByteBuffer salida = ByteBuffer.allocate(4 + encabezado.length + 2 + 2 * columnas.length);
+        salida.putInt(encabezado.length).put(encabezado).putShort((short) columnas.length);
+        for (int columna : columnas) {
+            salida.putShort((short) columna);
+        }
+        return salida.array();
+    }
+
+    /** Posiciones (desde 0) de las columnas del encabezado que están en {@code sensibles}. */
+    static int[] columnasSensibles(byte[] encabezado, Collection<String> sensibles) {
+        if (sensibles == null || sensibles.isEmpty()) {
+            return new int[0];
+        }
+        int desde = startsWith(encabezado, BOM) ? BOM.length : 0;
+        String[] nombres = new String(encabezado, desde, finDeContenido(encabezado) - desde,
+            StandardCharsets.ISO_8859_1).split("\\|", -1);
+        List<Integer> columnas = new ArrayList<>();
+        for (int i = 0; i < nombres.length && i <= Short.MAX_VALUE; i++) {
+            for (String sensible : sensibles) {
+                if (nombres[i].trim().equals(sensible.trim())) {
+                    columnas.add(i);
+                    break;
+                }
+            }
+        }
+        return columnas.stream().mapToInt(Integer::intValue).toArray();
+    }
+
+    private static boolean startsWith(byte[] datos, byte[] prefijo) {
+        return datos.length >= prefijo.length && Arrays.equals(datos, 0, prefijo.length, prefijo, 0, prefijo.length);
+    }
+
+    /** Longitud de la línea sin {@code \n} ni {@code \r\n}. */
+    private static int finDeContenido(byte[] linea) {
+        int fin = linea.length;
+        if (fin > 0 && linea[fin - 1] == '\n') {
+            fin--;
+            if (fin > 0 && linea[fin - 1] == '\r') {
+                fin--;
+            }
+        }
+        return fin;
+    }
+
+    private static final class Descripcion {
+        private final byte[] bytes;
+        private final byte[] encabezado;
+        private final int[] columnas;
+
+        private Descripcion(byte[] bytes, byte[] encabezado, int[] columnas) {
+            this.bytes = bytes;
+            this.encabezado = encabezado;
+            this.columnas = columnas;
+        }
+
+        static Descripcion de(byte[] bytes) {
+            try {
+                return leer(new DataInputStream(new ByteArrayInputStream(bytes)));
+            } catch (IOException | GeneralSecurityException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        static Descripcion leer(DataInputStream datos) throws IOException, GeneralSecurityException {
+            int longitud = datos.readInt();
+            if (longitud < 0 || longitud > LINEA_MAXIMA) {
+                throw new GeneralSecurityException("Encabezado de archivo por registros no válido");
+            }
+            byte[] encabezado = new byte[longitud];
+            datos.readFully(encabezado);
+            int[] columnas = new int[datos.readUnsignedShort()];
+            for (int i = 0; i < columnas.length; i++) {
+                columnas[i] = datos.readUnsignedShort();
+            }
+            return new Descripcion(descripcion(encabezado, columnas), encabezado, columnas);
+        }
+    }
+
+    /**
+     * Cifra y descifra filas con un Cipher y un Mac propios, reiniciados en cada
+     * registro: pedir instancias nuevas costaría más que cifrar una fila corta.
+     * No es seguro entre hilos; cada lote usa el suyo.
+     */
+    private final class Sellador {
+        private final CifradoTroceado.Claves claves;
+        private final Suite suite;
+        private final int[] columnas;
+        private final Cipher cipher;
+        private final Mac mac;
+
+        Sellador(CifradoTroceado.Claves claves, int[] columnas) throws GeneralSecurityException {
+            this.claves = claves;
+            this.suite = claves.suite;
+            this.columnas = columnas;
+            this.cipher = Cipher.getInstance(suite.getTransformacion());
+            this.mac = suite.isAutenticada() ? null : claves.mac();
+        }
+
+        /** Registro cifrado de una línea completa (con su fin de línea). */
+        byte[] sellar(long fila, byte[] linea) throws GeneralSecurityException {
+            if (columnas.length == 0) {
+                return sellarContenido(asociados(fila, -1), linea, 0, linea.length);
+            }
+            ByteArrayOutputStream salida = new ByteArrayOutputStream(linea.length * 2);
+            int fin = finDeContenido(linea);
+            int columna = 0;
+            int inicio = 0;
+            int siguienteSensible = 0;
+            for (int i = 0; i <= fin; i++) {
+                if (i < fin && linea[i] != SEPARADOR) {
+                    continue;
+                }
+                if (siguienteSensible < columnas.length && columnas[siguienteSensible] == columna) {
+                    byte[] campo = sellarContenido(asociados(fila, columna), linea, inicio, i - inicio);
+                    salida.writeBytes(BASE64.encode(campo));
+                    siguienteSensible++;
+                } else {
+                    salida.write(linea, inicio, i - inicio);
+                }
+                if (i < fin) {
+                    salida.write(SEPARADOR);
+                }
+                columna++;
+                inicio = i + 1;
+            }
+            salida.write(linea, fin, linea.length - fin);
+            return salida.toByteArray();
+        }
+
+        /** Línea original a partir del registro de la fila {@code fila}. */
+        byte[] abrir(long fila, byte[] registro) throws GeneralSecurityException {
+            if (columnas.length == 0) {
+                return abrirContenido(fila, -1, registro, 0, registro.length);
+            }
+            ByteArrayOutputStream salida = new ByteArrayOutputStream(registro.length);
+            int fin = finDeContenido(registro);
+            int columna = 0;
+            int inicio = 0;
+            int siguienteSensible = 0;
+            for (int i = 0; i <= fin; i++) {
+                if (i < fin && registro[i] != SEPARADOR) {
+                    continue;
+                }
+                if (siguienteSensible < columnas.length && columnas[siguienteSensible] == columna) {
+                    byte[] campo;
+                    try {
+                        campo = DE_BASE64.decode(Arrays.copyOfRange(registro, inicio, i));
+                    } catch (IllegalArgumentException e) {
+                        throw new GeneralSecurityException("Columna " + columna + " de la fila " + fila + " no válida");
+                    }
+                    salida.writeBytes(abrirContenido(fila, columna, campo, 0, campo.length));
+                    siguienteSensible++;
+                } else {
+                    salida.write(registro, inicio, i - inicio);
+                }
+                if (i < fin) {
+                    salida.write(SEPARADOR);
+                }
+                columna++;
+                inicio = i + 1;
+            }
+            salida.write(registro, fin, registro.length - fin);
+            return salida.toByteArray();
+        }
+
+        /** {@code [IV][cifrado][HMAC si TDES]} */
+        private byte[] sellarContenido(byte[] asociados, byte[] datos, int desde, int longitud)
+                throws GeneralSecurityException {
+            byte[] iv = new byte[suite.getTamanoIv()];
+            random.nextBytes(iv);
+            suite.iniciar(cipher, Cipher.ENCRYPT_MODE, claves.cifrado, iv);
+            if (suite.isAutenticada()) {
+                cipher.updateAAD(asociados);
+            }
+            int cifrado = cipher.getOutputSize(longitud);
+            int tamanoMac = suite.isAutenticada() ? 0 : TAMANO_MAC;
+            byte[] resultado = new byte[iv.length + cifrado + tamanoMac];
+            System.arraycopy(iv, 0, resultado, 0, iv.length);
+            int escritos = cipher.doFinal(datos, desde, longitud, resultado, iv.length);
+            if (escritos != cifrado) {
+                resultado = Arrays.copyOf(resultado, iv.length + escritos + tamanoMac);
+            }
+            if (!suite.isAutenticada()) {
+                mac.update(asociados);
+                mac.update(resultado, 0, iv.length + escritos);
+                mac.doFinal(resultado, iv.length + escritos);
+            }
+            return resultado;
+        }
+
+        private byte[] abrirContenido(long fila, int columna, byte[] datos, int desde, int longitud)
+                throws GeneralSecurityException {
+            byte[] asociados = asociados(fila, columna);
+            int tamanoIv = suite.getTamanoIv();
+            int tamanoMac = suite.isAutenticada() ? 0 : TAMANO_MAC;
+            if (longitud < tamanoIv + tamanoMac) {
+                throw new GeneralSecurityException(descripcion(fila, columna) + " truncado");
+            }
+            int cifrado = longitud - tamanoIv - tamanoMac;
+            if (!suite.isAutenticada()) {
+                mac.update(asociados);
+                mac.update(datos, desde, tamanoIv + cifrado);
+                byte[] esperado = mac.doFinal();
+                if (!MessageDigest.isEqual(esperado, Arrays.copyOfRange(datos, desde + tamanoIv + cifrado,
+                        desde + longitud))) {
+                    throw new GeneralSecurityException(descripcion(fila, columna) + " fue alterado o no pertenece al archivo");
+                }
+            }
+            suite.iniciar(cipher, Cipher.DECRYPT_MODE, claves.cifrado, Arrays.copyOfRange(datos, desde, desde + tamanoIv));
+            if (suite.isAutenticada()) {
+                cipher.updateAAD(asociados);
+            }
+            try {
+                return cipher.doFinal(datos, desde + tamanoIv, cifrado);
+            } catch (GeneralSecurityException e) {
+                throw new GeneralSecurityException(descripcion(fila, columna) + " fue alterado o no pertenece al archivo", e);
+            }
+        }
+
+        private String descripcion(long fila, int columna) {
+            return columna < 0 ? "El registro " + fila : "La columna " + columna + " de la fila " + fila;
+        }
+    }
+
+    /** Número de fila y de columna (-1 = fila completa): lo que ata cada contenido a su lugar. */
+    private static byte[] asociados(long fila, int columna) {
+        return ByteBuffer.allocate(10).putLong(fila).putShort((short) columna).array();
+    }
+
+    /** Lee líneas de bytes conservando su fin de línea; {@code null} al terminar la entrada. */
+    private static final class Lineas {
+        private final InputStream origen;
+        private final byte[] buffer = new byte[MotorCifrado.TAMANO_BUFFER];
+        private int posicion;
+        private int limite;
+
+        Lineas(InputStream origen) {
+            this.origen = origen;
+        }
+
+        byte[] siguiente() throws IOException {
+            ByteArrayOutputStream linea = null;
+            while (true) {
+                if (posicion == limite) {
+                    limite = origen.read(buffer);
+                    posicion = 0;
+                    if (limite <= 0) {
+                        limite = 0;
+                        return linea == null || linea.size() == 0 ? null : linea.toByteArray();
+                    }
+                }
+                int inicio = posicion;
+                while (posicion < limite && buffer[posicion] != '\n') {
+                    posicion++;
+                }
+                boolean completa = posicion < limite;
+                if (completa) {
+                    posicion++;
+                }
+                if (linea == null) {
+                    if (completa) {
+                        return Arrays.copyOfRange(buffer, inicio, posicion);
+                    }
+                    linea = new ByteArrayOutputStream(256);
+                }
+                linea.write(buffer, inicio, posicion - inicio);
+                if (linea.size() > LINEA_MAXIMA) {
+                    throw new IOException("Línea de más de " + LINEA_MAXIMA + " bytes: el archivo no es un SIS por registros");
+                }
+                if (completa) {
+                    return linea.toByteArray();
+                }
+            }
+        }
+
+        void close() throws IOException {
+            origen.close();
+        }
+    }
+
+    /** Filas cifradas de un lote y la posición de cada registro dentro de {@code datos}. */
+    private static final class Lote {
+        private final byte[] datos;
+        private final int[] posiciones;
+
+        Lote(byte[] datos, int[] posiciones) {
+            this.datos = datos;
+            this.posiciones = posiciones;
+        }
+    }
+
+    /**
+     * Lee las líneas en el hilo que consume el flujo, manda cifrar cada lote de
+     * filas al pool y entrega los lotes en orden, anotando la posición de cada fila.
+     */
+    private final class EntradaRegistros extends InputStream {
+        private final Lineas lineas;
+        private final CifradoTroceado.Claves claves;
+        private final Descripcion descripcion;
+        private final ExecutorService pool;
+        private final int ventana;
+        private final Deque<Future<Lote>> enCurso = new ArrayDeque<>();
+
+        private long[] posiciones = new long[1024];
+        private int filasEmitidas;
+        private long siguienteFila;
+        private byte[] pendiente;
+        private int posicion;
+        private long emitidos;
+        private boolean entradaAgotada;
+        private boolean indiceEscrito;
+        private boolean terminado;
+
+        EntradaRegistros(Lineas lineas, CifradoTroceado.Claves claves, Descripcion descripcion,
+                         ExecutorService pool, int ventana, byte[] encabezado) {
+            this.lineas = lineas;
+            this.claves = claves;
+            this.descripcion = descripcion;
+            this.pool = pool;
+            this.ventana = ventana;
+            this.pendiente = encabezado;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] uno = new byte[1];
+            int n = read(uno, 0, 1);
+            return n == -1 ? -1 : uno[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] destino, int desde, int longitud) throws IOException {
+            if (longitud == 0) {
+                return 0;
+            }
+            while (pendiente == null || posicion >= pendiente.length) {
+                if (terminado) {
+                    return -1;
+                }
+                rellenar();
+            }
+            int n = Math.min(longitud, pendiente.length - posicion);
+            System.arraycopy(pendiente, posicion, destino, desde, n);
+            posicion += n;
+            return n;
+        }
+
+        private void rellenar() throws IOException {
+            if (pendiente != null) {
+                emitidos += pendiente.length;
+            }
+            posicion = 0;
+            while (!entradaAgotada && enCurso.size() < ventana) {
+                enviarSiguiente();
+            }
+            if (!enCurso.isEmpty()) {
+                Lote lote = esperar(enCurso.poll());
+                for (int relativa : lote.posiciones) {
+                    anotar(emitidos + relativa);
+                }
+                pendiente = lote.datos;
+            } else if (!indiceEscrito) {
+                pendiente = indice();
+                indiceEscrito = true;
+            } else {
+                pendiente = null;
+                terminado = true;
+            }
+        }
+
+        private void enviarSiguiente() throws IOException {
+            List<byte[]> filas = new ArrayList<>(FILAS_POR_LOTE);
+            int bytes = 0;
+            while (filas.size() < FILAS_POR_LOTE && bytes < BYTES_POR_LOTE) {
+                byte[] linea = lineas.siguiente();
+                if (linea == null) {
+                    entradaAgotada = true;
+                    break;
+                }
+                filas.add(linea);
+                bytes += linea.length;
+            }
+            if (filas.isEmpty()) {
+                return;
+            }
+            long primera = siguienteFila;
+            siguienteFila += filas.size();
+            int estimado = bytes * 2 + filas.size() * 64;
+            enCurso.add(pool.submit(() -> sellar(primera, filas, estimado)));
+        }
+
+        private Lote sellar(long primera, List<byte[]> filas, int estimado) throws GeneralSecurityException {
+            Sellador sellador = new Sellador(claves, descripcion.columnas);
+            ByteArrayOutputStream salida = new ByteArrayOutputStream(estimado);
+            int[] relativas = new int[filas.size()];
+            byte[] longitud = new byte[4];
+            for (int i = 0; i < filas.size(); i++) {
+                byte[] registro = sellador.sellar(primera + i, filas.get(i));
+                relativas[i] = salida.size();
+                ByteBuffer.wrap(longitud).putInt(registro.length);
+                salida.writeBytes(longitud);
+                salida.writeBytes(registro);
+            }
+            return new Lote(salida.toByteArray(), relativas);
+        }
+
+        private void anotar(long posicionFila) {
+            if (filasEmitidas == posiciones.length) {
+                posiciones = Arrays.copyOf(posiciones, posiciones.length * 2);
+            }
+            posiciones[filasEmitidas++] = posicionFila;
+        }
+
+        private byte[] indice() throws IOException {
+            ByteBuffer salida = ByteBuffer.allocate(4 + 8 + filasEmitidas * 8 + TAMANO_MAC + PIE);
+            salida.putInt(FIN_REGISTROS);
+            long posicionIndice = emitidos + 4;
+            salida.putLong(filasEmitidas);
+            for (int i = 0; i < filasEmitidas; i++) {
+                salida.putLong(posiciones[i]);
+            }
+            try {
+                Mac mac = claves.mac();
+                mac.update(descripcion.bytes);
+                mac.update(salida.array(), 4, salida.position() - 4);
+                salida.put(mac.doFinal());
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Error sellando el índice: " + e.getMessage(), e);
+            }
+            salida.putLong(posicionIndice).putInt(MAGIA_INDICE);
+            return salida.array();
+        }
+
+        private Lote esperar(Future<Lote> lote) throws IOException {
+            try {
+                return lote.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Cifrado interrumpido");
+            } catch (ExecutionException e) {
+                throw new IOException("Error cifrando filas: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Future<Lote> lote : enCurso) {
+                lote.cancel(false);
+            }
+            enCurso.clear();
+            lineas.close();
+        }
+    }
+}
@@ -0,0 +1,532 @@
+package com.sirexe.cifradoapi.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Formato troceado (versión 2): el texto plano se parte en trozos de tamaño fijo
+ * que se cifran por separado, cada uno con su IV y su HMAC, así que se pueden
+ * cifrar en paralelo y descifrar un rango sin leer el resto del archivo.
+ * <pre>
+ * ["SCIF"][versión 2][opciones][int tamaño de trozo][int longitud][claves envueltas con RSA/PKCS#1]
+ * por trozo: [último 1 byte][IV][int longitud][cifrado][HMAC-SHA256 32, solo TDES]
+ * índice:    [int trozos][por trozo: long posición, int longitud en claro][HMAC-SHA256 32]
+ * pie:       [long posición del índice]["SIDX"]
+ * </pre>
+ * Las claves envueltas son la clave de la {@link Suite} seguida de la clave HMAC
+ * (32 bytes), ambas por archivo. Con TDES el HMAC de cada trozo cubre su número,
+ * la marca de último y el cifrado; con AES_GCM el número y la marca van como datos
+ * asociados y la etiqueta GCM hace de HMAC. En los dos casos reordenar, quitar o
+ * truncar trozos se detecta. Con compresión cada trozo se comprime por separado
+ * antes de cifrarlo.
+ */
+public final class CifradoTroceado {
+
+    public static final int VERSION = 2;
+    /** "SIDX" en ASCII: cierra el archivo tras la posición del índice. */
+    public static final int MAGIA_INDICE = 0x53494458;
+
+    private static final String MAC = "HmacSHA256";
+    private static final int TAMANO_MAC = 32;
+    private static final int PIE = 12;
+    private static final int TAMANO_MAXIMO_TROZO = 64 << 20;
+
+    private final SecureRandom random;
+
+    CifradoTroceado(SecureRandom random) {
+        this.random = random;
+    }
+
+    /**
+     * Flujo que entrega el archivo troceado a medida que se lee de él. Lee los
+     * trozos de {@code entrada} en orden, los cifra en {@code pool} con como
+     * mucho {@code ventana} trozos adelantados y los emite en el orden original.
+     */
+    InputStream cifrando(InputStream entrada, PublicKey clavePublica, Compresion compresion, Suite suite,
+                         int tamanoTrozo, ExecutorService pool, int ventana) throws GeneralSecurityException {
+        if (tamanoTrozo <= 0 || tamanoTrozo > TAMANO_MAXIMO_TROZO) {
+            throw new IllegalArgumentException("Tamaño de trozo no válido: " + tamanoTrozo);
+        }
+        Claves claves = Claves.nuevas(suite, clavePublica, random);
+        byte[] envueltas = claves.getEnvueltas();
+
+        ByteArrayOutputStream encabezado = new ByteArrayOutputStream(512);
+        try {
+            DataOutputStream datos = new DataOutputStream(encabezado);
+            datos.writeInt(MotorCifrado.MAGIA);
+            datos.writeByte(VERSION);
+            datos.writeByte(suite.banderas(compresion));
+            datos.writeInt(tamanoTrozo);
+            datos.writeInt(envueltas.length);
+            datos.write(envueltas);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new EntradaTroceada(entrada, claves, compresion, tamanoTrozo, pool, Math.max(1, ventana),
+            encabezado.toByteArray());
+    }
+
+    /**
+     * Descifra en orden el resto de un archivo troceado cuyo comienzo
+     * ({@code "SCIF"}, versión y opciones) ya se leyó de {@code datos}.
+     */
+    long descifrar(DataInputStream datos, Compresion compresion, Suite suite, OutputStream salida,
+                   PrivateKey clavePrivada) throws GeneralSecurityException, IOException {
+        leerTamanoTrozo(datos);
+        Claves claves = leerClaves(datos, clavePrivada, suite);
+        long total = 0;
+        long trozos = 0;
+        boolean ultimo = false;
+        while (!ultimo) {
+            int marca = datos.read();
+            if (marca == -1) {
+                throw new GeneralSecurityException("Archivo troceado truncado");
+            }
+            ultimo = marca == 1;
+            byte[] plano = abrir(claves, trozos++, (byte) marca, datos, compresion);
+            salida.write(plano);
+            total += plano.length;
+        }
+        // El índice no hace falta para leer en orden, pero debe coincidir con lo leído
+        Indice indice = leerIndice(datos, claves);
+        if (indice.posiciones.length != trozos) {
+            throw new GeneralSecurityException("El índice no coincide con los trozos del archivo");
+        }
+        salida.flush();
+        return total;
+    }
+
+    /**
+     * Descifra solo los bytes de texto plano {@code [desde, desde + longitud)},
+     * leyendo el índice del final y únicamente los trozos que cubren el rango.
+     *
+     * @return bytes escritos; menos que {@code longitud} si el rango pasa del final
+     */
+    long descifrarRango(SeekableByteChannel canal, long desde, long longitud, OutputStream salida,
+                        PrivateKey clavePrivada) throws GeneralSecurityException, IOException {
+        DataInputStream encabezado = new DataInputStream(Channels.newInputStream(canal.position(0)));
+        if (encabezado.readInt() != MotorCifrado.MAGIA || encabezado.readUnsignedByte() != VERSION) {
+            throw new GeneralSecurityException("El archivo no tiene formato troceado");
+        }
+        int banderas = encabezado.readUnsignedByte();
+        Compresion compresion = Compresion.deBanderas(banderas);
+        leerTamanoTrozo(encabezado);
+        Claves claves = leerClaves(encabezado, clavePrivada, Suite.deBanderas(banderas));
+
+        ByteBuffer pie = ByteBuffer.allocate(PIE);
+        leerCompleto(canal, pie, canal.size() - PIE);
+        long posicionIndice = pie.getLong(0);
+        if (pie.getInt(8) != MAGIA_INDICE || posicionIndice < 0 || posicionIndice > canal.size() - PIE) {
+            throw new GeneralSecurityException("Pie de archivo troceado no válido");
+        }
+        Indice indice = leerIndice(new DataInputStream(Channels.newInputStream(canal.position(posicionIndice))), claves);
+
+        long escritos = 0;
+        long inicioTrozo = 0;
+        long fin = desde + longitud;
+        for (int i = 0; i < indice.posiciones.length && inicioTrozo < fin; i++) {
+            long finTrozo = inicioTrozo + indice.longitudes[i];
+            if (finTrozo > desde) {
+                long siguiente = i + 1 < indice.posiciones.length ? indice.posiciones[i + 1] : posicionIndice;
+                ByteBuffer registro = ByteBuffer.allocate((int) (siguiente - indice.posiciones[i]));
+                leerCompleto(canal, registro, indice.posiciones[i]);
+                DataInputStream datos = new DataInputStream(new ByteArrayInputStream(registro.array()));
+                byte marca = datos.readByte();
+                byte[] plano = abrir(claves, i, marca, datos, compresion);
+                int desdeEnTrozo = (int) Math.max(0, desde - inicioTrozo);
+                int hastaEnTrozo = (int) Math.min(plano.length, fin - inicioTrozo);
+                salida.write(plano, desdeEnTrozo, hastaEnTrozo - desdeEnTrozo);
+                escritos += hastaEnTrozo - desdeEnTrozo;
+            }
+            inicioTrozo = finTrozo;
+        }
+        salida.flush();
+        return escritos;
+    }
+
+    private static void leerTamanoTrozo(DataInputStream datos) throws IOException, GeneralSecurityException {
+        int tamano = datos.readInt();
+        if (tamano <= 0 || tamano > TAMANO_MAXIMO_TROZO) {
+            throw new GeneralSecurityException("Tamaño de trozo no válido: " + tamano);
+        }
+    }
+
+    /** Lee {@code [int longitud][claves envueltas]} y las desenvuelve; común a troceado y registros. */
+    static Claves leerClaves(DataInputStream datos, PrivateKey clavePrivada, Suite suite)
+            throws IOException, GeneralSecurityException {
+        int longitud = datos.readInt();
+        if (longitud <= 0 || longitud > 1024) {
+            throw new GeneralSecurityException("Encabezado de archivo cifrado no válido");
+        }
+        byte[] envueltas = new byte[longitud];
+        datos.readFully(envueltas);
+        Cipher rsa = Cipher.getInstance(MotorCifrado.ENVOLTURA);
+        rsa.init(Cipher.DECRYPT_MODE, clavePrivada);
+        byte[] material = rsa.doFinal(envueltas);
+        if (material.length != suite.getTamanoClave() + TAMANO_MAC) {
+            throw new GeneralSecurityException("Claves del archivo troceado no válidas");
+        }
+        try {
+            return new Claves(material, suite);
+        } finally {
+            Arrays.fill(material, (byte) 0);
+        }
+    }
+
+    /**
+     * Verifica la autenticidad del trozo {@code numero} (HMAC o etiqueta GCM) antes
+     * de entregarlo y lo descomprime si hace falta.
+     */
+    private static byte[] abrir(Claves claves, long numero, byte marca, DataInputStream datos, Compresion compresion)
+            throws IOException, GeneralSecurityException {
+        Suite suite = claves.suite;
+        byte[] iv = new byte[suite.getTamanoIv()];
+        datos.readFully(iv);
+        int longitud = datos.readInt();
+        if (longitud <= 0 || longitud > TAMANO_MAXIMO_TROZO + 64) {
+            throw new GeneralSecurityException("Trozo " + numero + " con longitud no válida");
+        }
+        byte[] cifrado = new byte[longitud];
+        datos.readFully(cifrado);
+
+        Cipher cipher = suite.cifrador(Cipher.DECRYPT_MODE, claves.cifrado, iv);
+        byte[] plano;
+        if (suite.isAutenticada()) {
+            cipher.updateAAD(asociados(numero, marca));
+            try {
+                plano = cipher.doFinal(cifrado);
+            } catch (GeneralSecurityException e) {
+                throw new GeneralSecurityException("El trozo " + numero + " fue alterado o no pertenece al archivo", e);
+            }
+        } else {
+            byte[] recibido = new byte[TAMANO_MAC];
+            datos.readFully(recibido);
+            Mac mac = claves.mac();
+            mac.update(asociados(numero, marca));
+            mac.update(iv);
+            mac.update(ByteBuffer.allocate(4).putInt(longitud).array());
+            mac.update(cifrado);
+            if (!MessageDigest.isEqual(mac.doFinal(), recibido)) {
+                throw new GeneralSecurityException("El trozo " + numero + " fue alterado o no pertenece al archivo");
+            }
+            plano = cipher.doFinal(cifrado);
+        }
+        return compresion == Compresion.NINGUNA ? plano : inflar(plano);
+    }
+
+    /** Número de trozo y marca de último: lo que ata cada trozo a su lugar en el archivo. */
+    private static byte[] asociados(long numero, byte marca) {
+        return ByteBuffer.allocate(9).putLong(numero).put(marca).array();
+    }
+
+    private static Indice leerIndice(DataInputStream datos, Claves claves) throws IOException, GeneralSecurityException {
+        int trozos = datos.readInt();
+        if (trozos <= 0) {
+            throw new GeneralSecurityException("Índice de archivo troceado no válido");
+        }
+        Mac mac = claves.mac();
+        mac.update(ByteBuffer.allocate(4).putInt(trozos).array());
+        Indice indice = new Indice(trozos);
+        ByteBuffer entrada = ByteBuffer.allocate(12);
+        for (int i = 0; i < trozos; i++) {
+            datos.readFully(entrada.array());
+            mac.update(entrada.array());
+            indice.posiciones[i] = entrada.getLong(0);
+            indice.longitudes[i] = entrada.getInt(8);
+        }
+        byte[] recibido = new byte[TAMANO_MAC];
+        datos.readFully(recibido);
+        if (!MessageDigest.isEqual(mac.doFinal(), recibido)) {
+            throw new GeneralSecurityException("El índice del archivo troceado fue alterado");
+        }
+        return indice;
+    }
+
+    private static byte[] desinflado(byte[] plano) {
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(plano);
+            deflater.finish();
+            ByteArrayOutputStream salida = new ByteArrayOutputStream(Math.max(64, plano.length / 4));
+            byte[] buffer = new byte[MotorCifrado.TAMANO_BUFFER];
+            while (!deflater.finished()) {
+                int n = deflater.deflate(buffer);
+                salida.write(buffer, 0, n);
+            }
+            return salida.toByteArray();
+        } finally {
+            deflater.end();
+        }
+    }
+
+    private static byte[] inflar(byte[] comprimido) throws GeneralSecurityException {
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(comprimido);
+            ByteArrayOutputStream salida = new ByteArrayOutputStream(comprimido.length * 4);
+            byte[] buffer = new byte[MotorCifrado.TAMANO_BUFFER];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                    throw new GeneralSecurityException("Contenido comprimido incompleto");
+                }
+                salida.write(buffer, 0, n);
+                if (salida.size() > TAMANO_MAXIMO_TROZO) {
+                    throw new GeneralSecurityException("Trozo descomprimido demasiado grande");
+                }
+            }
+            return salida.toByteArray();
+        } catch (DataFormatException e) {
+            throw new GeneralSecurityException("Contenido comprimido no válido", e);
+        } finally {
+            inflater.end();
+        }
+    }
+
+    static void leerCompleto(SeekableByteChannel canal, ByteBuffer destino, long posicion) throws IOException {
+        canal.position(posicion);
+        while (destino.hasRemaining()) {
+            if (canal.read(destino) < 0) {
+                throw new EOFException("Archivo cifrado más corto de lo esperado");
+            }
+        }
+    }
+
+    /** Clave de la suite y clave HMAC de un archivo; {@code envueltas} solo al generarlas. */
+    static final class Claves {
+        final Suite suite;
+        final SecretKey cifrado;
+        private final SecretKeySpec mac;
+        private byte[] envueltas;
+
+        Claves(byte[] material, Suite suite) {
+            this.suite = suite;
+            this.cifrado = new SecretKeySpec(material, 0, suite.getTamanoClave(), suite.getAlgoritmoClave());
+            this.mac = new SecretKeySpec(material, suite.getTamanoClave(), TAMANO_MAC, MAC);
+        }
+
+        /** Claves nuevas para un archivo, envueltas con RSA/PKCS#1 para escribirlas en el encabezado. */
+        static Claves nuevas(Suite suite, PublicKey clavePublica, SecureRandom random) throws GeneralSecurityException {
+            byte[] material = new byte[suite.getTamanoClave() + TAMANO_MAC];
+            System.arraycopy(suite.generarClave(random).getEncoded(), 0, material, 0, suite.getTamanoClave());
+            byte[] claveMac = new byte[TAMANO_MAC];
+            random.nextBytes(claveMac);
+            System.arraycopy(claveMac, 0, material, suite.getTamanoClave(), TAMANO_MAC);
+            Claves claves = new Claves(material, suite);
+
+            Cipher rsa = Cipher.getInstance(MotorCifrado.ENVOLTURA);
+            rsa.init(Cipher.ENCRYPT_MODE, clavePublica, random);
+            claves.envueltas = rsa.doFinal(material);
+            Arrays.fill(material, (byte) 0);
+            return claves;
+        }
+
+        byte[] getEnvueltas() {
+            return envueltas;
+        }
+
+        Mac mac() throws GeneralSecurityException {
+            Mac instancia = Mac.getInstance(MAC);
+            instancia.init(mac);
+            return instancia;
+        }
+    }
+
+    private static final class Indice {
+        private final long[] posiciones;
+        private final int[] longitudes;
+
+        Indice(int trozos) {
+            this.posiciones = new long[trozos];
+            this.longitudes = new int[trozos];
+        }
+    }
+
+    /**
+     * Lee la entrada trozo a trozo en el hilo que consume el flujo, manda cifrar
+     * cada trozo al pool y entrega los resultados en orden. Un trozo se lee por
+     * adelantado para saber cuál es el último.
+     */
+    private final class EntradaTroceada extends InputStream {
+        private final InputStream origen;
+        private final Claves claves;
+        private final Compresion compresion;
+        private final int tamanoTrozo;
+        private final ExecutorService pool;
+        private final int ventana;
+        private final Deque<Future<byte[]>> enCurso = new ArrayDeque<>();
+        private final List<long[]> indice = new ArrayList<>();
+
+        private byte[] pendiente;
+        private int posicion;
+        private long emitidos;
+        private byte[] actual;
+        private boolean entradaAgotada;
+        private boolean indiceEscrito;
+        private boolean terminado;
+
+        EntradaTroceada(InputStream origen, Claves claves, Compresion compresion, int tamanoTrozo,
+                        ExecutorService pool, int ventana, byte[] encabezado) {
+            this.origen = origen;
+            this.claves = claves;
+            this.compresion = compresion;
+            this.tamanoTrozo = tamanoTrozo;
+            this.pool = pool;
+            this.ventana = ventana;
+            this.pendiente = encabezado;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] uno = new byte[1];
+            int n = read(uno, 0, 1);
+            return n == -1 ? -1 : uno[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] destino, int desde, int longitud) throws IOException {
+            if (longitud == 0) {
+                return 0;
+            }
+            while (pendiente == null || posicion >= pendiente.length) {
+                if (terminado) {
+                    return -1;
+                }
+                rellenar();
+            }
+            int n = Math.min(longitud, pendiente.length - posicion);
+            System.arraycopy(pendiente, posicion, destino, desde, n);
+            posicion += n;
+            return n;
+        }
+
+        private void rellenar() throws IOException {
+            if (pendiente != null) {
+                emitidos += pendiente.length;
+            }
+            posicion = 0;
+            while (!entradaAgotada && enCurso.size() < ventana) {
+                enviarSiguiente();
+            }
+            if (!enCurso.isEmpty()) {
+                indice.get(indice.size() - enCurso.size())[0] = emitidos;
+                pendiente = esperar(enCurso.poll());
+            } else if (!indiceEscrito) {
+                pendiente = indice();
+                indiceEscrito = true;
+            } else {
+                pendiente = null;
+                terminado = true;
+            }
+        }
+
+        private void enviarSiguiente() throws IOException {
+            if (actual == null) {
+                actual = origen.readNBytes(tamanoTrozo);
+            }
+            byte[] plano = actual;
+            byte[] siguiente = plano.length < tamanoTrozo ? new byte[0] : origen.readNBytes(tamanoTrozo);
+            boolean ultimo = siguiente.length == 0;
+            long numero = indice.size();
+            indice.add(new long[] {0, plano.length});
+            enCurso.add(pool.submit(() -> sellar(numero, ultimo, plano)));
+            actual = siguiente;
+            entradaAgotada = ultimo;
+        }
+
+        private byte[] sellar(long numero, boolean ultimo, byte[] plano) throws GeneralSecurityException {
+            Suite suite = claves.suite;
+            byte marca = (byte) (ultimo ? 1 : 0);
+            byte[] datos = compresion == Compresion.NINGUNA ? plano : desinflado(plano);
+            byte[] iv = new byte[suite.getTamanoIv()];
+            random.nextBytes(iv);
+            Cipher cipher = suite.cifrador(Cipher.ENCRYPT_MODE, claves.cifrado, iv);
+            if (suite.isAutenticada()) {
+                cipher.updateAAD(asociados(numero, marca));
+            }
+            int longitud = cipher.getOutputSize(datos.length);
+
+            int tamanoMac = suite.isAutenticada() ? 0 : TAMANO_MAC;
+            ByteBuffer registro = ByteBuffer.allocate(1 + iv.length + 4 + longitud + tamanoMac);
+            registro.put(marca).put(iv).putInt(longitud);
+            int cifrados = cipher.doFinal(datos, 0, datos.length, registro.array(), registro.position());
+            if (cifrados != longitud) {
+                throw new GeneralSecurityException("Longitud de trozo cifrado inesperada");
+            }
+            if (!suite.isAutenticada()) {
+                Mac mac = claves.mac();
+                mac.update(ByteBuffer.allocate(8).putLong(numero).array());
+                mac.update(registro.array(), 0, registro.position() + longitud);
+                mac.doFinal(registro.array(), registro.position() + longitud);
+            }
+            return registro.array();
+        }
+
+        private byte[] indice() throws IOException {
+            ByteBuffer salida = ByteBuffer.allocate(4 + indice.size() * 12 + TAMANO_MAC + PIE);
+            salida.putInt(indice.size());
+            for (long[] entrada : indice) {
+                salida.putLong(entrada[0]).putInt((int) entrada[1]);
+            }
+            try {
+                Mac mac = claves.mac();
+                mac.update(salida.array(), 0, salida.position());
+                salida.put(mac.doFinal());
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Error sellando el índice: " + e.getMessage(), e);
+            }
+            salida.putLong(emitidos).putInt(MAGIA_INDICE);
+            return salida.array();
+        }
+
+        private byte[] esperar(Future<byte[]> trozo) throws IOException {
+            try {
+                return trozo.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Cifrado interrumpido");
+            } catch (ExecutionException e) {
+                throw new IOException("Error cifrando trozo: " + e.getCause().getMessage(), e.getCause());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (Future<byte[]> trozo : enCurso) {
+                trozo.cancel(false);
+            }
+            enCurso.clear();
+            origen.close();
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.sirexe.cifradoapi.crypto;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterInputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Compresión del texto plano antes de cifrarlo. Una vez cifrado el contenido ya
+ * no se puede comprimir, así que se hace antes y en streaming.
+ *
+ * DEFLATE usa el formato zlib (RFC 1950) a nivel {@link Deflater#BEST_SPEED}: en
+ * los SIS, con columnas y valores que se repiten fila a fila, el nivel 1 obtiene
+ * casi toda la reducción de los niveles altos con una fracción del CPU.
+ */
+public enum Compresion {
+
+    NINGUNA(0),
+    DEFLATE(1);
+
+    private final int bandera;
+
+    Compresion(int bandera) {
+        this.bandera = bandera;
+    }
+
+    /** Bits que identifican la compresión en el byte de opciones del encabezado. */
+    public int getBandera() {
+        return bandera;
+    }
+
+    public static Compresion deBanderas(int banderas) throws IOException {
+        for (Compresion compresion : values()) {
+            if (compresion.bandera == (banderas & 0x0F)) {
+                return compresion;
+            }
+        }
+        throw new IOException("Compresión desconocida en el encabezado: " + (banderas & 0x0F));
+    }
+
+    /** Acepta "deflate" o "ninguna" sin distinguir mayúsculas; {@code null} o vacío es NINGUNA. */
+    public static Compresion desde(String nombre) {
+        if (nombre == null || nombre.isBlank()) {
+            return NINGUNA;
+        }
+        try {
+            return valueOf(nombre.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("compresion no válida: " + nombre + " (use deflate o ninguna)");
+        }
+    }
+
+    /** Flujo que entrega {@code entrada} comprimida a medida que se lee de él. */
+    InputStream comprimiendo(InputStream entrada, int tamanoBuffer) {
+        if (this == NINGUNA) {
+            return entrada;
+        }
+        return new EntradaComprimida(entrada, tamanoBuffer);
+    }
+
+    /** Flujo que descomprime lo que se escribe en él hacia {@code salida}, sin cerrarla. */
+    SalidaDescomprimida descomprimiendo(OutputStream salida, int tamanoBuffer) {
+        return new SalidaDescomprimida(salida, this == NINGUNA ? null : new Inflater(), tamanoBuffer);
+    }
+
+    /** Libera el {@link Deflater} al cerrar; {@link DeflaterInputStream} no lo hace si se lo pasan. */
+    static final class EntradaComprimida extends DeflaterInputStream {
+
+        EntradaComprimida(InputStream entrada, int tamanoBuffer) {
+            super(entrada, new Deflater(Deflater.BEST_SPEED), tamanoBuffer);
+        }
+
+        /** Bytes sin comprimir consumidos de la entrada. */
+        long getLeidos() {
+            return def.getBytesRead();
+        }
+
+        /** Libera el compresor sin cerrar la entrada. */
+        void liberar() {
+            def.end();
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                liberar();
+            }
+        }
+    }
+
+    /** Salida que descomprime (o deja pasar) y cuenta los bytes de texto plano entregados. */
+    static final class SalidaDescomprimida extends OutputStream {
+        private final OutputStream destino;
+        private final Inflater inflater;
+        private final InflaterOutputStream descompresor;
+        private long escritos;
+
+        SalidaDescomprimida(OutputStream destino, Inflater inflater, int tamanoBuffer) {
+            this.destino = destino;
+            this.inflater = inflater;
+            this.descompresor = inflater != null ? new InflaterOutputStream(destino, inflater, tamanoBuffer) : null;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] datos, int desde, int longitud) throws IOException {
+            if (descompresor != null) {
+                descompresor.write(datos, desde, longitud);
+            } else {
+                destino.write(datos, desde, longitud);
+                escritos += longitud;
+            }
+        }
+
+        /** Vacía lo pendiente y comprueba que el flujo comprimido terminó completo. */
+        long terminar() throws IOException {
+            if (descompresor == null) {
+                return escritos;
+            }
+            try {
+                descompresor.finish();
+                if (!inflater.finished()) {
+                    throw new IOException("Contenido comprimido incompleto");
+                }
+                return inflater.getBytesWritten();
+            } finally {
+                inflater.end();
+            }
+        }
+    }
+}
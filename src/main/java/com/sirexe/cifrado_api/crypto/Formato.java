@@ -0,0 +1,36 @@
+package com.sirexe.cifradoapi.crypto;
+
+/**
+ * Estructura del archivo cifrado. CLASICO es un solo flujo cifrado, con la
+ * estructura descrita en {@link MotorCifrado}; TROCEADO parte el texto en trozos cifrados y
+ * autenticados por separado (ver {@link CifradoTroceado}); REGISTROS cifra cada
+ * fila del archivo delimitado por {@code |} por separado (ver {@link CifradoRegistros}).
+ */
+public enum Formato {
+
+    CLASICO(0),
+    TROCEADO(1),
+    REGISTROS(2);
+
+    private final int codigo;
+
+    Formato(int codigo) {
+        this.codigo = codigo;
+    }
+
+    public int getCodigo() {
+        return codigo;
+    }
+
+    /** Acepta "clasico", "troceado" o "registros" sin distinguir mayúsculas; {@code null} o vacío es CLASICO. */
+    public static Formato desde(String nombre) {
+        if (nombre == null || nombre.isBlank()) {
+            return CLASICO;
+        }
+        try {
+            return valueOf(nombre.trim().toUpperCase());
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("formato no válido: " + nombre + " (use clasico, troceado o registros)");
+        }
+    }
+}
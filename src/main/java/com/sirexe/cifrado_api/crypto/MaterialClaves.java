@@ -0,0 +1,46 @@
+package com.sirexe.cifradoapi.crypto;
+
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+
+/**
+ * Instantánea inmutable del contenido de transferencia.jks ya parseado.
+ * Una recarga del keystore produce una instancia nueva; quien ya tiene una
+ * referencia sigue usando las claves con las que empezó.
+ */
+public final class MaterialClaves {
+
+    private final PublicKey clavePublica;
+    private final X509Certificate certificado;
+    private final PrivateKey clavePrivada;
+    private final String version;
+    private final byte[] contenido;
+    private final Instant cargadoEn;
+
+    public MaterialClaves(PublicKey clavePublica, X509Certificate certificado, PrivateKey clavePrivada,
+                          String version, byte[] contenido, Instant cargadoEn) {
+        this.clavePublica = clavePublica;
+        this.certificado = certificado;
+        this.clavePrivada = clavePrivada;
+        this.version = version;
+        this.contenido = contenido;
+        this.cargadoEn = cargadoEn;
+    }
+
+    public X509Certificate getCertificado() { return certificado; }
+
+    public PublicKey getClavePublica() { return clavePublica; }
+
+    /** Clave privada, o {@code null} si no se configuró la contraseña del keystore. */
+    public PrivateKey getClavePrivada() { return clavePrivada; }
+
+    /** Huella SHA-256 (abreviada) del archivo keystore; cambia con cada rotación de claves. */
+    public String getVersion() { return version; }
+
+    /** Bytes originales del keystore, para la librería externa que lo lee de disco. */
+    public byte[] getContenido() { return contenido.clone(); }
+
+    public Instant getCargadoEn() { return cargadoEn; }
+}
@@ -0,0 +1,406 @@
+package com.sirexe.cifradoapi.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.security.GeneralSecurityException;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.security.SecureRandom;
+import java.util.Collection;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Semaphore;
+
+/**
+ * Motor de cifrado en proceso. Con la suite TDES escribe la estructura de abajo, que
+ * se supone equivalente a la de {@code cifrado.Cifrar.cifra}: el repositorio no tiene
+ * la especificación de la librería ni una prueba contra su salida real, por eso
+ * {@code cifrado.motor} sigue en EXTERNO por defecto.
+ *
+ * Formato de salida (.cif):
+ * <pre>
+ * [int32 longitud de la clave envuelta][clave 3DES envuelta con RSA/PKCS#1][IV 8 bytes][DESede/CBC/PKCS5Padding]
+ * </pre>
+ * La clave de sesión y el IV se generan por archivo, por lo que dos cifrados
+ * del mismo contenido nunca producen los mismos bytes.
+ *
+ * Con compresión o con otra {@link Suite} el archivo lleva delante un encabezado
+ * en claro {@code ["SCIF"][versión 1 byte][opciones 1 byte]}: el nibble bajo de
+ * las opciones es la compresión y el alto la suite, que fija el tamaño del IV.
+ * Sin compresión y con TDES no se escribe encabezado. Como la longitud de la clave
+ * envuelta nunca pasa de 1024, su primer byte es 0 y no se confunde con "SCIF".
+ *
+ * Un AES-GCM clásico solo se verifica al final y SunJCE retiene todo el cifrado
+ * hasta entonces, y después el texto plano, así que no pasa de
+ * {@code gcmClasicoMaximo} bytes cifrados ni al cifrar ni al descifrar (lo que
+ * exceda lanza {@link GcmClasicoExcedidoException}) y solo se descifran
+ * {@code gcmClasicoSimultaneos} a la vez; los demás esperan turno.
+ *
+ * La versión 2 del encabezado es el formato troceado de {@link CifradoTroceado},
+ * pensado para archivos grandes: se cifra en paralelo y admite descifrar rangos.
+ * La versión 3 es el formato por registros de {@link CifradoRegistros}: cada fila
+ * de un archivo delimitado por {@code |} se cifra y se puede descifrar por separado.
+ */
+public class MotorCifrado {
+
+    public static final String ALGORITMO = "DESede/CBC/PKCS5Padding";
+    public static final String ENVOLTURA = "RSA/ECB/PKCS1Padding";
+    public static final int TAMANO_IV = 8;
+    /** "SCIF" en ASCII: marca los archivos con encabezado de formato. */
+    public static final int MAGIA = 0x53434946;
+    public static final int VERSION_FORMATO = 1;
+
+    static final int TAMANO_BUFFER = 64 * 1024;
+    /** Máximo por defecto de un AES-GCM clásico: descifrarlo ocupa en el heap unas tres veces esto. */
+    public static final long GCM_CLASICO_MAXIMO = 32L * 1024 * 1024;
+    public static final int GCM_CLASICO_SIMULTANEOS = 2;
+
+    private final SecureRandom random = new SecureRandom();
+    private final CifradoTroceado troceado = new CifradoTroceado(random);
+    private final CifradoRegistros registros = new CifradoRegistros(random);
+    private final long gcmClasicoMaximo;
+    private final Semaphore gcmClasicoEnCurso;
+
+    public MotorCifrado() {
+        this(GCM_CLASICO_MAXIMO, GCM_CLASICO_SIMULTANEOS);
+    }
+
+    /**
+     * @param gcmClasicoMaximo      bytes que se cifran o descifran como mucho con AES-GCM en formato clásico
+     * @param gcmClasicoSimultaneos descifrados de AES-GCM clásico que retienen su archivo en memoria a la vez
+     */
+    public MotorCifrado(long gcmClasicoMaximo, int gcmClasicoSimultaneos) {
+        this.gcmClasicoMaximo = gcmClasicoMaximo;
+        this.gcmClasicoEnCurso = new Semaphore(gcmClasicoSimultaneos, true);
+    }
+
+    /**
+     * Cifra {@code entrada} hacia {@code salida} en una sola pasada con buffers fijos.
+     * No cierra ninguno de los dos flujos.
+     *
+     * @return bytes de texto plano procesados
+     */
+    public long cifrar(InputStream entrada, OutputStream salida, PublicKey clavePublica)
+            throws GeneralSecurityException, IOException {
+        return cifrar(entrada, salida, clavePublica, Compresion.NINGUNA);
+    }
+
+    /**
+     * Como {@link #cifrar(InputStream, OutputStream, PublicKey)}, comprimiendo antes
+     * de cifrar si {@code compresion} no es NINGUNA.
+     *
+     * @return bytes de texto plano procesados, antes de comprimir
+     */
+    public long cifrar(InputStream entrada, OutputStream salida, PublicKey clavePublica, Compresion compresion)
+            throws GeneralSecurityException, IOException {
+        return cifrar(entrada, salida, clavePublica, compresion, Suite.TDES);
+    }
+
+    /** Como {@link #cifrar(InputStream, OutputStream, PublicKey, Compresion)}, con la suite indicada. */
+    public long cifrar(InputStream entrada, OutputStream salida, PublicKey clavePublica, Compresion compresion,
+                       Suite suite) throws GeneralSecurityException, IOException {
+        Cipher cipher = iniciarCifrado(salida, clavePublica, compresion, suite);
+        Compresion.EntradaComprimida comprimida = compresion == Compresion.NINGUNA
+            ? null : new Compresion.EntradaComprimida(entrada, TAMANO_BUFFER);
+        InputStream origen = comprimida != null ? comprimida : entrada;
+        long maximo = maximoCifrado(suite);
+        try {
+            byte[] buffer = new byte[TAMANO_BUFFER];
+            long total = 0;
+            int leidos;
+            while ((leidos = origen.read(buffer)) != -1) {
+                if (total + leidos > maximo) {
+                    throw new GcmClasicoExcedidoException(gcmClasicoMaximo);
+                }
+                byte[] bloque = cipher.update(buffer, 0, leidos);
+                if (bloque != null) {
+                    salida.write(bloque);
+                }
+                total += leidos;
+            }
+            salida.write(cipher.doFinal());
+            salida.flush();
+            return comprimida != null ? comprimida.getLeidos() : total;
+        } finally {
+            if (comprimida != null) {
+                comprimida.liberar();
+            }
+        }
+    }
+
+    /**
+     * Devuelve un flujo que entrega el archivo cifrado a medida que se lee de él,
+     * tirando de {@code entrada} sin almacenarla completa en memoria.
+     */
+    public InputStream cifrando(InputStream entrada, PublicKey clavePublica) throws GeneralSecurityException {
+        return cifrando(entrada, clavePublica, Compresion.NINGUNA);
+    }
+
+    /** Como {@link #cifrando(InputStream, PublicKey)}, comprimiendo también en streaming. */
+    public InputStream cifrando(InputStream entrada, PublicKey clavePublica, Compresion compresion)
+            throws GeneralSecurityException {
+        return cifrando(entrada, clavePublica, compresion, Suite.TDES);
+    }
+
+    /** Como {@link #cifrando(InputStream, PublicKey, Compresion)}, con la suite indicada. */
+    public InputStream cifrando(InputStream entrada, PublicKey clavePublica, Compresion compresion, Suite suite)
+            throws GeneralSecurityException {
+        ByteArrayOutputStream encabezado = new ByteArrayOutputStream(512);
+        Cipher cipher;
+        try {
+            cipher = iniciarCifrado(encabezado, clavePublica, compresion, suite);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return new EntradaCifrada(compresion.comprimiendo(entrada, TAMANO_BUFFER), cipher, encabezado.toByteArray(),
+            maximoCifrado(suite), gcmClasicoMaximo);
+    }
+
+    /**
+     * Como {@link #cifrando(InputStream, PublicKey, Compresion)} pero en formato
+     * troceado: cada trozo de {@code tamanoTrozo} bytes se cifra como una tarea de
+     * {@code pool}, con como mucho {@code ventana} trozos en vuelo por archivo.
+     */
+    public InputStream cifrandoTroceado(InputStream entrada, PublicKey clavePublica, Compresion compresion,
+                                        Suite suite, int tamanoTrozo, ExecutorService pool, int ventana)
+            throws GeneralSecurityException {
+        return troceado.cifrando(entrada, clavePublica, compresion, suite, tamanoTrozo, pool, ventana);
+    }
+
+    /**
+     * Formato por registros para archivos delimitados por {@code |}: cada fila (o
+     * solo sus columnas {@code sensibles}) se cifra por separado, en lotes de filas
+     * que se reparten en {@code pool} con como mucho {@code ventana} en vuelo.
+     * El encabezado se lee de {@code entrada} antes de devolver el flujo.
+     */
+    public InputStream cifrandoRegistros(InputStream entrada, PublicKey clavePublica, Suite suite,
+                                         Collection<String> sensibles, ExecutorService pool, int ventana)
+            throws GeneralSecurityException, IOException {
+        return registros.cifrando(entrada, clavePublica, suite, sensibles, pool, ventana);
+    }
+
+    /**
+     * Descifra una sola fila de un archivo por registros (0 es la primera después
+     * del encabezado), leyendo el índice y únicamente el registro de esa fila.
+     *
+     * @return bytes de texto plano escritos, fin de línea incluido
+     */
+    public long descifrarRegistro(SeekableByteChannel canal, long fila, OutputStream salida,
+                                  PrivateKey clavePrivada) throws GeneralSecurityException, IOException {
+        return registros.descifrarRegistro(canal, fila, salida, clavePrivada);
+    }
+
+    /**
+     * Descifra solo los bytes {@code [desde, desde + longitud)} del texto plano de
+     * un archivo troceado, leyendo únicamente los trozos que cubren el rango.
+     *
+     * @return bytes de texto plano escritos
+     */
+    public long descifrarRango(SeekableByteChannel canal, long desde, long longitud, OutputStream salida,
+                               PrivateKey clavePrivada) throws GeneralSecurityException, IOException {
+        return troceado.descifrarRango(canal, desde, longitud, salida, clavePrivada);
+    }
+
+    /**
+     * Descifra un archivo producido por {@link #cifrar} hacia {@code salida}. Acepta
+     * los tres formatos: sin encabezado, con encabezado (descomprimiendo si hace
+     * falta) y troceado.
+     *
+     * @return bytes de texto plano escritos
+     */
+    public long descifrar(InputStream entrada, OutputStream salida, PrivateKey clavePrivada)
+            throws GeneralSecurityException, IOException {
+        DataInputStream datos = new DataInputStream(entrada);
+        int longitudClave = datos.readInt();
+        Compresion compresion = Compresion.NINGUNA;
+        Suite suite = Suite.TDES;
+        if (longitudClave == MAGIA) {
+            int version = datos.readUnsignedByte();
+            if (version != VERSION_FORMATO && version != CifradoTroceado.VERSION
+                    && version != CifradoRegistros.VERSION) {
+                throw new GeneralSecurityException("Versión de formato no soportada: " + version);
+            }
+            int banderas = datos.readUnsignedByte();
+            compresion = Compresion.deBanderas(banderas);
+            suite = Suite.deBanderas(banderas);
+            if (version == CifradoTroceado.VERSION) {
+                return troceado.descifrar(datos, compresion, suite, salida, clavePrivada);
+            }
+            if (version == CifradoRegistros.VERSION) {
+                return registros.descifrar(datos, suite, salida, clavePrivada);
+            }
+            longitudClave = datos.readInt();
+        }
+        if (longitudClave <= 0 || longitudClave > 1024) {
+            throw new GeneralSecurityException("Encabezado de archivo cifrado no válido");
+        }
+        byte[] claveEnvuelta = new byte[longitudClave];
+        datos.readFully(claveEnvuelta);
+        byte[] iv = new byte[suite.getTamanoIv()];
+        datos.readFully(iv);
+
+        Cipher envoltura = Cipher.getInstance(ENVOLTURA);
+        envoltura.init(Cipher.UNWRAP_MODE, clavePrivada);
+        SecretKey clave = (SecretKey) envoltura.unwrap(claveEnvuelta, suite.getAlgoritmoClave(), Cipher.SECRET_KEY);
+
+        Cipher cipher = suite.cifrador(Cipher.DECRYPT_MODE, clave, iv);
+        if (!suite.isAutenticada()) {
+            return descifrarClasico(datos, cipher, compresion, suite, salida);
+        }
+        try {
+            gcmClasicoEnCurso.acquire();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrumpido esperando turno para descifrar AES-GCM clásico");
+        }
+        try {
+            return descifrarClasico(datos, cipher, compresion, suite, salida);
+        } finally {
+            gcmClasicoEnCurso.release();
+        }
+    }
+
+    private long descifrarClasico(DataInputStream datos, Cipher cipher, Compresion compresion, Suite suite,
+                                  OutputStream salida) throws GeneralSecurityException, IOException {
+        Compresion.SalidaDescomprimida plano = compresion.descomprimiendo(salida, TAMANO_BUFFER);
+        // El cifrado lleva además la etiqueta
+        long maximo = maximoCifrado(suite) + suite.getTamanoEtiqueta();
+        byte[] buffer = new byte[TAMANO_BUFFER];
+        long cifrados = 0;
+        int leidos;
+        while ((leidos = datos.read(buffer)) != -1) {
+            cifrados += leidos;
+            if (cifrados > maximo) {
+                throw new GcmClasicoExcedidoException(gcmClasicoMaximo);
+            }
+            byte[] bloque = cipher.update(buffer, 0, leidos);
+            if (bloque != null) {
+                plano.write(bloque, 0, bloque.length);
+            }
+        }
+        byte[] fin = cipher.doFinal();
+        plano.write(fin, 0, fin.length);
+        long total = plano.terminar();
+        salida.flush();
+        return total;
+    }
+
+    /** Bytes que pasan como mucho por el cifrador en formato clásico con {@code suite}. */
+    private long maximoCifrado(Suite suite) {
+        return suite.isAutenticada() ? gcmClasicoMaximo : Long.MAX_VALUE;
+    }
+
+    private Cipher iniciarCifrado(OutputStream salida, PublicKey clavePublica, Compresion compresion, Suite suite)
+            throws GeneralSecurityException, IOException {
+        SecretKey clave = suite.generarClave(random);
+
+        byte[] iv = new byte[suite.getTamanoIv()];
+        random.nextBytes(iv);
+
+        Cipher envoltura = Cipher.getInstance(ENVOLTURA);
+        envoltura.init(Cipher.WRAP_MODE, clavePublica, random);
+        byte[] claveEnvuelta = envoltura.wrap(clave);
+
+        Cipher cipher = suite.cifrador(Cipher.ENCRYPT_MODE, clave, iv);
+
+        DataOutputStream encabezado = new DataOutputStream(salida);
+        if (compresion != Compresion.NINGUNA || suite != Suite.TDES) {
+            encabezado.writeInt(MAGIA);
+            encabezado.writeByte(VERSION_FORMATO);
+            encabezado.writeByte(suite.banderas(compresion));
+        }
+        encabezado.writeInt(claveEnvuelta.length);
+        encabezado.write(claveEnvuelta);
+        encabezado.write(iv);
+        encabezado.flush();
+        return cipher;
+    }
+
+    /** Un AES-GCM clásico pasa del máximo que se admite retener en memoria. */
+    public static class GcmClasicoExcedidoException extends IOException {
+        private static final long serialVersionUID = 1L;
+
+        GcmClasicoExcedidoException(long maximo) {
+            super("AES-GCM en formato clásico admite hasta " + maximo + " bytes; use formato=troceado");
+        }
+    }
+
+    /**
+     * Flujo de lectura que cifra bajo demanda. A diferencia de
+     * {@link javax.crypto.CipherInputStream} usa bloques de {@link #TAMANO_BUFFER}
+     * y propaga los errores de padding en lugar de silenciarlos.
+     */
+    private static class EntradaCifrada extends InputStream {
+        private final InputStream origen;
+        private final Cipher cipher;
+        private final byte[] lectura = new byte[TAMANO_BUFFER];
+        private final long maximo;
+        private final long maximoInformado;
+        private byte[] pendiente;
+        private int posicion;
+        private long cifrados;
+        private boolean terminado;
+
+        EntradaCifrada(InputStream origen, Cipher cipher, byte[] encabezado, long maximo, long maximoInformado) {
+            this.origen = origen;
+            this.cipher = cipher;
+            this.pendiente = encabezado;
+            this.maximo = maximo;
+            this.maximoInformado = maximoInformado;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] uno = new byte[1];
+            int n = read(uno, 0, 1);
+            return n == -1 ? -1 : uno[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] destino, int desde, int longitud) throws IOException {
+            if (longitud == 0) {
+                return 0;
+            }
+            while (pendiente == null || posicion >= pendiente.length) {
+                if (terminado) {
+                    return -1;
+                }
+                rellenar();
+            }
+            int n = Math.min(longitud, pendiente.length - posicion);
+            System.arraycopy(pendiente, posicion, destino, desde, n);
+            posicion += n;
+            return n;
+        }
+
+        private void rellenar() throws IOException {
+            posicion = 0;
+            int leidos = origen.read(lectura);
+            if (leidos > 0 && (cifrados += leidos) > maximo) {
+                throw new GcmClasicoExcedidoException(maximoInformado);
+            }
+            try {
+                if (leidos == -1) {
+                    pendiente = cipher.doFinal();
+                    terminado = true;
+                } else {
+                    pendiente = cipher.update(lectura, 0, leidos);
+                }
+            } catch (GeneralSecurityException e) {
+                throw new IOException("Error cifrando flujo: " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            origen.close();
+        }
+    }
+}
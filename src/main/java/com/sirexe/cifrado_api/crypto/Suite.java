@@ -0,0 +1,119 @@
+package com.sirexe.cifradoapi.crypto;
+
+import javax.crypto.Cipher;
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.IOException;
+import java.security.GeneralSecurityException;
+import java.security.Key;
+import java.security.SecureRandom;
+
+/**
+ * Algoritmo simétrico con el que se cifra el contenido. La clave de sesión se
+ * genera por archivo y se envuelve siempre con la clave RSA de transferencia.jks.
+ *
+ * TDES es 3DES-CBC, el único algoritmo que entienden los consumidores actuales.
+ * AES_GCM usa las instrucciones AES del procesador (la JVM las aprovecha en x86 y
+ * ARM) y además autentica el contenido; el descifrado de un archivo clásico en
+ * AES_GCM retiene todo el cifrado hasta verificar la etiqueta, por eso
+ * {@link MotorCifrado} lo acota y los archivos grandes van en formato troceado.
+ */
+public enum Suite {
+
+    TDES(0, "DESede", "DESede/CBC/PKCS5Padding", 168, 24, 8, false),
+    AES_GCM(1, "AES", "AES/GCM/NoPadding", 256, 32, 12, true);
+
+    private static final int BITS_ETIQUETA = 128;
+
+    private final int codigo;
+    private final String algoritmoClave;
+    private final String transformacion;
+    private final int bitsClave;
+    private final int tamanoClave;
+    private final int tamanoIv;
+    private final boolean autenticada;
+
+    Suite(int codigo, String algoritmoClave, String transformacion, int bitsClave, int tamanoClave,
+          int tamanoIv, boolean autenticada) {
+        this.codigo = codigo;
+        this.algoritmoClave = algoritmoClave;
+        this.transformacion = transformacion;
+        this.bitsClave = bitsClave;
+        this.tamanoClave = tamanoClave;
+        this.tamanoIv = tamanoIv;
+        this.autenticada = autenticada;
+    }
+
+    /** Bits que identifican la suite en el byte de opciones del encabezado (nibble alto). */
+    public int getCodigo() { return codigo; }
+
+    public String getAlgoritmoClave() { return algoritmoClave; }
+
+    public String getTransformacion() { return transformacion; }
+
+    /** Bytes de la clave codificada. */
+    public int getTamanoClave() { return tamanoClave; }
+
+    public int getTamanoIv() { return tamanoIv; }
+
+    /** El cifrado incluye su propia etiqueta de autenticación. */
+    public boolean isAutenticada() { return autenticada; }
+
+    /** Bytes que la etiqueta de autenticación añade al final del cifrado. */
+    public int getTamanoEtiqueta() { return autenticada ? BITS_ETIQUETA / 8 : 0; }
+
+    public SecretKey generarClave(SecureRandom random) throws GeneralSecurityException {
+        KeyGenerator generador = KeyGenerator.getInstance(algoritmoClave);
+        generador.init(bitsClave, random);
+        return generador.generateKey();
+    }
+
+    public Cipher cifrador(int modo, Key clave, byte[] iv) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance(transformacion);
+        iniciar(cipher, modo, clave, iv);
+        return cipher;
+    }
+
+    /**
+     * Reinicia un {@code cipher} de esta suite con otro IV. Para contenidos de pocos
+     * bytes (un registro, un campo) sale mucho más barato que pedir uno nuevo.
+     */
+    public void iniciar(Cipher cipher, int modo, Key clave, byte[] iv) throws GeneralSecurityException {
+        cipher.init(modo, clave, autenticada ? new GCMParameterSpec(BITS_ETIQUETA, iv) : new IvParameterSpec(iv));
+    }
+
+    /** Byte de opciones del encabezado: compresión en el nibble bajo y suite en el alto. */
+    public int banderas(Compresion compresion) {
+        return codigo << 4 | compresion.getBandera();
+    }
+
+    public static Suite deBanderas(int banderas) throws IOException {
+        for (Suite suite : values()) {
+            if (suite.codigo == (banderas >> 4 & 0x0F)) {
+                return suite;
+            }
+        }
+        throw new IOException("Suite de cifrado desconocida en el encabezado: " + (banderas >> 4 & 0x0F));
+    }
+
+    /**
+     * Acepta "3des"/"tdes" o "aes-gcm"/"aes_gcm" sin distinguir mayúsculas;
+     * {@code null} o vacío devuelve {@code porDefecto}.
+     */
+    public static Suite desde(String nombre, Suite porDefecto) {
+        if (nombre == null || nombre.isBlank()) {
+            return porDefecto;
+        }
+        String normalizado = nombre.trim().toUpperCase().replace('-', '_');
+        if (normalizado.equals("3DES")) {
+            return TDES;
+        }
+        try {
+            return valueOf(normalizado);
+        } catch (IllegalArgumentException e) {
+            throw new IllegalArgumentException("suite no válida: " + nombre + " (use 3des o aes-gcm)");
+        }
+    }
+}
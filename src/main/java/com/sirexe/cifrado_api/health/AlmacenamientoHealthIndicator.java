@@ -0,0 +1,44 @@
+package com.sirexe.cifradoapi.health;
+
+import com.sirexe.cifradoapi.service.FileStorageService;
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.stereotype.Component;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * UP si se puede crear, escribir y borrar un archivo en el directorio donde escribe
+ * esta réplica (con {@code cifrado.almacenamiento.replica}, su subdirectorio); se
+ * escribe de verdad porque los permisos no detectan un volumen en solo lectura.
+ * El espacio libre lo cubre el indicador {@code diskSpace} de Spring, apuntado al
+ * directorio configurado.
+ */
+@Component("almacenamiento")
+public class AlmacenamientoHealthIndicator extends AbstractHealthIndicator {
+
+    private final Path directorio;
+    private final FileStorageService fileStorageService;
+
+    public AlmacenamientoHealthIndicator(FileStorageService fileStorageService) {
+        super("Directorio de subidas no disponible");
+        this.directorio = fileStorageService.getUploadDirectory();
+        this.fileStorageService = fileStorageService;
+    }
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) throws Exception {
+        Path prueba = Files.createTempFile(directorio, ".salud", ".tmp");
+        try {
+            Files.write(prueba, new byte[] {1});
+        } finally {
+            Files.deleteIfExists(prueba);
+        }
+        builder.up()
+            .withDetail("directorio", directorio.toAbsolutePath().toString())
+            .withDetail("tokens", fileStorageService.getActiveTokenCount())
+            .withDetail("archivos", fileStorageService.getStoredFileCount())
+            .withDetail("bytes", fileStorageService.getStoredBytes());
+    }
+}
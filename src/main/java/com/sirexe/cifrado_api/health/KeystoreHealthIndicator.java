@@ -0,0 +1,35 @@
+package com.sirexe.cifradoapi.health;
+
+import com.sirexe.cifradoapi.crypto.MaterialClaves;
+import com.sirexe.cifradoapi.service.KeystoreService;
+import org.springframework.boot.actuate.health.AbstractHealthIndicator;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.stereotype.Component;
+
+/**
+ * UP si hay material de claves cargado con certificado y clave pública.
+ * Informa la versión y desde cuándo está vigente, para comprobar una rotación.
+ */
+@Component("keystore")
+public class KeystoreHealthIndicator extends AbstractHealthIndicator {
+
+    private final KeystoreService keystoreService;
+
+    public KeystoreHealthIndicator(KeystoreService keystoreService) {
+        super("Keystore no disponible");
+        this.keystoreService = keystoreService;
+    }
+
+    @Override
+    protected void doHealthCheck(Health.Builder builder) {
+        MaterialClaves material = keystoreService.getMaterial();
+        if (material == null || material.getClavePublica() == null) {
+            builder.down().withDetail("error", "No hay material de claves cargado");
+            return;
+        }
+        builder.up()
+            .withDetail("version", material.getVersion())
+            .withDetail("cargadoEn", material.getCargadoEn().toString())
+            .withDetail("clavePrivada", material.getClavePrivada() != null);
+    }
+}
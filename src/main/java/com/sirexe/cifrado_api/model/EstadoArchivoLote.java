@@ -0,0 +1,52 @@
+package com.sirexe.cifradoapi.model;
+
+/**
+ * Resultado de un archivo dentro de un lote: los que fallan no detienen el lote,
+ * solo quedan fuera del ZIP con su motivo.
+ */
+public class EstadoArchivoLote {
+    public static final String OK = "OK";
+    public static final String ERROR = "ERROR";
+    
+    private String nombre;
+    private String nombreCifrado;
+    private String estado;
+    private String error;
+    private long bytesOriginal;
+    private long bytesCifrado;
+    
+    public EstadoArchivoLote() {}
+    
+    public EstadoArchivoLote(String nombre) {
+        this.nombre = nombre;
+    }
+    
+    public static EstadoArchivoLote error(String nombre, String motivo) {
+        EstadoArchivoLote estado = new EstadoArchivoLote(nombre);
+        estado.setEstado(ERROR);
+        estado.setError(motivo);
+        return estado;
+    }
+    
+    public boolean isOk() {
+        return OK.equals(estado);
+    }
+    
+    public String getNombre() { return nombre; }
+    public void setNombre(String nombre) { this.nombre = nombre; }
+    
+    public String getNombreCifrado() { return nombreCifrado; }
+    public void setNombreCifrado(String nombreCifrado) { this.nombreCifrado = nombreCifrado; }
+    
+    public String getEstado() { return estado; }
+    public void setEstado(String estado) { this.estado = estado; }
+    
+    public String getError() { return error; }
+    public void setError(String error) { this.error = error; }
+    
+    public long getBytesOriginal() { return bytesOriginal; }
+    public void setBytesOriginal(long bytesOriginal) { this.bytesOriginal = bytesOriginal; }
+    
+    public long getBytesCifrado() { return bytesCifrado; }
+    public void setBytesCifrado(long bytesCifrado) { this.bytesCifrado = bytesCifrado; }
+}
@@ -1,24 +1,58 @@
 package com.sirexe.cifradoapi.model;
 
+import com.sirexe.cifradoapi.crypto.Compresion;
+import com.sirexe.cifradoapi.crypto.Formato;
+import com.sirexe.cifradoapi.crypto.Suite;
+
+import java.time.Duration;
 import java.time.LocalDateTime;
 
 public class FileToken {
+    
+    /** Estado del cifrado; los tokens del modo síncrono nacen ya en DONE. */
+    public enum Status { PENDING, RUNNING, DONE, FAILED }
+    
     private String token;
     private String fileName;
     private String originalName;
     private String filePath;
     private LocalDateTime createdAt;
     private LocalDateTime expiresAt;
+    private int maxDownloads;      // 0 = sin límite
+    private int downloadCount;
+    // Lo actualiza el hilo que cifra y lo lee quien consulta /info
+    private volatile Status status = Status.DONE;
+    private volatile long processedBytes;
+    private long totalBytes;
+    private volatile String error;
+    // Huella del texto plano y de las claves; tokens con la misma huella comparten archivo
+    private String contentKey;
+    // Tamaño del archivo cifrado en disco
+    private long fileSize;
+    // Compresión aplicada antes de cifrar; también consta en el encabezado del archivo
+    private Compresion compression = Compresion.NINGUNA;
+    // Estructura del archivo cifrado: un solo flujo o trozos independientes
+    private Formato format = Formato.CLASICO;
+    // Algoritmo simétrico del contenido; también consta en el encabezado del archivo
+    private Suite suite = Suite.TDES;
+    
+    public static final Duration DEFAULT_TTL = Duration.ofHours(24);
     
     public FileToken() {}
     
     public FileToken(String token, String fileName, String originalName, String filePath) {
+        this(token, fileName, originalName, filePath, DEFAULT_TTL, 0); // Expira en 24 horas
+    }
+    
+    public FileToken(String token, String fileName, String originalName, String filePath,
+                     Duration ttl, int maxDownloads) {
         this.token = token;
         this.fileName = fileName;
         this.originalName = originalName;
         this.filePath = filePath;
         this.createdAt = LocalDateTime.now();
-        this.expiresAt = LocalDateTime.now().plusHours(24); // Expira en 24 horas
+        this.expiresAt = this.createdAt.plus(ttl);
+        this.maxDownloads = maxDownloads;
     }
     
     // Getters y setters
@@ -40,6 +74,55 @@ public class FileToken {
     public LocalDateTime getExpiresAt() { return expiresAt; }
     public void setExpiresAt(LocalDateTime expiresAt) { this.expiresAt = expiresAt; }
     
+    public int getMaxDownloads() { return maxDownloads; }
+    public void setMaxDownloads(int maxDownloads) { this.maxDownloads = maxDownloads; }
+    
+    public int getDownloadCount() { return downloadCount; }
+    public void setDownloadCount(int downloadCount) { this.downloadCount = downloadCount; }
+    
+    public Status getStatus() { return status; }
+    public void setStatus(Status status) { this.status = status; }
+    
+    /** Bytes de texto plano ya cifrados. */
+    public long getProcessedBytes() { return processedBytes; }
+    public void setProcessedBytes(long processedBytes) { this.processedBytes = processedBytes; }
+    
+    public long getTotalBytes() { return totalBytes; }
+    public void setTotalBytes(long totalBytes) { this.totalBytes = totalBytes; }
+    
+    /** Motivo del fallo cuando el estado es FAILED. */
+    public String getError() { return error; }
+    public void setError(String error) { this.error = error; }
+    
+    public String getContentKey() { return contentKey; }
+    public void setContentKey(String contentKey) { this.contentKey = contentKey; }
+    
+    public long getFileSize() { return fileSize; }
+    public void setFileSize(long fileSize) { this.fileSize = fileSize; }
+    
+    public Compresion getCompression() { return compression; }
+    public void setCompression(Compresion compression) { this.compression = compression; }
+    
+    public Formato getFormat() { return format; }
+    public void setFormat(Formato format) { this.format = format; }
+    
+    public Suite getSuite() { return suite; }
+    public void setSuite(Suite suite) { this.suite = suite; }
+    
+    /** El archivo cifrado está completo y se puede descargar. */
+    public boolean isReady() {
+        return status == Status.DONE;
+    }
+    
+    /** Descargas que quedan, o -1 si el token no tiene límite. */
+    public int getRemainingDownloads() {
+        return maxDownloads > 0 ? Math.max(0, maxDownloads - downloadCount) : -1;
+    }
+    
+    public boolean isExhausted() {
+        return maxDownloads > 0 && downloadCount >= maxDownloads;
+    }
+    
     public boolean isExpired() {
         return LocalDateTime.now().isAfter(this.expiresAt);
     }
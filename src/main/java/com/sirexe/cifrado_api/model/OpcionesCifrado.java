@@ -0,0 +1,40 @@
+package com.sirexe.cifradoapi.model;
+
+import com.sirexe.cifradoapi.crypto.Compresion;
+import com.sirexe.cifradoapi.crypto.Formato;
+import com.sirexe.cifradoapi.crypto.Suite;
+
+import java.time.Duration;
+
+/**
+ * Opciones de una petición de cifrado que viajan del controlador al almacenamiento.
+ */
+public class OpcionesCifrado {
+    private Duration ttl = FileToken.DEFAULT_TTL;
+    private int maxDownloads;      // 0 = sin límite
+    private Compresion compresion = Compresion.NINGUNA;
+    private Formato formato = Formato.CLASICO;
+    private Suite suite = Suite.TDES;
+    
+    public OpcionesCifrado() {}
+    
+    public OpcionesCifrado(Duration ttl, int maxDownloads) {
+        this.ttl = ttl;
+        this.maxDownloads = maxDownloads;
+    }
+    
+    public Duration getTtl() { return ttl; }
+    public void setTtl(Duration ttl) { this.ttl = ttl; }
+    
+    public int getMaxDownloads() { return maxDownloads; }
+    public void setMaxDownloads(int maxDownloads) { this.maxDownloads = maxDownloads; }
+    
+    public Compresion getCompresion() { return compresion; }
+    public void setCompresion(Compresion compresion) { this.compresion = compresion; }
+    
+    public Formato getFormato() { return formato; }
+    public void setFormato(Formato formato) { this.formato = formato; }
+    
+    public Suite getSuite() { return suite; }
+    public void setSuite(Suite suite) { this.suite = suite; }
+}
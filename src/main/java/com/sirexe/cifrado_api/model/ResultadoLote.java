@@ -0,0 +1,25 @@
+package com.sirexe.cifradoapi.model;
+
+import java.util.List;
+
+/**
+ * Token del ZIP con los archivos cifrados de un lote y el estado de cada archivo.
+ * {@code fileToken} es {@code null} si ningún archivo se pudo cifrar.
+ */
+public class ResultadoLote {
+    private final FileToken fileToken;
+    private final List<EstadoArchivoLote> archivos;
+    
+    public ResultadoLote(FileToken fileToken, List<EstadoArchivoLote> archivos) {
+        this.fileToken = fileToken;
+        this.archivos = archivos;
+    }
+    
+    public FileToken getFileToken() { return fileToken; }
+    
+    public List<EstadoArchivoLote> getArchivos() { return archivos; }
+    
+    public int getCifrados() {
+        return (int) archivos.stream().filter(EstadoArchivoLote::isOk).count();
+    }
+}
@@ -0,0 +1,37 @@
+package com.sirexe.cifradoapi.model;
+
+/**
+ * Resultado de descifrar un archivo almacenado sin entregarlo: si se pudo
+ * descifrar y verificar, y la huella SHA-256 del texto plano para compararla
+ * con la del original. Si no es válido, {@code error} dice por qué.
+ */
+public class ResultadoVerificacion {
+    private final boolean valido;
+    private final long bytesPlano;
+    private final String sha256;
+    private final String error;
+
+    private ResultadoVerificacion(boolean valido, long bytesPlano, String sha256, String error) {
+        this.valido = valido;
+        this.bytesPlano = bytesPlano;
+        this.sha256 = sha256;
+        this.error = error;
+    }
+
+    public static ResultadoVerificacion valido(long bytesPlano, String sha256) {
+        return new ResultadoVerificacion(true, bytesPlano, sha256, null);
+    }
+
+    public static ResultadoVerificacion invalido(String error) {
+        return new ResultadoVerificacion(false, 0, null, error);
+    }
+
+    public boolean isValido() { return valido; }
+
+    public long getBytesPlano() { return bytesPlano; }
+
+    /** Huella SHA-256 en hexadecimal del texto plano; {@code null} si no es válido. */
+    public String getSha256() { return sha256; }
+
+    public String getError() { return error; }
+}
@@ -1,160 +1,883 @@
 package com.sirexe.cifradoapi.service;
 
 import cifrado.Cifrar;
+import com.sirexe.cifradoapi.admision.MedidorLatencia;
+import com.sirexe.cifradoapi.config.CifradoProperties;
+import com.sirexe.cifradoapi.crypto.Compresion;
+import com.sirexe.cifradoapi.crypto.Formato;
+import com.sirexe.cifradoapi.crypto.MaterialClaves;
+import com.sirexe.cifradoapi.crypto.MotorCifrado;
+import com.sirexe.cifradoapi.crypto.Suite;
+import com.sirexe.cifradoapi.model.EstadoArchivoLote;
+import com.sirexe.cifradoapi.model.FileToken;
+import com.sirexe.cifradoapi.model.OpcionesCifrado;
+import com.sirexe.cifradoapi.model.ResultadoLote;
+import com.sirexe.cifradoapi.model.ResultadoVerificacion;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.core.io.Resource;
+import org.springframework.core.task.AsyncTaskExecutor;
+import org.springframework.core.task.TaskRejectedException;
 import org.springframework.stereotype.Service;
 import org.springframework.web.multipart.MultipartFile;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardCopyOption;
+import java.security.DigestOutputStream;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.PublicKey;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Enumeration;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
 
 @Service
 public class CifradoService {
     
+    private static final Logger log = LoggerFactory.getLogger(CifradoService.class);
+    
+    // cifrado.Cifrar es una librería cerrada: no se sabe si admite llamadas simultáneas
+    private static final ReentrantLock BLOQUEO_LIBRERIA_EXTERNA = new ReentrantLock();
+    
+    // Los formatos con encabezado se leen campo a campo: sin buffer, cada campo sería una lectura
+    private static final int BUFFER_DESCIFRADO = 64 * 1024;
+    
+    private final CifradoProperties propiedades;
+    private final KeystoreService keystoreService;
+    private final AsyncTaskExecutor cifradoExecutor;
+    private final AsyncTaskExecutor trabajosExecutor;
+    private final FileStorageService fileStorageService;
+    private final MotorCifrado motor;
+    private final MeterRegistry meterRegistry;
+    private final AtomicInteger cifradosEnCurso = new AtomicInteger();
+    // Timers por etapa y por modo:resultado; registrarlos en cada petición cuesta una búsqueda en el registro
+    private final ConcurrentMap<String, Timer> timersEtapa = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, Timer> timersPeticion = new ConcurrentHashMap<>();
+    private MedidorLatencia medidor = MedidorLatencia.NINGUNO;
+    
+    public CifradoService(CifradoProperties propiedades, KeystoreService keystoreService,
+                          @Qualifier("cifradoExecutor") AsyncTaskExecutor cifradoExecutor,
+                          @Qualifier("trabajosExecutor") AsyncTaskExecutor trabajosExecutor,
+                          FileStorageService fileStorageService, MeterRegistry meterRegistry) {
+        this.propiedades = propiedades;
+        this.keystoreService = keystoreService;
+        this.cifradoExecutor = cifradoExecutor;
+        this.trabajosExecutor = trabajosExecutor;
+        this.fileStorageService = fileStorageService;
+        this.meterRegistry = meterRegistry;
+        this.motor = new MotorCifrado(propiedades.getAesGcmClasicoMaximo().toBytes(),
+            propiedades.getAesGcmClasicoSimultaneos());
+        if (propiedades.getDescifrado().isActivo() && keystoreService.getMaterial().getClavePrivada() == null) {
+            throw new IllegalStateException(
+                "cifrado.descifrado.activo=true requiere la clave privada del keystore (cifrado.keystore.password)");
+        }
+        Gauge.builder("cifrado.en_curso", cifradosEnCurso, AtomicInteger::get)
+            .description("Cifrados ejecutándose ahora (síncronos, en segundo plano y archivos de lotes)")
+            .register(meterRegistry);
+    }
+    
+    /**
+     * Recibe la duración de cada archivo cifrado; sin admisión ({@code cifrado.admision.activa=false})
+     * no hay medidor y las muestras se descartan.
+     */
+    @Autowired(required = false)
+    public void setMedidorLatencia(MedidorLatencia medidor) {
+        this.medidor = medidor;
+    }
+    
+    /**
+     * Cifra el archivo y lo almacena en una sola pasada: cuerpo de la petición →
+     * cifrado → archivo final, con buffers de tamaño fijo. Se ejecuta en el pool
+     * de trabajadores y lanza {@link TaskRejectedException} si está lleno.
+     *
+     * Si ya hay almacenado un cifrado del mismo texto con las mismas claves, el
+     * token nuevo apunta a ese archivo y no se vuelve a cifrar: calcular la huella
+     * cuesta una lectura del archivo, mucho menos que cifrarlo con 3DES.
+     */
+    public FileToken cifrarYAlmacenar(MultipartFile archivo, String nombreCifrado,
+                                      OpcionesCifrado opciones) throws Exception {
+        exigirMotorInterno(opciones);
+        long encolado = System.nanoTime();
+        return enTrabajador(() -> {
+            long inicio = System.nanoTime();
+            String resultado = "error";
+            try {
+                long etapa = System.nanoTime();
+                MaterialClaves material = keystoreService.getMaterial();
+                registrarEtapa("claves", etapa);
+                
+                String huella = null;
+                if (propiedades.getAlmacenamiento().isDeduplicar()) {
+                    etapa = System.nanoTime();
+                    huella = huellaContenido(archivo, material, opciones);
+                    registrarEtapa("huella", etapa);
+                    FileToken existente = fileStorageService.storeDuplicate(huella, nombreCifrado, opciones);
+                    if (existente != null) {
+                        resultado = "duplicado";
+                        return existente;
+                    }
+                }
+                
+                FileToken fileToken;
+                if (propiedades.getMotor() == CifradoProperties.Motor.EXTERNO) {
+                    String clave = huella;
+                    fileToken = cifrarConLibreriaExterna(archivo.getOriginalFilename(), archivo::transferTo,
+                        cifrado -> fileStorageService.storeStream(cifrado, nombreCifrado, opciones, clave));
+                } else {
+                    String clave = huella;
+                    fileToken = cifrarMedido(archivo.getInputStream(), material.getClavePublica(), opciones,
+                        cifrado -> fileStorageService.storeStream(cifrado, nombreCifrado, opciones, clave));
+                }
+                resultado = "ok";
+                // Un duplicado no cifra nada: no es muestra de cuánto tarda un cifrado
+                medidor.registrar(System.nanoTime() - encolado, archivo.getSize());
+                return fileToken;
+            } finally {
+                registrarPeticion("sincrono", resultado, inicio);
+            }
+        });
+    }
+    
+    /**
+     * Descifra un .cif con la clave privada del keystore vigente, de {@code cifrado}
+     * a {@code salida} con los buffers fijos del motor. Corre en el hilo de la
+     * petición y no en el pool de trabajadores: {@code salida} suele ser la respuesta
+     * y un cliente lento retendría un hilo de cifrado, además de inflar la latencia
+     * que mide la admisión. Cuántos descifrados corren a la vez lo acota la admisión
+     * de {@code /descifrar}. Lee todos los formatos del motor interno; los .cif de
+     * la librería externa solo si son el clásico sin encabezado, como se supone en
+     * {@link MotorCifrado} sin prueba contra su salida real.
+     *
+     * En formato troceado o por registros cada trozo o fila se verifica antes de
+     * escribirse. Un AES-GCM clásico solo se verifica al final, así que el texto
+     * sale de una vez y retiene el archivo en memoria, hasta
+     * {@code cifrado.aes-gcm-clasico-maximo}; un 3DES clásico no tiene
+     * autenticación y solo se detecta un relleno roto.
+     *
+     * @return bytes de texto plano escritos
+     * @throws GeneralSecurityException si el archivo fue alterado, está truncado o
+     *                                  no se cifró con estas claves
+     * @throws MotorCifrado.GcmClasicoExcedidoException si es un AES-GCM clásico mayor
+     *                                  que el máximo
+     * @throws IllegalStateException si el descifrado está desactivado o el keystore
+     *                               vigente no tiene clave privada
+     */
+    public long descifrar(InputStream cifrado, OutputStream salida) throws Exception {
+        PrivateKey clavePrivada = clavePrivada();
+        long inicio = System.nanoTime();
+        String resultado = "error";
+        try {
+            long escritos = motor.descifrar(new BufferedInputStream(cifrado, BUFFER_DESCIFRADO), salida,
+                clavePrivada);
+            resultado = "ok";
+            return escritos;
+        } finally {
+            registrarPeticion("descifrado", resultado, inicio);
+        }
+    }
+    
+    /**
+     * Descifra {@code contenido} dentro del servidor sin entregar ni guardar el texto
+     * plano: solo su tamaño y su huella SHA-256. Un archivo alterado, truncado o de
+     * otras claves da un resultado no válido en lugar de una excepción.
+     */
+    public ResultadoVerificacion verificar(Resource contenido) throws Exception {
+        PrivateKey clavePrivada = clavePrivada();
+        return enTrabajador(() -> {
+            long inicio = System.nanoTime();
+            String resultado = "error";
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            try (InputStream entrada = new BufferedInputStream(contenido.getInputStream(), BUFFER_DESCIFRADO);
+                 DigestOutputStream plano = new DigestOutputStream(OutputStream.nullOutputStream(), sha256)) {
+                long escritos = motor.descifrar(entrada, plano, clavePrivada);
+                StringBuilder huella = new StringBuilder();
+                for (byte b : sha256.digest()) {
+                    huella.append(String.format("%02x", b));
+                }
+                resultado = "valido";
+                return ResultadoVerificacion.valido(escritos, huella.toString());
+            } catch (GeneralSecurityException | EOFException | ZipException e) {
+                // Un .cif truncado se nota como fin de archivo, y un deflate alterado como ZipException
+                resultado = "invalido";
+                return ResultadoVerificacion.invalido(e.getMessage() != null ? e.getMessage()
+                    : e.getClass().getSimpleName());
+            } finally {
+                registrarPeticion("verificacion", resultado, inicio);
+            }
+        });
+    }
+    
+    private PrivateKey clavePrivada() {
+        if (!propiedades.getDescifrado().isActivo()) {
+            throw new IllegalStateException("El descifrado en el servidor está desactivado (cifrado.descifrado.activo)");
+        }
+        // Al arrancar había clave privada, pero un keystore recargado puede no traerla
+        PrivateKey clavePrivada = keystoreService.getMaterial().getClavePrivada();
+        if (clavePrivada == null) {
+            throw new IllegalStateException(
+                "Descifrar requiere la clave privada del keystore (cifrado.keystore.password)");
+        }
+        return clavePrivada;
+    }
+    
+    /**
+     * Cifra en streaming y reparte el tiempo entre etapas. Lectura, cifrado y
+     * escritura se intercalan bloque a bloque, así que se mide cuánto tarda cada
+     * lectura de la subida y de la salida del cifrador, y la escritura es el resto.
+     */
+    private <T> T cifrarMedido(InputStream subida, PublicKey clavePublica, OpcionesCifrado opciones,
+                               Almacenamiento<T> almacenamiento) throws Exception {
+        EntradaMedida lectura = new EntradaMedida(subida);
+        try (EntradaMedida cifrado = new EntradaMedida(cifrando(lectura, clavePublica, opciones))) {
+            long inicio = System.nanoTime();
+            T resultado = almacenamiento.guardar(cifrado);
+            long total = System.nanoTime() - inicio;
+            registrarEtapa("lectura", lectura.nanos, TimeUnit.NANOSECONDS);
+            // Con compresión, el tiempo de deflate cae en esta etapa; en formato troceado
+            // es la espera por los trozos que se cifran en el pool fork-join
+            registrarEtapa("cifrado", cifrado.nanos - lectura.nanos, TimeUnit.NANOSECONDS);
+            registrarEtapa("escritura", total - cifrado.nanos, TimeUnit.NANOSECONDS);
+            return resultado;
+        }
+    }
+    
+    /**
+     * En formato troceado los trozos, y en formato por registros los lotes de filas,
+     * se cifran en el pool fork-join común: el hilo de la petición solo lee la subida
+     * y escribe la salida, así que un archivo grande usa todos los núcleos aunque
+     * sea el único cifrado en curso.
+     */
+    private InputStream cifrando(InputStream entrada, PublicKey clavePublica, OpcionesCifrado opciones)
+            throws Exception {
+        if (opciones.getFormato() == Formato.CLASICO) {
+            return motor.cifrando(entrada, clavePublica, opciones.getCompresion(), opciones.getSuite());
+        }
+        CifradoProperties.Troceado config = propiedades.getTroceado();
+        ForkJoinPool pool = ForkJoinPool.commonPool();
+        int ventana = config.getVentana() > 0 ? config.getVentana() : 2 * pool.getParallelism();
+        if (opciones.getFormato() == Formato.REGISTROS) {
+            return motor.cifrandoRegistros(entrada, clavePublica, opciones.getSuite(),
+                propiedades.getRegistros().getColumnasSensibles(), pool, ventana);
+        }
+        return motor.cifrandoTroceado(entrada, clavePublica, opciones.getCompresion(), opciones.getSuite(),
+            (int) config.getTamanoTrozo().toBytes(), pool, ventana);
+    }
+    
+    /** Deja el texto plano en el archivo que lee la librería externa. */
+    @FunctionalInterface
+    private interface Subida {
+        void copiarEn(Path destino) throws Exception;
+    }
+    
+    @FunctionalInterface
+    private interface Almacenamiento<T> {
+        T guardar(InputStream cifrado) throws IOException;
+    }
+    
+    private void registrarEtapa(String etapa, long desde) {
+        registrarEtapa(etapa, System.nanoTime() - desde, TimeUnit.NANOSECONDS);
+    }
+    
+    private void registrarEtapa(String etapa, long duracion, TimeUnit unidad) {
+        timersEtapa.computeIfAbsent(etapa, e -> Timer.builder("cifrado.etapa")
+            .description("Duración de cada etapa de un cifrado")
+            .tag("etapa", e)
+            .tag("motor", propiedades.getMotor().name())
+            .register(meterRegistry))
+            .record(duracion, unidad);
+    }
+    
+    private void registrarPeticion(String modo, String resultado, long desde) {
+        long duracion = System.nanoTime() - desde;
+        timersPeticion.computeIfAbsent(modo + ":" + resultado, clave -> Timer.builder("cifrado.peticion")
+            .description("Duración total de un cifrado, sin la espera en cola")
+            .tag("modo", modo)
+            .tag("resultado", resultado)
+            .register(meterRegistry))
+            .record(duracion, TimeUnit.NANOSECONDS);
+    }
+    
+    /** Acumula el tiempo pasado dentro de las lecturas del flujo envuelto. */
+    private static final class EntradaMedida extends FilterInputStream {
+        private long nanos;
+        
+        EntradaMedida(InputStream entrada) {
+            super(entrada);
+        }
+        
+        @Override
+        public int read() throws IOException {
+            long inicio = System.nanoTime();
+            try {
+                return super.read();
+            } finally {
+                nanos += System.nanoTime() - inicio;
+            }
+        }
+        
+        @Override
+        public int read(byte[] destino, int desde, int longitud) throws IOException {
+            long inicio = System.nanoTime();
+            try {
+                return super.read(destino, desde, longitud);
+            } finally {
+                nanos += System.nanoTime() - inicio;
+            }
+        }
+    }
+    
+    private void exigirMotorInterno(OpcionesCifrado opciones) {
+        validarMotor(propiedades.getMotor(), opciones);
+    }
+    
+    /**
+     * La librería externa solo escribe el .cif clásico en 3DES sin compresión; el
+     * controlador lo comprueba al leer las opciones, antes de aceptar la subida.
+     *
+     * @throws IllegalArgumentException si {@code opciones} requiere el motor INTERNO
+     */
+    public static void validarMotor(CifradoProperties.Motor motor, OpcionesCifrado opciones) {
+        if (motor != CifradoProperties.Motor.EXTERNO) {
+            return;
+        }
+        if (opciones.getCompresion() != Compresion.NINGUNA) {
+            throw new IllegalArgumentException("La compresión requiere cifrado.motor=INTERNO");
+        }
+        if (opciones.getFormato() != Formato.CLASICO) {
+            throw new IllegalArgumentException("El formato " + opciones.getFormato().name().toLowerCase()
+                + " requiere cifrado.motor=INTERNO");
+        }
+        if (opciones.getSuite() != Suite.TDES) {
+            throw new IllegalArgumentException("La suite " + opciones.getSuite() + " requiere cifrado.motor=INTERNO");
+        }
+    }
+    
+    /**
+     * Clave de deduplicación: SHA-256 del texto plano, versión de las claves, motor
+     * formato del archivo y suite. Si rotan las claves o cambia cualquiera de ellos,
+     * el mismo texto produce otra clave. Con las opciones por defecto la
+     * clave conserva su forma anterior.
+     */
+    private String huellaContenido(MultipartFile archivo, MaterialClaves material,
+                                   OpcionesCifrado opciones) throws Exception {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        try (InputStream entrada = archivo.getInputStream()) {
+            byte[] buffer = new byte[64 * 1024];
+            int leidos;
+            while ((leidos = entrada.read(buffer)) != -1) {
+                sha256.update(buffer, 0, leidos);
+            }
+        }
+        StringBuilder huella = new StringBuilder(propiedades.getMotor().name())
+            .append(':').append(material.getVersion()).append(':');
+        for (byte b : sha256.digest()) {
+            huella.append(String.format("%02x", b));
+        }
+        if (opciones.getCompresion() != Compresion.NINGUNA) {
+            huella.append(':').append(opciones.getCompresion().name().toLowerCase());
+        }
+        if (opciones.getFormato() != Formato.CLASICO) {
+            huella.append(':').append(opciones.getFormato().name().toLowerCase());
+        }
+        List<String> sensibles = propiedades.getRegistros().getColumnasSensibles();
+        if (opciones.getFormato() == Formato.REGISTROS && !sensibles.isEmpty()) {
+            // Otras columnas sensibles producen otro archivo
+            huella.append('=').append(String.join(",", sensibles));
+        }
+        if (opciones.getSuite() != Suite.TDES) {
+            huella.append(':').append(opciones.getSuite().name().toLowerCase());
+        }
+        return huella.toString();
+    }
+    
+    /**
+     * Acepta el archivo como trabajo en segundo plano y devuelve de inmediato su
+     * token en PENDING. La subida se copia a un temporal en el hilo de la petición
+     * (la parte multipart desaparece al terminar la petición); el cifrado corre en
+     * el pool de trabajos y va actualizando el progreso del token.
+     *
+     * @throws TaskRejectedException si la cola de trabajos está llena
+     */
+    public FileToken cifrarEnSegundoPlano(MultipartFile archivo, String nombreCifrado,
+                                          OpcionesCifrado opciones) throws Exception {
+        exigirMotorInterno(opciones);
+        
+        Path copia = Files.createTempFile("trabajo_", ".txt");
+        FileToken fileToken;
+        try {
+            long etapa = System.nanoTime();
+            archivo.transferTo(copia);
+            registrarEtapa("transferencia", etapa);
+            fileToken = fileStorageService.reserveToken(nombreCifrado, opciones);
+            fileToken.setTotalBytes(Files.size(copia));
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(copia);
+            throw e;
+        }
+        
+        try {
+            trabajosExecutor.execute(() -> ejecutarTrabajo(fileToken, copia, opciones));
+        } catch (TaskRejectedException e) {
+            fileStorageService.deleteFile(fileToken.getToken());
+            Files.deleteIfExists(copia);
+            throw e;
+        }
+        return fileToken;
+    }
+    
+    private void ejecutarTrabajo(FileToken fileToken, Path copia, OpcionesCifrado opciones) {
+        fileToken.setStatus(FileToken.Status.RUNNING);
+        cifradosEnCurso.incrementAndGet();
+        long inicio = System.nanoTime();
+        String resultado = "error";
+        try {
+            if (propiedades.getMotor() == CifradoProperties.Motor.EXTERNO) {
+                // La librería no informa de su avance: el progreso salta de 0 al total
+                cifrarConLibreriaExterna(copia.getFileName().toString(), destino -> Files.copy(copia, destino),
+                    cifrado -> {
+                        fileStorageService.completeToken(fileToken, cifrado);
+                        return fileToken;
+                    });
+                fileToken.setProcessedBytes(fileToken.getTotalBytes());
+            } else {
+                PublicKey clavePublica = keystoreService.getMaterial().getClavePublica();
+                try (InputStream entrada = new EntradaConProgreso(Files.newInputStream(copia), fileToken)) {
+                    cifrarMedido(entrada, clavePublica, opciones, cifrado -> {
+                        fileStorageService.completeToken(fileToken, cifrado);
+                        return fileToken;
+                    });
+                }
+            }
+            resultado = "ok";
+        } catch (Exception e) {
+            log.error("Error en cifrado en segundo plano {}", fileToken.getToken(), e);
+            fileStorageService.failToken(fileToken, e.getMessage());
+        } finally {
+            cifradosEnCurso.decrementAndGet();
+            registrarPeticion("asincrono", resultado, inicio);
+            try {
+                Files.deleteIfExists(copia);
+            } catch (IOException e) {
+                log.warn("Error eliminando temporal del trabajo {}: {}", fileToken.getToken(), e.getMessage());
+            }
+        }
+    }
+    
+    /** Cuenta los bytes de texto plano leídos y los publica como progreso del token. */
+    private static final class EntradaConProgreso extends FilterInputStream {
+        private final FileToken fileToken;
+        private long leidos;
+        
+        EntradaConProgreso(InputStream entrada, FileToken fileToken) {
+            super(entrada);
+            this.fileToken = fileToken;
+        }
+        
+        @Override
+        public int read() throws IOException {
+            int b = super.read();
+            if (b != -1) {
+                fileToken.setProcessedBytes(++leidos);
+            }
+            return b;
+        }
+        
+        @Override
+        public int read(byte[] destino, int desde, int longitud) throws IOException {
+            int n = super.read(destino, desde, longitud);
+            if (n > 0) {
+                leidos += n;
+                fileToken.setProcessedBytes(leidos);
+            }
+            return n;
+        }
+    }
+    
+    /**
+     * Cifra varios archivos (o las entradas de un único .zip) en paralelo y los
+     * entrega en un solo ZIP con un .cif por archivo. Cada archivo se cifra en el
+     * pool a un temporal propio y el ZIP se escribe en el orden de entrada a medida
+     * que terminan, con una ventana acotada de tareas adelantadas para no llenar el
+     * disco temporal. Un archivo que falla no detiene el lote: queda con estado ERROR.
+     *
+     * Si el pool rechaza un archivo, el lote adelanta menos y lo reintenta cuando
+     * termine el siguiente en curso; sin ninguno en curso el archivo queda en ERROR.
+     * Nunca se cifra en el hilo de la petición, que no cuenta para el límite por núcleo.
+     */
+    public ResultadoLote cifrarLote(MultipartFile[] archivos, OpcionesCifrado opciones) throws Exception {
+        exigirMotorInterno(opciones);
+        
+        Path directorioLote = Files.createTempDirectory("lote_");
+        ZipFile zipEntrada = null;
+        long inicio = System.nanoTime();
+        String resultadoPeticion = "error";
+        try {
+            List<ElementoLote> elementos = new ArrayList<>();
+            if (archivos.length == 1 && esZip(archivos[0].getOriginalFilename())) {
+                Path copia = directorioLote.resolve("entrada.zip");
+                archivos[0].transferTo(copia);
+                zipEntrada = new ZipFile(copia.toFile());
+                ZipFile origen = zipEntrada;
+                for (Enumeration<? extends ZipEntry> e = origen.entries(); e.hasMoreElements(); ) {
+                    ZipEntry entrada = e.nextElement();
+                    if (!entrada.isDirectory()) {
+                        elementos.add(new ElementoLote(nombreSinRuta(entrada.getName()),
+                            () -> origen.getInputStream(entrada)));
+                    }
+                }
+            } else {
+                for (MultipartFile archivo : archivos) {
+                    elementos.add(new ElementoLote(archivo.getOriginalFilename(), archivo::getInputStream));
+                }
+            }
+            
+            // Todo el lote se cifra con la misma versión de claves
+            PublicKey clavePublica = keystoreService.getMaterial().getClavePublica();
+            List<EstadoArchivoLote> estados = new ArrayList<>(elementos.size());
+            FileToken fileToken = fileStorageService.storeOutput(
+                salida -> escribirZip(elementos, clavePublica, opciones, directorioLote, estados, salida),
+                "cifrados.zip", opciones);
+            
+            ResultadoLote resultado = new ResultadoLote(fileToken, estados);
+            if (resultado.getCifrados() == 0) {
+                fileStorageService.deleteFile(fileToken.getToken());
+                return new ResultadoLote(null, estados);
+            }
+            resultadoPeticion = "ok";
+            return resultado;
+        } finally {
+            registrarPeticion("lote", resultadoPeticion, inicio);
+            if (zipEntrada != null) {
+                zipEntrada.close();
+            }
+            limpiarDirectorioTemporal(directorioLote.toFile());
+        }
+    }
+    
+    private void escribirZip(List<ElementoLote> elementos, PublicKey clavePublica, OpcionesCifrado opciones,
+                             Path directorioLote, List<EstadoArchivoLote> estados,
+                             OutputStream salida) throws IOException {
+        int ventana = 2 * propiedades.getTrabajadores().hilosEfectivos();
+        Deque<Future<EstadoArchivoLote>> enCurso = new ArrayDeque<>();
+        Set<String> nombresUsados = new HashSet<>();
+        ZipOutputStream zip = new ZipOutputStream(salida);
+        // El texto cifrado no se comprime: deflate solo gastaría CPU
+        zip.setLevel(Deflater.NO_COMPRESSION);
+        
+        int siguiente = 0;
+        try {
+            for (int i = 0; i < elementos.size(); i++) {
+                while (siguiente < elementos.size() && siguiente - i < ventana) {
+                    Path temporal = directorioLote.resolve(siguiente + ".cif");
+                    ElementoLote elemento = elementos.get(siguiente);
+                    long encolado = System.nanoTime();
+                    try {
+                        enCurso.add(cifradoExecutor.submit(
+                            () -> cifrarElemento(elemento, clavePublica, opciones, temporal, encolado)));
+                    } catch (TaskRejectedException e) {
+                        if (!enCurso.isEmpty()) {
+                            // Pool lleno: se espera al siguiente en curso antes de adelantar más
+                            break;
+                        }
+                        enCurso.add(CompletableFuture.completedFuture(EstadoArchivoLote.error(elemento.nombre,
+                            "El servicio está saturado, intente más tarde")));
+                    }
+                    siguiente++;
+                }
+                
+                Path temporal = directorioLote.resolve(i + ".cif");
+                EstadoArchivoLote estado = esperar(enCurso.poll());
+                if (estado.isOk()) {
+                    estado.setNombreCifrado(nombreUnico(nombreCifrado(estado.getNombre()), nombresUsados));
+                    zip.putNextEntry(new ZipEntry(estado.getNombreCifrado()));
+                    Files.copy(temporal, zip);
+                    zip.closeEntry();
+                }
+                Files.deleteIfExists(temporal);
+                estados.add(estado);
+            }
+            zip.finish();
+        } finally {
+            for (Future<EstadoArchivoLote> pendiente : enCurso) {
+                pendiente.cancel(true);
+            }
+        }
+    }
+    
+    /**
+     * Cifra un archivo del lote en un trabajador. Cada archivo es una muestra de
+     * latencia aparte: el lote entero incluye la escritura del ZIP y no dice
+     * cuánto tarda un cifrado.
+     */
+    private EstadoArchivoLote cifrarElemento(ElementoLote elemento, PublicKey clavePublica,
+                                             OpcionesCifrado opciones, Path destino, long encolado) {
+        String nombre = elemento.nombre;
+        if (nombre == null || !nombre.endsWith(".txt")) {
+            return EstadoArchivoLote.error(nombre, "Solo se permiten archivos .txt");
+        }
+        cifradosEnCurso.incrementAndGet();
+        try {
+            EstadoArchivoLote estado = new EstadoArchivoLote(nombre);
+            if (propiedades.getMotor() == CifradoProperties.Motor.EXTERNO) {
+                cifrarConLibreriaExterna(nombre, plano -> {
+                    try (InputStream entrada = elemento.abrir.call()) {
+                        estado.setBytesOriginal(Files.copy(entrada, plano));
+                    }
+                }, cifrado -> Files.copy(cifrado, destino));
+            } else {
+                try (InputStream entrada = elemento.abrir.call();
+                     OutputStream salida = Files.newOutputStream(destino)) {
+                    estado.setBytesOriginal(motor.cifrar(entrada, salida, clavePublica, opciones.getCompresion(),
+                        opciones.getSuite()));
+                }
+            }
+            if (estado.getBytesOriginal() == 0) {
+                return EstadoArchivoLote.error(nombre, "El archivo está vacío");
+            }
+            estado.setEstado(EstadoArchivoLote.OK);
+            estado.setBytesCifrado(Files.size(destino));
+            medidor.registrar(System.nanoTime() - encolado, estado.getBytesOriginal());
+            return estado;
+        } catch (Exception e) {
+            return EstadoArchivoLote.error(nombre, "Error durante el cifrado: " + e.getMessage());
+        } finally {
+            cifradosEnCurso.decrementAndGet();
+        }
+    }
+    
+    private static <T> T esperar(Future<T> tarea) throws IOException {
+        try {
+            return tarea.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Lote interrumpido");
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+    }
+    
+    /** Nombre del .cif de un archivo: cambia la extensión .txt final o añade .cif si no la tiene. */
+    public static String nombreCifrado(String nombre) {
+        return nombre.endsWith(".txt") ? nombre.substring(0, nombre.length() - 4) + ".cif" : nombre + ".cif";
+    }
+    
+    private static String nombreUnico(String nombre, Set<String> usados) {
+        String candidato = nombre;
+        int punto = nombre.lastIndexOf('.');
+        String base = punto > 0 ? nombre.substring(0, punto) : nombre;
+        String extension = punto > 0 ? nombre.substring(punto) : "";
+        for (int n = 2; !usados.add(candidato); n++) {
+            candidato = base + "(" + n + ")" + extension;
+        }
+        return candidato;
+    }
+    
+    private static boolean esZip(String nombre) {
+        return nombre != null && nombre.toLowerCase().endsWith(".zip");
+    }
+    
+    private static String nombreSinRuta(String nombre) {
+        return nombre.substring(nombre.lastIndexOf('/') + 1);
+    }
+    
+    private static final class ElementoLote {
+        private final String nombre;
+        private final Callable<InputStream> abrir;
+        
+        ElementoLote(String nombre, Callable<InputStream> abrir) {
+            this.nombre = nombre;
+            this.abrir = abrir;
+        }
+    }
+    
+    /**
+     * Cifra el archivo en el pool de trabajadores y devuelve el resultado en memoria.
+     * Para archivos grandes usar {@link #cifrarYAlmacenar}.
+     */
     public byte[] cifrarArchivo(MultipartFile archivo) throws Exception {
-        String nombreOriginal = archivo.getOriginalFilename();
-        String nombreSinExtension = nombreOriginal.substring(0, nombreOriginal.lastIndexOf('.'));
-        String extension = nombreOriginal.substring(nombreOriginal.lastIndexOf('.'));
+        long encolado = System.nanoTime();
+        return enTrabajador(() -> {
+            byte[] cifrado = cifrarEnTrabajador(archivo);
+            medidor.registrar(System.nanoTime() - encolado, archivo.getSize());
+            return cifrado;
+        });
+    }
+    
+    /**
+     * Ejecuta {@code trabajo} en el pool de cifrado y espera el resultado. Quien
+     * cifra informa al {@link MedidorLatencia} desde que encoló el trabajo: la
+     * subida ya se leyó, así que no cuenta.
+     */
+    private <T> T enTrabajador(Callable<T> trabajo) throws Exception {
+        long encolado = System.nanoTime();
+        Future<T> tarea = cifradoExecutor.submit(() -> {
+            registrarEtapa("espera", encolado);
+            cifradosEnCurso.incrementAndGet();
+            try {
+                return trabajo.call();
+            } finally {
+                cifradosEnCurso.decrementAndGet();
+            }
+        });
+        try {
+            return tarea.get();
+        } catch (InterruptedException e) {
+            tarea.cancel(true);
+            Thread.currentThread().interrupt();
+            throw e;
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof Exception) {
+                throw (Exception) e.getCause();
+            }
+            throw e;
+        }
+    }
+    
+    private byte[] cifrarEnTrabajador(MultipartFile archivo) throws Exception {
+        if (propiedades.getMotor() == CifradoProperties.Motor.EXTERNO) {
+            return cifrarConLibreriaExterna(archivo.getOriginalFilename(), archivo::transferTo,
+                InputStream::readAllBytes);
+        }
         
-        // Crear directorio temporal único para este proceso
-        String timestamp = String.valueOf(System.currentTimeMillis());
-        String tempDir = System.getProperty("java.io.tmpdir") + "/cifrado_" + timestamp + "/";
-        File directorioTemporal = new File(tempDir);
-        directorioTemporal.mkdirs();
+        ByteArrayOutputStream salida = new ByteArrayOutputStream((int) archivo.getSize() + 512);
+        try (InputStream entrada = archivo.getInputStream()) {
+            cifrar(entrada, salida);
+        }
+        return salida.toByteArray();
+    }
+    
+    /**
+     * Cifra en proceso desde {@code entrada} hacia {@code salida} sin pasar por
+     * el directorio de trabajo ni por archivos temporales.
+     */
+    public long cifrar(InputStream entrada, OutputStream salida) throws Exception {
+        return motor.cifrar(entrada, salida, keystoreService.getMaterial().getClavePublica());
+    }
+    
+    /**
+     * Cifra con {@code cifrado.Cifrar}, que trabaja sobre archivos del directorio de
+     * trabajo, y pasa el .cif generado a {@code almacenamiento} leyéndolo del disco:
+     * el heap no crece con el tamaño del archivo.
+     *
+     * Cada petición usa un nombre único en el directorio de trabajo, así que copiar
+     * la subida y leer el resultado corren en paralelo; solo la llamada a la librería,
+     * que no se sabe si es reentrante, pasa de una en una.
+     */
+    private <T> T cifrarConLibreriaExterna(String nombreOriginal, Subida subida, Almacenamiento<T> almacenamiento)
+            throws Exception {
+        String extension = nombreOriginal.substring(nombreOriginal.lastIndexOf('.'));
+        // El nombre del .cif lo decide el llamador; el de la librería solo tiene que no repetirse
+        String nombreSinExtension = "cifrado_" + UUID.randomUUID();
         
-        // Variables para limpieza
-        File archivoEnDirectorioActual = null;
+        // Directorio de trabajo actual (/app en Railway), donde la librería lee y escribe
+        String directorioActual = System.getProperty("user.dir");
+        File archivoEnDirectorioActual = new File(directorioActual, nombreSinExtension + extension);
         File archivoCifradoGenerado = null;
         
         try {
-            // 1. Guardar archivo original temporalmente
-            File archivoTemporal = new File(tempDir + nombreOriginal);
-            archivo.transferTo(archivoTemporal);
-            
-            // 2. Copiar archivo al directorio de trabajo actual (/app en Railway)
-            String directorioActual = System.getProperty("user.dir");
-            archivoEnDirectorioActual = new File(directorioActual, nombreOriginal);
-            Files.copy(archivoTemporal.toPath(), archivoEnDirectorioActual.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            // 1. Guardar la subida directamente en el directorio de trabajo
+            long etapa = System.nanoTime();
+            subida.copiarEn(archivoEnDirectorioActual.toPath());
+            registrarEtapa("transferencia", etapa);
             
-            // 3. Obtener directorio de claves desde resources
-            String directorioClaves = obtenerDirectorioClaves();
+            // 2. Directorio de claves ya materializado por KeystoreService
+            etapa = System.nanoTime();
+            String directorioClaves = keystoreService.getDirectorioClaves();
+            registrarEtapa("claves", etapa);
             
-            // Logging para debug
-            System.out.println("extension: " + extension);
-            System.out.println("nombre de archivo: " + nombreSinExtension);
-            System.out.println("directorio de claves: " + directorioClaves);
-            System.out.println("directorio actual: " + directorioActual);
-            System.out.println("archivo copiado a: " + archivoEnDirectorioActual.getAbsolutePath());
-            System.out.println("archivo copiado existe: " + archivoEnDirectorioActual.exists());
+            log.debug("Cifrando {} como {} en {} con claves de {}",
+                nombreOriginal, nombreSinExtension + extension, directorioActual, directorioClaves);
             
-            // 4. Llamar al método de cifrado (desde directorio actual, sin cambiar user.dir)
+            // 3. Llamar al método de cifrado (desde directorio actual, sin cambiar user.dir)
+            etapa = System.nanoTime();
+            BLOQUEO_LIBRERIA_EXTERNA.lock();
             try {
                 Cifrar.cifra(extension, nombreSinExtension, directorioClaves);
-                System.out.println("Cifrado completado exitosamente.");
-                
             } catch (Exception e) {
-                System.err.println("Error durante el cifrado: " + e.getMessage());
-                e.printStackTrace();
+                log.error("Error durante el cifrado de {}", nombreOriginal, e);
                 throw e;
+            } finally {
+                BLOQUEO_LIBRERIA_EXTERNA.unlock();
             }
+            registrarEtapa("cifrado", etapa);
             
-            // 5. Buscar el archivo cifrado en el directorio actual
+            // 4. Buscar el archivo cifrado en el directorio actual
+            etapa = System.nanoTime();
             archivoCifradoGenerado = buscarArchivoCifrado(directorioActual + "/", nombreSinExtension, extension);
+            registrarEtapa("busqueda", etapa);
             
             if (archivoCifradoGenerado == null || !archivoCifradoGenerado.exists()) {
-                // Listar archivos para debug
-                File dirActual = new File(directorioActual);
-                File[] archivos = dirActual.listFiles();
-                System.out.println("Archivos en directorio actual después del cifrado:");
-                if (archivos != null) {
-                    for (File f : archivos) {
-                        System.out.println("  - " + f.getName() + " (" + f.length() + " bytes)");
-                    }
+                if (log.isDebugEnabled()) {
+                    File[] archivos = new File(directorioActual).listFiles();
+                    log.debug("Archivos en {} después del cifrado: {}", directorioActual,
+                        archivos != null ? Arrays.toString(archivos) : "[]");
                 }
                 throw new RuntimeException("No se pudo encontrar el archivo cifrado");
             }
             
-            System.out.println("Archivo cifrado encontrado: " + archivoCifradoGenerado.getName() + " (" + archivoCifradoGenerado.length() + " bytes)");
+            log.debug("Archivo cifrado encontrado: {} ({} bytes)",
+                archivoCifradoGenerado.getName(), archivoCifradoGenerado.length());
             
-            // 6. Leer el contenido del archivo cifrado
-            byte[] contenidoCifrado = Files.readAllBytes(archivoCifradoGenerado.toPath());
+            // 5. Entregar el archivo cifrado en streaming; la limpieza lo borra después
+            etapa = System.nanoTime();
+            T resultado;
+            try (InputStream cifrado = Files.newInputStream(archivoCifradoGenerado.toPath())) {
+                resultado = almacenamiento.guardar(cifrado);
+            }
+            registrarEtapa("escritura", etapa);
             
-            return contenidoCifrado;
+            return resultado;
             
         } finally {
-            // Limpieza: eliminar archivos temporales y generados
+            // Limpieza: eliminar la subida y el archivo generado
             try {
-                if (archivoEnDirectorioActual != null && archivoEnDirectorioActual.exists()) {
-                    archivoEnDirectorioActual.delete();
-                    System.out.println("Archivo original limpiado: " + archivoEnDirectorioActual.getName());
+                Files.deleteIfExists(archivoEnDirectorioActual.toPath());
+                if (archivoCifradoGenerado != null) {
+                    Files.deleteIfExists(archivoCifradoGenerado.toPath());
                 }
-                if (archivoCifradoGenerado != null && archivoCifradoGenerado.exists()) {
-                    archivoCifradoGenerado.delete();
-                    System.out.println("Archivo cifrado limpiado: " + archivoCifradoGenerado.getName());
-                }
-                limpiarDirectorioTemporal(directorioTemporal);
             } catch (Exception e) {
-                System.err.println("Error en limpieza: " + e.getMessage());
+                log.warn("Error en limpieza tras cifrar {}: {}", nombreOriginal, e.getMessage());
             }
         }
     }
     
-    private String obtenerDirectorioClaves() throws Exception {
-        try {
-            // En contenedor, copiar archivos del JAR a directorio temporal
-            String tempKeysDir = System.getProperty("java.io.tmpdir") + "/keystore_temp/";
-            File tempDir = new File(tempKeysDir);
-            tempDir.mkdirs();
-            
-            var resource = getClass().getClassLoader().getResource("keystore/");
-            if (resource != null) {
-                if (resource.getProtocol().equals("file")) {
-                    // Desarrollo local - usar directorio directamente
-                    String path = resource.getPath();
-                    if (path.startsWith("/") && path.contains(":")) {
-                        path = path.substring(1);
-                    }
-                    if (!path.endsWith("/") && !path.endsWith("\\")) {
-                        path += "/";
-                    }
-                    System.out.println("Directorio de claves encontrado (local): " + path);
-                    return path;
-                } else {
-                    // Producción - copiar archivos desde JAR
-                    System.out.println("Copiando archivos de keystore desde JAR...");
-                    
-                    // Solo el archivo que realmente tienes
-                    String[] archivosKeystore = {"transferencia.jks"};
-                    
-                    for (String nombreArchivo : archivosKeystore) {
-                        try {
-                            var archivoResource = getClass().getClassLoader().getResourceAsStream("keystore/" + nombreArchivo);
-                            if (archivoResource != null) {
-                                Files.copy(archivoResource, Paths.get(tempKeysDir + nombreArchivo), StandardCopyOption.REPLACE_EXISTING);
-                                archivoResource.close();
-                                System.out.println("Copiado: " + nombreArchivo);
-                            } else {
-                                System.out.println("No encontrado: " + nombreArchivo);
-                            }
-                        } catch (Exception e) {
-                            System.out.println("Error copiando " + nombreArchivo + ": " + e.getMessage());
-                        }
-                    }
-                    
-                    System.out.println("Directorio de claves temporal: " + tempKeysDir);
-                    return tempKeysDir;
-                }
-            } else {
-                throw new RuntimeException("No se encontró el directorio keystore en resources");
-            }
-        } catch (Exception e) {
-            throw new Exception("Error al obtener directorio de claves: " + e.getMessage());
-        }
-    }
-    
     private File buscarArchivoCifrado(String directorio, String nombreBase, String extensionOriginal) {
         // Posibles nombres que podría generar tu JAR
         String[] posiblesNombres = {
@@ -169,7 +892,6 @@ public class CifradoService {
         for (String nombre : posiblesNombres) {
             File archivo = new File(directorio + nombre);
             if (archivo.exists()) {
-                System.out.println("Archivo cifrado encontrado: " + archivo.getName());
                 return archivo;
             }
         }
@@ -182,7 +904,7 @@ public class CifradoService {
             (name.endsWith(".cif") || name.endsWith(".enc") || name.contains("cifrado")));
         
         if (archivos != null && archivos.length > 0) {
-            System.out.println("Archivo cifrado encontrado (búsqueda genérica): " + archivos[0].getName());
+            log.debug("Archivo cifrado encontrado por búsqueda genérica: {}", archivos[0].getName());
             return archivos[0];
         }
         
@@ -201,7 +923,7 @@ public class CifradoService {
                 directorio.delete();
             }
         } catch (Exception e) {
-            System.err.println("Error limpiando directorio temporal: " + e.getMessage());
+            log.warn("Error limpiando directorio temporal {}: {}", directorio, e.getMessage());
         }
     }
 }
\ No newline at end of file
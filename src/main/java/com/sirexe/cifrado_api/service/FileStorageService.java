@@ -1,31 +1,207 @@
 package com.sirexe.cifradoapi.service;
 
+import com.sirexe.cifradoapi.config.CifradoProperties;
 import com.sirexe.cifradoapi.model.FileToken;
+import com.sirexe.cifradoapi.model.OpcionesCifrado;
+import com.sirexe.cifradoapi.storage.CacheDirecta;
+import com.sirexe.cifradoapi.storage.ExpiryScheduler;
+import com.sirexe.cifradoapi.storage.FileSystemBackend;
+import com.sirexe.cifradoapi.storage.SegmentStore;
+import com.sirexe.cifradoapi.storage.StorageBackend;
+import com.sirexe.cifradoapi.storage.TokenLog;
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
 import org.springframework.stereotype.Service;
 
-import java.io.File;
+import javax.annotation.PreDestroy;
+import java.io.FilterInputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.time.LocalDateTime;
+import java.time.Duration;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.Map;
 import java.util.UUID;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 @Service
 public class FileStorageService {
     
-    // Almacenamiento en memoria para tokens (en producción usar base de datos)
+    private static final Logger log = LoggerFactory.getLogger(FileStorageService.class);
+    
+    // Índice en memoria de tokens; tokenLog lo persiste junto a los archivos.
+    // El filePath de cada token es la ubicación que devolvió el backend al escribir.
     private final ConcurrentHashMap<String, FileToken> tokenStorage = new ConcurrentHashMap<>();
     
+    // Varios tokens pueden apuntar al mismo archivo: cuántos lo usan y qué archivo tiene cada contenido.
+    // No se persisten; al arrancar se reconstruyen a partir de los tokens vivos.
+    private final ConcurrentHashMap<String, Integer> references = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<String, String> contentIndex = new ConcurrentHashMap<>();
+    // Bytes en disco, contando una sola vez los archivos compartidos
+    private final AtomicLong storedBytes = new AtomicLong();
+    
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String TOKEN_LOG = "tokens.log";
+    
     // Directorio para archivos cifrados
-    private final String uploadDir = System.getProperty("java.io.tmpdir") + "/cifrado_uploads/";
+    private final String uploadDir;
+    
+    // Con varias réplicas sobre el mismo almacenamiento cada una escribe en su subdirectorio
+    // (archivos, segmentos y tokens.log) y solo lee los de las demás
+    private final String replica;
+    private final Path sharedDir;
+    
+    // Los archivos nuevos van a backend; se leen y borran desde el que reconozca la
+    // ubicación, así los tokens vivos sobreviven a un cambio de soporte
+    private final FileSystemBackend archivos;
+    private final SegmentStore segmentos;
+    private final StorageBackend backend;
+    
+    // Archivos recién escritos, para servir sin ir a disco las descargas inmediatas
+    private final CacheDirecta cache;
     
-    public FileStorageService() {
+    private final TokenLog tokenLog;
+    // Una descarga incrementa su contador y lo registra bajo el de lectura; la compactación
+    // copia los contadores bajo el de escritura. Así cada descarga queda en el registro
+    // compactado o como DESCARGA detrás de él, nunca en los dos ni en ninguno.
+    private final ReadWriteLock downloadLogLock = new ReentrantReadWriteLock();
+    
+    private final ExpiryScheduler expiryScheduler;
+    
+    private final Duration defaultTtl;
+    private final int defaultMaxDownloads;
+    
+    private final Timer storeTimer;
+    private final Timer duplicateTimer;
+    private final Timer getTimer;
+    private final Timer downloadTimer;
+    private final Timer deleteTimer;
+    private final Timer expireTimer;
+    
+    public FileStorageService(CifradoProperties propiedades, MeterRegistry meterRegistry) throws IOException {
+        CifradoProperties.Almacenamiento config = propiedades.getAlmacenamiento();
+        this.defaultTtl = propiedades.getTokens().getTtlPorDefecto();
+        this.defaultMaxDownloads = propiedades.getTokens().getDescargasPorDefecto();
+        this.sharedDir = Paths.get(config.getDirectorio());
+        this.replica = config.getReplica() != null ? config.getReplica() : "";
+        if (!replica.isEmpty() && !isPlainName(replica)) {
+            throw new IllegalArgumentException("Nombre de réplica no válido: " + replica);
+        }
+        this.uploadDir = replica.isEmpty() ? sharedDir + "/" : sharedDir.resolve(replica) + "/";
+        this.storeTimer = operationTimer(meterRegistry, "store");
+        this.duplicateTimer = operationTimer(meterRegistry, "duplicate");
+        this.getTimer = operationTimer(meterRegistry, "get");
+        this.downloadTimer = operationTimer(meterRegistry, "download");
+        this.deleteTimer = operationTimer(meterRegistry, "delete");
+        this.expireTimer = operationTimer(meterRegistry, "expire");
         // Crear directorio si no existe
         createUploadDirectory();
-        // Iniciar limpieza automática cada hora
-        startCleanupTask();
+        this.archivos = new FileSystemBackend(Paths.get(uploadDir));
+        this.segmentos = new SegmentStore(Paths.get(uploadDir), config.getTamanoSegmento().toBytes(), config.isFsync());
+        this.backend = config.getSoporte() == CifradoProperties.Almacenamiento.Soporte.SEGMENTOS ? segmentos : archivos;
+        this.cache = new CacheDirecta(propiedades.getCache().getCapacidad().toBytes(),
+            propiedades.getCache().getEntradaMaxima().toBytes());
+        // Cada token se borra al vencer, en lotes y en un ejecutor acotado
+        this.expiryScheduler = new ExpiryScheduler(this::expireTokens, config.getHilosBorrado(), config.getLoteBorrado());
+        // Recuperar los tokens vivos del arranque anterior
+        this.tokenLog = new TokenLog(Paths.get(uploadDir, TOKEN_LOG), config.isFsync());
+        loadTokens();
+        
+        Gauge.builder("cifrado.tokens.vivos", tokenStorage, Map::size)
+            .description("Tokens en memoria, incluidos los trabajos sin terminar").register(meterRegistry);
+        Gauge.builder("cifrado.almacenamiento.bytes", storedBytes, AtomicLong::get)
+            .description("Bytes de archivos cifrados en disco").baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("cifrado.almacenamiento.archivos", references, Map::size)
+            .description("Archivos cifrados distintos en disco").register(meterRegistry);
+        Gauge.builder("cifrado.expiraciones.pendientes", expiryScheduler, ExpiryScheduler::getPendientes)
+            .description("Expiraciones programadas que aún no vencen").register(meterRegistry);
+        Gauge.builder("cifrado.almacenamiento.segmentos", segmentos, SegmentStore::getSegmentos)
+            .description("Archivos de segmento en disco").register(meterRegistry);
+        FunctionCounter.builder("cifrado.cache.peticiones", cache, CacheDirecta::getAciertos)
+            .description("Lecturas de archivos cifrados servidas desde la cache").tag("resultado", "acierto")
+            .register(meterRegistry);
+        FunctionCounter.builder("cifrado.cache.peticiones", cache, CacheDirecta::getFallos)
+            .description("Lecturas de archivos cifrados que tuvieron que ir al almacenamiento").tag("resultado", "fallo")
+            .register(meterRegistry);
+        FunctionCounter.builder("cifrado.cache.desalojos", cache, CacheDirecta::getDesalojos)
+            .description("Entradas expulsadas de la cache por falta de espacio").register(meterRegistry);
+        Gauge.builder("cifrado.cache.bytes", cache, CacheDirecta::getBytes)
+            .description("Memoria directa ocupada por la cache").baseUnit("bytes").register(meterRegistry);
+        Gauge.builder("cifrado.cache.entradas", cache, CacheDirecta::getEntradas)
+            .description("Archivos cifrados en la cache").register(meterRegistry);
+    }
+    
+    private static Timer operationTimer(MeterRegistry meterRegistry, String operacion) {
+        return Timer.builder("cifrado.almacenamiento")
+            .description("Duración de las operaciones del almacenamiento de archivos cifrados")
+            .tag("operacion", operacion)
+            .register(meterRegistry);
+    }
+    
+    private void loadTokens() throws IOException {
+        long inicio = System.nanoTime();
+        tokenStorage.putAll(tokenLog.reproducir());
+        for (FileToken fileToken : tokenStorage.values()) {
+            if (fileToken.getFileSize() == 0) {
+                // Registros anteriores a que se guardara el tamaño
+                fileToken.setFileSize(sizeOf(fileToken));
+            }
+            reference(fileToken);
+        }
+        // Lo que no pertenece a ningún token vivo quedó de un trabajo interrumpido o de un borrado perdido
+        Set<String> vivas = tokenStorage.values().stream().map(FileToken::getFilePath).collect(Collectors.toSet());
+        archivos.recuperar(vivas);
+        segmentos.recuperar(vivas);
+        tokenStorage.values().forEach(t -> expiryScheduler.schedule(t.getToken(), t.getExpiresAt()));
+        log.info("Tokens recuperados: {} en {} ms", tokenStorage.size(), (System.nanoTime() - inicio) / 1_000_000);
+        compactIfNeeded();
+    }
+    
+    private long sizeOf(FileToken fileToken) {
+        try {
+            return backendOf(fileToken.getFilePath()).tamano(fileToken.getFilePath());
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+    
+    private StorageBackend backendOf(String filePath) {
+        return segmentos.reconoce(filePath) ? segmentos : archivos;
+    }
+    
+    /** Escribe en el backend configurado y deja el contenido en la cache si cabe. */
+    private String write(ContentWriter escritor, String storedFileName) throws IOException {
+        CacheDirecta.Captura captura = cache.nuevaCaptura();
+        String filePath = backend.escribir(salida -> escritor.writeTo(captura.envolver(salida)), storedFileName);
+        captura.publicar(filePath);
+        return filePath;
+    }
+    
+    @PreDestroy
+    public void close() throws IOException {
+        expiryScheduler.close();
+        tokenLog.close();
+        segmentos.close();
+        archivos.close();
     }
     
     private void createUploadDirectory() {
@@ -33,34 +209,202 @@ public class FileStorageService {
             Path path = Paths.get(uploadDir);
             if (!Files.exists(path)) {
                 Files.createDirectories(path);
-                System.out.println("Directorio de uploads creado: " + uploadDir);
+                log.info("Directorio de uploads creado: {}", uploadDir);
             }
         } catch (IOException e) {
-            System.err.println("Error creando directorio de uploads: " + e.getMessage());
+            log.error("Error creando directorio de uploads {}", uploadDir, e);
         }
     }
     
     public FileToken storeFile(byte[] fileContent, String originalFileName) throws IOException {
+        long inicio = System.nanoTime();
         // Generar token único
         String token = UUID.randomUUID().toString();
         
         // Generar nombre único para el archivo
         String fileExtension = getFileExtension(originalFileName);
         String storedFileName = token + fileExtension;
-        String filePath = uploadDir + storedFileName;
         
         // Guardar archivo
-        Files.write(Paths.get(filePath), fileContent);
+        String filePath = write(salida -> salida.write(fileContent), storedFileName);
         
         // Crear registro de token
-        FileToken fileToken = new FileToken(token, storedFileName, originalFileName, filePath);
+        FileToken fileToken = new FileToken(token, storedFileName, originalFileName, filePath,
+            defaultTtl, defaultMaxDownloads);
+        fileToken.setFileSize(fileContent.length);
+        reference(fileToken);
+        register(fileToken);
+        
+        log.debug("Archivo almacenado: {} -> {}", originalFileName, storedFileName);
+        storeTimer.record(System.nanoTime() - inicio, TimeUnit.NANOSECONDS);
+        return fileToken;
+    }
+    
+    /**
+     * Almacena el contenido leyéndolo de {@code contenido} en una sola pasada con
+     * un buffer fijo. Si la copia falla no queda ni archivo parcial ni token.
+     *
+     * @param opciones vigencia, descargas (0 = sin límite) y formato del archivo
+     * @param contentKey si no es {@code null}, indexa el archivo para que
+     *                   {@link #storeDuplicate} lo reutilice
+     */
+    public FileToken storeStream(InputStream contenido, String originalFileName,
+                                 OpcionesCifrado opciones, String contentKey) throws IOException {
+        return store(salida -> copy(contenido, salida), originalFileName, opciones, contentKey);
+    }
+    
+    /**
+     * Emite un token nuevo que apunta al archivo ya almacenado con la misma
+     * {@code contentKey}, sin escribir nada en disco. El archivo se borra cuando
+     * vence o se agota el último token que lo usa.
+     *
+     * @return el token, o {@code null} si no hay un archivo con ese contenido
+     */
+    public FileToken storeDuplicate(String contentKey, String originalFileName,
+                                    OpcionesCifrado opciones) throws IOException {
+        long inicio = System.nanoTime();
+        String filePath = contentIndex.get(contentKey);
+        // Solo cuenta si el archivo sigue referenciado: a cero ya se está borrando
+        if (filePath == null || references.computeIfPresent(filePath, (path, n) -> n + 1) == null) {
+            return null;
+        }
+        
+        // El nombre es solo descriptivo: el contenido sigue en la ubicación del original
+        String token = UUID.randomUUID().toString();
+        FileToken fileToken = newToken(token, token + getFileExtension(originalFileName),
+            originalFileName, filePath, opciones);
+        fileToken.setContentKey(contentKey);
+        fileToken.setFileSize(sizeOf(fileToken));
+        register(fileToken);
+        
+        log.debug("Archivo reutilizado: {} -> {}", originalFileName, fileToken.getFileName());
+        duplicateTimer.record(System.nanoTime() - inicio, TimeUnit.NANOSECONDS);
+        return fileToken;
+    }
+    
+    /**
+     * Almacena lo que {@code escritor} escriba en el flujo de salida, para contenidos
+     * que se generan empujando datos (p. ej. un ZIP) en lugar de leerse de un flujo.
+     * Si el escritor falla no queda ni archivo parcial ni token.
+     */
+    public FileToken storeOutput(ContentWriter escritor, String originalFileName,
+                                 OpcionesCifrado opciones) throws IOException {
+        return store(escritor, originalFileName, opciones, null);
+    }
+    
+    private FileToken store(ContentWriter escritor, String originalFileName,
+                            OpcionesCifrado opciones, String contentKey) throws IOException {
+        long inicio = System.nanoTime();
+        String token = UUID.randomUUID().toString();
+        
+        String fileExtension = getFileExtension(originalFileName);
+        String storedFileName = token + fileExtension;
+        String filePath = write(escritor, storedFileName);
+        
+        FileToken fileToken = newToken(token, storedFileName, originalFileName, filePath, opciones);
+        fileToken.setContentKey(contentKey);
+        fileToken.setFileSize(backend.tamano(filePath));
+        reference(fileToken);
+        register(fileToken);
+        
+        log.debug("Archivo almacenado: {} -> {}", originalFileName, storedFileName);
+        storeTimer.record(System.nanoTime() - inicio, TimeUnit.NANOSECONDS);
+        return fileToken;
+    }
+    
+    /**
+     * Reserva un token para un cifrado en segundo plano. Queda en PENDING, solo en
+     * memoria, hasta {@link #completeToken}; si el proceso se reinicia antes, el
+     * token se pierde. Vence igual que cualquier otro, termine o no el trabajo.
+     * Su {@code filePath} es {@code null} hasta que el contenido está escrito.
+     */
+    public FileToken reserveToken(String originalFileName, OpcionesCifrado opciones) {
+        String token = UUID.randomUUID().toString();
+        String storedFileName = token + getFileExtension(originalFileName);
+        FileToken fileToken = newToken(token, storedFileName, originalFileName, null, opciones);
+        fileToken.setStatus(FileToken.Status.PENDING);
         tokenStorage.put(token, fileToken);
+        expiryScheduler.schedule(token, fileToken.getExpiresAt());
+        return fileToken;
+    }
+    
+    /**
+     * Escribe el contenido de un token reservado y solo entonces le asigna su
+     * ubicación, de modo que nunca se descarga un archivo a medias.
+     * Si el token venció o se borró mientras tanto, el archivo se descarta.
+     */
+    public void completeToken(FileToken fileToken, InputStream contenido) throws IOException {
+        long inicio = System.nanoTime();
+        String filePath = write(salida -> copy(contenido, salida), fileToken.getFileName());
         
-        System.out.println("Archivo almacenado: " + originalFileName + " -> " + storedFileName);
+        if (tokenStorage.get(fileToken.getToken()) != fileToken) {
+            cache.invalidar(filePath);
+            backend.borrar(filePath);
+            return;
+        }
+        fileToken.setFilePath(filePath);
+        fileToken.setFileSize(backend.tamano(filePath));
+        reference(fileToken);
+        fileToken.setStatus(FileToken.Status.DONE);
+        try {
+            tokenLog.alta(fileToken);
+        } catch (IOException e) {
+            tokenStorage.remove(fileToken.getToken());
+            releaseFile(fileToken);
+            throw e;
+        }
+        log.debug("Archivo almacenado: {} -> {}", fileToken.getOriginalName(), fileToken.getFileName());
+        storeTimer.record(System.nanoTime() - inicio, TimeUnit.NANOSECONDS);
+    }
+    
+    /**
+     * Marca el trabajo como fallido; el token se conserva hasta vencer para que se pueda consultar.
+     * El backend ya descartó lo que se alcanzó a escribir.
+     */
+    public void failToken(FileToken fileToken, String error) {
+        fileToken.setError(error);
+        fileToken.setStatus(FileToken.Status.FAILED);
+    }
+    
+    private static void copy(InputStream contenido, OutputStream salida) throws IOException {
+        byte[] buffer = new byte[BUFFER_SIZE];
+        int leidos;
+        while ((leidos = contenido.read(buffer)) != -1) {
+            salida.write(buffer, 0, leidos);
+        }
+    }
+    
+    @FunctionalInterface
+    public interface ContentWriter {
+        void writeTo(OutputStream salida) throws IOException;
+    }
+    
+    private static FileToken newToken(String token, String storedFileName, String originalFileName,
+                                      String filePath, OpcionesCifrado opciones) {
+        FileToken fileToken = new FileToken(token, storedFileName, originalFileName, filePath,
+            opciones.getTtl(), opciones.getMaxDownloads());
+        fileToken.setCompression(opciones.getCompresion());
+        fileToken.setFormat(opciones.getFormato());
+        fileToken.setSuite(opciones.getSuite());
         return fileToken;
     }
     
+    /** Publica un token cuya referencia al archivo ya se contó con {@link #reference}. */
+    private void register(FileToken fileToken) throws IOException {
+        // Primero el mapa y después el registro: una compactación concurrente como mucho duplica el alta
+        tokenStorage.put(fileToken.getToken(), fileToken);
+        try {
+            tokenLog.alta(fileToken);
+        } catch (IOException e) {
+            tokenStorage.remove(fileToken.getToken());
+            releaseFile(fileToken);
+            throw e;
+        }
+        expiryScheduler.schedule(fileToken.getToken(), fileToken.getExpiresAt());
+    }
+    
     public byte[] getFile(String token) throws IOException {
+        long inicio = System.nanoTime();
         FileToken fileToken = tokenStorage.get(token);
         
         if (fileToken == null) {
@@ -73,13 +417,120 @@ public class FileStorageService {
             throw new RuntimeException("El archivo ha expirado");
         }
         
+        if (!fileToken.isReady()) {
+            throw new RuntimeException("El archivo aún no está disponible");
+        }
+        
         // Leer y devolver archivo
-        Path filePath = Paths.get(fileToken.getFilePath());
-        if (!Files.exists(filePath)) {
-            throw new RuntimeException("Archivo no encontrado");
+        byte[] contenido = cache.leer(fileToken.getFilePath());
+        if (contenido == null) {
+            StorageBackend origen = backendOf(fileToken.getFilePath());
+            if (!origen.existe(fileToken.getFilePath())) {
+                throw new RuntimeException("Archivo no encontrado");
+            }
+            contenido = origen.leer(fileToken.getFilePath());
+        }
+        getTimer.record(System.nanoTime() - inicio, TimeUnit.NANOSECONDS);
+        return contenido;
+    }
+    
+    /**
+     * Consume una descarga del token y devuelve el archivo como {@link Resource} para
+     * enviarlo en streaming; Spring MVC resuelve sobre él Content-Length y Range.
+     *
+     * El conteo es atómico aunque lleguen descargas simultáneas. En la última descarga
+     * permitida el token deja de ser válido y el archivo se borra al cerrarse su envío.
+     * Una respuesta multipart/byteranges abre y cierra el archivo una vez por rango, así
+     * que la última descarga no admite varios rangos.
+     *
+     * @param variosRangos la petición pide más de un rango
+     * @return el recurso, o {@code null} si el token no existe, expiró, agotó sus descargas
+     *         o su cifrado no ha terminado
+     * @throws VariosRangosException si es la última descarga permitida y pide varios rangos;
+     *         no se consume
+     */
+    public Resource openDownload(String token, boolean variosRangos) {
+        long inicio = System.nanoTime();
+        AtomicReference<FileToken> claimed = new AtomicReference<>();
+        AtomicBoolean last = new AtomicBoolean();
+        AtomicBoolean rejected = new AtomicBoolean();
+        Lock logLock = downloadLogLock.readLock();
+        logLock.lock();
+        try {
+            tokenStorage.computeIfPresent(token, (key, fileToken) -> {
+                if (fileToken.isReady() && !fileToken.isExpired() && !fileToken.isExhausted()) {
+                    if (variosRangos && fileToken.getRemainingDownloads() == 1) {
+                        rejected.set(true);
+                        return fileToken;
+                    }
+                    fileToken.setDownloadCount(fileToken.getDownloadCount() + 1);
+                    last.set(fileToken.isExhausted());
+                    claimed.set(fileToken);
+                }
+                return fileToken;
+            });
+            if (claimed.get() != null && claimed.get().getMaxDownloads() > 0) {
+                tokenLog.descarga(token);
+            }
+        } catch (IOException e) {
+            log.warn("Error registrando descarga de {}: {}", token, e.getMessage());
+        } finally {
+            logLock.unlock();
+        }
+        
+        if (rejected.get()) {
+            throw new VariosRangosException();
+        }
+        FileToken fileToken = claimed.get();
+        if (fileToken == null) {
+            getFileToken(token); // limpia el token si expiró
+            return null;
+        }
+        
+        Resource recurso = cache.recurso(fileToken.getFilePath());
+        if (recurso == null) {
+            recurso = openStored(fileToken.getFilePath());
+            if (recurso == null) {
+                return null;
+            }
         }
         
-        return Files.readAllBytes(filePath);
+        // Mide el reclamo de la descarga; el envío lo hace Spring MVC después
+        downloadTimer.record(System.nanoTime() - inicio, TimeUnit.NANOSECONDS);
+        if (last.get()) {
+            return new DeleteOnCloseResource(recurso, () -> deleteFile(token));
+        }
+        return recurso;
+    }
+    
+    /**
+     * Abre el contenido de un token listo sin consumir descargas: para leerlo dentro
+     * del servidor (verificación), o para un HEAD o un rango que reanuda una descarga
+     * ya contada con {@link #openDownload}.
+     *
+     * @return el recurso, o {@code null} si el token no existe, expiró, agotó sus descargas
+     *         o su cifrado no ha terminado
+     */
+    public Resource openContent(String token) {
+        FileToken fileToken = getFileToken(token);
+        if (fileToken == null || !fileToken.isReady() || fileToken.isExhausted()) {
+            return null;
+        }
+        Resource recurso = cache.recurso(fileToken.getFilePath());
+        return recurso != null ? recurso : openStored(fileToken.getFilePath());
+    }
+    
+    private Resource openStored(String filePath) {
+        StorageBackend origen = backendOf(filePath);
+        if (!origen.existe(filePath)) {
+            return null;
+        }
+        try {
+            return origen.recurso(filePath);
+        } catch (IOException e) {
+            // El contenido desapareció entre la comprobación y la apertura
+            return null;
+        }
     }
     
     public FileToken getFileToken(String token) {
@@ -92,14 +543,218 @@ public class FileStorageService {
     }
     
     public void deleteFile(String token) {
+        long inicio = System.nanoTime();
         FileToken fileToken = tokenStorage.remove(token);
         if (fileToken != null) {
+            logRemoval(token);
             try {
-                Files.deleteIfExists(Paths.get(fileToken.getFilePath()));
-                System.out.println("Archivo eliminado: " + fileToken.getFileName());
+                if (releaseFile(fileToken)) {
+                    log.debug("Archivo eliminado: {}", fileToken.getFileName());
+                }
             } catch (IOException e) {
-                System.err.println("Error eliminando archivo: " + e.getMessage());
+                log.warn("Error eliminando archivo {}: {}", fileToken.getFileName(), e.getMessage());
             }
+            deleteTimer.record(System.nanoTime() - inicio, TimeUnit.NANOSECONDS);
+        }
+    }
+    
+    private void reference(FileToken fileToken) {
+        if (references.merge(fileToken.getFilePath(), 1, Integer::sum) == 1) {
+            storedBytes.addAndGet(fileToken.getFileSize());
+        }
+        if (fileToken.getContentKey() != null) {
+            contentIndex.putIfAbsent(fileToken.getContentKey(), fileToken.getFilePath());
+        }
+    }
+    
+    /**
+     * Suelta la referencia de un token a su archivo y lo borra si era la última.
+     *
+     * @return {@code true} si el archivo se borró
+     */
+    private boolean releaseFile(FileToken fileToken) throws IOException {
+        String filePath = fileToken.getFilePath();
+        // Trabajo sin terminar: todavía no tiene archivo
+        if (filePath == null) {
+            return false;
+        }
+        if (references.computeIfPresent(filePath, (path, n) -> n > 1 ? n - 1 : null) != null) {
+            return false;
+        }
+        if (fileToken.getContentKey() != null) {
+            contentIndex.remove(fileToken.getContentKey(), filePath);
+        }
+        cache.invalidar(filePath);
+        if (backendOf(filePath).borrar(filePath)) {
+            storedBytes.addAndGet(-fileToken.getFileSize());
+        }
+        return true;
+    }
+    
+    /** Directorio donde escribe esta réplica: el configurado o su subdirectorio con el nombre de la réplica. */
+    public Path getUploadDirectory() {
+        return Paths.get(uploadDir);
+    }
+    
+    /** Nombre de esta réplica; vacío si escribe directamente en el directorio configurado. */
+    public String getReplica() {
+        return replica;
+    }
+    
+    /**
+     * Ubicación del contenido de un token relativa al directorio de esta réplica,
+     * para que otra réplica la lea sin consultar el índice. Un trabajo en curso
+     * aún no tiene ubicación: con archivos se conoce el nombre que tendrá; con
+     * segmentos no, y se devuelve vacía.
+     */
+    public String sharedLocation(FileToken fileToken) {
+        String filePath = fileToken.getFilePath();
+        if (filePath == null) {
+            return backend == archivos ? fileToken.getFileName() : "";
+        }
+        return segmentos.reconoce(filePath) ? filePath : Paths.get(filePath).getFileName().toString();
+    }
+    
+    /** Si el contenido de {@link #sharedLocation} de la réplica {@code replica} ya está publicado. */
+    public boolean existsShared(String replica, String ubicacion) {
+        Resource recurso = openShared(replica, ubicacion);
+        return recurso != null && recurso.exists();
+    }
+    
+    /**
+     * Abre para leer un contenido escrito por cualquier réplica, sin pasar por el
+     * índice de tokens ni contar descargas; la validez la decidió quien llama.
+     *
+     * @return el recurso, o {@code null} si la ubicación no es válida o ya no existe
+     */
+    public Resource openShared(String replica, String ubicacion) {
+        if ((!replica.isEmpty() && !isPlainName(replica)) || ubicacion.isEmpty()) {
+            return null;
+        }
+        Path directorio = replica.isEmpty() ? sharedDir : sharedDir.resolve(replica);
+        try {
+            if (segmentos.reconoce(ubicacion)) {
+                return SegmentStore.recursoEn(directorio, ubicacion);
+            }
+            if (!isPlainName(ubicacion)) {
+                return null;
+            }
+            Path ruta = directorio.resolve(ubicacion);
+            return Files.isRegularFile(ruta) ? new FileSystemResource(ruta) : null;
+        } catch (IOException | IllegalArgumentException e) {
+            return null;
+        }
+    }
+    
+    // Un solo componente de ruta: nada de separadores ni de "..", que saldrían del directorio compartido
+    private static boolean isPlainName(String nombre) {
+        return !nombre.isEmpty() && !nombre.equals(".") && !nombre.equals("..")
+            && nombre.indexOf('/') < 0 && nombre.indexOf('\\') < 0;
+    }
+    
+    /** Tokens vivos en memoria, incluidos los de cifrados aún en curso. */
+    public int getActiveTokenCount() {
+        return tokenStorage.size();
+    }
+    
+    /** Bytes cifrados en disco, contando una sola vez los archivos compartidos. */
+    public long getStoredBytes() {
+        return storedBytes.get();
+    }
+    
+    /** Memoria directa ocupada por la cache de archivos recientes. */
+    public long getCachedBytes() {
+        return cache.getBytes();
+    }
+    
+    /** Archivos distintos en disco, contando una sola vez los compartidos. */
+    public int getStoredFileCount() {
+        return references.size();
+    }
+    
+    private void logRemoval(String token) {
+        try {
+            tokenLog.baja(token);
+        } catch (IOException e) {
+            // Sin la baja el token reaparece al reiniciar, pero vence igual por su expiresAt
+            log.warn("Error registrando baja de token {}: {}", token, e.getMessage());
+        }
+    }
+    
+    /** Reescribe el registro de tokens cuando las bajas y altas muertas superan a los vivos. */
+    private void compactIfNeeded() {
+        if (tokenLog.getRegistros() > 2L * tokenStorage.size() + 1024) {
+            Lock logLock = downloadLogLock.writeLock();
+            logLock.lock();
+            try {
+                tokenLog.compactar(tokenStorage.values());
+                log.info("Registro de tokens compactado: {} registros", tokenLog.getRegistros());
+            } catch (IOException e) {
+                log.error("Error compactando registro de tokens", e);
+            } finally {
+                logLock.unlock();
+            }
+        }
+    }
+    
+    /**
+     * Recurso de la última descarga permitida: borra el token y el archivo cuando
+     * se cierra el flujo de envío, se haya completado o no. Por eso admite un único
+     * rango por petición; {@link #openDownload} rechaza antes los varios rangos.
+     */
+    private static class DeleteOnCloseResource extends AbstractResource {
+        private final Resource delegate;
+        private final Runnable onClose;
+        private final AtomicBoolean closed = new AtomicBoolean();
+        
+        DeleteOnCloseResource(Resource delegate, Runnable onClose) {
+            this.delegate = delegate;
+            this.onClose = onClose;
+        }
+        
+        @Override
+        public boolean exists() {
+            return delegate.exists();
+        }
+        
+        @Override
+        public long contentLength() throws IOException {
+            return delegate.contentLength();
+        }
+        
+        @Override
+        public String getFilename() {
+            return delegate.getFilename();
+        }
+        
+        @Override
+        public String getDescription() {
+            return delegate.getDescription();
+        }
+        
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return new FilterInputStream(delegate.getInputStream()) {
+                @Override
+                public void close() throws IOException {
+                    try {
+                        super.close();
+                    } finally {
+                        if (closed.compareAndSet(false, true)) {
+                            onClose.run();
+                        }
+                    }
+                }
+            };
+        }
+    }
+    
+    /** La última descarga permitida pide varios rangos: se responde 416 sin consumirla. */
+    public static class VariosRangosException extends RuntimeException {
+        private static final long serialVersionUID = 1L;
+        
+        VariosRangosException() {
+            super("La última descarga permitida admite un solo rango");
         }
     }
     
@@ -110,36 +765,40 @@ public class FileStorageService {
         return "";
     }
     
-    private void startCleanupTask() {
-        // Ejecutar limpieza cada hora
-        Thread cleanupThread = new Thread(() -> {
-            while (true) {
-                try {
-                    Thread.sleep(3600000); // 1 hora
-                    cleanupExpiredFiles();
-                } catch (InterruptedException e) {
-                    break;
-                }
-            }
-        });
-        cleanupThread.setDaemon(true);
-        cleanupThread.start();
+    /** Expiraciones programadas pendientes de vencer. */
+    public int getPendingExpirations() {
+        return expiryScheduler.getPendientes();
     }
     
-    private void cleanupExpiredFiles() {
-        LocalDateTime now = LocalDateTime.now();
-        tokenStorage.entrySet().removeIf(entry -> {
-            FileToken token = entry.getValue();
-            if (token.isExpired()) {
+    /** Duración del último lote de expiración, en milisegundos. */
+    public double getLastSweepMillis() {
+        return expiryScheduler.getUltimoBarridoNanos() / 1_000_000.0;
+    }
+    
+    private void expireTokens(List<String> tokens) {
+        long inicio = System.nanoTime();
+        for (String token : tokens) {
+            FileToken fileToken = tokenStorage.get(token);
+            // El token pudo borrarse antes (descarga, borrado manual): nada que hacer
+            if (fileToken == null) {
+                continue;
+            }
+            // Reloj de pared y nanoTime pueden diferir unos milisegundos: se reprograma
+            if (!fileToken.isExpired()) {
+                expiryScheduler.schedule(token, fileToken.getExpiresAt());
+                continue;
+            }
+            if (tokenStorage.remove(token, fileToken)) {
+                logRemoval(token);
                 try {
-                    Files.deleteIfExists(Paths.get(token.getFilePath()));
-                    System.out.println("Archivo expirado eliminado: " + token.getFileName());
+                    releaseFile(fileToken);
                 } catch (IOException e) {
-                    System.err.println("Error eliminando archivo expirado: " + e.getMessage());
+                    log.warn("Error eliminando archivo expirado {}: {}", fileToken.getFileName(), e.getMessage());
                 }
-                return true;
             }
-            return false;
-        });
+        }
+        log.debug("Lote de expiración procesado: {} tokens", tokens.size());
+        compactIfNeeded();
+        expireTimer.record(System.nanoTime() - inicio, TimeUnit.NANOSECONDS);
     }
-}
\ No newline at end of file
+}
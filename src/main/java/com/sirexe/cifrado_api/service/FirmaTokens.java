@@ -0,0 +1,214 @@
+package com.sirexe.cifradoapi.service;
+
+import com.sirexe.cifradoapi.crypto.Compresion;
+import com.sirexe.cifradoapi.crypto.Formato;
+import com.sirexe.cifradoapi.crypto.MaterialClaves;
+import com.sirexe.cifradoapi.crypto.Suite;
+import com.sirexe.cifradoapi.model.FileToken;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Base64;
+
+/**
+ * Tokens de descarga autocontenidos: {@code base64url(datos).base64url(hmac)}.
+ *
+ * Los datos llevan todo lo necesario para servir la descarga sin consultar el
+ * índice de tokens: réplica que escribió el archivo, ubicación relativa a su
+ * directorio, nombre de descarga, vigencia y opciones de cifrado. La firma es
+ * HMAC-SHA256 con una clave derivada de la clave privada del keystore, así que
+ * cualquier réplica con el mismo keystore valida los tokens de las demás.
+ *
+ * Las fechas viajan como instantes (milisegundos desde la época) convertidos con
+ * la zona del sistema, así que réplicas en zonas distintas coinciden en la vigencia.
+ */
+public final class FirmaTokens {
+
+    private static final String ALGORITMO = "HmacSHA256";
+    private static final byte[] ETIQUETA = "cifrado-api tokens de descarga v1".getBytes(StandardCharsets.UTF_8);
+    private static final byte VERSION = 1;
+    private static final char SEPARADOR = '.';
+
+    private static final Base64.Encoder CODIFICADOR = Base64.getUrlEncoder().withoutPadding();
+    private static final Base64.Decoder DECODIFICADOR = Base64.getUrlDecoder();
+
+    private final String version;
+    private final Mac prototipo;
+
+    /**
+     * @throws IllegalStateException si el material no trae la clave privada
+     *                               (falta {@code cifrado.keystore.password})
+     */
+    public FirmaTokens(MaterialClaves material) {
+        if (material.getClavePrivada() == null || material.getClavePrivada().getEncoded() == null) {
+            throw new IllegalStateException(
+                "Los tokens firmados necesitan la clave privada del keystore (cifrado.keystore.password)");
+        }
+        this.version = material.getVersion();
+        try {
+            Mac derivacion = Mac.getInstance(ALGORITMO);
+            derivacion.init(new SecretKeySpec(material.getClavePrivada().getEncoded(), ALGORITMO));
+            byte[] clave = derivacion.doFinal(ETIQUETA);
+            this.prototipo = Mac.getInstance(ALGORITMO);
+            this.prototipo.init(new SecretKeySpec(clave, ALGORITMO));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("No se pudo derivar la clave de firma de tokens", e);
+        }
+    }
+
+    /** Versión del keystore de la que sale la clave de firma. */
+    public String getVersion() {
+        return version;
+    }
+
+    /** Distingue un token firmado de un identificador simple (UUID). */
+    public static boolean esFirmado(String token) {
+        return token.indexOf(SEPARADOR) > 0;
+    }
+
+    public String firmar(FileToken fileToken, String replica, String ubicacion) {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(256);
+        try (DataOutputStream datos = new DataOutputStream(bytes)) {
+            datos.writeByte(VERSION);
+            datos.writeUTF(version);
+            datos.writeUTF(fileToken.getToken());
+            datos.writeUTF(replica);
+            datos.writeUTF(ubicacion);
+            datos.writeUTF(fileToken.getOriginalName());
+            datos.writeLong(aMilis(fileToken.getCreatedAt()));
+            datos.writeLong(aMilis(fileToken.getExpiresAt()));
+            datos.writeInt(fileToken.getMaxDownloads());
+            datos.writeLong(fileToken.getFileSize());
+            datos.writeByte(fileToken.getCompression().getBandera());
+            datos.writeByte(fileToken.getFormat().getCodigo());
+            datos.writeByte(fileToken.getSuite().getCodigo());
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        byte[] contenido = bytes.toByteArray();
+        return CODIFICADOR.encodeToString(contenido) + SEPARADOR + CODIFICADOR.encodeToString(mac(contenido));
+    }
+
+    /**
+     * Comprueba la firma y decodifica el token. No mira la vigencia: eso queda
+     * para quien llama, que ya tiene la fecha de expiración en el resultado.
+     *
+     * @return los datos firmados, o {@code null} si el token está mal formado,
+     *         fue alterado o lo firmó otra clave
+     */
+    public Firmado verificar(String token) {
+        int separador = token.indexOf(SEPARADOR);
+        if (separador <= 0 || token.indexOf(SEPARADOR, separador + 1) >= 0) {
+            return null;
+        }
+        byte[] contenido;
+        byte[] firma;
+        try {
+            contenido = DECODIFICADOR.decode(token.substring(0, separador));
+            firma = DECODIFICADOR.decode(token.substring(separador + 1));
+        } catch (IllegalArgumentException e) {
+            return null;
+        }
+        if (!MessageDigest.isEqual(firma, mac(contenido))) {
+            return null;
+        }
+
+        try (DataInputStream datos = new DataInputStream(new ByteArrayInputStream(contenido))) {
+            if (datos.readByte() != VERSION || !version.equals(datos.readUTF())) {
+                return null;
+            }
+            FileToken fileToken = new FileToken();
+            fileToken.setToken(datos.readUTF());
+            String replica = datos.readUTF();
+            String ubicacion = datos.readUTF();
+            fileToken.setOriginalName(datos.readUTF());
+            fileToken.setCreatedAt(deMilis(datos.readLong()));
+            fileToken.setExpiresAt(deMilis(datos.readLong()));
+            fileToken.setMaxDownloads(datos.readInt());
+            fileToken.setFileSize(datos.readLong());
+            fileToken.setCompression(compresion(datos.readByte()));
+            fileToken.setFormat(formato(datos.readByte()));
+            fileToken.setSuite(suite(datos.readByte()));
+            return new Firmado(fileToken, replica, ubicacion);
+        } catch (IOException e) {
+            // Firma válida pero datos truncados: solo pasa con un token de otra versión
+            return null;
+        }
+    }
+
+    private byte[] mac(byte[] contenido) {
+        try {
+            Mac mac = (Mac) prototipo.clone();
+            return mac.doFinal(contenido);
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static Compresion compresion(byte bandera) {
+        for (Compresion compresion : Compresion.values()) {
+            if (compresion.getBandera() == bandera) {
+                return compresion;
+            }
+        }
+        return Compresion.NINGUNA;
+    }
+
+    private static Formato formato(byte codigo) {
+        for (Formato formato : Formato.values()) {
+            if (formato.getCodigo() == codigo) {
+                return formato;
+            }
+        }
+        return Formato.CLASICO;
+    }
+
+    private static Suite suite(byte codigo) {
+        for (Suite suite : Suite.values()) {
+            if (suite.getCodigo() == codigo) {
+                return suite;
+            }
+        }
+        return Suite.TDES;
+    }
+
+    private static long aMilis(LocalDateTime fecha) {
+        return fecha.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime deMilis(long milis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(milis), ZoneId.systemDefault());
+    }
+
+    /** Contenido de un token con firma válida. */
+    public static final class Firmado {
+        private final FileToken fileToken;
+        private final String replica;
+        private final String ubicacion;
+
+        Firmado(FileToken fileToken, String replica, String ubicacion) {
+            this.fileToken = fileToken;
+            this.replica = replica;
+            this.ubicacion = ubicacion;
+        }
+
+        /** Token reconstruido desde la firma: sin ruta local ni contador de descargas. */
+        public FileToken getFileToken() { return fileToken; }
+
+        public String getReplica() { return replica; }
+
+        /** Ubicación relativa al directorio de la réplica; vacía si no se conocía al emitir. */
+        public String getUbicacion() { return ubicacion; }
+    }
+}
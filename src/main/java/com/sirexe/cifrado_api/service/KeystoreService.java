@@ -0,0 +1,154 @@
+package com.sirexe.cifradoapi.service;
+
+import com.sirexe.cifradoapi.config.CifradoProperties;
+import com.sirexe.cifradoapi.crypto.MaterialClaves;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileTime;
+import java.security.Key;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.cert.Certificate;
+import java.security.cert.X509Certificate;
+import java.time.Instant;
+
+/**
+ * Carga transferencia.jks una sola vez y mantiene en memoria el material de claves.
+ * Si el keystore se lee desde disco ({@code cifrado.keystore.ruta}) se vuelve a
+ * cargar cuando cambia la fecha de modificación del archivo.
+ */
+@Service
+public class KeystoreService {
+
+    private static final Logger log = LoggerFactory.getLogger(KeystoreService.class);
+
+    private final CifradoProperties.Keystore config;
+
+    private volatile MaterialClaves material;
+    private volatile FileTime modificadoEn;
+    private volatile long ultimaRevision;
+    private Path directorioClaves;
+    private String versionMaterializada;
+
+    public KeystoreService(CifradoProperties propiedades) {
+        this.config = propiedades.getKeystore();
+    }
+
+    @PostConstruct
+    public void inicializar() throws Exception {
+        material = cargar();
+        log.info("Keystore cargado (versión {})", material.getVersion());
+        if (config.getRuta() == null) {
+            // Un recurso del classpath no cambia sin redesplegar: intervalo-recarga no aplica
+            log.info("Keystore {} del classpath: sin recarga en caliente (requiere cifrado.keystore.ruta)",
+                config.getRecurso());
+        }
+    }
+
+    /** Material de claves vigente; revisa si hay que recargar como mucho una vez por intervalo. */
+    public MaterialClaves getMaterial() {
+        if (config.getRuta() != null) {
+            long ahora = System.currentTimeMillis();
+            if (ahora - ultimaRevision >= config.getIntervaloRecarga().toMillis()) {
+                revisarCambios(ahora);
+            }
+        }
+        return material;
+    }
+
+    /**
+     * Directorio en disco con transferencia.jks para la librería externa.
+     * Se materializa una sola vez por versión de claves, no en cada petición.
+     */
+    public synchronized String getDirectorioClaves() throws IOException {
+        MaterialClaves actual = getMaterial();
+        if (config.getRuta() != null) {
+            return Paths.get(config.getRuta()).toAbsolutePath().getParent() + "/";
+        }
+        if (directorioClaves == null) {
+            directorioClaves = Files.createTempDirectory("keystore_");
+        }
+        if (!actual.getVersion().equals(versionMaterializada)) {
+            Files.write(directorioClaves.resolve(Paths.get(config.getRecurso()).getFileName()), actual.getContenido());
+            versionMaterializada = actual.getVersion();
+        }
+        return directorioClaves.toString() + "/";
+    }
+
+    private synchronized void revisarCambios(long ahora) {
+        if (ahora - ultimaRevision < config.getIntervaloRecarga().toMillis()) {
+            return;
+        }
+        ultimaRevision = ahora;
+        try {
+            FileTime actual = Files.getLastModifiedTime(Paths.get(config.getRuta()));
+            if (!actual.equals(modificadoEn)) {
+                MaterialClaves nuevo = cargar();
+                if (!nuevo.getVersion().equals(material.getVersion())) {
+                    material = nuevo;
+                    log.info("Keystore recargado (versión {})", nuevo.getVersion());
+                }
+            }
+        } catch (Exception e) {
+            // Se conserva el material anterior: una rotación a medio copiar no debe tumbar el cifrado
+            log.warn("Error recargando keystore, se mantiene la versión {}: {}", material.getVersion(), e.getMessage());
+        }
+    }
+
+    private MaterialClaves cargar() throws Exception {
+        byte[] contenido = leerContenido();
+
+        char[] password = config.getPassword() != null ? config.getPassword().toCharArray() : null;
+        KeyStore keyStore = KeyStore.getInstance("JKS");
+        keyStore.load(new ByteArrayInputStream(contenido), password);
+
+        Certificate certificado = keyStore.getCertificate(config.getAlias());
+        if (!(certificado instanceof X509Certificate)) {
+            throw new IllegalStateException("No existe un certificado con alias '" + config.getAlias() + "' en el keystore");
+        }
+
+        PrivateKey clavePrivada = null;
+        if (password != null && keyStore.isKeyEntry(config.getAlias())) {
+            Key clave = keyStore.getKey(config.getAlias(), password);
+            if (clave instanceof PrivateKey) {
+                clavePrivada = (PrivateKey) clave;
+            }
+        }
+
+        return new MaterialClaves(certificado.getPublicKey(), (X509Certificate) certificado, clavePrivada,
+            huella(contenido), contenido, Instant.now());
+    }
+
+    private byte[] leerContenido() throws IOException {
+        if (config.getRuta() != null) {
+            Path ruta = Paths.get(config.getRuta());
+            modificadoEn = Files.getLastModifiedTime(ruta);
+            return Files.readAllBytes(ruta);
+        }
+        try (InputStream recurso = getClass().getClassLoader().getResourceAsStream(config.getRecurso())) {
+            if (recurso == null) {
+                throw new IOException("No se encontró el keystore en resources: " + config.getRecurso());
+            }
+            return recurso.readAllBytes();
+        }
+    }
+
+    private static String huella(byte[] contenido) throws Exception {
+        byte[] digest = MessageDigest.getInstance("SHA-256").digest(contenido);
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < 8; i++) {
+            hex.append(String.format("%02x", digest[i]));
+        }
+        return hex.toString();
+    }
+}
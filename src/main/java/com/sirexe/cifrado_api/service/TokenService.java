@@ -0,0 +1,216 @@
+package com.sirexe.cifradoapi.service;
+
+import com.sirexe.cifradoapi.config.CifradoProperties;
+import com.sirexe.cifradoapi.crypto.MaterialClaves;
+import com.sirexe.cifradoapi.model.FileToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.Resource;
+import org.springframework.stereotype.Service;
+
+import java.util.function.BooleanSupplier;
+
+/**
+ * Emite y resuelve los tokens que ve el cliente.
+ *
+ * Con {@code cifrado.tokens.firmados=false} el token es el identificador interno
+ * y todo se resuelve en el índice de {@link FileStorageService}. Con tokens
+ * firmados ({@link FirmaTokens}) la firma y la vigencia se comprueban antes de
+ * tocar el almacenamiento, y un token emitido por otra réplica se sirve leyendo
+ * directamente su ubicación en el directorio compartido, sin estado común.
+ *
+ * El contador de descargas solo existe en la réplica emisora, así que con
+ * tokens firmados no se emiten tokens con {@code maxDescargas}.
+ */
+@Service
+public class TokenService {
+
+    private static final Logger log = LoggerFactory.getLogger(TokenService.class);
+
+    public static final String ERROR_DESCARGAS_LIMITADAS = "maxDescargas no se admite con tokens firmados: "
+        + "el contador de descargas no se comparte entre réplicas";
+
+    private final FileStorageService fileStorageService;
+    private final KeystoreService keystoreService;
+    private final boolean firmados;
+
+    // Tras rotar el keystore se sigue aceptando la clave anterior hasta la siguiente rotación,
+    // así los tokens ya entregados no se invalidan antes de vencer
+    private volatile FirmaTokens actual;
+    private volatile FirmaTokens anterior;
+
+    public TokenService(CifradoProperties propiedades, KeystoreService keystoreService,
+                        FileStorageService fileStorageService) {
+        this.fileStorageService = fileStorageService;
+        this.keystoreService = keystoreService;
+        this.firmados = propiedades.getTokens().isFirmados();
+        if (firmados) {
+            if (propiedades.getTokens().getDescargasPorDefecto() > 0) {
+                throw new IllegalStateException("cifrado.tokens.descargas-por-defecto debe ser 0 con "
+                    + "cifrado.tokens.firmados=true: el contador de descargas no se comparte entre réplicas");
+            }
+            // Sin clave privada no hay firma: mejor no arrancar que emitir tokens que nadie valida
+            this.actual = new FirmaTokens(keystoreService.getMaterial());
+        }
+    }
+
+    public boolean isFirmados() {
+        return firmados;
+    }
+
+    /**
+     * Token público de {@code fileToken}: firmado, o su identificador si la firma está desactivada.
+     *
+     * @throws IllegalArgumentException si los tokens son firmados y {@code fileToken} limita las descargas
+     */
+    public String emitir(FileToken fileToken) {
+        if (!firmados) {
+            return fileToken.getToken();
+        }
+        if (fileToken.getMaxDownloads() > 0) {
+            throw new IllegalArgumentException(ERROR_DESCARGAS_LIMITADAS);
+        }
+        return firma().firmar(fileToken, fileStorageService.getReplica(),
+            fileStorageService.sharedLocation(fileToken));
+    }
+
+    /**
+     * Resuelve un token público. Un token firmado de esta réplica se busca en su
+     * índice; uno de otra réplica se reconstruye desde la firma.
+     *
+     * @return el token, o {@code null} si no existe, expiró o la firma no es válida
+     */
+    public FileToken resolver(String token) {
+        if (!firmados || !FirmaTokens.esFirmado(token)) {
+            // Identificadores simples, incluidos los emitidos antes de activar la firma
+            return fileStorageService.getFileToken(token);
+        }
+        FirmaTokens.Firmado firmado = verificar(token);
+        if (firmado == null) {
+            log.debug("Token con firma no válida rechazado");
+            return null;
+        }
+        FileToken datos = firmado.getFileToken();
+        if (datos.isExpired()) {
+            return null;
+        }
+        if (firmado.getReplica().equals(fileStorageService.getReplica())) {
+            // Nuestro: si ya no está en el índice se agotó o se borró
+            return fileStorageService.getFileToken(datos.getToken());
+        }
+        return new TokenCompartido(datos, firmado.getReplica(), firmado.getUbicacion(),
+            () -> fileStorageService.existsShared(firmado.getReplica(), firmado.getUbicacion()));
+    }
+
+    /** Token emitido por otra réplica y servido desde el almacenamiento compartido. */
+    public boolean esCompartido(FileToken fileToken) {
+        return fileToken instanceof TokenCompartido;
+    }
+
+    /**
+     * Consume una descarga del token resuelto con {@link #resolver}.
+     *
+     * @param variosRangos la petición pide más de un rango
+     * @return el recurso, o {@code null} si no hay descargas disponibles o el contenido ya no está
+     * @throws FileStorageService.VariosRangosException si es la última descarga y pide varios rangos
+     */
+    public Resource abrirDescarga(FileToken fileToken, boolean variosRangos) {
+        if (!(fileToken instanceof TokenCompartido)) {
+            return fileStorageService.openDownload(fileToken.getToken(), variosRangos);
+        }
+        if (fileToken.getMaxDownloads() > 0) {
+            // Firmado antes de que se rechazaran los límites con tokens firmados: solo lo cuenta su réplica
+            return null;
+        }
+        TokenCompartido compartido = (TokenCompartido) fileToken;
+        return fileStorageService.openShared(compartido.replica, compartido.ubicacion);
+    }
+
+    /**
+     * Abre el contenido del token resuelto con {@link #resolver} sin consumir
+     * descargas, para verificarlo en el servidor o responder un HEAD o un rango que
+     * reanuda una descarga. Cualquier réplica puede hacerlo, también con tokens de
+     * descargas limitadas.
+     *
+     * @return el recurso, o {@code null} si el contenido no está listo o ya no está
+     */
+    public Resource abrirContenido(FileToken fileToken) {
+        if (!(fileToken instanceof TokenCompartido)) {
+            return fileStorageService.openContent(fileToken.getToken());
+        }
+        TokenCompartido compartido = (TokenCompartido) fileToken;
+        return fileStorageService.openShared(compartido.replica, compartido.ubicacion);
+    }
+
+    private FirmaTokens.Firmado verificar(String token) {
+        firma();
+        FirmaTokens.Firmado firmado = actual.verificar(token);
+        FirmaTokens previa = anterior;
+        if (firmado == null && previa != null) {
+            firmado = previa.verificar(token);
+        }
+        return firmado;
+    }
+
+    private FirmaTokens firma() {
+        MaterialClaves material = keystoreService.getMaterial();
+        FirmaTokens vigente = actual;
+        if (!vigente.getVersion().equals(material.getVersion())) {
+            synchronized (this) {
+                if (!actual.getVersion().equals(material.getVersion())) {
+                    try {
+                        FirmaTokens nueva = new FirmaTokens(material);
+                        anterior = actual;
+                        actual = nueva;
+                        log.info("Clave de firma de tokens rotada (versión {})", material.getVersion());
+                    } catch (IllegalStateException e) {
+                        // Keystore nuevo sin clave privada: se sigue firmando con la anterior
+                        log.warn("Se mantiene la clave de firma {}: {}", actual.getVersion(), e.getMessage());
+                    }
+                }
+                vigente = actual;
+            }
+        }
+        return vigente;
+    }
+
+    private static final class TokenCompartido extends FileToken {
+        private final String replica;
+        private final String ubicacion;
+        private BooleanSupplier publicado;
+
+        TokenCompartido(FileToken datos, String replica, String ubicacion, BooleanSupplier publicado) {
+            this.replica = replica;
+            this.ubicacion = ubicacion;
+            setToken(datos.getToken());
+            setOriginalName(datos.getOriginalName());
+            setCreatedAt(datos.getCreatedAt());
+            setExpiresAt(datos.getExpiresAt());
+            setMaxDownloads(datos.getMaxDownloads());
+            setFileSize(datos.getFileSize());
+            setCompression(datos.getCompression());
+            setFormat(datos.getFormat());
+            setSuite(datos.getSuite());
+            // Con tamaño, el archivo ya estaba completo al firmar y no hace falta mirar el almacenamiento
+            setStatus(Status.DONE);
+            if (datos.getFileSize() == 0) {
+                this.publicado = publicado;
+            }
+        }
+
+        /** Un trabajo en segundo plano de otra réplica aparece cuando su archivo se publica. */
+        @Override
+        public Status getStatus() {
+            if (publicado != null) {
+                setStatus(publicado.getAsBoolean() ? Status.DONE : Status.PENDING);
+                publicado = null;
+            }
+            return super.getStatus();
+        }
+
+        @Override
+        public boolean isReady() {
+            return getStatus() == Status.DONE;
+        }
+    }
+}
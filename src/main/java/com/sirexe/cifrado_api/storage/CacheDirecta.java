@@ -0,0 +1,253 @@
+package com.sirexe.cifradoapi.storage;
+
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache LRU de archivos cifrados recién escritos, en memoria directa para no
+ * crecer el heap. La clave es la ubicación del archivo en el backend, así que
+ * los tokens que comparten archivo comparten también la entrada.
+ *
+ * Las entradas se llenan al escribir (ver {@link #nuevaCaptura}), no al leer:
+ * casi todas las descargas llegan segundos después del cifrado. La memoria de
+ * una entrada desalojada se libera cuando el GC recoge su buffer, por lo que
+ * {@code -XX:MaxDirectMemorySize} debe dejar margen sobre la capacidad.
+ */
+public class CacheDirecta {
+
+    private static final int CAPTURA_INICIAL = 8 * 1024;
+
+    private final long capacidad;
+    private final long entradaMaxima;
+    private final LinkedHashMap<String, ByteBuffer> entradas = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong aciertos = new AtomicLong();
+    private final AtomicLong fallos = new AtomicLong();
+    private final AtomicLong desalojos = new AtomicLong();
+
+    /** @param capacidad bytes totales; 0 desactiva la cache */
+    public CacheDirecta(long capacidad, long entradaMaxima) {
+        this.capacidad = capacidad;
+        this.entradaMaxima = Math.min(entradaMaxima, capacidad);
+    }
+
+    /** Copia de la entrada en el heap, o {@code null} si no está. */
+    public byte[] leer(String clave) {
+        ByteBuffer buffer = obtener(clave);
+        if (buffer == null) {
+            return null;
+        }
+        byte[] contenido = new byte[buffer.remaining()];
+        buffer.get(contenido);
+        return contenido;
+    }
+
+    /**
+     * La entrada como {@link Resource} para enviarla en streaming, o {@code null}
+     * si no está. Sigue siendo legible aunque la entrada se invalide después.
+     */
+    public Resource recurso(String clave) {
+        ByteBuffer buffer = obtener(clave);
+        return buffer != null ? new RecursoDirecto(buffer) : null;
+    }
+
+    public synchronized void invalidar(String clave) {
+        ByteBuffer anterior = entradas.remove(clave);
+        if (anterior != null) {
+            bytes -= anterior.capacity();
+        }
+    }
+
+    /**
+     * Empieza a capturar un contenido que se está escribiendo. Si supera
+     * {@code entradaMaxima} la captura se abandona sin afectar a la escritura.
+     */
+    public Captura nuevaCaptura() {
+        return new Captura();
+    }
+
+    public long getAciertos() { return aciertos.get(); }
+
+    public long getFallos() { return fallos.get(); }
+
+    public long getDesalojos() { return desalojos.get(); }
+
+    public synchronized long getBytes() { return bytes; }
+
+    public synchronized int getEntradas() { return entradas.size(); }
+
+    private ByteBuffer obtener(String clave) {
+        if (capacidad <= 0) {
+            return null;
+        }
+        ByteBuffer buffer;
+        synchronized (this) {
+            buffer = entradas.get(clave);
+        }
+        if (buffer == null) {
+            fallos.incrementAndGet();
+            return null;
+        }
+        aciertos.incrementAndGet();
+        // Cada lector recorre su propia vista; el contenido nunca se modifica
+        return buffer.asReadOnlyBuffer();
+    }
+
+    private synchronized void guardar(String clave, ByteBuffer buffer) {
+        ByteBuffer anterior = entradas.put(clave, buffer);
+        bytes += buffer.capacity() - (anterior != null ? anterior.capacity() : 0);
+        Iterator<Map.Entry<String, ByteBuffer>> antiguas = entradas.entrySet().iterator();
+        while (bytes > capacidad && antiguas.hasNext()) {
+            bytes -= antiguas.next().getValue().capacity();
+            antiguas.remove();
+            desalojos.incrementAndGet();
+        }
+    }
+
+    /** Copia en memoria directa lo que pasa por {@link #envolver} mientras quepa. */
+    public final class Captura {
+        private ByteBuffer buffer;
+        private boolean descartada = capacidad <= 0;
+
+        private Captura() {
+        }
+
+        public OutputStream envolver(OutputStream destino) {
+            if (descartada) {
+                return destino;
+            }
+            return new OutputStream() {
+                @Override
+                public void write(int b) throws IOException {
+                    destino.write(b);
+                    capturar(new byte[] {(byte) b}, 0, 1);
+                }
+
+                @Override
+                public void write(byte[] datos, int desde, int longitud) throws IOException {
+                    destino.write(datos, desde, longitud);
+                    capturar(datos, desde, longitud);
+                }
+
+                @Override
+                public void flush() throws IOException {
+                    destino.flush();
+                }
+
+                @Override
+                public void close() throws IOException {
+                    destino.close();
+                }
+            };
+        }
+
+        /** Guarda lo capturado bajo {@code clave}; se llama cuando la escritura terminó bien. */
+        public void publicar(String clave) {
+            if (descartada) {
+                return;
+            }
+            ByteBuffer contenido = buffer != null ? buffer : ByteBuffer.allocateDirect(0);
+            contenido.flip();
+            // El buffer creció duplicándose: se ajusta para que la capacidad cuente solo bytes útiles
+            if (contenido.remaining() < contenido.capacity()) {
+                ByteBuffer ajustado = ByteBuffer.allocateDirect(contenido.remaining());
+                ajustado.put(contenido).flip();
+                contenido = ajustado;
+            }
+            descartada = true;
+            buffer = null;
+            guardar(clave, contenido);
+        }
+
+        private void capturar(byte[] datos, int desde, int longitud) {
+            if (descartada) {
+                return;
+            }
+            long necesario = (buffer != null ? buffer.position() : 0) + (long) longitud;
+            if (necesario > entradaMaxima) {
+                descartada = true;
+                buffer = null;
+                return;
+            }
+            if (buffer == null || buffer.remaining() < longitud) {
+                long nueva = Math.max(CAPTURA_INICIAL, buffer != null ? buffer.capacity() : 0);
+                while (nueva < necesario) {
+                    nueva *= 2;
+                }
+                ByteBuffer mayor = ByteBuffer.allocateDirect((int) Math.min(nueva, entradaMaxima));
+                if (buffer != null) {
+                    buffer.flip();
+                    mayor.put(buffer);
+                }
+                buffer = mayor;
+            }
+            buffer.put(datos, desde, longitud);
+        }
+    }
+
+    private static final class RecursoDirecto extends AbstractResource {
+        private final ByteBuffer contenido;
+
+        RecursoDirecto(ByteBuffer contenido) {
+            this.contenido = contenido;
+        }
+
+        @Override
+        public boolean exists() {
+            return true;
+        }
+
+        @Override
+        public long contentLength() {
+            return contenido.remaining();
+        }
+
+        @Override
+        public String getDescription() {
+            return "cache directa [" + contenido.remaining() + " bytes]";
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            ByteBuffer vista = contenido.duplicate();
+            return new InputStream() {
+                @Override
+                public int read() {
+                    return vista.hasRemaining() ? vista.get() & 0xFF : -1;
+                }
+
+                @Override
+                public int read(byte[] destino, int desde, int longitud) {
+                    if (!vista.hasRemaining()) {
+                        return longitud == 0 ? 0 : -1;
+                    }
+                    int n = Math.min(longitud, vista.remaining());
+                    vista.get(destino, desde, n);
+                    return n;
+                }
+
+                @Override
+                public long skip(long n) {
+                    int saltados = (int) Math.max(0, Math.min(n, vista.remaining()));
+                    vista.position(vista.position() + saltados);
+                    return saltados;
+                }
+
+                @Override
+                public int available() {
+                    return vista.remaining();
+                }
+            };
+        }
+    }
+}
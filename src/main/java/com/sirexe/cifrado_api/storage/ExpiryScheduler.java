@@ -0,0 +1,157 @@
+package com.sirexe.cifradoapi.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.Closeable;
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * Programa la expiración de cada token para el momento exacto de su {@code expiresAt}
+ * en lugar de recorrer todos los tokens periódicamente.
+ *
+ * Un hilo despachador espera en una {@link DelayQueue} y, cuando vence el primer
+ * token, junta en un lote los que también hayan vencido. Los lotes se procesan en
+ * un ejecutor acotado; si está lleno el propio despachador procesa el lote, lo que
+ * frena la entrada de más trabajo en vez de acumularlo en memoria.
+ */
+public class ExpiryScheduler implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(ExpiryScheduler.class);
+
+    private final DelayQueue<Expiracion> cola = new DelayQueue<>();
+    private final Consumer<List<String>> manejador;
+    private final int tamanoLote;
+    private final ThreadPoolExecutor borrado;
+    private final Thread despachador;
+
+    private final AtomicLong expirados = new AtomicLong();
+    private final AtomicLong ultimoBarridoNanos = new AtomicLong();
+    private final AtomicInteger lotesEnCurso = new AtomicInteger();
+
+    /**
+     * @param manejador recibe cada lote de tokens vencidos; debe tolerar tokens
+     *                  que ya fueron borrados por otra vía
+     */
+    public ExpiryScheduler(Consumer<List<String>> manejador, int hilos, int tamanoLote) {
+        this.manejador = manejador;
+        this.tamanoLote = tamanoLote;
+        AtomicInteger contador = new AtomicInteger();
+        this.borrado = new ThreadPoolExecutor(hilos, hilos, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<>(hilos * 4),
+            r -> {
+                Thread hilo = new Thread(r, "expiracion-" + contador.incrementAndGet());
+                hilo.setDaemon(true);
+                return hilo;
+            },
+            new ThreadPoolExecutor.CallerRunsPolicy());
+        this.despachador = new Thread(this::despachar, "expiracion-despachador");
+        this.despachador.setDaemon(true);
+        this.despachador.start();
+    }
+
+    public void schedule(String token, LocalDateTime expiresAt) {
+        long retraso = Duration.between(LocalDateTime.now(), expiresAt).toNanos();
+        cola.add(new Expiracion(token, System.nanoTime() + retraso));
+    }
+
+    /** Expiraciones programadas que aún no vencen (incluye tokens ya borrados a mano). */
+    public int getPendientes() {
+        return cola.size();
+    }
+
+    public long getExpirados() {
+        return expirados.get();
+    }
+
+    /** Duración del último lote procesado, en nanosegundos. */
+    public long getUltimoBarridoNanos() {
+        return ultimoBarridoNanos.get();
+    }
+
+    public int getLotesEnCurso() {
+        return lotesEnCurso.get();
+    }
+
+    @Override
+    public void close() {
+        despachador.interrupt();
+        borrado.shutdown();
+        try {
+            if (!borrado.awaitTermination(10, TimeUnit.SECONDS)) {
+                borrado.shutdownNow();
+            }
+        } catch (InterruptedException e) {
+            borrado.shutdownNow();
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void despachar() {
+        List<Expiracion> lote = new ArrayList<>(tamanoLote);
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                lote.add(cola.take());
+            } catch (InterruptedException e) {
+                return;
+            }
+            cola.drainTo(lote, tamanoLote - 1);
+
+            List<String> tokens = new ArrayList<>(lote.size());
+            for (Expiracion expiracion : lote) {
+                tokens.add(expiracion.token);
+            }
+            lote.clear();
+
+            if (borrado.isShutdown()) {
+                return;
+            }
+            lotesEnCurso.incrementAndGet();
+            borrado.execute(() -> procesar(tokens));
+        }
+    }
+
+    private void procesar(List<String> tokens) {
+        long inicio = System.nanoTime();
+        try {
+            manejador.accept(tokens);
+            expirados.addAndGet(tokens.size());
+        } catch (RuntimeException e) {
+            log.error("Error procesando lote de expiración", e);
+        } finally {
+            ultimoBarridoNanos.set(System.nanoTime() - inicio);
+            lotesEnCurso.decrementAndGet();
+        }
+    }
+
+    private static final class Expiracion implements Delayed {
+        private final String token;
+        private final long vence;
+
+        Expiracion(String token, long vence) {
+            this.token = token;
+            this.vence = vence;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unidad) {
+            return unidad.convert(vence - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed otro) {
+            return Long.compare(vence, ((Expiracion) otro).vence);
+        }
+    }
+}
@@ -0,0 +1,97 @@
+package com.sirexe.cifradoapi.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.FileSystemResource;
+import org.springframework.core.io.Resource;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+
+/**
+ * Un archivo por contenido en el directorio de subidas; la ubicación es su ruta.
+ * Se escribe a un {@code .part} y se publica con un renombrado atómico, así que
+ * nunca queda visible un archivo a medias.
+ */
+public class FileSystemBackend implements StorageBackend {
+
+    private static final Logger log = LoggerFactory.getLogger(FileSystemBackend.class);
+
+    private static final int BUFFER = 64 * 1024;
+    private static final String PARCIAL = ".part";
+
+    private final Path directorio;
+
+    public FileSystemBackend(Path directorio) {
+        this.directorio = directorio;
+    }
+
+    @Override
+    public String escribir(Escritor escritor, String nombre) throws IOException {
+        Path destino = directorio.resolve(nombre);
+        Path parcial = directorio.resolve(nombre + PARCIAL);
+        try (OutputStream salida = new BufferedOutputStream(
+                Files.newOutputStream(parcial, StandardOpenOption.CREATE_NEW), BUFFER)) {
+            escritor.escribir(salida);
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(parcial);
+            throw e;
+        }
+        Files.move(parcial, destino, StandardCopyOption.ATOMIC_MOVE);
+        return destino.toString();
+    }
+
+    /** Es el formato de siempre: cualquier ubicación que no sea de otro backend es una ruta. */
+    @Override
+    public boolean reconoce(String ubicacion) {
+        return true;
+    }
+
+    @Override
+    public boolean existe(String ubicacion) {
+        return Files.exists(Paths.get(ubicacion));
+    }
+
+    @Override
+    public long tamano(String ubicacion) throws IOException {
+        return Files.size(Paths.get(ubicacion));
+    }
+
+    @Override
+    public byte[] leer(String ubicacion) throws IOException {
+        return Files.readAllBytes(Paths.get(ubicacion));
+    }
+
+    @Override
+    public Resource recurso(String ubicacion) {
+        return new FileSystemResource(Paths.get(ubicacion));
+    }
+
+    @Override
+    public boolean borrar(String ubicacion) throws IOException {
+        return Files.deleteIfExists(Paths.get(ubicacion));
+    }
+
+    /** Los {@code .part} son escrituras que el reinicio interrumpió. */
+    @Override
+    public void recuperar(Collection<String> vivas) throws IOException {
+        try (DirectoryStream<Path> parciales = Files.newDirectoryStream(directorio, "*" + PARCIAL)) {
+            for (Path parcial : parciales) {
+                Files.deleteIfExists(parcial);
+                log.info("Escritura interrumpida descartada: {}", parcial.getFileName());
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+    }
+}
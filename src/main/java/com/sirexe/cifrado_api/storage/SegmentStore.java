@@ -0,0 +1,428 @@
+package com.sirexe.cifradoapi.storage;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.core.io.AbstractResource;
+import org.springframework.core.io.Resource;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Guarda los contenidos uno tras otro en archivos de segmento grandes en lugar
+ * de crear un archivo por token. La ubicación es {@code seg:<segmento>:<offset>:<longitud>}
+ * y las lecturas son posicionales sobre el canal del segmento.
+ *
+ * Cada escritura toma un segmento activo en exclusiva y anexa en streaming, así
+ * que escrituras simultáneas usan segmentos distintos en vez de esperar turno.
+ * Al pasar de {@code tamanoMaximo} el segmento se sella y deja de recibir datos.
+ * Un segmento sellado se borra entero cuando se borra su último contenido; como
+ * los tokens tienen vigencia máxima, todo segmento sellado se vacía a más tardar
+ * un {@code ttl-maximo} después de sellarse, sin necesidad de compactarlo.
+ */
+public class SegmentStore implements StorageBackend {
+
+    private static final Logger log = LoggerFactory.getLogger(SegmentStore.class);
+
+    private static final String PREFIJO = "seg:";
+    private static final Pattern NOMBRE = Pattern.compile("segmento-(\\d+)\\.seg");
+    private static final int BUFFER = 64 * 1024;
+
+    private final Path directorio;
+    private final long tamanoMaximo;
+    private final boolean fsync;
+    private final Map<Long, Segmento> segmentos = new ConcurrentHashMap<>();
+    // Segmentos activos que nadie está escribiendo
+    private final ConcurrentLinkedQueue<Segmento> libres = new ConcurrentLinkedQueue<>();
+    private final AtomicLong siguienteId = new AtomicLong(1);
+
+    public SegmentStore(Path directorio, long tamanoMaximo, boolean fsync) throws IOException {
+        this.directorio = directorio;
+        this.tamanoMaximo = tamanoMaximo;
+        this.fsync = fsync;
+        try (DirectoryStream<Path> archivos = Files.newDirectoryStream(directorio, "segmento-*.seg")) {
+            for (Path archivo : archivos) {
+                long id = idDe(archivo);
+                if (id >= siguienteId.get()) {
+                    siguienteId.set(id + 1);
+                }
+            }
+        }
+    }
+
+    @Override
+    public String escribir(Escritor escritor, String nombre) throws IOException {
+        Segmento segmento = libres.poll();
+        if (segmento == null) {
+            segmento = nuevo();
+        }
+        long inicio = segmento.fin;
+        boolean escrito = false;
+        try {
+            SalidaSegmento salida = new SalidaSegmento(segmento.canal, inicio);
+            try (OutputStream buffer = new BufferedOutputStream(salida, BUFFER)) {
+                escritor.escribir(buffer);
+            }
+            if (fsync) {
+                segmento.canal.force(false);
+            }
+            segmento.fin = salida.posicion;
+            segmento.vivos.incrementAndGet();
+            escrito = true;
+            return PREFIJO + segmento.id + ":" + inicio + ":" + (salida.posicion - inicio);
+        } finally {
+            if (!escrito) {
+                // Nadie más escribe en este segmento: se descarta lo que se alcanzó a anexar
+                try {
+                    segmento.canal.truncate(inicio);
+                } catch (IOException e) {
+                    log.warn("Error recortando segmento {}: {}", segmento.id, e.getMessage());
+                }
+            }
+            if (segmento.fin >= tamanoMaximo) {
+                sellar(segmento);
+            } else {
+                libres.add(segmento);
+            }
+        }
+    }
+
+    @Override
+    public boolean reconoce(String ubicacion) {
+        return ubicacion.startsWith(PREFIJO);
+    }
+
+    @Override
+    public boolean existe(String ubicacion) {
+        Ubicacion u = Ubicacion.de(ubicacion);
+        Segmento segmento = segmentos.get(u.segmento);
+        return segmento != null && u.offset + u.longitud <= segmento.fin;
+    }
+
+    @Override
+    public long tamano(String ubicacion) {
+        return Ubicacion.de(ubicacion).longitud;
+    }
+
+    @Override
+    public byte[] leer(String ubicacion) throws IOException {
+        Ubicacion u = Ubicacion.de(ubicacion);
+        if (u.longitud > Integer.MAX_VALUE - 8) {
+            throw new IOException("Contenido demasiado grande para leerlo en memoria: " + u.longitud);
+        }
+        ByteBuffer destino = ByteBuffer.allocate((int) u.longitud);
+        leerCompleto(segmento(u).canal, destino, u.offset);
+        return destino.array();
+    }
+
+    @Override
+    public Resource recurso(String ubicacion) throws IOException {
+        Ubicacion u = Ubicacion.de(ubicacion);
+        return new RecursoSegmento(segmento(u).ruta, u.offset, u.longitud);
+    }
+
+    /**
+     * Recurso de un contenido que escribió otra instancia con {@code directorio} como
+     * raíz (otra réplica sobre el mismo almacenamiento), sin abrir ni indexar sus segmentos.
+     *
+     * @return el recurso, o {@code null} si el segmento ya no existe o no llega a contenerlo
+     */
+    public static Resource recursoEn(Path directorio, String ubicacion) throws IOException {
+        Ubicacion u = Ubicacion.de(ubicacion);
+        Path ruta = directorio.resolve(nombreDe(u.segmento));
+        try {
+            if (Files.size(ruta) < u.offset + u.longitud) {
+                return null;
+            }
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        return new RecursoSegmento(ruta, u.offset, u.longitud);
+    }
+
+    @Override
+    public boolean borrar(String ubicacion) {
+        Segmento segmento = segmentos.get(Ubicacion.de(ubicacion).segmento);
+        if (segmento == null) {
+            return false;
+        }
+        if (segmento.vivos.decrementAndGet() == 0) {
+            synchronized (segmento) {
+                if (segmento.sellado && segmento.vivos.get() == 0) {
+                    eliminar(segmento);
+                }
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Los segmentos sin contenidos vivos se borran. Los demás quedan sellados:
+     * lo que se escribió tras el último contenido registrado se pierde como
+     * espacio muerto hasta que el segmento se vacía.
+     */
+    @Override
+    public void recuperar(Collection<String> vivas) throws IOException {
+        Map<Long, Integer> cuenta = new HashMap<>();
+        for (String ubicacion : vivas) {
+            if (reconoce(ubicacion)) {
+                cuenta.merge(Ubicacion.de(ubicacion).segmento, 1, Integer::sum);
+            }
+        }
+        try (DirectoryStream<Path> archivos = Files.newDirectoryStream(directorio, "segmento-*.seg")) {
+            for (Path archivo : archivos) {
+                long id = idDe(archivo);
+                Integer vivos = cuenta.get(id);
+                if (vivos == null) {
+                    Files.deleteIfExists(archivo);
+                    log.info("Segmento sin tokens vivos descartado: {}", archivo.getFileName());
+                    continue;
+                }
+                FileChannel canal = FileChannel.open(archivo, StandardOpenOption.READ, StandardOpenOption.WRITE);
+                Segmento segmento = new Segmento(id, archivo, canal);
+                segmento.fin = canal.size();
+                segmento.vivos.set(vivos);
+                segmento.sellado = true;
+                segmentos.put(id, segmento);
+            }
+        }
+    }
+
+    /** Segmentos en disco, activos y sellados. */
+    public int getSegmentos() {
+        return segmentos.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        for (Segmento segmento : segmentos.values()) {
+            segmento.canal.close();
+        }
+    }
+
+    private Segmento nuevo() throws IOException {
+        long id = siguienteId.getAndIncrement();
+        Path ruta = directorio.resolve(nombreDe(id));
+        FileChannel canal = FileChannel.open(ruta, StandardOpenOption.CREATE_NEW,
+            StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segmento segmento = new Segmento(id, ruta, canal);
+        segmentos.put(id, segmento);
+        return segmento;
+    }
+
+    private void sellar(Segmento segmento) {
+        synchronized (segmento) {
+            segmento.sellado = true;
+            if (segmento.vivos.get() == 0) {
+                eliminar(segmento);
+            }
+        }
+    }
+
+    private void eliminar(Segmento segmento) {
+        if (!segmentos.remove(segmento.id, segmento)) {
+            return;
+        }
+        try {
+            segmento.canal.close();
+            // Las descargas en curso abrieron su propio canal y terminan de leer sin problema
+            Files.deleteIfExists(segmento.ruta);
+            log.debug("Segmento eliminado: {}", segmento.ruta.getFileName());
+        } catch (IOException e) {
+            log.warn("Error eliminando segmento {}: {}", segmento.ruta.getFileName(), e.getMessage());
+        }
+    }
+
+    private Segmento segmento(Ubicacion u) throws NoSuchFileException {
+        Segmento segmento = segmentos.get(u.segmento);
+        if (segmento == null) {
+            throw new NoSuchFileException("segmento " + u.segmento);
+        }
+        return segmento;
+    }
+
+    private static String nombreDe(long id) {
+        return String.format("segmento-%08d.seg", id);
+    }
+
+    private static long idDe(Path archivo) {
+        Matcher m = NOMBRE.matcher(archivo.getFileName().toString());
+        return m.matches() ? Long.parseLong(m.group(1)) : 0;
+    }
+
+    private static void leerCompleto(FileChannel canal, ByteBuffer destino, long posicion) throws IOException {
+        while (destino.hasRemaining()) {
+            int n = canal.read(destino, posicion);
+            if (n < 0) {
+                throw new IOException("Segmento más corto de lo esperado");
+            }
+            posicion += n;
+        }
+    }
+
+    private static final class Segmento {
+        private final long id;
+        private final Path ruta;
+        private final FileChannel canal;
+        // Solo lo modifica quien tiene el segmento en exclusiva; se lee desde cualquier hilo
+        private volatile long fin;
+        private final AtomicInteger vivos = new AtomicInteger();
+        private boolean sellado;
+
+        Segmento(long id, Path ruta, FileChannel canal) {
+            this.id = id;
+            this.ruta = ruta;
+            this.canal = canal;
+        }
+    }
+
+    private static final class Ubicacion {
+        private final long segmento;
+        private final long offset;
+        private final long longitud;
+
+        private Ubicacion(long segmento, long offset, long longitud) {
+            this.segmento = segmento;
+            this.offset = offset;
+            this.longitud = longitud;
+        }
+
+        static Ubicacion de(String ubicacion) {
+            String[] partes = ubicacion.split(":");
+            if (partes.length != 4 || !ubicacion.startsWith(PREFIJO)) {
+                throw new IllegalArgumentException("Ubicación de segmento no válida: " + ubicacion);
+            }
+            return new Ubicacion(Long.parseLong(partes[1]), Long.parseLong(partes[2]), Long.parseLong(partes[3]));
+        }
+    }
+
+    /** Escritura posicional a partir de {@code posicion}; no cierra el canal compartido. */
+    private static final class SalidaSegmento extends OutputStream {
+        private final FileChannel canal;
+        private long posicion;
+
+        SalidaSegmento(FileChannel canal, long posicion) {
+            this.canal = canal;
+            this.posicion = posicion;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] datos, int desde, int longitud) throws IOException {
+            ByteBuffer buffer = ByteBuffer.wrap(datos, desde, longitud);
+            while (buffer.hasRemaining()) {
+                posicion += canal.write(buffer, posicion);
+            }
+        }
+    }
+
+    /**
+     * Un contenido dentro de un segmento. Cada flujo abre su propio canal, de modo
+     * que una descarga en curso sobrevive al borrado del segmento.
+     */
+    private static final class RecursoSegmento extends AbstractResource {
+        private final Path ruta;
+        private final long offset;
+        private final long longitud;
+
+        RecursoSegmento(Path ruta, long offset, long longitud) {
+            this.ruta = ruta;
+            this.offset = offset;
+            this.longitud = longitud;
+        }
+
+        @Override
+        public boolean exists() {
+            return Files.exists(ruta);
+        }
+
+        @Override
+        public long contentLength() {
+            return longitud;
+        }
+
+        @Override
+        public String getDescription() {
+            return "segmento [" + ruta + "@" + offset + "+" + longitud + "]";
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            FileChannel canal = FileChannel.open(ruta, StandardOpenOption.READ);
+            return new EntradaSegmento(canal, offset, longitud);
+        }
+    }
+
+    private static final class EntradaSegmento extends InputStream {
+        private final FileChannel canal;
+        private long posicion;
+        private long restantes;
+
+        EntradaSegmento(FileChannel canal, long posicion, long longitud) {
+            this.canal = canal;
+            this.posicion = posicion;
+            this.restantes = longitud;
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] uno = new byte[1];
+            int n = read(uno, 0, 1);
+            return n == -1 ? -1 : uno[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] destino, int desde, int longitud) throws IOException {
+            if (restantes <= 0) {
+                return -1;
+            }
+            int n = canal.read(ByteBuffer.wrap(destino, desde, (int) Math.min(longitud, restantes)), posicion);
+            if (n < 0) {
+                throw new IOException("Segmento más corto de lo esperado");
+            }
+            posicion += n;
+            restantes -= n;
+            return n;
+        }
+
+        @Override
+        public long skip(long n) {
+            long saltados = Math.max(0, Math.min(n, restantes));
+            posicion += saltados;
+            restantes -= saltados;
+            return saltados;
+        }
+
+        @Override
+        public int available() {
+            return (int) Math.min(restantes, Integer.MAX_VALUE);
+        }
+
+        @Override
+        public void close() throws IOException {
+            canal.close();
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package com.sirexe.cifradoapi.storage;
+
+import org.springframework.core.io.Resource;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Collection;
+
+/**
+ * Dónde y cómo se guardan los bytes de los archivos cifrados. Cada contenido
+ * almacenado se identifica con una ubicación opaca que el backend devuelve al
+ * escribir y que se guarda en el {@code filePath} del token.
+ *
+ * Los contenidos son inmutables: se escriben una vez y se borran enteros.
+ * Quien llama garantiza que una ubicación se borra una sola vez, después de
+ * que el último token que la usa la suelta.
+ */
+public interface StorageBackend extends Closeable {
+
+    @FunctionalInterface
+    interface Escritor {
+        void escribir(OutputStream salida) throws IOException;
+    }
+
+    /**
+     * Almacena lo que escriba {@code escritor}. Si falla no queda nada visible.
+     *
+     * @param nombre nombre sugerido (único) para el contenido; un backend puede ignorarlo
+     * @return ubicación del contenido
+     */
+    String escribir(Escritor escritor, String nombre) throws IOException;
+
+    /** {@code true} si la ubicación tiene el formato de este backend. */
+    boolean reconoce(String ubicacion);
+
+    boolean existe(String ubicacion);
+
+    long tamano(String ubicacion) throws IOException;
+
+    byte[] leer(String ubicacion) throws IOException;
+
+    /**
+     * Contenido como {@link Resource} para enviarlo en streaming. Un flujo ya
+     * abierto sigue siendo legible aunque la ubicación se borre mientras tanto.
+     */
+    Resource recurso(String ubicacion) throws IOException;
+
+    /** @return {@code true} si había algo que borrar */
+    boolean borrar(String ubicacion) throws IOException;
+
+    /**
+     * Se llama una vez al arrancar con las ubicaciones de los tokens recuperados,
+     * para descartar lo que quedó a medias o sin dueño tras el reinicio.
+     */
+    void recuperar(Collection<String> vivas) throws IOException;
+}
@@ -0,0 +1,338 @@
+package com.sirexe.cifradoapi.storage;
+
+import com.sirexe.cifradoapi.crypto.Compresion;
+import com.sirexe.cifradoapi.crypto.Formato;
+import com.sirexe.cifradoapi.crypto.Suite;
+import com.sirexe.cifradoapi.model.FileToken;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Registro de tokens de solo anexado que sobrevive a reinicios.
+ *
+ * Cada registro es {@code [op][int longitud][int crc32][datos]}. Al arrancar se
+ * reproduce el archivo completo; un registro final truncado (caída a mitad de
+ * escritura) se descarta y el archivo se corta en el último registro válido.
+ * Un registro dañado que no llega al final no es una escritura incompleta: se
+ * conserva una copia del archivo original, se omite ese registro sin perder los
+ * siguientes y el registro se reescribe compactado.
+ * {@link #compactar} reescribe solo los tokens vivos para que el tamaño del
+ * registro, y con él el tiempo de arranque, siga al número de tokens vivos.
+ * Las fechas se guardan como instantes, convertidos con la zona del sistema.
+ */
+public class TokenLog implements Closeable {
+
+    private static final Logger log = LoggerFactory.getLogger(TokenLog.class);
+
+    private static final byte OP_ALTA = 1;
+    private static final byte OP_BAJA = 2;
+    private static final byte OP_DESCARGA = 3;
+    private static final int ENCABEZADO = 9;
+    private static final int BUFFER_LECTURA = 1 << 20;
+    private static final int REGISTRO_MAXIMO = 1 << 20;
+
+    private final Path archivo;
+    private final boolean fsync;
+    private FileChannel canal;
+    private long registros;
+
+    public TokenLog(Path archivo, boolean fsync) {
+        this.archivo = archivo;
+        this.fsync = fsync;
+    }
+
+    /**
+     * Reproduce el registro y devuelve los tokens vigentes. Debe llamarse una vez,
+     * antes de cualquier {@link #alta} o {@link #baja}.
+     */
+    public synchronized Map<String, FileToken> reproducir() throws IOException {
+        Map<String, FileToken> vivos = new HashMap<>(1 << 16);
+        long valido = 0;
+        int danados = 0;
+        registros = 0;
+
+        if (Files.exists(archivo)) {
+            long tamano = Files.size(archivo);
+            try (DataInputStream entrada = new DataInputStream(
+                    new BufferedInputStream(Files.newInputStream(archivo), BUFFER_LECTURA))) {
+                CRC32 crc = new CRC32();
+                while (true) {
+                    byte op;
+                    byte[] datos;
+                    try {
+                        op = entrada.readByte();
+                        int longitud = entrada.readInt();
+                        int suma = entrada.readInt();
+                        if (longitud < 0 || longitud > REGISTRO_MAXIMO) {
+                            // Sin longitud no se sabe dónde empieza el siguiente: el resto queda en la copia
+                            log.error("Registro de tokens ilegible desde el byte {}", valido);
+                            danados++;
+                            break;
+                        }
+                        datos = new byte[longitud];
+                        entrada.readFully(datos);
+                        crc.reset();
+                        crc.update(datos);
+                        if ((int) crc.getValue() != suma) {
+                            if (valido + ENCABEZADO + longitud == tamano) {
+                                break;
+                            }
+                            log.error("Registro de tokens dañado en el byte {}: se omite", valido);
+                            valido += ENCABEZADO + longitud;
+                            danados++;
+                            continue;
+                        }
+                    } catch (EOFException e) {
+                        break;
+                    }
+
+                    aplicar(op, datos, vivos);
+                    valido += ENCABEZADO + datos.length;
+                    registros++;
+                }
+            }
+            if (danados > 0) {
+                Path copia = archivo.resolveSibling(archivo.getFileName() + ".danado-" + System.currentTimeMillis());
+                Files.copy(archivo, copia);
+                log.error("Registro de tokens con {} registros dañados; el original se conserva en {}", danados, copia);
+            }
+        }
+
+        canal = FileChannel.open(archivo, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        if (danados == 0 && canal.size() > valido) {
+            log.warn("Registro de tokens truncado en el byte {} (escritura incompleta)", valido);
+        }
+        canal.truncate(valido);
+        canal.position(valido);
+
+        LocalDateTime ahora = LocalDateTime.now();
+        vivos.values().removeIf(fileToken -> ahora.isAfter(fileToken.getExpiresAt()));
+        if (danados > 0) {
+            // Sin los registros dañados, para no volver a encontrarlos en cada arranque
+            compactar(vivos.values());
+        }
+        return vivos;
+    }
+
+    public synchronized void alta(FileToken fileToken) throws IOException {
+        escribir(OP_ALTA, serializar(fileToken));
+    }
+
+    public synchronized void baja(String token) throws IOException {
+        escribir(OP_BAJA, soloToken(token));
+    }
+
+    /** Registra una descarga para que el contador de descargas sobreviva al reinicio. */
+    public synchronized void descarga(String token) throws IOException {
+        escribir(OP_DESCARGA, soloToken(token));
+    }
+
+    /** Registros escritos desde la última compactación, incluidas las bajas. */
+    public synchronized long getRegistros() {
+        return registros;
+    }
+
+    /**
+     * Reescribe el registro con solo {@code vivos} y lo sustituye de forma atómica.
+     * Los tokens expirados o cuyo cifrado no ha terminado se omiten aunque todavía
+     * estén en la colección. Los contadores de descargas se copian tal como están:
+     * quien llama excluye las descargas mientras dura, o una ya contada en
+     * {@code vivos} cuyo {@link #descarga} llega después se contaría dos veces.
+     */
+    public synchronized void compactar(Collection<FileToken> vivos) throws IOException {
+        Path temporal = archivo.resolveSibling(archivo.getFileName() + ".compactando");
+        LocalDateTime ahora = LocalDateTime.now();
+        long escritos = 0;
+        try (FileChannel nuevo = FileChannel.open(temporal, StandardOpenOption.CREATE,
+                StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+            for (FileToken fileToken : vivos) {
+                if (fileToken.isReady() && !ahora.isAfter(fileToken.getExpiresAt())) {
+                    escribirEn(nuevo, OP_ALTA, serializar(fileToken));
+                    escritos++;
+                }
+            }
+            nuevo.force(true);
+        }
+
+        canal.close();
+        Files.move(temporal, archivo, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        canal = FileChannel.open(archivo, StandardOpenOption.WRITE);
+        canal.position(canal.size());
+        registros = escritos;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if (canal != null) {
+            canal.force(true);
+            canal.close();
+        }
+    }
+
+    private void escribir(byte op, byte[] datos) throws IOException {
+        escribirEn(canal, op, datos);
+        if (fsync) {
+            canal.force(false);
+        }
+        registros++;
+    }
+
+    private static void escribirEn(FileChannel destino, byte op, byte[] datos) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(datos);
+        ByteBuffer buffer = ByteBuffer.allocate(ENCABEZADO + datos.length);
+        buffer.put(op).putInt(datos.length).putInt((int) crc.getValue()).put(datos).flip();
+        while (buffer.hasRemaining()) {
+            destino.write(buffer);
+        }
+    }
+
+    private static void aplicar(byte op, byte[] datos, Map<String, FileToken> vivos) {
+        ByteBuffer entrada = ByteBuffer.wrap(datos);
+        if (op == OP_ALTA) {
+            FileToken fileToken = deserializar(entrada);
+            vivos.put(fileToken.getToken(), fileToken);
+        } else if (op == OP_BAJA) {
+            vivos.remove(leerTexto(entrada));
+        } else if (op == OP_DESCARGA) {
+            FileToken fileToken = vivos.get(leerTexto(entrada));
+            if (fileToken != null) {
+                fileToken.setDownloadCount(fileToken.getDownloadCount() + 1);
+            }
+        }
+    }
+
+    private static byte[] serializar(FileToken fileToken) {
+        byte[][] textos = {
+            utf8(fileToken.getToken()), utf8(fileToken.getFileName()),
+            utf8(fileToken.getOriginalName()), utf8(fileToken.getFilePath())
+        };
+        byte[] contentKey = utf8(fileToken.getContentKey() != null ? fileToken.getContentKey() : "");
+        int longitud = 24 + 2 + contentKey.length + 8 + 1 + 1 + 1;
+        for (byte[] texto : textos) {
+            longitud += 2 + texto.length;
+        }
+        ByteBuffer salida = ByteBuffer.allocate(longitud);
+        for (byte[] texto : textos) {
+            salida.putShort((short) texto.length).put(texto);
+        }
+        salida.putLong(aMilis(fileToken.getCreatedAt()));
+        salida.putLong(aMilis(fileToken.getExpiresAt()));
+        salida.putInt(fileToken.getMaxDownloads());
+        // En un alta nueva vale 0; la compactación conserva aquí las descargas ya hechas
+        salida.putInt(fileToken.getDownloadCount());
+        salida.putShort((short) contentKey.length).put(contentKey);
+        salida.putLong(fileToken.getFileSize());
+        salida.put((byte) fileToken.getCompression().getBandera());
+        salida.put((byte) fileToken.getFormat().getCodigo());
+        salida.put((byte) fileToken.getSuite().getCodigo());
+        return salida.array();
+    }
+
+    /**
+     * Los campos nuevos se agregan al final del registro; al leer se comprueba
+     * si quedan bytes, así los registros de versiones anteriores siguen siendo válidos.
+     */
+    private static FileToken deserializar(ByteBuffer entrada) {
+        FileToken fileToken = new FileToken();
+        fileToken.setToken(leerTexto(entrada));
+        fileToken.setFileName(leerTexto(entrada));
+        fileToken.setOriginalName(leerTexto(entrada));
+        fileToken.setFilePath(leerTexto(entrada));
+        fileToken.setCreatedAt(deMilis(entrada.getLong()));
+        fileToken.setExpiresAt(deMilis(entrada.getLong()));
+        if (entrada.hasRemaining()) {
+            fileToken.setMaxDownloads(entrada.getInt());
+            fileToken.setDownloadCount(entrada.getInt());
+        }
+        if (entrada.hasRemaining()) {
+            String contentKey = leerTexto(entrada);
+            fileToken.setContentKey(contentKey.isEmpty() ? null : contentKey);
+        }
+        if (entrada.hasRemaining()) {
+            fileToken.setFileSize(entrada.getLong());
+        }
+        if (entrada.hasRemaining()) {
+            fileToken.setCompression(compresion(entrada.get()));
+        }
+        if (entrada.hasRemaining()) {
+            fileToken.setFormat(formato(entrada.get()));
+        }
+        if (entrada.hasRemaining()) {
+            fileToken.setSuite(suite(entrada.get()));
+        }
+        return fileToken;
+    }
+
+    private static Compresion compresion(byte bandera) {
+        for (Compresion compresion : Compresion.values()) {
+            if (compresion.getBandera() == bandera) {
+                return compresion;
+            }
+        }
+        // Un registro escrito por una versión más nueva: mejor sin metadato que sin token
+        return Compresion.NINGUNA;
+    }
+
+    private static Formato formato(byte codigo) {
+        for (Formato formato : Formato.values()) {
+            if (formato.getCodigo() == codigo) {
+                return formato;
+            }
+        }
+        return Formato.CLASICO;
+    }
+
+    private static Suite suite(byte codigo) {
+        for (Suite suite : Suite.values()) {
+            if (suite.getCodigo() == codigo) {
+                return suite;
+            }
+        }
+        return Suite.TDES;
+    }
+
+    private static byte[] soloToken(String token) {
+        byte[] texto = utf8(token);
+        return ByteBuffer.allocate(2 + texto.length).putShort((short) texto.length).put(texto).array();
+    }
+
+    private static byte[] utf8(String texto) {
+        return texto.getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static String leerTexto(ByteBuffer entrada) {
+        int longitud = entrada.getShort() & 0xFFFF;
+        String texto = new String(entrada.array(), entrada.position(), longitud, StandardCharsets.UTF_8);
+        entrada.position(entrada.position() + longitud);
+        return texto;
+    }
+
+    private static long aMilis(LocalDateTime fecha) {
+        return fecha.atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+    }
+
+    private static LocalDateTime deMilis(long milis) {
+        return LocalDateTime.ofInstant(Instant.ofEpochMilli(milis), ZoneId.systemDefault());
+    }
+}
@@ -1,9 +1,10 @@
 package com.sirexe.cifrado_api;
 
+import com.sirexe.cifradoapi.CifradoApiApplication;
 import org.junit.jupiter.api.Test;
 import org.springframework.boot.test.context.SpringBootTest;
 
-@SpringBootTest
+@SpringBootTest(classes = CifradoApiApplication.class)
 class CifradoApiApplicationTests {
 
 	@Test
@@ -0,0 +1,143 @@
+package com.sirexe.cifradoapi.admision;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * El AIMD con muestras inyectadas y un reloj controlado: cada ajuste se calcula a
+ * mano a partir de {@code limite}, la tolerancia (2×) y la reducción (10%).
+ */
+class ControlAdmisionTest {
+
+	private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+	private static final long MB = 1024 * 1024;
+	private static final long VENTANA = TimeUnit.SECONDS.toNanos(10);
+
+	private final AtomicLong reloj = new AtomicLong();
+
+	@Test
+	void sinAdaptativoLasMuestrasNoCambianElLimite() {
+		ControlAdmision control = new ControlAdmision(4, 1, 8, 0, 1, VENTANA, TimeUnit.NANOSECONDS, false, reloj::get);
+		registrar(control, MS, 4);
+		registrar(control, 10 * MS, 20);
+		assertEquals(4, control.getLimite());
+	}
+
+	@Test
+	void bajaUnDiezPorCientoCuandoLaLatenciaPasaDelDobleDeLaBase() {
+		ControlAdmision control = nuevo(8);
+		// Sin competencia: 1 ms es la base y el límite no se mueve
+		registrar(control, MS, 8);
+		assertEquals(8, control.getLimite());
+		// 2 ms está dentro de la tolerancia
+		registrar(control, 2 * MS, 1);
+		assertEquals(8, control.getLimite());
+
+		registrar(control, 3 * MS, 1);
+		assertEquals(7, control.getLimite()); // min(8 - 1, (int) (8 × 0,9))
+		// El siguiente ajuste espera a tener 7 muestras más
+		registrar(control, 3 * MS, 6);
+		assertEquals(7, control.getLimite());
+		registrar(control, 3 * MS, 1);
+		assertEquals(6, control.getLimite()); // min(7 - 1, (int) (7 × 0,9))
+	}
+
+	@Test
+	void laLatenciaSeComparaPorMb() {
+		ControlAdmision control = nuevo(2);
+		registrar(control, MS, 2);
+		// 10 MB en 10 ms es 1 ms por MB, como la base
+		control.registrar(10 * MS, 10 * MB);
+		assertEquals(2, control.getLimite());
+		control.registrar(10 * MS, 0);
+		assertEquals(1, control.getLimite());
+	}
+
+	@Test
+	void subeDeUnoEnUnoSoloMientrasElLimiteSeUsaEntero() throws Exception {
+		ControlAdmision control = new ControlAdmision(2, 1, 4, 0, 1, VENTANA, TimeUnit.NANOSECONDS, true, reloj::get);
+		List<ControlAdmision.Permiso> permisos = new ArrayList<>();
+		try {
+			ocupar(control, permisos, 2);
+			registrar(control, MS, 2);
+			assertEquals(3, control.getLimite());
+
+			// Con un lugar libre no está saturado
+			registrar(control, MS, 3);
+			assertEquals(3, control.getLimite());
+			ocupar(control, permisos, 1);
+			registrar(control, MS, 1);
+			assertEquals(4, control.getLimite());
+
+			ocupar(control, permisos, 1);
+			registrar(control, MS, 8);
+			assertEquals(4, control.getLimite());
+		} finally {
+			permisos.forEach(ControlAdmision.Permiso::liberar);
+		}
+		assertEquals(0, control.getEnCurso());
+	}
+
+	@Test
+	void unaVentanaConHolguraReemplazaLaLatenciaBase() {
+		ControlAdmision control = nuevo(8);
+		registrar(control, MS, 8);
+		registrar(control, 3 * MS, 1);
+		assertEquals(7, control.getLimite());
+
+		// La primera muestra de la segunda ventana cierra la primera: la base sigue en 1 ms
+		reloj.set(VENTANA);
+		registrar(control, 3 * MS, 7);
+		assertEquals(6, control.getLimite());
+
+		// La segunda ventana tuvo holgura: 3 ms pasa a ser la base y el límite deja de bajar
+		reloj.set(2 * VENTANA);
+		registrar(control, 3 * MS, 20);
+		assertEquals(6, control.getLimite());
+	}
+
+	@Test
+	void unaVentanaSaturadaNoReemplazaLaLatenciaBase() throws Exception {
+		ControlAdmision control = nuevo(8);
+		registrar(control, MS, 8);
+		registrar(control, 3 * MS, 1);
+		assertEquals(7, control.getLimite());
+
+		List<ControlAdmision.Permiso> permisos = new ArrayList<>();
+		ocupar(control, permisos, 7);
+		reloj.set(VENTANA);
+		registrar(control, 3 * MS, 7);
+		assertEquals(6, control.getLimite());
+		// La muestra que cierra la segunda ventana también está saturada
+		reloj.set(2 * VENTANA);
+		registrar(control, 3 * MS, 1);
+		permisos.forEach(ControlAdmision.Permiso::liberar);
+
+		// La base sigue en 1 ms: 3 ms, ya sin carga, sigue bajando el límite
+		registrar(control, 3 * MS, 5);
+		assertEquals(5, control.getLimite()); // min(6 - 1, (int) (6 × 0,9))
+	}
+
+	private ControlAdmision nuevo(int limite) {
+		return new ControlAdmision(limite, 1, limite, 0, 1, VENTANA, TimeUnit.NANOSECONDS, true, reloj::get);
+	}
+
+	private static void registrar(ControlAdmision control, long nanos, int veces) {
+		for (int i = 0; i < veces; i++) {
+			control.registrar(nanos, 0);
+		}
+	}
+
+	private static void ocupar(ControlAdmision control, List<ControlAdmision.Permiso> permisos, int lugares)
+		throws Exception {
+		for (int i = 0; i < lugares; i++) {
+			permisos.add(control.adquirir());
+		}
+	}
+}
@@ -0,0 +1,79 @@
+package com.sirexe.cifradoapi.admision;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+
+class FiltroAdmisionTest {
+
+	// Una petición admitida que responde al instante
+	private final FilterChain cifrar = (request, response) -> { };
+
+	@Test
+	void colaLlenaResponde429YEsperaAgotada503() throws Exception {
+		ControlAdmision control = new ControlAdmision(1, 1, 1, 1, 200, TimeUnit.MILLISECONDS, false);
+		FiltroAdmision filtro = new FiltroAdmision(control);
+		CountDownLatch dentro = new CountDownLatch(1);
+		CountDownLatch soltar = new CountDownLatch(1);
+		ExecutorService clientes = Executors.newCachedThreadPool();
+		try {
+			Future<MockHttpServletResponse> primera = clientes.submit(() -> enviar(filtro, "POST", (request, response) -> {
+				dentro.countDown();
+				esperar(soltar);
+			}));
+			dentro.await();
+			Future<MockHttpServletResponse> enCola = clientes.submit(() -> enviar(filtro, "POST", cifrar));
+			while (control.getEsperando() == 0) {
+				Thread.sleep(1);
+			}
+
+			MockHttpServletResponse sinLugar = enviar(filtro, "POST", cifrar);
+			assertEquals(429, sinLugar.getStatus());
+			assertNotNull(sinLugar.getHeader(HttpHeaders.RETRY_AFTER));
+			// Las consultas no pasan por la admisión aunque esté saturada
+			assertEquals(200, enviar(filtro, "GET", cifrar).getStatus());
+
+			assertEquals(503, enCola.get().getStatus());
+			assertNotNull(enCola.get().getHeader(HttpHeaders.RETRY_AFTER));
+			soltar.countDown();
+			assertEquals(200, primera.get().getStatus());
+			assertEquals(0, control.getEnCurso());
+			assertEquals(1, control.getRechazos(ControlAdmision.Rechazo.COLA_LLENA));
+			assertEquals(1, control.getRechazos(ControlAdmision.Rechazo.ESPERA_AGOTADA));
+		} finally {
+			soltar.countDown();
+			clientes.shutdownNow();
+		}
+	}
+
+	private static MockHttpServletResponse enviar(FiltroAdmision filtro, String metodo, FilterChain chain) {
+		MockHttpServletResponse response = new MockHttpServletResponse();
+		try {
+			filtro.doFilter(new MockHttpServletRequest(metodo, "/api/cifrado/cifrar"), response, chain);
+		} catch (IOException | ServletException e) {
+			throw new IllegalStateException(e);
+		}
+		return response;
+	}
+
+	private static void esperar(CountDownLatch latch) {
+		try {
+			latch.await();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+}
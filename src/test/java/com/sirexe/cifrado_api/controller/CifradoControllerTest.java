@@ -0,0 +1,246 @@
+package com.sirexe.cifradoapi.controller;
+
+import com.sirexe.cifradoapi.config.CifradoProperties;
+import com.sirexe.cifradoapi.model.FileToken;
+import com.sirexe.cifradoapi.model.ResultadoVerificacion;
+import com.sirexe.cifradoapi.service.CifradoService;
+import com.sirexe.cifradoapi.service.FileStorageService;
+import com.sirexe.cifradoapi.service.KeystoreService;
+import com.sirexe.cifradoapi.service.TokenService;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.HealthEndpoint;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.boot.test.autoconfigure.web.servlet.WebMvcTest;
+import org.springframework.boot.test.mock.mockito.MockBean;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.io.ByteArrayResource;
+import org.springframework.http.HttpHeaders;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.util.unit.DataSize;
+
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.not;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.head;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.multipart;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.content;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.header;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.jsonPath;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+@WebMvcTest(CifradoController.class)
+@EnableConfigurationProperties(CifradoProperties.class)
+@Import(TokenService.class)
+class CifradoControllerTest {
+
+	private static final String TOKEN = "593907e9-6696-4345-9fd0-52ba2fb18ac9";
+	private static final byte[] CONTENIDO = "0123456789abcdef".getBytes(StandardCharsets.US_ASCII);
+
+	@Autowired
+	private MockMvc mockMvc;
+
+	@Autowired
+	private CifradoProperties propiedades;
+
+	@MockBean
+	private CifradoService cifradoService;
+
+	@MockBean
+	private FileStorageService fileStorageService;
+
+	@MockBean
+	private KeystoreService keystoreService;
+
+	@MockBean
+	private HealthEndpoint healthEndpoint;
+
+	@BeforeEach
+	void preparar() {
+		// El contexto se comparte entre pruebas: cada una parte de la misma configuración
+		propiedades.getDescifrado().setActivo(true);
+		propiedades.setAesGcmClasicoMaximo(DataSize.ofMegabytes(64));
+		propiedades.setMotor(CifradoProperties.Motor.EXTERNO);
+		FileToken fileToken = new FileToken(TOKEN, TOKEN + ".cif", "SIS.cif", "/tmp/" + TOKEN + ".cif");
+		fileToken.setFileSize(CONTENIDO.length);
+		when(fileStorageService.getFileToken(TOKEN)).thenReturn(fileToken);
+		when(fileStorageService.openDownload(TOKEN, false)).thenReturn(new ByteArrayResource(CONTENIDO));
+		when(fileStorageService.openContent(TOKEN)).thenReturn(new ByteArrayResource(CONTENIDO));
+	}
+
+	@Test
+	void descargaCompletaIncluyeLongitudYEtag() throws Exception {
+		mockMvc.perform(get("/api/cifrado/download/" + TOKEN))
+			.andExpect(status().isOk())
+			.andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, CONTENIDO.length))
+			.andExpect(header().string(HttpHeaders.ETAG, "\"" + TOKEN + "\""))
+			.andExpect(content().bytes(CONTENIDO));
+	}
+
+	@Test
+	void descargaConRangoDevuelveSoloLosBytesPedidos() throws Exception {
+		mockMvc.perform(get("/api/cifrado/download/" + TOKEN).header(HttpHeaders.RANGE, "bytes=10-"))
+			.andExpect(status().isPartialContent())
+			.andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes 10-15/16"))
+			.andExpect(content().bytes("abcdef".getBytes(StandardCharsets.US_ASCII)));
+		// Reanuda una descarga ya contada
+		verify(fileStorageService, never()).openDownload(eq(TOKEN), anyBoolean());
+	}
+
+	@Test
+	void soloConsumeDescargaLaPeticionQueEnviaElPrincipio() throws Exception {
+		mockMvc.perform(get("/api/cifrado/download/" + TOKEN).header(HttpHeaders.RANGE, "bytes=0-3"))
+			.andExpect(status().isPartialContent());
+		verify(fileStorageService).openDownload(TOKEN, false);
+
+		// Un sufijo que abarca el archivo entero también empieza en 0
+		mockMvc.perform(get("/api/cifrado/download/" + TOKEN).header(HttpHeaders.RANGE, "bytes=-100"))
+			.andExpect(status().isPartialContent());
+		verify(fileStorageService, times(2)).openDownload(TOKEN, false);
+
+		mockMvc.perform(head("/api/cifrado/download/" + TOKEN))
+			.andExpect(status().isOk())
+			.andExpect(header().longValue(HttpHeaders.CONTENT_LENGTH, CONTENIDO.length));
+		mockMvc.perform(get("/api/cifrado/download/" + TOKEN).header(HttpHeaders.RANGE, "bytes=x"))
+			.andExpect(status().isRequestedRangeNotSatisfiable());
+		verify(fileStorageService, times(2)).openDownload(TOKEN, false);
+	}
+
+	@Test
+	void descargaRepetidaConEtagDevuelve304SinConsumirDescarga() throws Exception {
+		mockMvc.perform(get("/api/cifrado/download/" + TOKEN).header(HttpHeaders.IF_NONE_MATCH, "\"" + TOKEN + "\""))
+			.andExpect(status().isNotModified())
+			.andExpect(content().bytes(new byte[0]));
+		verify(fileStorageService, never()).openDownload(eq(TOKEN), anyBoolean());
+	}
+
+	@Test
+	void variosRangosEnLaUltimaDescargaDevuelven416() throws Exception {
+		when(fileStorageService.openDownload(TOKEN, true)).thenThrow(FileStorageService.VariosRangosException.class);
+		mockMvc.perform(get("/api/cifrado/download/" + TOKEN).header(HttpHeaders.RANGE, "bytes=0-1,4-5"))
+			.andExpect(status().isRequestedRangeNotSatisfiable())
+			.andExpect(header().string(HttpHeaders.CONTENT_RANGE, "bytes */" + CONTENIDO.length));
+	}
+
+	@Test
+	void tokenSinDescargasDisponiblesDevuelve404() throws Exception {
+		when(fileStorageService.openDownload(TOKEN, false)).thenReturn(null);
+		mockMvc.perform(get("/api/cifrado/download/" + TOKEN))
+			.andExpect(status().isNotFound());
+	}
+
+	@Test
+	void tokenConPuntosLlegaEnteroAlServicio() throws Exception {
+		// Los tokens firmados son "datos.firma": el punto no debe tomarse como extensión
+		String firmado = "ZGF0b3M.ZmlybWE";
+		FileToken fileToken = new FileToken(firmado, firmado + ".cif", "SIS.cif", "/tmp/" + firmado + ".cif");
+		when(fileStorageService.getFileToken(firmado)).thenReturn(fileToken);
+		when(fileStorageService.openDownload(firmado, false)).thenReturn(new ByteArrayResource(CONTENIDO));
+		mockMvc.perform(get("/api/cifrado/download/" + firmado))
+			.andExpect(status().isOk())
+			.andExpect(content().bytes(CONTENIDO));
+	}
+
+	@Test
+	void verifyRespondeIntegridadYHuellaSinEnviarElCifrado() throws Exception {
+		ByteArrayResource contenido = new ByteArrayResource(CONTENIDO);
+		when(fileStorageService.openContent(TOKEN)).thenReturn(contenido);
+		when(cifradoService.verificar(contenido)).thenReturn(ResultadoVerificacion.valido(42, "ab12"));
+		mockMvc.perform(get("/api/cifrado/verify/" + TOKEN))
+			.andExpect(status().isOk())
+			.andExpect(jsonPath("$.valid").value(true))
+			.andExpect(jsonPath("$.plaintextSize").value(42))
+			.andExpect(jsonPath("$.sha256").value("ab12"))
+			.andExpect(content().string(not(containsString("0123456789abcdef"))));
+		verify(fileStorageService, never()).openDownload(eq(TOKEN), anyBoolean());
+
+		when(cifradoService.verificar(contenido)).thenReturn(ResultadoVerificacion.invalido("Tag mismatch"));
+		mockMvc.perform(get("/api/cifrado/verify/" + TOKEN))
+			.andExpect(status().isOk())
+			.andExpect(jsonPath("$.valid").value(false))
+			.andExpect(jsonPath("$.error").value("Tag mismatch"))
+			.andExpect(jsonPath("$.sha256").doesNotExist());
+	}
+
+	@Test
+	void descifrarDevuelveElTextoO422SiNoSePuedeDescifrar() throws Exception {
+		MockMultipartFile cif = new MockMultipartFile("archivo", "SIS.cif", "application/octet-stream", CONTENIDO);
+		when(cifradoService.descifrar(any(), any())).thenAnswer(invocacion -> {
+			invocacion.getArgument(1, OutputStream.class).write("texto plano".getBytes(StandardCharsets.US_ASCII));
+			return 11L;
+		});
+		mockMvc.perform(multipart("/api/cifrado/descifrar").file(cif))
+			.andExpect(status().isOk())
+			.andExpect(header().string(HttpHeaders.CONTENT_DISPOSITION, "attachment; filename=\"SIS.txt\""))
+			.andExpect(content().string("texto plano"));
+
+		doThrow(new GeneralSecurityException("Tag mismatch")).when(cifradoService).descifrar(any(), any());
+		mockMvc.perform(multipart("/api/cifrado/descifrar").file(cif))
+			.andExpect(status().isUnprocessableEntity())
+			.andExpect(jsonPath("$.error").value("El archivo no se pudo descifrar: Tag mismatch"));
+	}
+
+	@Test
+	void conElDescifradoDesactivadoNoHayDescifrarNiVerify() throws Exception {
+		propiedades.getDescifrado().setActivo(false);
+		MockMultipartFile cif = new MockMultipartFile("archivo", "SIS.cif", "application/octet-stream", CONTENIDO);
+		mockMvc.perform(multipart("/api/cifrado/descifrar").file(cif))
+			.andExpect(status().isNotFound());
+		mockMvc.perform(get("/api/cifrado/verify/" + TOKEN))
+			.andExpect(status().isNotFound());
+		verify(cifradoService, never()).descifrar(any(), any());
+		verify(cifradoService, never()).verificar(any());
+	}
+
+	@Test
+	void unAesGcmClasicoMayorQueElMaximoSeRechazaSinCifrar() throws Exception {
+		propiedades.setMotor(CifradoProperties.Motor.INTERNO);
+		propiedades.setAesGcmClasicoMaximo(DataSize.ofBytes(CONTENIDO.length - 1));
+		MockMultipartFile txt = new MockMultipartFile("archivo", "SIS.txt", "text/plain", CONTENIDO);
+		mockMvc.perform(multipart("/api/cifrado/cifrar").file(txt).param("suite", "aes-gcm"))
+			.andExpect(status().isPayloadTooLarge())
+			.andExpect(jsonPath("$.error").value(containsString("formato=troceado")));
+		verify(cifradoService, never()).cifrarYAlmacenar(any(), any(), any());
+	}
+
+	@Test
+	void conElMotorExternoLasOpcionesDelInternoSonUnErrorDeValidacion() throws Exception {
+		MockMultipartFile txt = new MockMultipartFile("archivo", "SIS.txt", "text/plain", CONTENIDO);
+		mockMvc.perform(multipart("/api/cifrado/cifrar").file(txt).param("async", "true").param("compresion", "deflate"))
+			.andExpect(status().isBadRequest())
+			.andExpect(jsonPath("$.error").value("La compresión requiere cifrado.motor=INTERNO"));
+		mockMvc.perform(multipart("/api/cifrado/cifrar/batch").file(new MockMultipartFile("archivos", "SIS.txt",
+				"text/plain", CONTENIDO)).param("suite", "aes-gcm"))
+			.andExpect(status().isBadRequest());
+		verify(cifradoService, never()).cifrarEnSegundoPlano(any(), any(), any());
+		verify(cifradoService, never()).cifrarLote(any(), any());
+	}
+
+	@Test
+	void healthDevuelve503SiUnComponenteNoEstaUp() throws Exception {
+		when(healthEndpoint.health()).thenReturn(Health.down().build());
+		mockMvc.perform(get("/api/cifrado/health"))
+			.andExpect(status().isServiceUnavailable())
+			.andExpect(jsonPath("$.status").value("DOWN"));
+
+		when(healthEndpoint.health()).thenReturn(Health.up().build());
+		mockMvc.perform(get("/api/cifrado/health"))
+			.andExpect(status().isOk())
+			.andExpect(jsonPath("$.status").value("OK"));
+	}
+}
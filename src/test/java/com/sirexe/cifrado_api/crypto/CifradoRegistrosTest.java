@@ -0,0 +1,213 @@
+package com.sirexe.cifradoapi.crypto;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CifradoRegistrosTest {
+
+	// Más filas que un lote, para que varios lotes se cifren a la vez
+	private static final int FILAS = 1300;
+	private static final List<String> SENSIBLES = Arrays.asList("curpPaciente", "nombre", "fechaNacimiento",
+		"noExiste");
+
+	private static KeyPair claves;
+	private static String encabezado;
+	private static String fila;
+	private static ExecutorService pool;
+
+	private final MotorCifrado motor = new MotorCifrado();
+
+	@BeforeAll
+	static void preparar() throws Exception {
+		KeyPairGenerator generador = KeyPairGenerator.getInstance("RSA");
+		generador.initialize(2048);
+		claves = generador.generateKeyPair();
+		String[] lineas = new String(Files.readAllBytes(Paths.get("SIS.txt")), StandardCharsets.UTF_8).split("\n");
+		encabezado = lineas[0] + "\n";
+		fila = lineas[1];
+		pool = Executors.newFixedThreadPool(4);
+	}
+
+	@AfterAll
+	static void cerrar() {
+		pool.shutdownNow();
+	}
+
+	@Test
+	void filasCompletasYColumnasSensiblesSeDescifranConCadaSuite() throws Exception {
+		byte[] sis = sis(FILAS);
+		for (Suite suite : Suite.values()) {
+			for (Collection<String> sensibles : Arrays.asList(Collections.<String>emptyList(), SENSIBLES)) {
+				byte[] cif = cifrar(sis, suite, sensibles);
+
+				DataInputStream datos = new DataInputStream(new ByteArrayInputStream(cif));
+				assertEquals(MotorCifrado.MAGIA, datos.readInt());
+				assertEquals(CifradoRegistros.VERSION, datos.readUnsignedByte());
+				assertEquals(suite.banderas(Compresion.NINGUNA), datos.readUnsignedByte());
+
+				ByteArrayOutputStream plano = new ByteArrayOutputStream();
+				long escritos = motor.descifrar(new ByteArrayInputStream(cif), plano, claves.getPrivate());
+				assertEquals(sis.length, escritos, suite + " " + sensibles);
+				assertArrayEquals(sis, plano.toByteArray(), suite + " " + sensibles);
+			}
+		}
+	}
+
+	@Test
+	void lasColumnasSensiblesNoQuedanEnClaroYElRestoSi() throws Exception {
+		String cif = new String(cifrar(sis(3), Suite.AES_GCM, SENSIBLES), StandardCharsets.ISO_8859_1);
+		assertTrue(cif.contains("JCSSA002410|142|QURJ931223HJCZSS04|JESUS OCTAVIO"));
+		assertFalse(cif.contains("PEGA931206MJCXTL01"));
+		assertFalse(cif.contains("ALEJANDRA"));
+		assertFalse(cif.contains("06/12/1993"));
+		// El apellido no se pidió cifrar
+		assertTrue(cif.contains("|PENA|GUTIERREZ|"));
+
+		String completas = new String(cifrar(sis(3), Suite.AES_GCM, Collections.emptyList()),
+			StandardCharsets.ISO_8859_1);
+		assertFalse(completas.contains("JCSSA002410"));
+	}
+
+	@Test
+	void unRegistroSeDescifraSinLeerElRestoDelArchivo(@TempDir Path directorio) throws Exception {
+		byte[] sis = sis(FILAS);
+		String[] lineas = new String(sis, StandardCharsets.UTF_8).split("(?<=\n)");
+		for (Suite suite : Suite.values()) {
+			for (Collection<String> sensibles : Arrays.asList(Collections.<String>emptyList(), SENSIBLES)) {
+				Path archivo = directorio.resolve(suite + "-" + sensibles.size() + ".cif");
+				Files.write(archivo, cifrar(sis, suite, sensibles));
+
+				try (SeekableByteChannel canal = Files.newByteChannel(archivo)) {
+					for (int numero : new int[] {0, 1, 511, 512, 1000, FILAS - 1}) {
+						ByteArrayOutputStream plano = new ByteArrayOutputStream();
+						motor.descifrarRegistro(canal, numero, plano, claves.getPrivate());
+						assertEquals(lineas[numero + 1], plano.toString(StandardCharsets.UTF_8), "fila " + numero);
+					}
+					assertThrows(IllegalArgumentException.class, () -> motor.descifrarRegistro(canal, FILAS,
+						new ByteArrayOutputStream(), claves.getPrivate()));
+				}
+			}
+		}
+	}
+
+	@Test
+	void unRegistroAlteradoOTruncadoSeRechaza(@TempDir Path directorio) throws Exception {
+		for (Suite suite : Suite.values()) {
+			for (Collection<String> sensibles : Arrays.asList(Collections.<String>emptyList(), SENSIBLES)) {
+				byte[] cif = cifrar(sis(50), suite, sensibles);
+				String nombre = suite + " " + sensibles;
+
+				// Un byte de la fila 25 dentro de lo cifrado: la curpPaciente si se cifran columnas
+				int registro = indiceDe(cif, 25) + 4;
+				int objetivo = registro + (sensibles.isEmpty() ? 40 : columna(cif, registro, 8) + 5);
+				byte[] alterado = cif.clone();
+				alterado[objetivo] = (byte) (alterado[objetivo] == 'A' ? 'B' : 'A');
+				assertThrows(GeneralSecurityException.class, () -> motor.descifrar(new ByteArrayInputStream(alterado),
+					new ByteArrayOutputStream(), claves.getPrivate()), nombre);
+
+				byte[] truncado = Arrays.copyOf(cif, cif.length / 2);
+				assertThrows(Exception.class, () -> motor.descifrar(new ByteArrayInputStream(truncado),
+					new ByteArrayOutputStream(), claves.getPrivate()), nombre);
+
+				Path archivo = directorio.resolve(suite + "-" + sensibles.size() + ".cif");
+				Files.write(archivo, alterado);
+				try (SeekableByteChannel canal = Files.newByteChannel(archivo)) {
+					assertThrows(GeneralSecurityException.class, () -> motor.descifrarRegistro(canal, 25,
+						new ByteArrayOutputStream(), claves.getPrivate()), nombre);
+				}
+
+				// Un índice alterado no permite leer filas ajenas
+				byte[] indiceAlterado = cif.clone();
+				indiceAlterado[cif.length - 12 - 32 - 8] ^= 1;
+				assertThrows(GeneralSecurityException.class, () -> motor.descifrar(
+					new ByteArrayInputStream(indiceAlterado), new ByteArrayOutputStream(), claves.getPrivate()), nombre);
+			}
+		}
+	}
+
+	@Test
+	void archivoVacioOSoloEncabezado() throws Exception {
+		for (String texto : new String[] {"", encabezado, encabezado + fila, encabezado + fila + "\r\n"}) {
+			byte[] sis = texto.getBytes(StandardCharsets.UTF_8);
+			ByteArrayOutputStream plano = new ByteArrayOutputStream();
+			motor.descifrar(new ByteArrayInputStream(cifrar(sis, Suite.TDES, SENSIBLES)), plano, claves.getPrivate());
+			assertArrayEquals(sis, plano.toByteArray(), texto.length() + " bytes");
+		}
+	}
+
+	@Test
+	void lasColumnasSensiblesSeBuscanEnElEncabezado() {
+		byte[] bytes = encabezado.getBytes(StandardCharsets.UTF_8);
+		// El BOM no forma parte del nombre de la primera columna
+		assertArrayEquals(new int[] {0, 8}, CifradoRegistros.columnasSensibles(bytes,
+			Arrays.asList("curpPaciente", "clues")));
+		assertArrayEquals(new int[0], CifradoRegistros.columnasSensibles(bytes, Collections.singletonList("CURP")));
+	}
+
+	private byte[] cifrar(byte[] texto, Suite suite, Collection<String> sensibles) throws Exception {
+		ByteArrayOutputStream salida = new ByteArrayOutputStream();
+		try (InputStream cifrando = motor.cifrandoRegistros(new ByteArrayInputStream(texto), claves.getPublic(),
+				suite, sensibles, pool, 3)) {
+			cifrando.transferTo(salida);
+		}
+		return salida.toByteArray();
+	}
+
+	/** Posición de la fila {@code numero} según el índice del archivo. */
+	private static int indiceDe(byte[] cif, int numero) {
+		ByteBuffer datos = ByteBuffer.wrap(cif);
+		int posicionIndice = (int) datos.getLong(cif.length - 12);
+		return (int) datos.getLong(posicionIndice + 8 + 8 * numero);
+	}
+
+	/** Desplazamiento de la columna {@code numero} dentro del registro que empieza en {@code desde}. */
+	private static int columna(byte[] cif, int desde, int numero) {
+		int i = desde;
+		for (int vistas = 0; vistas < numero; i++) {
+			if (cif[i] == '|') {
+				vistas++;
+			}
+		}
+		return i - desde;
+	}
+
+	/** Encabezado de SIS.txt y {@code filas} pacientes distintos; la última fila sin fin de línea. */
+	private static byte[] sis(int filas) {
+		StringBuilder texto = new StringBuilder(encabezado);
+		for (int i = 0; i < filas; i++) {
+			texto.append(fila.replace("JESUS OCTAVIO", "JESUS OCTAVIO " + i));
+			if (i < filas - 1) {
+				texto.append('\n');
+			}
+		}
+		return texto.toString().getBytes(StandardCharsets.UTF_8);
+	}
+}
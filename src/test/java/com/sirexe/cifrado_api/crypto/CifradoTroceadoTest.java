@@ -0,0 +1,143 @@
+package com.sirexe.cifradoapi.crypto;
+
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class CifradoTroceadoTest {
+
+	private static final int TROZO = 16 * 1024;
+
+	private static KeyPair claves;
+	private static byte[] sis;
+	private static ExecutorService pool;
+
+	private final MotorCifrado motor = new MotorCifrado();
+
+	@BeforeAll
+	static void preparar() throws Exception {
+		KeyPairGenerator generador = KeyPairGenerator.getInstance("RSA");
+		generador.initialize(2048);
+		claves = generador.generateKeyPair();
+		sis = Files.readAllBytes(Paths.get("SIS.txt"));
+		pool = Executors.newFixedThreadPool(4);
+	}
+
+	@AfterAll
+	static void cerrar() {
+		pool.shutdownNow();
+	}
+
+	@Test
+	void variosTrozosSeDescifranEnOrdenConCadaSuiteYCompresion() throws Exception {
+		byte[] grande = repetir(sis, TROZO * 9 + 123);
+		for (Suite suite : Suite.values()) {
+			for (Compresion compresion : Compresion.values()) {
+				byte[] cif = cifrar(grande, compresion, suite);
+
+				DataInputStream datos = new DataInputStream(new ByteArrayInputStream(cif));
+				assertEquals(MotorCifrado.MAGIA, datos.readInt());
+				assertEquals(CifradoTroceado.VERSION, datos.readUnsignedByte());
+				assertEquals(suite.banderas(compresion), datos.readUnsignedByte());
+				assertEquals(TROZO, datos.readInt());
+
+				ByteArrayOutputStream plano = new ByteArrayOutputStream();
+				long escritos = motor.descifrar(new ByteArrayInputStream(cif), plano, claves.getPrivate());
+				assertEquals(grande.length, escritos);
+				assertArrayEquals(grande, plano.toByteArray());
+			}
+		}
+	}
+
+	@Test
+	void archivoVacioYMultiploExactoDelTrozo() throws Exception {
+		for (int longitud : new int[] {0, TROZO, TROZO * 3}) {
+			byte[] texto = repetir(sis, longitud);
+			ByteArrayOutputStream plano = new ByteArrayOutputStream();
+			motor.descifrar(new ByteArrayInputStream(cifrar(texto, Compresion.NINGUNA, Suite.TDES)), plano,
+				claves.getPrivate());
+			assertArrayEquals(texto, plano.toByteArray(), longitud + " bytes");
+		}
+	}
+
+	@Test
+	void unTrozoAlteradoOTruncadoSeRechaza(@TempDir Path directorio) throws Exception {
+		for (Suite suite : Suite.values()) {
+			byte[] cif = cifrar(repetir(sis, TROZO * 4), Compresion.NINGUNA, suite);
+
+			byte[] alterado = cif.clone();
+			alterado[cif.length / 2] ^= 1;
+			assertThrows(GeneralSecurityException.class, () -> motor.descifrar(new ByteArrayInputStream(alterado),
+				new ByteArrayOutputStream(), claves.getPrivate()), suite.name());
+
+			// Sin el último trozo, el penúltimo no está marcado como final y falta el resto
+			byte[] truncado = Arrays.copyOf(cif, cif.length / 2);
+			assertThrows(Exception.class, () -> motor.descifrar(new ByteArrayInputStream(truncado),
+				new ByteArrayOutputStream(), claves.getPrivate()), suite.name());
+
+			Path archivo = directorio.resolve(suite + ".cif");
+			Files.write(archivo, alterado);
+			try (SeekableByteChannel canal = Files.newByteChannel(archivo)) {
+				assertThrows(GeneralSecurityException.class, () -> motor.descifrarRango(canal, 0, cif.length,
+					new ByteArrayOutputStream(), claves.getPrivate()), suite.name());
+			}
+		}
+	}
+
+	@Test
+	void unRangoSeDescifraSinLeerElRestoDelArchivo(@TempDir Path directorio) throws Exception {
+		byte[] grande = repetir(sis, TROZO * 20 + 5);
+		for (Compresion compresion : Compresion.values()) {
+			Path archivo = directorio.resolve(compresion + ".cif");
+			Files.write(archivo, cifrar(grande, compresion, Suite.AES_GCM));
+
+			long[][] rangos = {{0, 10}, {TROZO - 3, 7}, {TROZO * 7 + 11, TROZO * 2}, {grande.length - 4, 100}};
+			try (SeekableByteChannel canal = Files.newByteChannel(archivo)) {
+				for (long[] rango : rangos) {
+					ByteArrayOutputStream plano = new ByteArrayOutputStream();
+					long escritos = motor.descifrarRango(canal, rango[0], rango[1], plano, claves.getPrivate());
+					int hasta = (int) Math.min(grande.length, rango[0] + rango[1]);
+					assertEquals(hasta - rango[0], escritos);
+					assertArrayEquals(Arrays.copyOfRange(grande, (int) rango[0], hasta), plano.toByteArray());
+				}
+			}
+		}
+	}
+
+	private byte[] cifrar(byte[] texto, Compresion compresion, Suite suite) throws Exception {
+		ByteArrayOutputStream salida = new ByteArrayOutputStream();
+		try (InputStream cifrando = motor.cifrandoTroceado(new ByteArrayInputStream(texto), claves.getPublic(),
+				compresion, suite, TROZO, pool, 3)) {
+			cifrando.transferTo(salida);
+		}
+		return salida.toByteArray();
+	}
+
+	private static byte[] repetir(byte[] origen, int longitud) {
+		byte[] resultado = new byte[longitud];
+		for (int i = 0; i < longitud; i++) {
+			resultado[i] = origen[i % origen.length];
+		}
+		return resultado;
+	}
+}
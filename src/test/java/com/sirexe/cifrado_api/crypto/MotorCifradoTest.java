@@ -0,0 +1,248 @@
+package com.sirexe.cifradoapi.crypto;
+
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import javax.crypto.Cipher;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.InputStream;
+import java.security.GeneralSecurityException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class MotorCifradoTest {
+
+	private static KeyPair claves;
+	private static byte[] sis;
+
+	private final MotorCifrado motor = new MotorCifrado();
+
+	@BeforeAll
+	static void preparar() throws Exception {
+		KeyPairGenerator generador = KeyPairGenerator.getInstance("RSA");
+		generador.initialize(2048);
+		claves = generador.generateKeyPair();
+		sis = Files.readAllBytes(Paths.get("SIS.txt"));
+	}
+
+	@Test
+	void cifrarSisProduceClaveEnvueltaIvYCuerpo3desCbc() throws Exception {
+		ByteArrayOutputStream salida = new ByteArrayOutputStream();
+		long leidos = motor.cifrar(new ByteArrayInputStream(sis), salida, claves.getPublic());
+		byte[] cif = salida.toByteArray();
+
+		assertEquals(sis.length, leidos);
+
+		DataInputStream datos = new DataInputStream(new ByteArrayInputStream(cif));
+		int longitudClave = datos.readInt();
+		assertEquals(256, longitudClave);
+		byte[] claveEnvuelta = new byte[longitudClave];
+		datos.readFully(claveEnvuelta);
+		byte[] iv = new byte[MotorCifrado.TAMANO_IV];
+		datos.readFully(iv);
+		byte[] cuerpo = datos.readAllBytes();
+
+		// El cuerpo debe ser idéntico al cifrado 3DES-CBC de una sola vez con la misma clave e IV
+		Cipher envoltura = Cipher.getInstance(MotorCifrado.ENVOLTURA);
+		envoltura.init(Cipher.UNWRAP_MODE, claves.getPrivate());
+		SecretKey clave = (SecretKey) envoltura.unwrap(claveEnvuelta, "DESede", Cipher.SECRET_KEY);
+		Cipher referencia = Cipher.getInstance(MotorCifrado.ALGORITMO);
+		referencia.init(Cipher.ENCRYPT_MODE, clave, new IvParameterSpec(iv));
+		assertArrayEquals(referencia.doFinal(sis), cuerpo);
+	}
+
+	@Test
+	void flujoCifradoEsIdenticoAlCifradoDirecto() throws Exception {
+		ByteArrayOutputStream salida = new ByteArrayOutputStream();
+		try (InputStream cifrando = motor.cifrando(new ByteArrayInputStream(sis), claves.getPublic())) {
+			cifrando.transferTo(salida);
+		}
+
+		ByteArrayOutputStream plano = new ByteArrayOutputStream();
+		motor.descifrar(new ByteArrayInputStream(salida.toByteArray()), plano, claves.getPrivate());
+		assertArrayEquals(sis, plano.toByteArray());
+	}
+
+	@Test
+	void cadaCifradoUsaUnaClaveDeSesionNueva() throws Exception {
+		ByteArrayOutputStream primero = new ByteArrayOutputStream();
+		ByteArrayOutputStream segundo = new ByteArrayOutputStream();
+		motor.cifrar(new ByteArrayInputStream(sis), primero, claves.getPublic());
+		motor.cifrar(new ByteArrayInputStream(sis), segundo, claves.getPublic());
+
+		assertFalse(Arrays.equals(primero.toByteArray(), segundo.toByteArray()));
+	}
+
+	@Test
+	void conCompresionLlevaEncabezadoYSeDescifraIgual() throws Exception {
+		byte[] grande = repetir(sis, MotorCifrado.TAMANO_BUFFER * 4);
+
+		ByteArrayOutputStream sinComprimir = new ByteArrayOutputStream();
+		motor.cifrar(new ByteArrayInputStream(grande), sinComprimir, claves.getPublic());
+		ByteArrayOutputStream comprimido = new ByteArrayOutputStream();
+		try (InputStream cifrando = motor.cifrando(new ByteArrayInputStream(grande), claves.getPublic(),
+				Compresion.DEFLATE)) {
+			cifrando.transferTo(comprimido);
+		}
+		byte[] cif = comprimido.toByteArray();
+
+		DataInputStream datos = new DataInputStream(new ByteArrayInputStream(cif));
+		assertEquals(MotorCifrado.MAGIA, datos.readInt());
+		assertEquals(MotorCifrado.VERSION_FORMATO, datos.readUnsignedByte());
+		assertEquals(Compresion.DEFLATE.getBandera(), datos.readUnsignedByte());
+		assertTrue(cif.length < sinComprimir.size() / 4, cif.length + " bytes");
+
+		ByteArrayOutputStream plano = new ByteArrayOutputStream();
+		long escritos = motor.descifrar(new ByteArrayInputStream(cif), plano, claves.getPrivate());
+		assertEquals(grande.length, escritos);
+		assertArrayEquals(grande, plano.toByteArray());
+	}
+
+	@Test
+	void cifrarConCompresionCuentaElTextoPlanoSinComprimir() throws Exception {
+		ByteArrayOutputStream salida = new ByteArrayOutputStream();
+		long leidos = motor.cifrar(new ByteArrayInputStream(sis), salida, claves.getPublic(), Compresion.DEFLATE);
+		assertEquals(sis.length, leidos);
+
+		ByteArrayOutputStream plano = new ByteArrayOutputStream();
+		motor.descifrar(new ByteArrayInputStream(salida.toByteArray()), plano, claves.getPrivate());
+		assertArrayEquals(sis, plano.toByteArray());
+	}
+
+	@Test
+	void archivoMayorQueElBufferSeDescifraCompleto() throws Exception {
+		byte[] grande = repetir(sis, MotorCifrado.TAMANO_BUFFER * 3 + 17);
+
+		ByteArrayOutputStream salida = new ByteArrayOutputStream();
+		motor.cifrar(new ByteArrayInputStream(grande), salida, claves.getPublic());
+		ByteArrayOutputStream plano = new ByteArrayOutputStream();
+		motor.descifrar(new ByteArrayInputStream(salida.toByteArray()), plano, claves.getPrivate());
+
+		assertArrayEquals(grande, plano.toByteArray());
+	}
+
+	@Test
+	void aesGcmLlevaEncabezadoYDetectaAlteraciones() throws Exception {
+		byte[] grande = repetir(sis, MotorCifrado.TAMANO_BUFFER * 2 + 5);
+		ByteArrayOutputStream salida = new ByteArrayOutputStream();
+		try (InputStream cifrando = motor.cifrando(new ByteArrayInputStream(grande), claves.getPublic(),
+				Compresion.NINGUNA, Suite.AES_GCM)) {
+			cifrando.transferTo(salida);
+		}
+		byte[] cif = salida.toByteArray();
+
+		DataInputStream datos = new DataInputStream(new ByteArrayInputStream(cif));
+		assertEquals(MotorCifrado.MAGIA, datos.readInt());
+		assertEquals(MotorCifrado.VERSION_FORMATO, datos.readUnsignedByte());
+		assertEquals(Suite.AES_GCM, Suite.deBanderas(datos.readUnsignedByte()));
+
+		ByteArrayOutputStream plano = new ByteArrayOutputStream();
+		motor.descifrar(new ByteArrayInputStream(cif), plano, claves.getPrivate());
+		assertArrayEquals(grande, plano.toByteArray());
+
+		cif[cif.length - 100] ^= 1;
+		assertThrows(GeneralSecurityException.class, () -> motor.descifrar(new ByteArrayInputStream(cif),
+			new ByteArrayOutputStream(), claves.getPrivate()));
+	}
+
+	@Test
+	void aesGcmConCompresion() throws Exception {
+		ByteArrayOutputStream salida = new ByteArrayOutputStream();
+		motor.cifrar(new ByteArrayInputStream(sis), salida, claves.getPublic(), Compresion.DEFLATE, Suite.AES_GCM);
+
+		ByteArrayOutputStream plano = new ByteArrayOutputStream();
+		motor.descifrar(new ByteArrayInputStream(salida.toByteArray()), plano, claves.getPrivate());
+		assertArrayEquals(sis, plano.toByteArray());
+	}
+
+	@Test
+	void soloSeDescifranLosAesGcmClasicosPermitidosALaVez() throws Exception {
+		MotorCifrado unoALaVez = new MotorCifrado(MotorCifrado.GCM_CLASICO_MAXIMO, 1);
+		ByteArrayOutputStream gcm = new ByteArrayOutputStream();
+		unoALaVez.cifrar(new ByteArrayInputStream(sis), gcm, claves.getPublic(), Compresion.NINGUNA, Suite.AES_GCM);
+		ByteArrayOutputStream tdes = new ByteArrayOutputStream();
+		unoALaVez.cifrar(new ByteArrayInputStream(sis), tdes, claves.getPublic());
+
+		CountDownLatch leyendo = new CountDownLatch(1);
+		CountDownLatch continuar = new CountDownLatch(1);
+		ExecutorService hilos = Executors.newFixedThreadPool(2);
+		try {
+			// El primero se queda a mitad del cuerpo con el turno tomado
+			Future<byte[]> primero = hilos.submit(() -> descifrar(unoALaVez,
+				new EntradaDetenida(gcm.toByteArray(), 1024, leyendo, continuar)));
+			assertTrue(leyendo.await(10, TimeUnit.SECONDS));
+			Future<byte[]> segundo = hilos.submit(() -> descifrar(unoALaVez, new ByteArrayInputStream(gcm.toByteArray())));
+
+			// 3DES no retiene el archivo y no espera turno
+			assertArrayEquals(sis, descifrar(unoALaVez, new ByteArrayInputStream(tdes.toByteArray())));
+			assertFalse(segundo.isDone());
+
+			continuar.countDown();
+			assertArrayEquals(sis, primero.get(10, TimeUnit.SECONDS));
+			assertArrayEquals(sis, segundo.get(10, TimeUnit.SECONDS));
+		} finally {
+			continuar.countDown();
+			hilos.shutdownNow();
+		}
+	}
+
+	private static byte[] descifrar(MotorCifrado motor, InputStream cif) throws Exception {
+		ByteArrayOutputStream plano = new ByteArrayOutputStream();
+		motor.descifrar(cif, plano, claves.getPrivate());
+		return plano.toByteArray();
+	}
+
+	/** Entrega los primeros {@code pausa} bytes y espera a {@code continuar} para dar el resto. */
+	private static final class EntradaDetenida extends ByteArrayInputStream {
+		private final int pausa;
+		private final CountDownLatch leyendo;
+		private final CountDownLatch continuar;
+
+		EntradaDetenida(byte[] datos, int pausa, CountDownLatch leyendo, CountDownLatch continuar) {
+			super(datos);
+			this.pausa = pausa;
+			this.leyendo = leyendo;
+			this.continuar = continuar;
+		}
+
+		@Override
+		public synchronized int read(byte[] destino, int desde, int longitud) {
+			if (pos < pausa) {
+				return super.read(destino, desde, Math.min(longitud, pausa - pos));
+			}
+			leyendo.countDown();
+			try {
+				continuar.await();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			return super.read(destino, desde, longitud);
+		}
+	}
+
+	private static byte[] repetir(byte[] origen, int longitud) {
+		byte[] resultado = new byte[longitud];
+		for (int i = 0; i < longitud; i++) {
+			resultado[i] = origen[i % origen.length];
+		}
+		return resultado;
+	}
+}
@@ -0,0 +1,40 @@
+package com.sirexe.cifradoapi.health;
+
+import com.sirexe.cifradoapi.config.CifradoProperties;
+import com.sirexe.cifradoapi.service.FileStorageService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.boot.actuate.health.Health;
+import org.springframework.boot.actuate.health.Status;
+import org.springframework.util.FileSystemUtils;
+
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AlmacenamientoHealthIndicatorTest {
+
+	@TempDir
+	Path directorio;
+
+	@Test
+	void compruebaElDirectorioDeLaReplica() throws Exception {
+		CifradoProperties propiedades = new CifradoProperties();
+		propiedades.getAlmacenamiento().setDirectorio(directorio.toString());
+		propiedades.getAlmacenamiento().setReplica("replica-a");
+		FileStorageService fileStorageService = new FileStorageService(propiedades, new SimpleMeterRegistry());
+		try {
+			AlmacenamientoHealthIndicator indicador = new AlmacenamientoHealthIndicator(fileStorageService);
+			Health salud = indicador.health();
+			assertEquals(Status.UP, salud.getStatus());
+			assertEquals(directorio.resolve("replica-a").toAbsolutePath().toString(), salud.getDetails().get("directorio"));
+
+			// El directorio configurado sigue admitiendo escritura, pero la réplica no puede escribir
+			FileSystemUtils.deleteRecursively(directorio.resolve("replica-a"));
+			assertEquals(Status.DOWN, indicador.health().getStatus());
+		} finally {
+			fileStorageService.close();
+		}
+	}
+}
@@ -0,0 +1,188 @@
+package com.sirexe.cifradoapi.service;
+
+import com.sirexe.cifradoapi.config.CifradoProperties;
+import com.sirexe.cifradoapi.config.EjecutoresConfig;
+import com.sirexe.cifradoapi.crypto.Compresion;
+import com.sirexe.cifradoapi.crypto.Formato;
+import com.sirexe.cifradoapi.crypto.MotorCifrado;
+import com.sirexe.cifradoapi.crypto.Suite;
+import com.sirexe.cifradoapi.model.FileToken;
+import com.sirexe.cifradoapi.model.OpcionesCifrado;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+class CifradoServiceConcurrenciaTest {
+
+	private static final int PETICIONES = 64;
+
+	private final ClavesPrueba claves = new ClavesPrueba();
+	private CifradoProperties propiedades;
+	private ThreadPoolTaskExecutor executor;
+	private CifradoService cifradoService;
+	private FileStorageService fileStorageService;
+	private SimpleMeterRegistry registro;
+
+	@TempDir
+	Path directorio;
+
+	@BeforeEach
+	void preparar() throws Exception {
+		propiedades = new CifradoProperties();
+		propiedades.setMotor(CifradoProperties.Motor.INTERNO);
+		propiedades.getAlmacenamiento().setDirectorio(directorio.toString());
+		executor = new EjecutoresConfig().cifradoExecutor(propiedades);
+		executor.initialize();
+		registro = new SimpleMeterRegistry();
+		fileStorageService = new FileStorageService(propiedades, registro);
+		cifradoService = new CifradoService(propiedades, claves, executor, executor, fileStorageService, registro);
+	}
+
+	@AfterEach
+	void cerrar() {
+		executor.shutdown();
+	}
+
+	@Test
+	void subidasSimultaneasConElMismoNombreNoSeMezclan() throws Exception {
+		byte[] sis = Files.readAllBytes(Paths.get("SIS.txt"));
+		ExecutorService clientes = Executors.newFixedThreadPool(16);
+		CountDownLatch salida = new CountDownLatch(1);
+		List<Future<String>> tokens = new ArrayList<>();
+		List<byte[]> esperados = new ArrayList<>();
+
+		for (int i = 0; i < PETICIONES; i++) {
+			// Mismo nombre para todas, contenido distinto para poder distinguirlas
+			byte[] contenido = concatenar(sis, ("\npeticion|" + i + "\n").getBytes(StandardCharsets.UTF_8));
+			esperados.add(contenido);
+			MockMultipartFile archivo = new MockMultipartFile("archivo", "SIS.txt", "text/plain", contenido);
+			tokens.add(clientes.submit(() -> {
+				salida.await();
+				return cifradoService.cifrarYAlmacenar(archivo, "SIS.cif", new OpcionesCifrado()).getToken();
+			}));
+		}
+		salida.countDown();
+
+		MotorCifrado motor = new MotorCifrado();
+		for (int i = 0; i < PETICIONES; i++) {
+			String token = tokens.get(i).get();
+			ByteArrayOutputStream plano = new ByteArrayOutputStream();
+			motor.descifrar(new ByteArrayInputStream(fileStorageService.getFile(token)), plano,
+				claves.getMaterial().getClavePrivada());
+			assertArrayEquals(esperados.get(i), plano.toByteArray(), "token " + token);
+			fileStorageService.deleteFile(token);
+		}
+		clientes.shutdown();
+	}
+
+	@Test
+	void subidasIdenticasCompartenElArchivoCifrado() throws Exception {
+		// SIS.txt y SIS_CE.txt tienen el mismo contenido
+		MockMultipartFile sis = new MockMultipartFile("archivo", "SIS.txt", "text/plain",
+			Files.readAllBytes(Paths.get("SIS.txt")));
+		MockMultipartFile sisCe = new MockMultipartFile("archivo", "SIS_CE.txt", "text/plain",
+			Files.readAllBytes(Paths.get("SIS_CE.txt")));
+
+		FileToken primero = cifradoService.cifrarYAlmacenar(sis, "SIS.cif", new OpcionesCifrado());
+		FileToken segundo = cifradoService.cifrarYAlmacenar(sisCe, "SIS_CE.cif", new OpcionesCifrado());
+
+		assertNotEquals(primero.getToken(), segundo.getToken());
+		assertEquals(primero.getFilePath(), segundo.getFilePath());
+		assertEquals(1, fileStorageService.getStoredFileCount());
+		assertEquals("SIS_CE.cif", fileStorageService.getFileToken(segundo.getToken()).getOriginalName());
+
+		assertEquals(1, registro.get("cifrado.peticion").tag("resultado", "ok").timer().count());
+		assertEquals(1, registro.get("cifrado.peticion").tag("resultado", "duplicado").timer().count());
+		assertEquals(1, registro.get("cifrado.etapa").tag("etapa", "cifrado").timer().count());
+		assertEquals(0, registro.get("cifrado.en_curso").gauge().value());
+		assertEquals(2, registro.get("cifrado.tokens.vivos").gauge().value());
+	}
+
+	@Test
+	void cifradosConYSinCompresionNoCompartenArchivo() throws Exception {
+		MockMultipartFile sis = new MockMultipartFile("archivo", "SIS.txt", "text/plain",
+			Files.readAllBytes(Paths.get("SIS.txt")));
+		OpcionesCifrado comprimir = new OpcionesCifrado();
+		comprimir.setCompresion(Compresion.DEFLATE);
+
+		FileToken plano = cifradoService.cifrarYAlmacenar(sis, "SIS.cif", new OpcionesCifrado());
+		FileToken comprimido = cifradoService.cifrarYAlmacenar(sis, "SIS.cif", comprimir);
+		FileToken repetido = cifradoService.cifrarYAlmacenar(sis, "SIS.cif", comprimir);
+
+		assertNotEquals(plano.getFilePath(), comprimido.getFilePath());
+		assertEquals(comprimido.getFilePath(), repetido.getFilePath());
+		assertEquals(Compresion.DEFLATE, repetido.getCompression());
+		assertEquals(Compresion.NINGUNA, plano.getCompression());
+
+		ByteArrayOutputStream texto = new ByteArrayOutputStream();
+		new MotorCifrado().descifrar(new ByteArrayInputStream(fileStorageService.getFile(repetido.getToken())),
+			texto, claves.getMaterial().getClavePrivada());
+		assertArrayEquals(sis.getBytes(), texto.toByteArray());
+	}
+
+	@Test
+	void elFormatoTroceadoSeDescifraYNoSeDeduplicaConElClasico() throws Exception {
+		propiedades.getTroceado().setTamanoTrozo(DataSize.ofBytes(512));
+		MockMultipartFile sis = new MockMultipartFile("archivo", "SIS.txt", "text/plain",
+			Files.readAllBytes(Paths.get("SIS.txt")));
+		OpcionesCifrado trocear = new OpcionesCifrado();
+		trocear.setFormato(Formato.TROCEADO);
+
+		FileToken clasico = cifradoService.cifrarYAlmacenar(sis, "SIS.cif", new OpcionesCifrado());
+		FileToken troceado = cifradoService.cifrarYAlmacenar(sis, "SIS.cif", trocear);
+
+		assertNotEquals(clasico.getFilePath(), troceado.getFilePath());
+		assertEquals(Formato.TROCEADO, troceado.getFormat());
+		ByteArrayOutputStream texto = new ByteArrayOutputStream();
+		new MotorCifrado().descifrar(new ByteArrayInputStream(fileStorageService.getFile(troceado.getToken())),
+			texto, claves.getMaterial().getClavePrivada());
+		assertArrayEquals(sis.getBytes(), texto.toByteArray());
+	}
+
+	@Test
+	void conAesGcmSeDescifraYNoSeDeduplicaConTdes() throws Exception {
+		MockMultipartFile sis = new MockMultipartFile("archivo", "SIS.txt", "text/plain",
+			Files.readAllBytes(Paths.get("SIS.txt")));
+		OpcionesCifrado aes = new OpcionesCifrado();
+		aes.setSuite(Suite.AES_GCM);
+
+		FileToken tdes = cifradoService.cifrarYAlmacenar(sis, "SIS.cif", new OpcionesCifrado());
+		FileToken gcm = cifradoService.cifrarYAlmacenar(sis, "SIS.cif", aes);
+
+		assertNotEquals(tdes.getFilePath(), gcm.getFilePath());
+		assertEquals(Suite.AES_GCM, gcm.getSuite());
+		ByteArrayOutputStream texto = new ByteArrayOutputStream();
+		new MotorCifrado().descifrar(new ByteArrayInputStream(fileStorageService.getFile(gcm.getToken())),
+			texto, claves.getMaterial().getClavePrivada());
+		assertArrayEquals(sis.getBytes(), texto.toByteArray());
+	}
+
+	private static byte[] concatenar(byte[] a, byte[] b) {
+		byte[] r = new byte[a.length + b.length];
+		System.arraycopy(a, 0, r, 0, a.length);
+		System.arraycopy(b, 0, r, a.length, b.length);
+		return r;
+	}
+}
@@ -0,0 +1,234 @@
+package com.sirexe.cifradoapi.service;
+
+import com.sirexe.cifradoapi.config.CifradoProperties;
+import com.sirexe.cifradoapi.config.EjecutoresConfig;
+import com.sirexe.cifradoapi.crypto.Compresion;
+import com.sirexe.cifradoapi.crypto.Formato;
+import com.sirexe.cifradoapi.crypto.MaterialClaves;
+import com.sirexe.cifradoapi.crypto.MotorCifrado;
+import com.sirexe.cifradoapi.crypto.Suite;
+import com.sirexe.cifradoapi.model.FileToken;
+import com.sirexe.cifradoapi.model.OpcionesCifrado;
+import com.sirexe.cifradoapi.model.ResultadoVerificacion;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CifradoServiceDescifradoTest {
+
+	private static final byte[] SIS = leerSis();
+
+	private CifradoProperties propiedades;
+	private ThreadPoolTaskExecutor cifrado;
+	private ThreadPoolTaskExecutor trabajos;
+	private CifradoService cifradoService;
+	private FileStorageService fileStorageService;
+
+	@TempDir
+	Path directorio;
+
+	@BeforeEach
+	void preparar() throws Exception {
+		propiedades = new CifradoProperties();
+		propiedades.setMotor(CifradoProperties.Motor.INTERNO);
+		propiedades.getDescifrado().setActivo(true);
+		propiedades.getAlmacenamiento().setDirectorio(directorio.toString());
+		// Sin cache: las pruebas alteran el archivo en disco
+		propiedades.getCache().setCapacidad(DataSize.ofBytes(0));
+		// Cada prueba cifra el mismo texto varias veces con opciones distintas
+		propiedades.getAlmacenamiento().setDeduplicar(false);
+		cifrado = new EjecutoresConfig().cifradoExecutor(propiedades);
+		cifrado.initialize();
+		trabajos = new EjecutoresConfig().trabajosExecutor(propiedades);
+		trabajos.initialize();
+		fileStorageService = new FileStorageService(propiedades, new SimpleMeterRegistry());
+		cifradoService = new CifradoService(propiedades, new ClavesPrueba(), cifrado, trabajos, fileStorageService,
+			new SimpleMeterRegistry());
+	}
+
+	@AfterEach
+	void cerrar() throws Exception {
+		cifrado.shutdown();
+		trabajos.shutdown();
+		fileStorageService.close();
+	}
+
+	@Test
+	void verificarDaLaHuellaDelOriginalEnCadaFormatoYSuite() throws Exception {
+		String esperada = sha256(SIS);
+		for (Formato formato : Formato.values()) {
+			for (Suite suite : Suite.values()) {
+				FileToken fileToken = cifrar(formato, suite, Compresion.NINGUNA, 0);
+
+				ResultadoVerificacion resultado = cifradoService.verificar(
+					fileStorageService.openContent(fileToken.getToken()));
+				assertTrue(resultado.isValido(), formato + " " + suite + ": " + resultado.getError());
+				assertEquals(SIS.length, resultado.getBytesPlano());
+				assertEquals(esperada, resultado.getSha256(), formato + " " + suite);
+			}
+		}
+		FileToken comprimido = cifrar(Formato.TROCEADO, Suite.TDES, Compresion.DEFLATE, 0);
+		assertEquals(esperada, cifradoService.verificar(fileStorageService.openContent(comprimido.getToken()))
+			.getSha256());
+	}
+
+	@Test
+	void verificarNoConsumeDescargas() throws Exception {
+		FileToken fileToken = cifrar(Formato.CLASICO, Suite.TDES, Compresion.NINGUNA, 1);
+
+		assertTrue(cifradoService.verificar(fileStorageService.openContent(fileToken.getToken())).isValido());
+		assertTrue(cifradoService.verificar(fileStorageService.openContent(fileToken.getToken())).isValido());
+		assertNotNull(fileStorageService.openDownload(fileToken.getToken(), false));
+		assertNull(fileStorageService.openContent(fileToken.getToken()));
+	}
+
+	@Test
+	void unArchivoAlteradoOTruncadoNoEsValido() throws Exception {
+		for (Formato formato : Formato.values()) {
+			FileToken fileToken = cifrar(formato, Suite.AES_GCM, Compresion.NINGUNA, 0);
+			Path archivo = Paths.get(fileToken.getFilePath());
+			byte[] cif = Files.readAllBytes(archivo);
+
+			byte[] alterado = cif.clone();
+			alterado[cif.length / 2] ^= 1;
+			Files.write(archivo, alterado);
+			ResultadoVerificacion resultado = cifradoService.verificar(
+				fileStorageService.openContent(fileToken.getToken()));
+			assertFalse(resultado.isValido(), formato.name());
+			assertNull(resultado.getSha256());
+			assertNotNull(resultado.getError());
+
+			Files.write(archivo, Arrays.copyOf(cif, cif.length - 20));
+			assertFalse(cifradoService.verificar(fileStorageService.openContent(fileToken.getToken())).isValido(),
+				formato.name());
+		}
+	}
+
+	@Test
+	void descifrarDevuelveElTextoOriginal() throws Exception {
+		for (Formato formato : Formato.values()) {
+			byte[] cif = Files.readAllBytes(Paths.get(cifrar(formato, Suite.TDES, Compresion.NINGUNA, 0)
+				.getFilePath()));
+
+			ByteArrayOutputStream plano = new ByteArrayOutputStream();
+			assertEquals(SIS.length, cifradoService.descifrar(new ByteArrayInputStream(cif), plano));
+			assertArrayEquals(SIS, plano.toByteArray(), formato.name());
+
+			if (formato == Formato.CLASICO) {
+				// 3DES clásico no está autenticado: un byte cambiado solo estropea su bloque
+				continue;
+			}
+			byte[] alterado = cif.clone();
+			alterado[cif.length / 2] ^= 1;
+			assertThrows(GeneralSecurityException.class, () -> cifradoService.descifrar(
+				new ByteArrayInputStream(alterado), new ByteArrayOutputStream()), formato.name());
+		}
+	}
+
+	@Test
+	void descifrarNoOcupaElPoolDeCifrado() throws Exception {
+		byte[] cif = Files.readAllBytes(Paths.get(cifrar(Formato.TROCEADO, Suite.AES_GCM, Compresion.NINGUNA, 0)
+			.getFilePath()));
+		// Sin pool que lo acepte, descifrar sigue funcionando en el hilo que lo llama
+		cifrado.shutdown();
+
+		ByteArrayOutputStream plano = new ByteArrayOutputStream();
+		assertEquals(SIS.length, cifradoService.descifrar(new ByteArrayInputStream(cif), plano));
+		assertArrayEquals(SIS, plano.toByteArray());
+	}
+
+	@Test
+	void unAesGcmClasicoMayorQueElMaximoSeRechazaAlCifrarYAlDescifrar() throws Exception {
+		byte[] cif = Files.readAllBytes(Paths.get(cifrar(Formato.CLASICO, Suite.AES_GCM, Compresion.NINGUNA, 0)
+			.getFilePath()));
+		// Mayor que el buffer del motor: el límite se nota entre dos lecturas, no en la primera
+		propiedades.setAesGcmClasicoMaximo(DataSize.ofBytes(SIS.length - 1));
+		cifradoService = new CifradoService(propiedades, new ClavesPrueba(), cifrado, trabajos, fileStorageService,
+			new SimpleMeterRegistry());
+
+		assertThrows(MotorCifrado.GcmClasicoExcedidoException.class,
+			() -> cifrar(Formato.CLASICO, Suite.AES_GCM, Compresion.NINGUNA, 0));
+		assertThrows(MotorCifrado.GcmClasicoExcedidoException.class,
+			() -> cifradoService.descifrar(new ByteArrayInputStream(cif), new ByteArrayOutputStream()));
+
+		// El troceado y 3DES no retienen el archivo y no tienen límite
+		FileToken troceado = cifrar(Formato.TROCEADO, Suite.AES_GCM, Compresion.NINGUNA, 0);
+		assertEquals(sha256(SIS), cifradoService.verificar(fileStorageService.openContent(troceado.getToken()))
+			.getSha256());
+		FileToken tdes = cifrar(Formato.CLASICO, Suite.TDES, Compresion.NINGUNA, 0);
+		assertTrue(cifradoService.verificar(fileStorageService.openContent(tdes.getToken())).isValido());
+	}
+
+	@Test
+	void sinClavePrivadaElDescifradoActivoNoArranca() throws Exception {
+		MaterialClaves soloPublica = new ClavesPrueba().getMaterial();
+		KeystoreService sinClavePrivada = new ClavesPrueba() {
+			@Override
+			public MaterialClaves getMaterial() {
+				return new MaterialClaves(soloPublica.getClavePublica(), null, null, "prueba", new byte[0],
+					Instant.now());
+			}
+		};
+		assertThrows(IllegalStateException.class, () -> new CifradoService(propiedades, sinClavePrivada, cifrado,
+			trabajos, fileStorageService, new SimpleMeterRegistry()));
+
+		propiedades.getDescifrado().setActivo(false);
+		CifradoService desactivado = new CifradoService(propiedades, sinClavePrivada, cifrado, trabajos,
+			fileStorageService, new SimpleMeterRegistry());
+		assertThrows(IllegalStateException.class, () -> desactivado.descifrar(new ByteArrayInputStream(new byte[1]),
+			new ByteArrayOutputStream()));
+	}
+
+	private FileToken cifrar(Formato formato, Suite suite, Compresion compresion, int maxDescargas)
+			throws Exception {
+		OpcionesCifrado opciones = new OpcionesCifrado(Duration.ofMinutes(5), maxDescargas);
+		opciones.setFormato(formato);
+		opciones.setSuite(suite);
+		opciones.setCompresion(compresion);
+		MockMultipartFile archivo = new MockMultipartFile("archivo", "SIS.txt", "text/plain", SIS);
+		return cifradoService.cifrarYAlmacenar(archivo, "SIS.cif", opciones);
+	}
+
+	private static String sha256(byte[] datos) throws Exception {
+		StringBuilder huella = new StringBuilder();
+		for (byte b : MessageDigest.getInstance("SHA-256").digest(datos)) {
+			huella.append(String.format("%02x", b));
+		}
+		return huella.toString();
+	}
+
+	private static byte[] leerSis() {
+		try {
+			String texto = new String(Files.readAllBytes(Paths.get("SIS.txt")), StandardCharsets.UTF_8);
+			// Varias filas y más de un trozo, para que el troceado y los registros tengan estructura
+			return (texto + "\n").repeat(800).getBytes(StandardCharsets.UTF_8);
+		} catch (Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
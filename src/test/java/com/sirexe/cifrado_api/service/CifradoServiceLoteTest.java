@@ -0,0 +1,214 @@
+package com.sirexe.cifradoapi.service;
+
+import com.sirexe.cifradoapi.config.CifradoProperties;
+import com.sirexe.cifradoapi.config.EjecutoresConfig;
+import com.sirexe.cifradoapi.crypto.MotorCifrado;
+import com.sirexe.cifradoapi.model.EstadoArchivoLote;
+import com.sirexe.cifradoapi.model.OpcionesCifrado;
+import com.sirexe.cifradoapi.model.ResultadoLote;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+import org.springframework.web.multipart.MultipartFile;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CifradoServiceLoteTest {
+
+	private final ClavesPrueba claves = new ClavesPrueba();
+	private final MotorCifrado motor = new MotorCifrado();
+	private ThreadPoolTaskExecutor executor;
+	private ThreadPoolTaskExecutor poolPequeno;
+	private CifradoService cifradoService;
+	private FileStorageService fileStorageService;
+
+	@TempDir
+	Path directorio;
+
+	@BeforeEach
+	void preparar() throws Exception {
+		CifradoProperties propiedades = new CifradoProperties();
+		propiedades.setMotor(CifradoProperties.Motor.INTERNO);
+		propiedades.getAlmacenamiento().setDirectorio(directorio.toString());
+		executor = new EjecutoresConfig().cifradoExecutor(propiedades);
+		executor.initialize();
+		fileStorageService = new FileStorageService(propiedades, new SimpleMeterRegistry());
+		cifradoService = new CifradoService(propiedades, claves, executor, executor, fileStorageService, new SimpleMeterRegistry());
+	}
+
+	@AfterEach
+	void cerrar() {
+		executor.shutdown();
+		if (poolPequeno != null) {
+			poolPequeno.shutdown();
+		}
+	}
+
+	@Test
+	void variosArchivosSeEntreganEnUnZipEnOrdenConEstadoPorArchivo() throws Exception {
+		MultipartFile[] archivos = new MultipartFile[40];
+		for (int i = 0; i < archivos.length; i++) {
+			// Nombres repetidos a propósito: deben numerarse sin pisarse
+			String nombre = i % 2 == 0 ? "SIS.txt" : "SIS_" + i + ".txt";
+			archivos[i] = new MockMultipartFile("archivos", nombre, "text/plain", fila(i));
+		}
+		archivos[7] = new MockMultipartFile("archivos", "notas.csv", "text/csv", fila(7));
+
+		ResultadoLote resultado = cifradoService.cifrarLote(archivos, new OpcionesCifrado());
+
+		assertEquals(39, resultado.getCifrados());
+		EstadoArchivoLote rechazado = resultado.getArchivos().get(7);
+		assertEquals(EstadoArchivoLote.ERROR, rechazado.getEstado());
+		assertEquals("SIS.cif", resultado.getArchivos().get(0).getNombreCifrado());
+		assertEquals("SIS(2).cif", resultado.getArchivos().get(2).getNombreCifrado());
+
+		Map<String, byte[]> contenido = leerZip(fileStorageService.getFile(resultado.getFileToken().getToken()));
+		assertEquals(39, contenido.size());
+		for (int i = 0; i < archivos.length; i++) {
+			EstadoArchivoLote estado = resultado.getArchivos().get(i);
+			if (estado.isOk()) {
+				assertArrayEquals(fila(i), descifrar(contenido.get(estado.getNombreCifrado())), estado.getNombreCifrado());
+			}
+		}
+	}
+
+	@Test
+	void unZipDeEntradaSeCifraEntradaPorEntrada() throws Exception {
+		ByteArrayOutputStream zip = new ByteArrayOutputStream();
+		try (ZipOutputStream salida = new ZipOutputStream(zip)) {
+			for (int i = 0; i < 5; i++) {
+				salida.putNextEntry(new ZipEntry("extractos/SIS_" + i + ".txt"));
+				salida.write(fila(i));
+				salida.closeEntry();
+			}
+		}
+		MultipartFile[] archivos = {
+			new MockMultipartFile("archivos", "extractos.zip", "application/zip", zip.toByteArray())
+		};
+
+		ResultadoLote resultado = cifradoService.cifrarLote(archivos, new OpcionesCifrado());
+
+		Map<String, byte[]> contenido = leerZip(fileStorageService.getFile(resultado.getFileToken().getToken()));
+		assertEquals(5, contenido.size());
+		assertArrayEquals(fila(3), descifrar(contenido.get("SIS_3.cif")));
+	}
+
+	@Test
+	void conElPoolLlenoElLoteAdelantaMenosArchivos() throws Exception {
+		// Un hilo ocupado y un lugar en cola: de la ventana de dos solo cabe un archivo
+		CifradoService servicio = servicioConPool(1, 1);
+		Future<?> ocupado = poolPequeno.submit(() -> {
+			Thread.sleep(200);
+			return null;
+		});
+		MultipartFile[] archivos = new MultipartFile[10];
+		for (int i = 0; i < archivos.length; i++) {
+			archivos[i] = new MockMultipartFile("archivos", "SIS_" + i + ".txt", "text/plain", fila(i));
+		}
+
+		ResultadoLote resultado = servicio.cifrarLote(archivos, new OpcionesCifrado());
+		ocupado.get();
+
+		assertEquals(10, resultado.getCifrados());
+		Map<String, byte[]> contenido = leerZip(fileStorageService.getFile(resultado.getFileToken().getToken()));
+		assertArrayEquals(fila(9), descifrar(contenido.get("SIS_9.cif")));
+	}
+
+	@Test
+	void conElPoolOcupadoLosArchivosQuedanEnErrorSinCifrarseEnLaPeticion() throws Exception {
+		CifradoService servicio = servicioConPool(1, 0);
+		CountDownLatch liberar = new CountDownLatch(1);
+		Future<?> ocupado = poolPequeno.submit(() -> {
+			liberar.await();
+			return null;
+		});
+		try {
+			MultipartFile[] archivos = {
+				new MockMultipartFile("archivos", "SIS_1.txt", "text/plain", fila(1)),
+				new MockMultipartFile("archivos", "SIS_2.txt", "text/plain", fila(2))
+			};
+
+			ResultadoLote resultado = servicio.cifrarLote(archivos, new OpcionesCifrado());
+
+			assertNull(resultado.getFileToken());
+			for (EstadoArchivoLote estado : resultado.getArchivos()) {
+				assertEquals(EstadoArchivoLote.ERROR, estado.getEstado());
+				assertTrue(estado.getError().contains("saturado"), estado.getError());
+			}
+		} finally {
+			liberar.countDown();
+			ocupado.get();
+		}
+	}
+
+	@Test
+	void elNombreCifradoCambiaSoloLaExtensionTxtFinal() {
+		assertEquals("SIS.cif", CifradoService.nombreCifrado("SIS.txt"));
+		assertEquals("SIS.txt.bak.cif", CifradoService.nombreCifrado("SIS.txt.bak.txt"));
+		assertEquals("datos.csv.cif", CifradoService.nombreCifrado("datos.csv"));
+	}
+
+	@Test
+	void unLoteSinArchivosValidosNoGeneraToken() throws Exception {
+		MultipartFile[] archivos = {
+			new MockMultipartFile("archivos", "vacio.txt", "text/plain", new byte[0]),
+			new MockMultipartFile("archivos", "datos.csv", "text/csv", fila(1))
+		};
+
+		ResultadoLote resultado = cifradoService.cifrarLote(archivos, new OpcionesCifrado());
+
+		assertNull(resultado.getFileToken());
+		assertEquals(0, resultado.getCifrados());
+	}
+
+	private CifradoService servicioConPool(int hilos, int cola) {
+		CifradoProperties propiedades = new CifradoProperties();
+		propiedades.setMotor(CifradoProperties.Motor.INTERNO);
+		propiedades.getAlmacenamiento().setDirectorio(directorio.toString());
+		propiedades.getTrabajadores().setHilos(hilos);
+		propiedades.getTrabajadores().setCola(cola);
+		poolPequeno = new EjecutoresConfig().cifradoExecutor(propiedades);
+		poolPequeno.initialize();
+		return new CifradoService(propiedades, claves, poolPequeno, poolPequeno, fileStorageService,
+			new SimpleMeterRegistry());
+	}
+
+	private byte[] descifrar(byte[] cifrado) throws Exception {
+		ByteArrayOutputStream plano = new ByteArrayOutputStream();
+		motor.descifrar(new ByteArrayInputStream(cifrado), plano, claves.getMaterial().getClavePrivada());
+		return plano.toByteArray();
+	}
+
+	private static Map<String, byte[]> leerZip(byte[] zip) throws Exception {
+		Map<String, byte[]> entradas = new LinkedHashMap<>();
+		try (ZipInputStream entrada = new ZipInputStream(new ByteArrayInputStream(zip))) {
+			for (ZipEntry e = entrada.getNextEntry(); e != null; e = entrada.getNextEntry()) {
+				entradas.put(e.getName(), entrada.readAllBytes());
+			}
+		}
+		return entradas;
+	}
+
+	private static byte[] fila(int i) {
+		return ("CLUES|FOLIO|" + i + "|2025-09-03|DATO\n").repeat(50 + i).getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,120 @@
+package com.sirexe.cifradoapi.service;
+
+import com.sirexe.cifradoapi.config.CifradoProperties;
+import com.sirexe.cifradoapi.config.EjecutoresConfig;
+import com.sirexe.cifradoapi.crypto.MotorCifrado;
+import com.sirexe.cifradoapi.model.FileToken;
+import com.sirexe.cifradoapi.model.OpcionesCifrado;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.mock.web.MockMultipartFile;
+import org.springframework.scheduling.concurrent.ThreadPoolTaskExecutor;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class CifradoServiceTrabajosTest {
+
+	private final ClavesPrueba claves = new ClavesPrueba();
+	private ThreadPoolTaskExecutor cifrado;
+	private ThreadPoolTaskExecutor trabajos;
+	private CifradoService cifradoService;
+	private FileStorageService fileStorageService;
+	private CifradoProperties propiedades;
+
+	@TempDir
+	Path directorio;
+
+	@BeforeEach
+	void preparar() throws Exception {
+		propiedades = new CifradoProperties();
+		propiedades.setMotor(CifradoProperties.Motor.INTERNO);
+		propiedades.getAlmacenamiento().setDirectorio(directorio.toString());
+		cifrado = new EjecutoresConfig().cifradoExecutor(propiedades);
+		cifrado.initialize();
+		trabajos = new EjecutoresConfig().trabajosExecutor(propiedades);
+		trabajos.initialize();
+		fileStorageService = new FileStorageService(propiedades, new SimpleMeterRegistry());
+		cifradoService = new CifradoService(propiedades, claves, cifrado, trabajos, fileStorageService, new SimpleMeterRegistry());
+	}
+
+	@AfterEach
+	void cerrar() throws Exception {
+		cifrado.shutdown();
+		trabajos.shutdown();
+		fileStorageService.close();
+	}
+
+	@Test
+	void elTrabajoPasaDePendienteADescargableConProgreso() throws Exception {
+		byte[] contenido = "CLUES|FOLIO|2025-09-03|DATO\n".repeat(200_000).getBytes(StandardCharsets.UTF_8);
+		MockMultipartFile archivo = new MockMultipartFile("archivo", "SIS.txt", "text/plain", contenido);
+
+		FileToken fileToken = cifradoService.cifrarEnSegundoPlano(archivo, "SIS.cif", new OpcionesCifrado());
+		assertEquals(contenido.length, fileToken.getTotalBytes());
+		esperar(fileToken);
+
+		assertEquals(FileToken.Status.DONE, fileToken.getStatus());
+		assertEquals(contenido.length, fileToken.getProcessedBytes());
+		ByteArrayOutputStream plano = new ByteArrayOutputStream();
+		new MotorCifrado().descifrar(new ByteArrayInputStream(fileStorageService.getFile(fileToken.getToken())),
+			plano, claves.getMaterial().getClavePrivada());
+		assertArrayEquals(contenido, plano.toByteArray());
+	}
+
+	@Test
+	void unTokenPendienteNoSeDescargaNiSobreviveAlReinicio() throws Exception {
+		FileToken fileToken = fileStorageService.reserveToken("SIS.cif", new OpcionesCifrado(Duration.ofMinutes(5), 0));
+
+		assertNull(fileStorageService.openDownload(fileToken.getToken(), false));
+
+		fileStorageService.close();
+		fileStorageService = new FileStorageService(propiedades, new SimpleMeterRegistry());
+		assertNull(fileStorageService.getFileToken(fileToken.getToken()));
+	}
+
+	@Test
+	void unFalloQuedaRegistradoEnElToken() throws Exception {
+		FileToken fileToken = fileStorageService.reserveToken("SIS.cif", new OpcionesCifrado(Duration.ofMinutes(5), 0));
+		InputStream roto = new InputStream() {
+			@Override
+			public int read() throws IOException {
+				throw new IOException("conexión perdida");
+			}
+		};
+
+		assertThrows(IOException.class, () -> fileStorageService.completeToken(fileToken, roto));
+		fileStorageService.failToken(fileToken, "conexión perdida");
+
+		assertEquals(FileToken.Status.FAILED, fileToken.getStatus());
+		assertNull(fileStorageService.openDownload(fileToken.getToken(), false));
+		assertNull(fileToken.getFilePath());
+		try (Stream<Path> archivos = Files.list(directorio)) {
+			assertTrue(archivos.noneMatch(archivo -> archivo.toString().endsWith(".part")));
+		}
+	}
+
+	private static void esperar(FileToken fileToken) throws InterruptedException {
+		long limite = System.nanoTime() + Duration.ofSeconds(30).toNanos();
+		while (!fileToken.isReady() && fileToken.getStatus() != FileToken.Status.FAILED) {
+			assertTrue(System.nanoTime() < limite, "el trabajo no terminó a tiempo");
+			Thread.sleep(20);
+		}
+	}
+}
@@ -0,0 +1,44 @@
+package com.sirexe.cifradoapi.service;
+
+import com.sirexe.cifradoapi.config.CifradoProperties;
+import com.sirexe.cifradoapi.crypto.MaterialClaves;
+
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+
+/**
+ * KeystoreService con un par RSA generado al vuelo: la clave privada de
+ * transferencia.jks no está disponible en pruebas.
+ */
+class ClavesPrueba extends KeystoreService {
+
+	private static final KeyPair CLAVES = generar();
+
+	private final MaterialClaves material = new MaterialClaves(CLAVES.getPublic(), null, CLAVES.getPrivate(),
+		"prueba", new byte[0], Instant.now());
+
+	ClavesPrueba() {
+		super(new CifradoProperties());
+	}
+
+	@Override
+	public void inicializar() {
+	}
+
+	@Override
+	public MaterialClaves getMaterial() {
+		return material;
+	}
+
+	private static KeyPair generar() {
+		try {
+			KeyPairGenerator generador = KeyPairGenerator.getInstance("RSA");
+			generador.initialize(2048);
+			return generador.generateKeyPair();
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
@@ -0,0 +1,222 @@
+package com.sirexe.cifradoapi.service;
+
+import com.sirexe.cifradoapi.config.CifradoProperties;
+import com.sirexe.cifradoapi.model.FileToken;
+import com.sirexe.cifradoapi.model.OpcionesCifrado;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.Resource;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class FileStorageServiceTest {
+
+	private static final byte[] CONTENIDO = "contenido cifrado".getBytes(StandardCharsets.UTF_8);
+
+	@TempDir
+	Path directorio;
+
+	private CifradoProperties propiedades;
+	private FileStorageService fileStorageService;
+
+	@BeforeEach
+	void preparar() throws Exception {
+		propiedades = new CifradoProperties();
+		propiedades.getAlmacenamiento().setDirectorio(directorio.toString());
+		fileStorageService = new FileStorageService(propiedades, new SimpleMeterRegistry());
+	}
+
+	@AfterEach
+	void cerrar() throws Exception {
+		fileStorageService.close();
+	}
+
+	@Test
+	void descargasSimultaneasRespetanElLimite() throws Exception {
+		FileToken fileToken = fileStorageService.storeStream(new ByteArrayInputStream(CONTENIDO), "SIS.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 3), null);
+
+		ExecutorService clientes = Executors.newFixedThreadPool(8);
+		CountDownLatch salida = new CountDownLatch(1);
+		List<Future<Resource>> descargas = new ArrayList<>();
+		for (int i = 0; i < 20; i++) {
+			descargas.add(clientes.submit(() -> {
+				salida.await();
+				return fileStorageService.openDownload(fileToken.getToken(), false);
+			}));
+		}
+		salida.countDown();
+
+		List<Resource> concedidas = new ArrayList<>();
+		for (Future<Resource> descarga : descargas) {
+			if (descarga.get() != null) {
+				concedidas.add(descarga.get());
+			}
+		}
+		clientes.shutdown();
+		assertEquals(3, concedidas.size());
+
+		// Las tres descargas ya están en curso; la última concedida borra el archivo al cerrarse
+		List<InputStream> envios = new ArrayList<>();
+		for (Resource recurso : concedidas) {
+			envios.add(recurso.getInputStream());
+		}
+		for (InputStream entrada : envios) {
+			try (entrada) {
+				assertEquals(CONTENIDO.length, entrada.readAllBytes().length);
+			}
+		}
+		assertFalse(Files.exists(Paths.get(fileToken.getFilePath())));
+		assertNull(fileStorageService.getFileToken(fileToken.getToken()));
+	}
+
+	@Test
+	void laUltimaDescargaNoAdmiteVariosRangos() throws Exception {
+		FileToken fileToken = fileStorageService.storeStream(new ByteArrayInputStream(CONTENIDO), "SIS.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 2), null);
+		assertNotNull(fileStorageService.openDownload(fileToken.getToken(), true));
+
+		// Cada rango cerraría el archivo: el primero lo borraría a mitad de respuesta
+		assertThrows(FileStorageService.VariosRangosException.class,
+			() -> fileStorageService.openDownload(fileToken.getToken(), true));
+		assertEquals(1, fileStorageService.getFileToken(fileToken.getToken()).getRemainingDownloads());
+		try (InputStream entrada = fileStorageService.openDownload(fileToken.getToken(), false).getInputStream()) {
+			assertArrayEquals(CONTENIDO, entrada.readAllBytes());
+		}
+		assertNull(fileStorageService.getFileToken(fileToken.getToken()));
+	}
+
+	@Test
+	void elContadorDeDescargasSobreviveAlReinicio() throws Exception {
+		FileToken fileToken = fileStorageService.storeStream(new ByteArrayInputStream(CONTENIDO), "SIS.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 2), null);
+		assertNotNull(fileStorageService.openDownload(fileToken.getToken(), false));
+		fileStorageService.close();
+
+		fileStorageService = new FileStorageService(propiedades, new SimpleMeterRegistry());
+		FileToken recuperado = fileStorageService.getFileToken(fileToken.getToken());
+		assertEquals(1, recuperado.getDownloadCount());
+		assertEquals(1, recuperado.getRemainingDownloads());
+	}
+
+	@Test
+	void tokenSinLimiteUsaElTtlIndicado() throws Exception {
+		FileToken fileToken = fileStorageService.storeStream(new ByteArrayInputStream(CONTENIDO), "SIS.cif",
+			new OpcionesCifrado(Duration.ofSeconds(90), 0), null);
+
+		assertEquals(Duration.ofSeconds(90), Duration.between(fileToken.getCreatedAt(), fileToken.getExpiresAt()));
+		for (int i = 0; i < 5; i++) {
+			assertNotNull(fileStorageService.openDownload(fileToken.getToken(), false));
+		}
+		assertTrue(Files.exists(Paths.get(fileToken.getFilePath())));
+	}
+
+	@Test
+	void unArchivoCompartidoSeBorraConElUltimoToken() throws Exception {
+		FileToken original = fileStorageService.storeStream(new ByteArrayInputStream(CONTENIDO), "SIS.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 0), "INTERNO:v1:abc");
+		FileToken copia = fileStorageService.storeDuplicate("INTERNO:v1:abc", "SIS_CE.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 1));
+		assertNull(fileStorageService.storeDuplicate("INTERNO:v2:abc", "SIS.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 0)));
+
+		assertEquals(original.getFilePath(), copia.getFilePath());
+		assertEquals(1, fileStorageService.getStoredFileCount());
+
+		// La única descarga de la copia no borra el archivo que sigue usando el original
+		try (InputStream entrada = fileStorageService.openDownload(copia.getToken(), false).getInputStream()) {
+			assertEquals(CONTENIDO.length, entrada.readAllBytes().length);
+		}
+		assertTrue(Files.exists(Paths.get(original.getFilePath())));
+
+		fileStorageService.deleteFile(original.getToken());
+		assertFalse(Files.exists(Paths.get(original.getFilePath())));
+		assertNull(fileStorageService.storeDuplicate("INTERNO:v1:abc", "SIS.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 0)));
+	}
+
+	@Test
+	void lasReferenciasSeReconstruyenAlReiniciar() throws Exception {
+		FileToken original = fileStorageService.storeStream(new ByteArrayInputStream(CONTENIDO), "SIS.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 0), "INTERNO:v1:abc");
+		fileStorageService.storeDuplicate("INTERNO:v1:abc", "SIS_CE.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 0));
+		fileStorageService.close();
+
+		fileStorageService = new FileStorageService(propiedades, new SimpleMeterRegistry());
+		FileToken otra = fileStorageService.storeDuplicate("INTERNO:v1:abc", "SIS.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 0));
+		assertEquals(original.getFilePath(), otra.getFilePath());
+
+		// Sigue vivo el token de SIS_CE.cif, recontado al reproducir el registro
+		fileStorageService.deleteFile(original.getToken());
+		fileStorageService.deleteFile(otra.getToken());
+		assertTrue(Files.exists(Paths.get(original.getFilePath())));
+	}
+
+	@Test
+	void unaDescargaRecienteNoVaAlDisco() throws Exception {
+		FileToken fileToken = fileStorageService.storeStream(new ByteArrayInputStream(CONTENIDO), "SIS.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 2), null);
+		// Sin el archivo en disco solo la cache puede responder
+		Files.delete(Paths.get(fileToken.getFilePath()));
+
+		assertArrayEquals(CONTENIDO, fileStorageService.getFile(fileToken.getToken()));
+		try (InputStream entrada = fileStorageService.openDownload(fileToken.getToken(), false).getInputStream()) {
+			assertArrayEquals(CONTENIDO, entrada.readAllBytes());
+		}
+
+		// La última descarga borra el token y con él la entrada de la cache
+		try (InputStream entrada = fileStorageService.openDownload(fileToken.getToken(), false).getInputStream()) {
+			entrada.readAllBytes();
+		}
+		FileToken otro = fileStorageService.storeFile(CONTENIDO, "SIS_CE.cif");
+		Files.delete(Paths.get(otro.getFilePath()));
+		fileStorageService.deleteFile(otro.getToken());
+		assertEquals(0, fileStorageService.getCachedBytes());
+	}
+
+	@Test
+	void conSegmentosLosTokensSobrevivenAlReinicio() throws Exception {
+		fileStorageService.close();
+		propiedades.getAlmacenamiento().setSoporte(CifradoProperties.Almacenamiento.Soporte.SEGMENTOS);
+		fileStorageService = new FileStorageService(propiedades, new SimpleMeterRegistry());
+
+		FileToken fileToken = fileStorageService.storeStream(new ByteArrayInputStream(CONTENIDO), "SIS.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 1), null);
+		FileToken borrado = fileStorageService.storeFile(CONTENIDO, "SIS_CE.cif");
+		fileStorageService.deleteFile(borrado.getToken());
+		assertTrue(fileToken.getFilePath().startsWith("seg:"));
+		fileStorageService.close();
+
+		fileStorageService = new FileStorageService(propiedades, new SimpleMeterRegistry());
+		assertEquals(CONTENIDO.length, fileStorageService.getStoredBytes());
+		try (InputStream entrada = fileStorageService.openDownload(fileToken.getToken(), false).getInputStream()) {
+			assertArrayEquals(CONTENIDO, entrada.readAllBytes());
+		}
+		assertNull(fileStorageService.getFileToken(fileToken.getToken()));
+	}
+}
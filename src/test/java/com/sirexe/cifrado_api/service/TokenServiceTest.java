@@ -0,0 +1,207 @@
+package com.sirexe.cifradoapi.service;
+
+import com.sirexe.cifradoapi.config.CifradoProperties;
+import com.sirexe.cifradoapi.model.FileToken;
+import com.sirexe.cifradoapi.model.OpcionesCifrado;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.Resource;
+import org.springframework.util.unit.DataSize;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.TimeZone;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.verifyNoInteractions;
+
+class TokenServiceTest {
+
+	private static final byte[] CONTENIDO = "contenido cifrado".getBytes(StandardCharsets.UTF_8);
+
+	@TempDir
+	Path directorio;
+
+	private final List<FileStorageService> almacenes = new ArrayList<>();
+
+	@AfterEach
+	void cerrar() throws Exception {
+		for (FileStorageService almacen : almacenes) {
+			almacen.close();
+		}
+	}
+
+	@Test
+	void elTokenDeUnaReplicaSeDescargaEnOtra() throws Exception {
+		descargaEntreReplicas(CifradoProperties.Almacenamiento.Soporte.ARCHIVOS);
+	}
+
+	@Test
+	void elTokenDeUnaReplicaSeDescargaEnOtraConSegmentos() throws Exception {
+		descargaEntreReplicas(CifradoProperties.Almacenamiento.Soporte.SEGMENTOS);
+	}
+
+	private void descargaEntreReplicas(CifradoProperties.Almacenamiento.Soporte soporte) throws Exception {
+		FileStorageService almacenA = almacen("a", soporte);
+		TokenService replicaA = new TokenService(firmados(), new ClavesPrueba(), almacenA);
+		TokenService replicaB = new TokenService(firmados(), new ClavesPrueba(), almacen("b", soporte));
+
+		FileToken fileToken = almacenA.storeStream(new ByteArrayInputStream(CONTENIDO), "SIS.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 0), null);
+		String token = replicaA.emitir(fileToken);
+		assertTrue(token.contains("."));
+
+		FileToken enB = replicaB.resolver(token);
+		assertNotNull(enB);
+		assertTrue(replicaB.esCompartido(enB));
+		assertTrue(enB.isReady());
+		assertEquals("SIS.cif", enB.getOriginalName());
+		assertEquals(fileToken.getExpiresAt().truncatedTo(ChronoUnit.MILLIS), enB.getExpiresAt());
+		assertArrayEquals(CONTENIDO, leer(replicaB.abrirDescarga(enB, false)));
+
+		// La réplica emisora lo resuelve en su propio índice
+		FileToken enA = replicaA.resolver(token);
+		assertFalse(replicaA.esCompartido(enA));
+		assertArrayEquals(CONTENIDO, leer(replicaA.abrirDescarga(enA, false)));
+	}
+
+	@Test
+	void tokenAlteradoOVencidoSeRechazaSinTocarElAlmacenamiento() throws Exception {
+		FileStorageService almacenA = almacen("a", CifradoProperties.Almacenamiento.Soporte.ARCHIVOS);
+		TokenService replicaA = new TokenService(firmados(), new ClavesPrueba(), almacenA);
+		FileStorageService sinUso = mock(FileStorageService.class);
+		TokenService replicaB = new TokenService(firmados(), new ClavesPrueba(), sinUso);
+
+		String token = replicaA.emitir(almacenA.storeStream(new ByteArrayInputStream(CONTENIDO), "SIS.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 0), null));
+		char cambiado = token.charAt(5) == 'A' ? 'B' : 'A';
+		assertNull(replicaB.resolver(token.substring(0, 5) + cambiado + token.substring(6)));
+		assertNull(replicaB.resolver(token + "x"));
+		assertNull(replicaB.resolver("no.es-un-token"));
+
+		String vencido = replicaA.emitir(almacenA.storeStream(new ByteArrayInputStream(CONTENIDO), "SIS.cif",
+			new OpcionesCifrado(Duration.ofMillis(20), 0), null));
+		Thread.sleep(50);
+		assertNull(replicaB.resolver(vencido));
+
+		verifyNoInteractions(sinUso);
+	}
+
+	@Test
+	void conFirmaNoSeEmitenTokensConDescargasLimitadas() throws Exception {
+		FileStorageService almacenA = almacen("a", CifradoProperties.Almacenamiento.Soporte.ARCHIVOS);
+		TokenService replicaA = new TokenService(firmados(), new ClavesPrueba(), almacenA);
+
+		// El contador vive en una sola réplica: las demás no podrían respetar el límite
+		FileToken limitado = almacenA.storeStream(new ByteArrayInputStream(CONTENIDO), "SIS.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 1), null);
+		assertThrows(IllegalArgumentException.class, () -> replicaA.emitir(limitado));
+
+		CifradoProperties conLimite = firmados();
+		conLimite.getTokens().setDescargasPorDefecto(1);
+		assertThrows(IllegalStateException.class, () -> new TokenService(conLimite, new ClavesPrueba(), almacenA));
+	}
+
+	@Test
+	void resolverUnTokenCompartidoNoLeeElAlmacenamientoHastaQueHaceFalta() throws Exception {
+		FileStorageService almacenA = almacen("a", CifradoProperties.Almacenamiento.Soporte.ARCHIVOS);
+		TokenService replicaA = new TokenService(firmados(), new ClavesPrueba(), almacenA);
+		FileStorageService almacenB = mock(FileStorageService.class);
+		TokenService replicaB = new TokenService(firmados(), new ClavesPrueba(), almacenB);
+
+		// Un archivo completo al firmar está listo sin mirar el almacenamiento, como pide /info
+		FileToken completo = replicaB.resolver(replicaA.emitir(almacenA.storeStream(
+			new ByteArrayInputStream(CONTENIDO), "SIS.cif", new OpcionesCifrado(Duration.ofMinutes(1), 0), null)));
+		assertTrue(completo.isReady());
+
+		// Un trabajo en segundo plano solo se busca cuando se pregunta su estado
+		FileToken trabajo = replicaB.resolver(replicaA.emitir(almacenA.reserveToken("SIS.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 0))));
+		verify(almacenB, never()).existsShared(any(), any());
+		verify(almacenB, never()).openShared(any(), any());
+		assertEquals(FileToken.Status.PENDING, trabajo.getStatus());
+		assertFalse(trabajo.isReady());
+		verify(almacenB).existsShared(any(), any());
+	}
+
+	@Test
+	void laVigenciaNoDependeDeLaZonaHorariaDeCadaReplica() throws Exception {
+		TimeZone zona = TimeZone.getDefault();
+		try {
+			TimeZone.setDefault(TimeZone.getTimeZone("America/Mexico_City"));
+			FileStorageService almacenA = almacen("a", CifradoProperties.Almacenamiento.Soporte.ARCHIVOS);
+			TokenService replicaA = new TokenService(firmados(), new ClavesPrueba(), almacenA);
+			TokenService replicaB = new TokenService(firmados(), new ClavesPrueba(),
+				almacen("b", CifradoProperties.Almacenamiento.Soporte.ARCHIVOS));
+			FileToken fileToken = almacenA.storeStream(new ByteArrayInputStream(CONTENIDO), "SIS.cif",
+				new OpcionesCifrado(Duration.ofMinutes(1), 0), null);
+			String token = replicaA.emitir(fileToken);
+
+			// La otra réplica corre con otra zona: el token sigue vigente y vence en el mismo instante
+			TimeZone.setDefault(TimeZone.getTimeZone("Asia/Tokyo"));
+			FileToken enB = replicaB.resolver(token);
+			assertNotNull(enB);
+			assertFalse(enB.isExpired());
+			assertEquals(fileToken.getExpiresAt().atZone(ZoneId.of("America/Mexico_City")).toInstant()
+				.truncatedTo(ChronoUnit.MILLIS), enB.getExpiresAt().atZone(ZoneId.of("Asia/Tokyo")).toInstant());
+		} finally {
+			TimeZone.setDefault(zona);
+		}
+	}
+
+	@Test
+	void sinFirmaElTokenEsElIdentificador() throws Exception {
+		FileStorageService almacen = almacen("", CifradoProperties.Almacenamiento.Soporte.ARCHIVOS);
+		TokenService tokens = new TokenService(new CifradoProperties(), new ClavesPrueba(), almacen);
+
+		FileToken fileToken = almacen.storeStream(new ByteArrayInputStream(CONTENIDO), "SIS.cif",
+			new OpcionesCifrado(Duration.ofMinutes(1), 0), null);
+		assertEquals(fileToken.getToken(), tokens.emitir(fileToken));
+		assertEquals(fileToken, tokens.resolver(fileToken.getToken()));
+	}
+
+	private FileStorageService almacen(String replica, CifradoProperties.Almacenamiento.Soporte soporte)
+			throws Exception {
+		CifradoProperties propiedades = new CifradoProperties();
+		propiedades.getAlmacenamiento().setDirectorio(directorio.toString());
+		propiedades.getAlmacenamiento().setReplica(replica);
+		propiedades.getAlmacenamiento().setSoporte(soporte);
+		// Sin cache: la otra réplica tiene que leer del disco compartido
+		propiedades.getCache().setCapacidad(DataSize.ofBytes(0));
+		FileStorageService almacen = new FileStorageService(propiedades, new SimpleMeterRegistry());
+		almacenes.add(almacen);
+		return almacen;
+	}
+
+	private static CifradoProperties firmados() {
+		CifradoProperties propiedades = new CifradoProperties();
+		propiedades.getTokens().setFirmados(true);
+		return propiedades;
+	}
+
+	private static byte[] leer(Resource recurso) throws Exception {
+		assertNotNull(recurso);
+		try (InputStream entrada = recurso.getInputStream()) {
+			return entrada.readAllBytes();
+		}
+	}
+}
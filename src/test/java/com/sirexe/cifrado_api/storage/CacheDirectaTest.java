@@ -0,0 +1,76 @@
+package com.sirexe.cifradoapi.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+
+class CacheDirectaTest {
+
+	@Test
+	void loCapturadoAlEscribirSeLeeDeLaCache() throws Exception {
+		CacheDirecta cache = new CacheDirecta(1 << 20, 1 << 16);
+		byte[] contenido = contenido(20_000, 7);
+
+		ByteArrayOutputStream disco = new ByteArrayOutputStream();
+		CacheDirecta.Captura captura = cache.nuevaCaptura();
+		try (OutputStream salida = captura.envolver(disco)) {
+			salida.write(contenido, 0, 5_000);
+			salida.write(contenido, 5_000, 15_000);
+		}
+		captura.publicar("a");
+
+		assertArrayEquals(contenido, disco.toByteArray());
+		assertArrayEquals(contenido, cache.leer("a"));
+		try (InputStream entrada = cache.recurso("a").getInputStream()) {
+			assertEquals(1_000, entrada.skip(1_000));
+			assertEquals(contenido[1_000], (byte) entrada.read());
+		}
+		assertEquals(20_000, cache.getBytes());
+		assertNull(cache.leer("b"));
+		assertEquals(2, cache.getAciertos());
+		assertEquals(1, cache.getFallos());
+	}
+
+	@Test
+	void seDesalojaLoMenosUsadoYSeIgnoraLoQueNoCabe() throws Exception {
+		CacheDirecta cache = new CacheDirecta(3_000, 2_000);
+		guardar(cache, "a", contenido(1_000, 1));
+		guardar(cache, "b", contenido(1_000, 2));
+		cache.leer("a");
+		guardar(cache, "c", contenido(1_500, 3));
+
+		assertNull(cache.leer("b"));
+		assertArrayEquals(contenido(1_000, 1), cache.leer("a"));
+		assertEquals(1, cache.getDesalojos());
+
+		guardar(cache, "grande", contenido(2_001, 4));
+		assertNull(cache.leer("grande"));
+		assertEquals(2, cache.getEntradas());
+
+		cache.invalidar("a");
+		assertNull(cache.leer("a"));
+		assertEquals(1_500, cache.getBytes());
+	}
+
+	private static void guardar(CacheDirecta cache, String clave, byte[] contenido) throws Exception {
+		CacheDirecta.Captura captura = cache.nuevaCaptura();
+		try (OutputStream salida = captura.envolver(OutputStream.nullOutputStream())) {
+			salida.write(contenido);
+		}
+		captura.publicar(clave);
+	}
+
+	private static byte[] contenido(int longitud, int semilla) {
+		byte[] contenido = new byte[longitud];
+		for (int i = 0; i < longitud; i++) {
+			contenido[i] = (byte) (i * 31 + semilla);
+		}
+		return contenido;
+	}
+}
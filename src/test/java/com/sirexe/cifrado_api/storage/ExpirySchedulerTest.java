@@ -0,0 +1,64 @@
+package com.sirexe.cifradoapi.storage;
+
+import org.junit.jupiter.api.Test;
+
+import java.time.LocalDateTime;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class ExpirySchedulerTest {
+
+	@Test
+	void cadaTokenExpiraCercaDeSuVencimientoYNoAntes() throws Exception {
+		Set<String> vencidos = ConcurrentHashMap.newKeySet();
+		CountDownLatch listos = new CountDownLatch(100);
+		ExpiryScheduler scheduler = new ExpiryScheduler(lote -> {
+			vencidos.addAll(lote);
+			lote.forEach(t -> listos.countDown());
+		}, 1, 16);
+
+		try {
+			LocalDateTime ahora = LocalDateTime.now();
+			for (int i = 0; i < 100; i++) {
+				scheduler.schedule("pronto-" + i, ahora.plusNanos(50_000_000));
+			}
+			scheduler.schedule("tarde", ahora.plusHours(1));
+
+			assertTrue(listos.await(5, TimeUnit.SECONDS));
+			assertEquals(100, vencidos.size());
+			assertFalse(vencidos.contains("tarde"));
+			assertEquals(1, scheduler.getPendientes());
+		} finally {
+			scheduler.close();
+		}
+	}
+
+	@Test
+	void losLotesNoSuperanElTamanoConfigurado() throws Exception {
+		List<Integer> tamanos = new CopyOnWriteArrayList<>();
+		CountDownLatch listos = new CountDownLatch(50);
+		ExpiryScheduler scheduler = new ExpiryScheduler(lote -> {
+			tamanos.add(lote.size());
+			lote.forEach(t -> listos.countDown());
+		}, 1, 8);
+
+		try {
+			LocalDateTime pasado = LocalDateTime.now().minusSeconds(1);
+			for (int i = 0; i < 50; i++) {
+				scheduler.schedule("t" + i, pasado);
+			}
+			assertTrue(listos.await(5, TimeUnit.SECONDS));
+			assertTrue(tamanos.stream().allMatch(n -> n <= 8));
+		} finally {
+			scheduler.close();
+		}
+	}
+}
@@ -0,0 +1,112 @@
+package com.sirexe.cifradoapi.storage;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.core.io.Resource;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class SegmentStoreTest {
+
+	@TempDir
+	Path directorio;
+
+	@Test
+	void variosContenidosCompartenSegmento() throws Exception {
+		try (SegmentStore store = new SegmentStore(directorio, 1 << 20, false)) {
+			String primero = store.escribir(salida -> salida.write(bytes("primero")), "a.cif");
+			String segundo = store.escribir(salida -> salida.write(bytes("segundo contenido")), "b.cif");
+
+			assertEquals(1, segmentos().size());
+			assertEquals(bytes("segundo contenido").length, store.tamano(segundo));
+			assertArrayEquals(bytes("primero"), store.leer(primero));
+			assertArrayEquals(bytes("segundo contenido"), store.leer(segundo));
+			try (InputStream entrada = store.recurso(segundo).getInputStream()) {
+				assertArrayEquals(bytes("segundo contenido"), entrada.readAllBytes());
+			}
+		}
+	}
+
+	@Test
+	void unaEscrituraFallidaNoDejaRastro() throws Exception {
+		try (SegmentStore store = new SegmentStore(directorio, 1 << 20, false)) {
+			String antes = store.escribir(salida -> salida.write(bytes("antes")), "a.cif");
+			assertThrows(IOException.class, () -> store.escribir(salida -> {
+				salida.write(new byte[100_000]);
+				throw new IOException("conexión perdida");
+			}, "b.cif"));
+			String despues = store.escribir(salida -> salida.write(bytes("después")), "c.cif");
+
+			assertArrayEquals(bytes("antes"), store.leer(antes));
+			assertArrayEquals(bytes("después"), store.leer(despues));
+			assertEquals(bytes("antes").length + bytes("después").length, Files.size(segmentos().get(0)));
+		}
+	}
+
+	@Test
+	void unSegmentoLlenoSeBorraConSuUltimoContenido() throws Exception {
+		try (SegmentStore store = new SegmentStore(directorio, 10, false)) {
+			String primero = store.escribir(salida -> salida.write(new byte[8]), "a.cif");
+			String segundo = store.escribir(salida -> salida.write(new byte[8]), "b.cif");
+			String tercero = store.escribir(salida -> salida.write(new byte[8]), "c.cif");
+			assertEquals(2, segmentos().size());
+
+			// La descarga en curso termina aunque el segmento se borre mientras tanto
+			Resource recurso = store.recurso(primero);
+			try (InputStream entrada = recurso.getInputStream()) {
+				store.borrar(primero);
+				store.borrar(segundo);
+				assertEquals(1, segmentos().size());
+				assertEquals(8, entrada.readAllBytes().length);
+			}
+			assertFalse(store.existe(primero));
+			assertTrue(store.existe(tercero));
+		}
+	}
+
+	@Test
+	void alReiniciarSeDescartanLosSegmentosSinTokens() throws Exception {
+		String vivo;
+		try (SegmentStore store = new SegmentStore(directorio, 10, false)) {
+			store.escribir(salida -> salida.write(new byte[16]), "a.cif");
+			vivo = store.escribir(salida -> salida.write(bytes("vivo")), "b.cif");
+		}
+		assertEquals(2, segmentos().size());
+
+		try (SegmentStore store = new SegmentStore(directorio, 10, false)) {
+			store.recuperar(List.of(vivo, directorio.resolve("otro.cif").toString()));
+			assertEquals(1, segmentos().size());
+			assertArrayEquals(bytes("vivo"), store.leer(vivo));
+
+			// Los segmentos recuperados quedan sellados: lo nuevo va a uno aparte
+			String nuevo = store.escribir(salida -> salida.write(bytes("nuevo")), "c.cif");
+			assertEquals(2, segmentos().size());
+			store.borrar(vivo);
+			assertEquals(1, segmentos().size());
+			assertArrayEquals(bytes("nuevo"), store.leer(nuevo));
+		}
+	}
+
+	private List<Path> segmentos() throws IOException {
+		try (Stream<Path> archivos = Files.list(directorio)) {
+			return archivos.filter(archivo -> archivo.toString().endsWith(".seg")).sorted().collect(Collectors.toList());
+		}
+	}
+
+	private static byte[] bytes(String texto) {
+		return texto.getBytes(StandardCharsets.UTF_8);
+	}
+}
@@ -0,0 +1,237 @@
+package com.sirexe.cifradoapi.storage;
+
+import com.sirexe.cifradoapi.crypto.Compresion;
+import com.sirexe.cifradoapi.crypto.Formato;
+import com.sirexe.cifradoapi.crypto.Suite;
+import com.sirexe.cifradoapi.model.FileToken;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.temporal.ChronoUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.TimeZone;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class TokenLogTest {
+
+	@TempDir
+	Path directorio;
+
+	@Test
+	void losTokensSobrevivenAlReinicio() throws Exception {
+		Path archivo = directorio.resolve("tokens.log");
+		FileToken vivo = token("vivo");
+		vivo.setCompression(Compresion.DEFLATE);
+		vivo.setFormat(Formato.TROCEADO);
+		vivo.setSuite(Suite.AES_GCM);
+		try (TokenLog log = new TokenLog(archivo, false)) {
+			log.reproducir();
+			log.alta(vivo);
+			log.alta(token("borrado"));
+			log.baja("borrado");
+		}
+
+		try (TokenLog log = new TokenLog(archivo, false)) {
+			Map<String, FileToken> tokens = log.reproducir();
+			assertEquals(1, tokens.size());
+			FileToken recuperado = tokens.get("vivo");
+			assertEquals(vivo.getFilePath(), recuperado.getFilePath());
+			assertEquals(vivo.getOriginalName(), recuperado.getOriginalName());
+			assertEquals(Compresion.DEFLATE, recuperado.getCompression());
+			assertEquals(Formato.TROCEADO, recuperado.getFormat());
+			assertEquals(Suite.AES_GCM, recuperado.getSuite());
+			// El registro guarda las fechas con precisión de milisegundos
+			assertEquals(vivo.getExpiresAt().truncatedTo(ChronoUnit.MILLIS), recuperado.getExpiresAt());
+		}
+	}
+
+	@Test
+	void losTokensExpiradosNoSeRecuperan() throws Exception {
+		Path archivo = directorio.resolve("tokens.log");
+		try (TokenLog log = new TokenLog(archivo, false)) {
+			log.reproducir();
+			FileToken expirado = token("expirado");
+			expirado.setExpiresAt(LocalDateTime.now().minusMinutes(1));
+			log.alta(expirado);
+		}
+
+		try (TokenLog log = new TokenLog(archivo, false)) {
+			assertTrue(log.reproducir().isEmpty());
+		}
+	}
+
+	@Test
+	void lasFechasSeRecuperanEnOtraZonaHoraria() throws Exception {
+		Path archivo = directorio.resolve("tokens.log");
+		TimeZone zona = TimeZone.getDefault();
+		try {
+			TimeZone.setDefault(TimeZone.getTimeZone("America/Mexico_City"));
+			FileToken vivo = token("vivo");
+			vivo.setExpiresAt(LocalDateTime.now().plusMinutes(5));
+			try (TokenLog log = new TokenLog(archivo, false)) {
+				log.reproducir();
+				log.alta(vivo);
+			}
+
+			// Reinicio con otra zona: a cinco minutos de vencer, no se descarta como expirado
+			TimeZone.setDefault(TimeZone.getTimeZone("Asia/Tokyo"));
+			try (TokenLog log = new TokenLog(archivo, false)) {
+				FileToken recuperado = log.reproducir().get("vivo");
+				assertEquals(vivo.getExpiresAt().atZone(ZoneId.of("America/Mexico_City")).toInstant()
+					.truncatedTo(ChronoUnit.MILLIS), recuperado.getExpiresAt().atZone(ZoneId.of("Asia/Tokyo")).toInstant());
+				assertFalse(recuperado.isExpired());
+			}
+		} finally {
+			TimeZone.setDefault(zona);
+		}
+	}
+
+	@Test
+	void unRegistroFinalIncompletoSeDescarta() throws Exception {
+		Path archivo = directorio.resolve("tokens.log");
+		try (TokenLog log = new TokenLog(archivo, false)) {
+			log.reproducir();
+			log.alta(token("uno"));
+			log.alta(token("dos"));
+		}
+		long tamano = Files.size(archivo);
+		try (FileChannel canal = FileChannel.open(archivo, StandardOpenOption.WRITE)) {
+			canal.truncate(tamano - 5);
+		}
+
+		try (TokenLog log = new TokenLog(archivo, false)) {
+			Map<String, FileToken> tokens = log.reproducir();
+			assertTrue(tokens.containsKey("uno"));
+			assertFalse(tokens.containsKey("dos"));
+			// Se puede seguir anexando detrás del último registro válido
+			log.alta(token("tres"));
+		}
+		try (TokenLog log = new TokenLog(archivo, false)) {
+			assertEquals(2, log.reproducir().size());
+		}
+	}
+
+	@Test
+	void unRegistroDanadoEnMedioNoDescartaLosSiguientes() throws Exception {
+		Path archivo = directorio.resolve("tokens.log");
+		long segundo;
+		try (TokenLog log = new TokenLog(archivo, false)) {
+			log.reproducir();
+			log.alta(token("uno"));
+			segundo = Files.size(archivo);
+			log.alta(token("dos"));
+			log.alta(token("tres"));
+			log.descarga("tres");
+		}
+		byte[] original = Files.readAllBytes(archivo);
+		// Un byte de los datos de "dos": su CRC ya no coincide, pero su longitud sí
+		escribirByte(archivo, segundo + 12, (byte) 'X');
+
+		try (TokenLog log = new TokenLog(archivo, false)) {
+			Map<String, FileToken> tokens = log.reproducir();
+			assertEquals(2, tokens.size());
+			assertFalse(tokens.containsKey("dos"));
+			assertEquals(1, tokens.get("tres").getDownloadCount());
+			log.alta(token("cuatro"));
+		}
+		List<Path> copias = copias();
+		assertEquals(1, copias.size());
+		byte[] danado = original.clone();
+		danado[(int) segundo + 12] = 'X';
+		assertArrayEquals(danado, Files.readAllBytes(copias.get(0)));
+
+		// Reescrito sin el registro dañado: el siguiente arranque no hace otra copia
+		try (TokenLog log = new TokenLog(archivo, false)) {
+			assertEquals(3, log.reproducir().size());
+		}
+		assertEquals(1, copias().size());
+	}
+
+	@Test
+	void unaLongitudIlegibleConservaElOriginal() throws Exception {
+		Path archivo = directorio.resolve("tokens.log");
+		long segundo;
+		try (TokenLog log = new TokenLog(archivo, false)) {
+			log.reproducir();
+			log.alta(token("uno"));
+			segundo = Files.size(archivo);
+			log.alta(token("dos"));
+			log.alta(token("tres"));
+		}
+		long tamano = Files.size(archivo);
+		escribirByte(archivo, segundo + 1, (byte) 0x7F);
+
+		try (TokenLog log = new TokenLog(archivo, false)) {
+			Map<String, FileToken> tokens = log.reproducir();
+			assertEquals(1, tokens.size());
+			assertTrue(tokens.containsKey("uno"));
+			log.alta(token("cuatro"));
+		}
+		List<Path> copias = copias();
+		assertEquals(1, copias.size());
+		assertEquals(tamano, Files.size(copias.get(0)));
+		try (TokenLog log = new TokenLog(archivo, false)) {
+			assertEquals(2, log.reproducir().size());
+		}
+	}
+
+	@Test
+	void compactarConservaSoloLosVivos() throws Exception {
+		Path archivo = directorio.resolve("tokens.log");
+		List<FileToken> vivos = new ArrayList<>();
+		try (TokenLog log = new TokenLog(archivo, false)) {
+			log.reproducir();
+			for (int i = 0; i < 100; i++) {
+				FileToken fileToken = token("t" + i);
+				log.alta(fileToken);
+				if (i % 10 == 0) {
+					vivos.add(fileToken);
+				} else {
+					log.baja(fileToken.getToken());
+				}
+			}
+			long antes = Files.size(archivo);
+			log.compactar(vivos);
+			assertEquals(vivos.size(), log.getRegistros());
+			assertTrue(Files.size(archivo) < antes);
+			log.alta(token("despues"));
+		}
+
+		try (TokenLog log = new TokenLog(archivo, false)) {
+			assertEquals(vivos.size() + 1, log.reproducir().size());
+		}
+	}
+
+	private List<Path> copias() throws IOException {
+		try (Stream<Path> archivos = Files.list(directorio)) {
+			return archivos.filter(p -> p.getFileName().toString().startsWith("tokens.log.danado-"))
+				.collect(Collectors.toList());
+		}
+	}
+
+	private static void escribirByte(Path archivo, long posicion, byte valor) throws IOException {
+		try (FileChannel canal = FileChannel.open(archivo, StandardOpenOption.WRITE)) {
+			canal.write(ByteBuffer.wrap(new byte[] {valor}), posicion);
+		}
+	}
+
+	private FileToken token(String token) throws IOException {
+		return new FileToken(token, token + ".cif", "SIS.cif", directorio.resolve(token + ".cif").toString());
+	}
+}